@@ -0,0 +1,17 @@
+/** Benchmarks and load tests.
+
+    <p>
+    Benchmarks are kept apart from the unit and conformance tests because they
+    take longer to run, and report measurements rather than success or failure.
+    Like unit tests, each benchmark resides in the same package as the code it
+    measures, so that it can compare package-private implementations directly.
+    The benchmarks are kept under the <code>bench/</code> directory.
+
+    <p>
+    Each benchmark is a class with a <code>main</code> method. To run all of
+    them, execute <code>make bench</code>. To run one, execute, for example,
+    <code>java -cp .:bench rmi.VirtualThreadLoad</code> from the project base
+    directory after compiling all <code>.java</code> files. On a Windows system,
+    execute <code>java -cp ".;bench" rmi.VirtualThreadLoad</code> instead.
+ */
+package bench;
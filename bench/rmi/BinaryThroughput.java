@@ -0,0 +1,190 @@
+package rmi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Measures the throughput of calls passing large binary values.
+
+    <p>
+    The benchmark calls a method taking a byte array, or a byte buffer, and
+    returning its length, over a loopback TCP connection, for payloads from 1
+    KB to 64 MB. It is run three times, each time in a virtual machine of its
+    own: with the system property <code>rmi.pool.segments</code> set to
+    <code>false</code>, so that arrays are serialized, and then with arrays
+    and with direct buffers sent as segments. For each payload size, it
+    reports the number of megabytes sent per second in each run.
+
+    <p>
+    The number of megabytes sent per measurement may be given as the first
+    argument.
+ */
+public class BinaryThroughput
+{
+    /** Default number of megabytes sent per measurement. */
+    private static final int    DEFAULT_MEGABYTES = 256;
+    /** Smallest number of calls per measurement. */
+    private static final int    MIN_CALLS = 4;
+    /** Smallest payload size. */
+    private static final int    MIN_SIZE = 1 << 10;
+    /** Largest payload size. */
+    private static final int    MAX_SIZE = 64 << 20;
+    /** Port on which the skeleton listens. */
+    private static final int    PORT = 7320;
+
+    /** Runs the benchmark, or, given <code>measure</code>, one run.
+
+        @param arguments Optionally, the number of megabytes sent per
+                         measurement.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        if(arguments.length == 3 && arguments[0].equals("measure"))
+        {
+            measure(arguments[1].equals("buffer"),
+                    Integer.parseInt(arguments[2]));
+            return;
+        }
+
+        int                     megabytes = DEFAULT_MEGABYTES;
+
+        if(arguments.length > 0)
+            megabytes = Integer.parseInt(arguments[0]);
+
+        System.out.println("megabytes per measurement: " + megabytes);
+
+        List<String>            serialized = run(false, false, megabytes);
+        List<String>            arrays = run(true, false, megabytes);
+        List<String>            buffers = run(true, true, megabytes);
+
+        System.out.printf("%10s %14s %14s %14s%n", "size", "serialized",
+                          "array", "direct buffer");
+
+        for(int i = 0; i < serialized.size(); ++i)
+        {
+            System.out.printf("%10s %9s MB/s %9s MB/s %9s MB/s%n",
+                              label(MIN_SIZE << (2 * i)), serialized.get(i),
+                              arrays.get(i), buffers.get(i));
+        }
+    }
+
+    /** Runs the calls in a virtual machine of its own, and returns the
+        throughput measured for each size. */
+    private static List<String> run(boolean segments, boolean buffer,
+                                    int megabytes)
+        throws Exception
+    {
+        String                  java = System.getProperty("java.home") +
+                                       File.separator + "bin" +
+                                       File.separator + "java";
+        Process                 process = new ProcessBuilder(
+            java, "-Drmi.pool.segments=" + segments,
+            "-cp", System.getProperty("java.class.path"),
+            BinaryThroughput.class.getName(), "measure",
+            buffer ? "buffer" : "array", Integer.toString(megabytes))
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        BufferedReader          reader = new BufferedReader(
+            new InputStreamReader(process.getInputStream()));
+        List<String>            results = new ArrayList<String>();
+        String                  line;
+
+        while((line = reader.readLine()) != null)
+            results.add(line);
+
+        if(process.waitFor() != 0)
+            throw new IllegalStateException("measurement failed");
+
+        return results;
+    }
+
+    /** Makes the calls for each size, and prints the throughput of each. */
+    private static void measure(boolean buffer, int megabytes)
+        throws Throwable
+    {
+        Skeleton<SinkInterface> skeleton =
+            new Skeleton<SinkInterface>(SinkInterface.class, new Sink(),
+                new InetSocketAddress("127.0.0.1", PORT));
+
+        skeleton.start();
+
+        try
+        {
+            SinkInterface       stub = Stub.create(SinkInterface.class,
+                new InetSocketAddress("127.0.0.1", PORT));
+
+            for(int size = MIN_SIZE; size <= MAX_SIZE; size <<= 2)
+            {
+                byte[]          array = new byte[size];
+                ByteBuffer      direct = ByteBuffer.allocateDirect(size);
+                int             calls =
+                    Math.max(MIN_CALLS, (int)(((long)megabytes << 20) / size));
+
+                // Unmeasured calls, to let the compilers settle.
+                send(stub, buffer, array, direct, calls / 4 + 1);
+
+                long            start = System.nanoTime();
+                send(stub, buffer, array, direct, calls);
+                long            elapsed = System.nanoTime() - start;
+
+                System.out.printf("%.1f%n", (double)size * calls /
+                                  (1 << 20) / (elapsed / 1e9));
+            }
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+    }
+
+    /** Makes the given number of calls, passing the array or buffer. */
+    private static void send(SinkInterface stub, boolean buffer,
+                             byte[] array, ByteBuffer direct, int calls)
+        throws RMIException
+    {
+        for(int i = 0; i < calls; ++i)
+        {
+            int                 received = buffer ? stub.consume(direct)
+                                                  : stub.consume(array);
+
+            if(received != array.length)
+                throw new IllegalStateException("bytes lost");
+        }
+    }
+
+    /** Returns a payload size in kilobytes or megabytes. */
+    private static String label(int size)
+    {
+        return size < (1 << 20) ? (size >> 10) + " KB" : (size >> 20) + " MB";
+    }
+
+    /** Remote interface with methods taking binary values. */
+    public interface SinkInterface
+    {
+        /** Returns the length of an array. */
+        public int consume(byte[] bytes) throws RMIException;
+        /** Returns the number of bytes remaining in a buffer. */
+        public int consume(ByteBuffer bytes) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    public static class Sink implements SinkInterface
+    {
+        @Override
+        public int consume(byte[] bytes)
+        {
+            return bytes.length;
+        }
+
+        @Override
+        public int consume(ByteBuffer bytes)
+        {
+            return bytes.remaining();
+        }
+    }
+}
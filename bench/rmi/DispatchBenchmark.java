@@ -0,0 +1,143 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/** Compares the skeleton's method handle dispatch with core reflection.
+
+    <p>
+    Each method of a small remote interface is called repeatedly on the remote
+    object, first through <code>Method.invoke</code>, as the skeleton used to,
+    and then through the dispatcher's bound method handles. No network or
+    serialization is involved: only the cost of the call itself is measured.
+    The benchmark reports the average time per call for each path.
+
+    <p>
+    The number of calls per measurement may be given as the first argument.
+ */
+public class DispatchBenchmark
+{
+    /** Default number of calls per measurement. */
+    private static final int    DEFAULT_CALLS = 10000000;
+    /** Number of unmeasured rounds run first, to let the compiler settle. */
+    private static final int    WARMUP_ROUNDS = 3;
+
+    /** Sink for call results, so that calls cannot be optimized away. */
+    private static Object       sink;
+
+    /** Runs the benchmark.
+
+        @param arguments Optionally, the number of calls per measurement.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        int                     calls = DEFAULT_CALLS;
+
+        if(arguments.length > 0)
+            calls = Integer.parseInt(arguments[0]);
+
+        Calculator              server = new Calculator();
+        Skeleton<CalculatorInterface> skeleton =
+            new Skeleton<CalculatorInterface>(CalculatorInterface.class,
+                                              server);
+        Dispatcher<CalculatorInterface> dispatcher = skeleton.getDispatcher();
+        MethodTable             table = dispatcher.getMethodTable();
+
+        System.out.println("calls per measurement: " + calls);
+
+        for(int id = 0; id < table.size(); ++id)
+        {
+            Method              method = table.method(id);
+            Object[]            args = arguments(method);
+
+            for(int round = 0; round < WARMUP_ROUNDS; ++round)
+            {
+                reflective(method, server, args, calls);
+                handles(dispatcher, id, args, calls);
+            }
+
+            long                reflective =
+                reflective(method, server, args, calls);
+            long                handles = handles(dispatcher, id, args, calls);
+
+            System.out.printf("%-24s reflection %6.1f ns/call, " +
+                              "method handle %6.1f ns/call%n",
+                              Protocol.signature(method),
+                              (double)reflective / calls,
+                              (double)handles / calls);
+        }
+    }
+
+    /** Times calls through <code>Method.invoke</code>, in nanoseconds. */
+    private static long reflective(Method method, Object server,
+                                   Object[] args, int calls) throws Throwable
+    {
+        long                    start = System.nanoTime();
+
+        for(int i = 0; i < calls; ++i)
+            sink = method.invoke(server, args);
+
+        return System.nanoTime() - start;
+    }
+
+    /** Times calls through the dispatcher, in nanoseconds. */
+    private static long handles(Dispatcher<?> dispatcher, int id,
+                                Object[] args, int calls) throws Throwable
+    {
+        long                    start = System.nanoTime();
+
+        for(int i = 0; i < calls; ++i)
+            sink = dispatcher.invoke(id, args);
+
+        return System.nanoTime() - start;
+    }
+
+    /** Returns arguments suitable for the given method. */
+    private static Object[] arguments(Method method)
+    {
+        Class<?>[]              types = method.getParameterTypes();
+        Object[]                args = new Object[types.length];
+
+        for(int i = 0; i < types.length; ++i)
+        {
+            if(types[i] == int.class)
+                args[i] = i + 1;
+            else
+                args[i] = "argument";
+        }
+
+        return args;
+    }
+
+    /** Remote interface with methods of several shapes. */
+    public interface CalculatorInterface
+    {
+        /** Does nothing. */
+        public void ping() throws RMIException;
+        /** Returns the sum of its arguments. */
+        public int add(int x, int y) throws RMIException;
+        /** Returns its argument. */
+        public String echo(String s) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    public static class Calculator implements CalculatorInterface
+    {
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public String echo(String s)
+        {
+            return s;
+        }
+    }
+}
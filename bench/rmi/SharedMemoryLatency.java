@@ -0,0 +1,174 @@
+package rmi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/** Compares the latency of calls through shared memory with loopback TCP.
+
+    <p>
+    The benchmark starts a skeleton in a second virtual machine, listening on
+    a loopback TCP port and on a shared-memory file, and then calls a method
+    that does nothing, one call at a time, first through a stub for the TCP
+    address and then through a stub for the file. Each call is timed on its
+    own, and the benchmark reports the mean, median and 99th percentile round
+    trip for each transport.
+
+    <p>
+    The number of calls per measurement may be given as the first argument.
+ */
+public class SharedMemoryLatency
+{
+    /** Default number of calls per measurement. */
+    private static final int    DEFAULT_CALLS = 100000;
+    /** Number of unmeasured rounds run first, to let the compilers settle. */
+    private static final int    WARMUP_ROUNDS = 2;
+    /** Port on which the skeleton listens. */
+    private static final int    PORT = 7300;
+    /** Line printed by the server process once its skeleton has started. */
+    private static final String READY = "ready";
+
+    /** Runs the benchmark, or, given <code>serve</code> and a path, the
+        server process.
+
+        @param arguments Optionally, the number of calls per measurement.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        if(arguments.length == 2 && arguments[0].equals("serve"))
+        {
+            serve(Paths.get(arguments[1]));
+            return;
+        }
+
+        int                     calls = DEFAULT_CALLS;
+
+        if(arguments.length > 0)
+            calls = Integer.parseInt(arguments[0]);
+
+        Path                    directory =
+            Files.createTempDirectory("rmi-bench");
+        Path                    path = directory.resolve("rmi.shm");
+        Process                 server = startServer(path);
+
+        try
+        {
+            PingInterface       tcp = Stub.create(PingInterface.class,
+                new InetSocketAddress("127.0.0.1", PORT));
+            PingInterface       memory = Stub.create(PingInterface.class,
+                new SharedMemoryAddress(path));
+
+            System.out.println("calls per measurement: " + calls);
+
+            for(int round = 0; round < WARMUP_ROUNDS; ++round)
+            {
+                measure(tcp, calls);
+                measure(memory, calls);
+            }
+
+            report("loopback TCP", measure(tcp, calls));
+            report("shared memory", measure(memory, calls));
+        }
+        finally
+        {
+            server.destroy();
+            server.waitFor();
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /** Starts the server process and waits for its skeleton to start. */
+    private static Process startServer(Path path) throws Exception
+    {
+        String                  java = System.getProperty("java.home") +
+                                       File.separator + "bin" +
+                                       File.separator + "java";
+        Process                 server = new ProcessBuilder(
+            java, "-cp", System.getProperty("java.class.path"),
+            SharedMemoryLatency.class.getName(), "serve", path.toString())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        BufferedReader          reader = new BufferedReader(
+            new InputStreamReader(server.getInputStream()));
+
+        if(!READY.equals(reader.readLine()))
+        {
+            server.destroy();
+            throw new IllegalStateException("server process did not start");
+        }
+
+        return server;
+    }
+
+    /** Runs the skeleton until the process is killed. */
+    private static void serve(Path path) throws Throwable
+    {
+        Skeleton<PingInterface> skeleton =
+            new Skeleton<PingInterface>(PingInterface.class, new Ping(),
+                new InetSocketAddress("127.0.0.1", PORT));
+
+        skeleton.setSharedMemory(path, 1);
+        skeleton.start();
+
+        System.out.println(READY);
+        System.out.flush();
+
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /** Times each of the given number of calls, in nanoseconds. */
+    private static long[] measure(PingInterface stub, int calls)
+        throws RMIException
+    {
+        long[]                  times = new long[calls];
+
+        for(int i = 0; i < calls; ++i)
+        {
+            long                start = System.nanoTime();
+            stub.ping();
+            times[i] = System.nanoTime() - start;
+        }
+
+        return times;
+    }
+
+    /** Prints the mean, median and 99th percentile of the given times. */
+    private static void report(String transport, long[] times)
+    {
+        long                    total = 0;
+
+        for(long time : times)
+            total += time;
+
+        Arrays.sort(times);
+
+        System.out.printf("%-16s mean %8.1f us, p50 %8.1f us, " +
+                          "p99 %8.1f us%n", transport,
+                          total / 1000.0 / times.length,
+                          times[times.length / 2] / 1000.0,
+                          times[(int)(times.length * 0.99)] / 1000.0);
+    }
+
+    /** Remote interface with a method that does nothing. */
+    public interface PingInterface
+    {
+        /** Does nothing. */
+        public void ping() throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    public static class Ping implements PingInterface
+    {
+        @Override
+        public void ping()
+        {
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Load test for skeletons servicing calls on virtual threads.
+
+    <p>
+    The test is a generalization of the rendezvous in
+    <code>conformance.rmi.ThreadTest</code>: a given number of stub calls are
+    made at once, and the remote method does not return until every one of
+    them has arrived in the server. All calls therefore have to be blocked in
+    the server at the same time for any of them to complete. The test is run
+    for each transport, with platform threads and, when the Java runtime
+    supports them, with virtual threads, and reports how many calls completed,
+    how long that took, and the peak number of platform threads.
+
+    <p>
+    The number of calls may be given as the first argument. Each call uses two
+    file descriptors in this process, one for each end of its connection, so
+    the descriptor limit must be raised accordingly for large counts.
+ */
+public class VirtualThreadLoad
+{
+    /** Default number of simultaneous calls. */
+    private static final int    DEFAULT_CALLS = 2000;
+    /** Time allowed for all calls to rendezvous, in seconds. */
+    private static final int    TIMEOUT = 60;
+
+    /** Runs the load test.
+
+        @param arguments Optionally, the number of simultaneous calls.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                 calls = DEFAULT_CALLS;
+
+        if(arguments.length > 0)
+            calls = Integer.parseInt(arguments[0]);
+
+        Stub.setPoolLimits(calls, calls);
+
+        System.out.println("simultaneous blocked calls: " + calls);
+
+        for(Skeleton.Transport transport : Skeleton.Transport.values())
+        {
+            run(transport, false, calls);
+
+            if(VirtualThreads.isSupported())
+                run(transport, true, calls);
+            else
+            {
+                System.out.println(transport + " virtual: not supported by " +
+                                   "this Java runtime");
+            }
+        }
+    }
+
+    /** Runs the test for one transport and thread mode. */
+    private static void run(Skeleton.Transport transport, boolean virtual,
+                            int calls) throws Exception
+    {
+        Rendezvous                  server = new Rendezvous(calls);
+        Skeleton<RendezvousInterface> skeleton =
+            new Skeleton<RendezvousInterface>(RendezvousInterface.class,
+                                              server);
+
+        skeleton.setTransport(transport);
+        skeleton.setVirtualThreads(virtual);
+        skeleton.start();
+
+        RendezvousInterface         stub =
+            Stub.create(RendezvousInterface.class, skeleton);
+        ThreadFactory               client_threads =
+            VirtualThreads.isSupported() ? VirtualThreads.factory()
+                                         : new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    return new Thread(r);
+                }
+            };
+
+        AtomicInteger               completed = new AtomicInteger();
+        AtomicInteger               failed = new AtomicInteger();
+        List<Thread>                clients = new ArrayList<Thread>();
+        String                      error = null;
+        long                        start = System.nanoTime();
+
+        try
+        {
+            for(int i = 0; i < calls; ++i)
+            {
+                Thread              client =
+                    client_threads.newThread(new Caller(stub, completed,
+                                                        failed));
+                client.start();
+                clients.add(client);
+            }
+
+            for(Thread client : clients)
+                client.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        }
+        catch(Throwable t)
+        {
+            error = t.toString();
+        }
+
+        long                        elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        server.release();
+        for(Thread client : clients)
+            client.join();
+        skeleton.stop();
+
+        System.out.println(transport + (virtual ? " virtual" : " platform") +
+                           ": " + completed.get() + " of " + calls +
+                           " calls completed, " + failed.get() +
+                           " failed, in " + elapsed + " ms; peak platform " +
+                           "threads " + ManagementFactory.getThreadMXBean()
+                                                         .getPeakThreadCount() +
+                           (error == null ? "" : "; " + error));
+
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+
+    /** Remote interface with a single blocking method. */
+    public interface RendezvousInterface
+    {
+        /** Blocks until the expected number of callers have arrived. */
+        public void rendezvous() throws RMIException;
+    }
+
+    /** Server blocking every caller until all expected callers have
+        arrived. */
+    private static class Rendezvous implements RendezvousInterface
+    {
+        private final CountDownLatch    arrived;
+
+        Rendezvous(int callers)
+        {
+            arrived = new CountDownLatch(callers);
+        }
+
+        @Override
+        public void rendezvous() throws RMIException
+        {
+            arrived.countDown();
+
+            try
+            {
+                if(!arrived.await(TIMEOUT, TimeUnit.SECONDS))
+                    throw new RMIException("rendezvous timed out");
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException("rendezvous interrupted", e);
+            }
+        }
+
+        /** Releases all waiting callers. */
+        void release()
+        {
+            while(arrived.getCount() > 0)
+                arrived.countDown();
+        }
+    }
+
+    /** Client making one call. */
+    private static class Caller implements Runnable
+    {
+        private final RendezvousInterface   stub;
+        private final AtomicInteger         completed;
+        private final AtomicInteger         failed;
+
+        Caller(RendezvousInterface stub, AtomicInteger completed,
+               AtomicInteger failed)
+        {
+            this.stub = stub;
+            this.completed = completed;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.rendezvous();
+                completed.incrementAndGet();
+            }
+            catch(Throwable t)
+            {
+                failed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package rmi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures the bytes sent on the wire for each call.
+
+    <p>
+    The benchmark calls <code>ping(int)</code> through a proxy that forwards
+    a loopback TCP connection to a skeleton and counts the bytes it forwards
+    in each direction. It is run three times, each time in a virtual machine
+    of its own, with the system properties <code>rmi.pool.primitives</code>
+    and <code>rmi.pool.classDescriptors</code> set so that the argument and
+    result are serialized as <code>Integer</code> objects with their class
+    descriptors in every payload, serialized referring to class descriptors
+    shared on the connection, and written raw. For each run it reports the
+    bytes of the first call, which include the connection preface and any
+    descriptor definitions, and the bytes of each later call.
+
+    <p>
+    The number of calls per measurement may be given as the first argument.
+ */
+public class WireSizeBenchmark
+{
+    /** Default number of calls per measurement. */
+    private static final int    DEFAULT_CALLS = 10000;
+    /** Port on which the skeleton listens. */
+    private static final int    PORT = 7310;
+    /** Port on which the proxy listens. */
+    private static final int    PROXY_PORT = 7311;
+
+    /** Bytes forwarded from the stub to the skeleton. */
+    private static final AtomicLong requestBytes = new AtomicLong();
+    /** Bytes forwarded from the skeleton to the stub. */
+    private static final AtomicLong responseBytes = new AtomicLong();
+
+    /** Runs the benchmark, or, given <code>measure</code>, one measurement.
+
+        @param arguments Optionally, the number of calls per measurement.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        if(arguments.length == 2 && arguments[0].equals("measure"))
+        {
+            measure(Integer.parseInt(arguments[1]));
+            return;
+        }
+
+        int                     calls = DEFAULT_CALLS;
+
+        if(arguments.length > 0)
+            calls = Integer.parseInt(arguments[0]);
+
+        System.out.println("calls per measurement: " + calls);
+
+        run("descriptors in every payload", false, false, calls);
+        run("shared descriptors", false, true, calls);
+        run("raw primitives", true, true, calls);
+    }
+
+    /** Runs one measurement in a virtual machine of its own, and prints its
+        results. */
+    private static void run(String label, boolean primitives,
+                            boolean descriptors, int calls)
+        throws Exception
+    {
+        String                  java = System.getProperty("java.home") +
+                                       File.separator + "bin" +
+                                       File.separator + "java";
+        Process                 process = new ProcessBuilder(
+            java, "-Drmi.pool.primitives=" + primitives,
+            "-Drmi.pool.classDescriptors=" + descriptors,
+            "-cp", System.getProperty("java.class.path"),
+            WireSizeBenchmark.class.getName(), "measure",
+            Integer.toString(calls))
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        BufferedReader          reader = new BufferedReader(
+            new InputStreamReader(process.getInputStream()));
+        String                  line;
+
+        while((line = reader.readLine()) != null)
+            System.out.printf("%-30s %s%n", label, line);
+
+        if(process.waitFor() != 0)
+            throw new IllegalStateException("measurement failed");
+    }
+
+    /** Makes the calls through the proxy and prints the bytes counted. */
+    private static void measure(int calls) throws Throwable
+    {
+        Skeleton<PingInterface> skeleton =
+            new Skeleton<PingInterface>(PingInterface.class, new Ping(),
+                new InetSocketAddress("127.0.0.1", PORT));
+        ServerSocket            proxy = new ServerSocket();
+
+        skeleton.start();
+        proxy.bind(new InetSocketAddress("127.0.0.1", PROXY_PORT));
+        startProxy(proxy);
+
+        try
+        {
+            PingInterface       stub = Stub.create(PingInterface.class,
+                new InetSocketAddress("127.0.0.1", PROXY_PORT));
+
+            stub.ping(0);
+            long                firstRequest = settle(requestBytes);
+            long                firstResponse = settle(responseBytes);
+
+            for(int i = 1; i <= calls; ++i)
+                stub.ping(i);
+
+            long                requests = settle(requestBytes) -
+                                           firstRequest;
+            long                responses = settle(responseBytes) -
+                                            firstResponse;
+
+            System.out.printf("first call %5d bytes, then %6.1f bytes/call " +
+                              "(request %5.1f, response %5.1f)%n",
+                              firstRequest + firstResponse,
+                              (double)(requests + responses) / calls,
+                              (double)requests / calls,
+                              (double)responses / calls);
+        }
+        finally
+        {
+            proxy.close();
+            skeleton.stop();
+        }
+    }
+
+    /** Returns the value of a counter once it has stopped changing, so that
+        bytes still being forwarded are counted. */
+    private static long settle(AtomicLong counter) throws InterruptedException
+    {
+        long                    value = counter.get();
+
+        while(true)
+        {
+            Thread.sleep(50);
+
+            long                next = counter.get();
+
+            if(next == value)
+                return value;
+
+            value = next;
+        }
+    }
+
+    /** Accepts connections on the proxy socket, and forwards each to the
+        skeleton. */
+    private static void startProxy(final ServerSocket proxy)
+    {
+        Thread                  acceptor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while(true)
+                    {
+                        Socket  client = proxy.accept();
+                        Socket  server = new Socket("127.0.0.1", PORT);
+
+                        client.setTcpNoDelay(true);
+                        server.setTcpNoDelay(true);
+                        forward(client.getInputStream(),
+                                server.getOutputStream(), requestBytes);
+                        forward(server.getInputStream(),
+                                client.getOutputStream(), responseBytes);
+                    }
+                }
+                catch(IOException e) { }
+            }
+        });
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Copies one direction of a proxied connection, counting the bytes. */
+    private static void forward(final InputStream in, final OutputStream out,
+                                final AtomicLong counter)
+    {
+        Thread                  pump = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                byte[]          buffer = new byte[8192];
+                int             count;
+
+                try
+                {
+                    while((count = in.read(buffer)) > 0)
+                    {
+                        out.write(buffer, 0, count);
+                        out.flush();
+                        counter.addAndGet(count);
+                    }
+                }
+                catch(IOException e) { }
+            }
+        });
+
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    /** Remote interface with a method taking and returning an integer. */
+    public interface PingInterface
+    {
+        /** Returns its argument. */
+        public int ping(int value) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    public static class Ping implements PingInterface
+    {
+        @Override
+        public int ping(int value)
+        {
+            return value;
+        }
+    }
+}
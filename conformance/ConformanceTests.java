@@ -46,7 +46,24 @@ public class ConformanceTests
                          conformance.rmi.InheritanceTest.class,
                          conformance.rmi.SubclassTest.class,
                          conformance.rmi.SecurityTest.class,
-                         conformance.rmi.ThreadTest.class};
+                         conformance.rmi.ThreadTest.class,
+                         conformance.rmi.KeepAliveTest.class,
+                         conformance.rmi.SelectorTransportTest.class,
+                         conformance.rmi.BusyTest.class,
+                         conformance.rmi.ConnectionLimitTest.class,
+                         conformance.rmi.GeneratedStubTest.class,
+                         conformance.rmi.AsyncTest.class,
+                         conformance.rmi.MultiplexTest.class,
+                         conformance.rmi.PipelineTest.class,
+                         conformance.rmi.BatchTest.class,
+                         conformance.rmi.OneWayTest.class,
+                         conformance.rmi.LocalCallTest.class,
+                         conformance.rmi.UnixSocketTest.class,
+                         conformance.rmi.SharedMemoryTest.class,
+                         conformance.rmi.CodecTest.class,
+                         conformance.rmi.SegmentTest.class,
+                         conformance.rmi.StreamTest.class,
+                         conformance.rmi.CompressionTest.class};
 
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
@@ -0,0 +1,195 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.FileNotFoundException;
+import java.util.concurrent.*;
+
+/** Checks asynchronous views of stubs, returned by <code>Stub.async</code>.
+
+    <p>
+    The test fans out several calls from a single thread. The remote method
+    returns only once all of the calls have reached the server, so the test
+    succeeds only if the calls are outstanding at the same time. It then
+    checks that remote exceptions complete futures exceptionally, and that
+    ordinary calls still work on the connections used by asynchronous calls.
+ */
+public class AsyncTest extends BasicTestBase<AsyncTest.AsyncTestInterface>
+{
+    public static final String  notice =
+        "checking asynchronous calls through stubs";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Number of calls fanned out at once. */
+    private static final int    CALLS = 8;
+    /** Time after which a call waiting for the others gives up. */
+    private static final long   TIMEOUT = 10000;
+
+    private final AsyncTestServer   server = new AsyncTestServer();
+
+    public AsyncTest()
+    {
+        super(AsyncTestInterface.class);
+        setServer(server);
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("creating asynchronous view");
+
+        AsyncView                   view;
+
+        try
+        {
+            view = Stub.async(stub, AsyncView.class);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create asynchronous view", t);
+        }
+
+        task("fanning out calls that wait for each other");
+
+        CompletableFuture<?>[]      futures = new CompletableFuture<?>[CALLS];
+
+        for(int i = 0; i < CALLS; ++i)
+            futures[i] = view.gather(i);
+
+        for(int i = 0; i < CALLS; ++i)
+        {
+            if(!Integer.valueOf(i).equals(result(futures[i])))
+                throw new TestFailed("unexpected result from gather");
+        }
+
+        task("checking exception forwarding");
+
+        try
+        {
+            view.fail().get(TIMEOUT, TimeUnit.MILLISECONDS);
+            throw new TestFailed("future of failing call completed normally");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed("future completed with unexpected " +
+                                     "exception", e.getCause());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to wait for failing call", t);
+        }
+
+        task("mixing synchronous and asynchronous calls");
+
+        try
+        {
+            CompletionStage<Integer>    sum = view.add(2, 3);
+
+            if(stub.add(4, 5) != 9)
+                throw new TestFailed("unexpected result from add");
+
+            if(!Integer.valueOf(5).equals(
+                    result(sum.toCompletableFuture())))
+            {
+                throw new TestFailed("unexpected result from asynchronous " +
+                                     "add");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("checking that mismatched views are rejected");
+
+        try
+        {
+            Stub.async(stub, MismatchedView.class);
+            throw new TestFailed("mismatched view accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            Stub.async(server, AsyncView.class);
+            throw new TestFailed("view of an object that is not a stub " +
+                                 "accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task();
+    }
+
+    /** Waits for a future and returns its value. */
+    private Object result(Future<?> future) throws TestFailed
+    {
+        try
+        {
+            return future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("asynchronous call failed", t);
+        }
+    }
+
+    public interface AsyncTestInterface
+    {
+        public int gather(int index) throws RMIException;
+        public int add(int x, int y) throws RMIException;
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    public interface AsyncView
+    {
+        public CompletableFuture<Integer> gather(int index);
+        public CompletionStage<Integer> add(int x, int y);
+        public Future<Void> fail();
+    }
+
+    public interface MismatchedView
+    {
+        public CompletableFuture<Integer> add(long x, long y);
+    }
+
+    private static class AsyncTestServer implements AsyncTestInterface
+    {
+        private final CountDownLatch    arrived = new CountDownLatch(CALLS);
+
+        @Override
+        public int gather(int index) throws RMIException
+        {
+            arrived.countDown();
+
+            try
+            {
+                if(!arrived.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                    throw new RMIException("calls did not arrive together");
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+
+            return index;
+        }
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException();
+        }
+    }
+}
@@ -41,6 +41,8 @@ abstract class BasicTestBase<T> extends Test
             throw new TestFailed("unable to create skeleton", t);
         }
 
+        configure();
+
         task("creating stub");
 
         try
@@ -67,6 +69,12 @@ abstract class BasicTestBase<T> extends Test
         task();
     }
 
+    /** Configures the skeleton before it is started. The default
+        implementation does nothing. */
+    protected void configure() throws TestFailed
+    {
+    }
+
     @Override
     protected void clean()
     {
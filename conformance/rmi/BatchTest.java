@@ -0,0 +1,223 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+/** Checks batches of calls, created by <code>Stub.batch</code>.
+
+    <p>
+    The test records calls through views of two stubs for the same skeleton,
+    executes the batch, and checks that the calls were made in the order in
+    which they were recorded, and that results and exceptions reach the
+    futures of their calls. It then executes a parallel batch whose calls
+    return only once all of them have reached the server, which succeeds only
+    if the skeleton makes them concurrently.
+ */
+public class BatchTest extends BasicTestBase<BatchTest.BatchTestInterface>
+{
+    public static final String  notice = "checking batches of calls";
+    public static final Class[] prerequisites = {AsyncTest.class};
+
+    /** Number of calls in the parallel batch. */
+    private static final int    CALLS = 4;
+    /** Time after which a call waiting for the others gives up. */
+    private static final long   TIMEOUT = 10000;
+
+    private final BatchTestServer   server = new BatchTestServer();
+
+    public BatchTest()
+    {
+        super(BatchTestInterface.class);
+        setServer(server);
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("recording calls through two stubs");
+
+        Batch                       batch = Stub.batch(false);
+        BatchTestInterface          other =
+            Stub.create(BatchTestInterface.class,
+                        new InetSocketAddress(TestConstants.PORT));
+        BatchView                   first = batch.view(stub, BatchView.class);
+        BatchView                   second =
+            batch.view(other, BatchView.class);
+
+        CompletableFuture<Integer>  sum = first.add(2, 3);
+        CompletableFuture<Void>     failure = second.fail();
+        for(int i = 0; i < 3; ++i)
+            (i % 2 == 0 ? first : second).log(i);
+        CompletableFuture<Integer>  product = second.multiply(4, 5);
+
+        if(batch.size() != 6)
+            throw new TestFailed("unexpected number of recorded calls");
+
+        if(sum.isDone() || !server.log.isEmpty())
+            throw new TestFailed("call made before the batch was executed");
+
+        task("executing the batch");
+
+        try
+        {
+            batch.execute();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to execute batch", t);
+        }
+
+        if(!Integer.valueOf(5).equals(sum.getNow(null)) ||
+           !Integer.valueOf(20).equals(product.getNow(null)))
+        {
+            throw new TestFailed("unexpected result from batched call");
+        }
+
+        try
+        {
+            failure.getNow(null);
+            throw new TestFailed("failing batched call completed normally");
+        }
+        catch(CompletionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed("batched call failed with unexpected " +
+                                     "exception", e.getCause());
+            }
+        }
+
+        synchronized(server.log)
+        {
+            if(!server.log.equals(java.util.Arrays.asList(0, 1, 2)))
+                throw new TestFailed("calls not made in recorded order");
+        }
+
+        task("executing the batch again");
+
+        try
+        {
+            batch.execute();
+            throw new TestFailed("batch executed twice");
+        }
+        catch(IllegalStateException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception", e);
+        }
+
+        task("executing a parallel batch");
+
+        Batch                       parallel = Stub.batch(true);
+        BatchView                   view = parallel.view(stub, BatchView.class);
+        ArrayList<CompletableFuture<Integer>>   gathered =
+            new ArrayList<CompletableFuture<Integer>>();
+
+        for(int i = 0; i < CALLS; ++i)
+            gathered.add(view.gather(i));
+
+        try
+        {
+            parallel.execute();
+
+            for(int i = 0; i < CALLS; ++i)
+            {
+                if(!Integer.valueOf(i).equals(gathered.get(i).get()))
+                    throw new TestFailed("unexpected result from gather");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("parallel batch failed", t);
+        }
+
+        task("checking that stubs for other skeletons are rejected");
+
+        BatchTestInterface          elsewhere =
+            Stub.create(BatchTestInterface.class,
+                        new InetSocketAddress("127.0.0.1", 1));
+
+        try
+        {
+            parallel.view(elsewhere, BatchView.class);
+            throw new TestFailed("stub for another skeleton accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task();
+    }
+
+    public interface BatchTestInterface
+    {
+        public int add(int x, int y) throws RMIException;
+        public int multiply(int x, int y) throws RMIException;
+        public void log(int value) throws RMIException;
+        public int gather(int index) throws RMIException;
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    public interface BatchView
+    {
+        public CompletableFuture<Integer> add(int x, int y);
+        public CompletableFuture<Integer> multiply(int x, int y);
+        public CompletableFuture<Void> log(int value);
+        public CompletableFuture<Integer> gather(int index);
+        public CompletableFuture<Void> fail();
+    }
+
+    private static class BatchTestServer implements BatchTestInterface
+    {
+        final ArrayList<Integer>        log = new ArrayList<Integer>();
+        private final CountDownLatch    arrived = new CountDownLatch(CALLS);
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public int multiply(int x, int y)
+        {
+            return x * y;
+        }
+
+        @Override
+        public void log(int value)
+        {
+            synchronized(log)
+            {
+                log.add(value);
+            }
+        }
+
+        @Override
+        public int gather(int index) throws RMIException
+        {
+            arrived.countDown();
+
+            try
+            {
+                if(!arrived.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                    throw new RMIException("calls did not arrive together");
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+
+            return index;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+
+public class BusyTest extends BasicTestBase<BusyTest.BusyTestInterface>
+{
+    public static final String  notice =
+        "checking rejection of calls by a busy skeleton";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    private final BusyTestServer    server = new BusyTestServer();
+    private int                     holding = 0;
+    private boolean                 entered = false;
+
+    public BusyTest()
+    {
+        super(BusyTestInterface.class);
+        setServer(server);
+    }
+
+    @Override
+    protected void configure() throws TestFailed
+    {
+        task("limiting the skeleton to one worker and a queue of one call");
+
+        try
+        {
+            skeleton.setWorkerLimits(1, 1);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to set worker limits", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("occupying the only worker");
+
+        new Thread(new HoldingThread()).start();
+
+        synchronized(this)
+        {
+            while(!entered)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        task("filling the queue");
+
+        new Thread(new HoldingThread()).start();
+
+        long                        deadline =
+            System.currentTimeMillis() + 5000;
+
+        while(skeleton.getQueueDepth() != 1)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("second call was not queued");
+
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        task("calling the busy skeleton");
+
+        try
+        {
+            stub.ping();
+            throw new TestFailed("call to busy skeleton was not rejected");
+        }
+        catch(RMIException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call to busy skeleton threw an unexpected " +
+                                 "exception", t);
+        }
+
+        if(skeleton.getRejectedCalls() != 1)
+            throw new TestFailed("rejected call was not counted");
+
+        if(skeleton.getQueueDepth() != 1)
+            throw new TestFailed("skeleton reports wrong queue depth");
+
+        task("calling the skeleton after the worker is released");
+
+        server.release();
+
+        synchronized(this)
+        {
+            while(holding > 0)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        try
+        {
+            stub.ping();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton after worker was " +
+                                 "released", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        server.release();
+
+        super.clean();
+    }
+
+    private class HoldingThread implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            synchronized(BusyTest.this)
+            {
+                ++holding;
+            }
+
+            try
+            {
+                stub.hold();
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to occupy worker", t));
+            }
+
+            synchronized(BusyTest.this)
+            {
+                --holding;
+                BusyTest.this.notifyAll();
+            }
+        }
+    }
+
+    public interface BusyTestInterface
+    {
+        public void hold() throws RMIException;
+        public void ping() throws RMIException;
+    }
+
+    private class BusyTestServer implements BusyTestInterface
+    {
+        private boolean     released = false;
+
+        @Override
+        public void hold()
+        {
+            synchronized(BusyTest.this)
+            {
+                entered = true;
+                BusyTest.this.notifyAll();
+            }
+
+            synchronized(this)
+            {
+                while(!released)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch(InterruptedException e) { }
+                }
+            }
+        }
+
+        @Override
+        public void ping()
+        {
+        }
+
+        synchronized void release()
+        {
+            released = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Checks calls whose arguments and results are encoded with a codec other
+    than Java serialization.
+
+    <p>
+    The test selects, for its remote interface, a codec that counts its uses
+    and otherwise behaves as <code>Codecs.BINARY</code>, and checks that calls
+    passing values that are not serializable succeed over the network and
+    through a stub for a skeleton in the same virtual machine, that
+    exceptions are still passed back, and that values the codec cannot encode
+    are refused. It then restarts the skeleton with that codec, selects a
+    codec of another name for stubs, and checks that calls fall back to Java
+    serialization.
+ */
+public class CodecTest extends Test
+{
+    public static final String  notice =
+        "checking calls encoded with a selected codec";
+    public static final Class[] prerequisites = {LocalCallTest.class};
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private final CountingCodec         codec = new CountingCodec();
+    private TestSkeleton<CodecTestInterface>    skeleton = null;
+    private boolean                     started = false;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Codecs.select(CodecTestInterface.class, codec);
+        start();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CodecTestInterface      stub =
+            Stub.create(CodecTestInterface.class, address);
+        Point                   point = new Point(3, -4);
+
+        task("calling with values encoded by the selected codec");
+
+        try
+        {
+            if(!point.equals(stub.echo(point)))
+                throw new TestFailed("record not passed back unchanged");
+
+            Map<String, Integer>    lengths =
+                stub.lengths(Arrays.asList("a", "bb", "ccc"));
+
+            if(!lengths.equals(Map.of("a", 1, "bb", 2, "ccc", 3)))
+                throw new TestFailed("unexpected result: " + lengths);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        if(codec.uses.get() == 0)
+            throw new TestFailed("selected codec not used");
+
+        task("passing exceptions back");
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("exception not passed back");
+        }
+        catch(FileNotFoundException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("refusing values the codec cannot encode");
+
+        try
+        {
+            stub.echoObject(new StringBuilder("not encodable"));
+            throw new TestFailed("value not refused");
+        }
+        catch(RMIException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("copying values for calls in the same virtual machine");
+
+        try
+        {
+            CodecTestInterface  local =
+                Stub.create(CodecTestInterface.class, skeleton);
+
+            if(!point.equals(local.echo(point)))
+                throw new TestFailed("record not passed back unchanged");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("falling back to Java serialization");
+
+        stop();
+        start();
+        Codecs.select(CodecTestInterface.class, Codecs.BINARY);
+
+        CodecTestInterface      other =
+            Stub.create(CodecTestInterface.class, address);
+        int                     uses = codec.uses.get();
+
+        try
+        {
+            Map<String, Integer>    lengths =
+                other.lengths(new ArrayList<String>(Arrays.asList("dddd")));
+
+            if(!lengths.equals(Map.of("dddd", 4)))
+                throw new TestFailed("unexpected result: " + lengths);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        if(codec.uses.get() != uses)
+            throw new TestFailed("codec used without being agreed");
+
+        try
+        {
+            other.echo(point);
+            throw new TestFailed("value that is not serializable sent " +
+                                 "without the codec");
+        }
+        catch(RMIException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        stop();
+        Codecs.select(CodecTestInterface.class, Codecs.JAVA);
+    }
+
+    /** Creates and starts a skeleton for the codec now selected. */
+    private void start() throws TestFailed
+    {
+        task("creating and starting skeleton");
+
+        try
+        {
+            skeleton = new TestSkeleton<CodecTestInterface>(
+                CodecTestInterface.class, new CodecTestServer(), address,
+                this);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton, if it is running. */
+    private void stop()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+            started = false;
+        }
+    }
+
+    /** Record passed by the test. It is not serializable. */
+    public record Point(int x, int y) { }
+
+    public interface CodecTestInterface
+    {
+        public Point echo(Point point) throws RMIException;
+        public Object echoObject(Object value) throws RMIException;
+        public Map<String, Integer> lengths(List<String> strings)
+            throws RMIException;
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    private static class CodecTestServer implements CodecTestInterface
+    {
+        @Override
+        public Point echo(Point point)
+        {
+            return point;
+        }
+
+        @Override
+        public Object echoObject(Object value)
+        {
+            return value;
+        }
+
+        @Override
+        public Map<String, Integer> lengths(List<String> strings)
+        {
+            Map<String, Integer>    lengths = new HashMap<String, Integer>();
+
+            for(String string : strings)
+                lengths.put(string, string.length());
+
+            return lengths;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException();
+        }
+    }
+
+    /** Codec counting its uses, and otherwise writing the binary form. */
+    private static class CountingCodec implements Codec
+    {
+        final AtomicInteger     uses = new AtomicInteger();
+
+        @Override
+        public String name()
+        {
+            return "counting";
+        }
+
+        @Override
+        public void write(OutputStream out, Class<?>[] types, Object[] values)
+            throws IOException
+        {
+            uses.incrementAndGet();
+            Codecs.BINARY.write(out, types, values);
+        }
+
+        @Override
+        public Object[] read(InputStream in, Class<?>[] types)
+            throws IOException, ClassNotFoundException
+        {
+            uses.incrementAndGet();
+            return Codecs.BINARY.read(in, types);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Checks calls whose payloads are compressed.
+
+    <p>
+    The test selects, for its remote interface, a compressor that counts its
+    uses and otherwise behaves as <code>Compressors.DEFLATE_FASTEST</code>,
+    and checks that large lists of strings passed to and returned by the
+    server are compressed and arrive unchanged, that small calls are not
+    compressed, and that a method annotated
+    <code>@Compressed(false)</code> is not compressed whatever the size of
+    its result. It then restarts the skeleton without a compressor, and
+    checks that requests are still compressed by the stub while responses
+    are not.
+ */
+public class CompressionTest extends Test
+{
+    public static final String  notice = "checking compressed calls";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Number of strings in each large list. */
+    private static final int    SIZE = 5000;
+    /** Length from which the selected compressor compresses payloads. */
+    private static final int    THRESHOLD = 1024;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private final CountingCompressor    compressor = new CountingCompressor();
+    private TestSkeleton<CompressionTestInterface>  skeleton = null;
+    private boolean                     started = false;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Compressors.select(CompressionTestInterface.class, compressor,
+                           THRESHOLD);
+        start();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CompressionTestInterface    stub =
+            Stub.create(CompressionTestInterface.class, address);
+
+        try
+        {
+            task("compressing large results and arguments");
+
+            List<String>        words = stub.words(SIZE);
+
+            if(!words.equals(CompressionTestServer.repeated(SIZE)))
+                throw new TestFailed("result not passed back unchanged");
+
+            expectUses(1, 1, "result");
+
+            if(stub.count(words) != SIZE)
+                throw new TestFailed("argument not passed unchanged");
+
+            expectUses(1, 1, "argument");
+
+            task("leaving small calls uncompressed");
+
+            for(int i = 0; i < 10; ++i)
+                stub.ping();
+
+            if(stub.count(Arrays.asList("a", "b")) != 2)
+                throw new TestFailed("small argument not passed unchanged");
+
+            expectUses(0, 0, "small call");
+
+            task("leaving excluded methods uncompressed");
+
+            if(!stub.uncompressed(SIZE).equals(
+                    CompressionTestServer.repeated(SIZE)))
+            {
+                throw new TestFailed("result not passed back unchanged");
+            }
+
+            expectUses(0, 0, "excluded method");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("compressing requests only for a skeleton without compressor");
+
+        stop();
+        Compressors.deselect(CompressionTestInterface.class);
+        start();
+
+        try
+        {
+            List<String>        words = stub.words(SIZE);
+
+            expectUses(0, 0, "result from skeleton without compressor");
+
+            if(stub.count(words) != SIZE)
+                throw new TestFailed("argument not passed unchanged");
+
+            expectUses(1, 1, "argument to skeleton without compressor");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        stop();
+        Compressors.deselect(CompressionTestInterface.class);
+    }
+
+    /** Checks the number of payloads compressed and decompressed since the
+        last check. */
+    private void expectUses(int compressed, int decompressed, String payload)
+        throws TestFailed
+    {
+        int                     compressions =
+            compressor.compressions.getAndSet(0);
+        int                     decompressions =
+            compressor.decompressions.getAndSet(0);
+
+        if(compressions != compressed || decompressions != decompressed)
+        {
+            throw new TestFailed(payload + " compressed " + compressions +
+                                 " and decompressed " + decompressions +
+                                 " times");
+        }
+    }
+
+    /** Creates and starts a skeleton for the compressor now selected. */
+    private void start() throws TestFailed
+    {
+        task("creating and starting skeleton");
+
+        try
+        {
+            skeleton = new TestSkeleton<CompressionTestInterface>(
+                CompressionTestInterface.class, new CompressionTestServer(),
+                address, this);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton, if it is running. */
+    private void stop()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+            started = false;
+        }
+    }
+
+    public interface CompressionTestInterface
+    {
+        public List<String> words(int count) throws RMIException;
+        public int count(List<String> words) throws RMIException;
+        public void ping() throws RMIException;
+        @Compressed(false)
+        public List<String> uncompressed(int count) throws RMIException;
+    }
+
+    /** Compressor counting its uses, which are delegated to
+        <code>Compressors.DEFLATE_FASTEST</code>. */
+    private static class CountingCompressor implements Compressor
+    {
+        final AtomicInteger     compressions = new AtomicInteger();
+        final AtomicInteger     decompressions = new AtomicInteger();
+
+        @Override
+        public String name()
+        {
+            return "counting";
+        }
+
+        @Override
+        public byte[] compress(byte[] bytes) throws IOException
+        {
+            compressions.incrementAndGet();
+            return Compressors.DEFLATE_FASTEST.compress(bytes);
+        }
+
+        @Override
+        public byte[] decompress(byte[] bytes, int offset, int length,
+                                 int decompressedLength)
+            throws IOException
+        {
+            decompressions.incrementAndGet();
+            return Compressors.DEFLATE_FASTEST.decompress(
+                bytes, offset, length, decompressedLength);
+        }
+    }
+
+    private static class CompressionTestServer
+        implements CompressionTestInterface
+    {
+        /** Returns a list of strings that compresses well. */
+        static List<String> repeated(int count)
+        {
+            List<String>        words = new ArrayList<String>();
+
+            for(int i = 0; i < count; ++i)
+                words.add("word-" + (i % 100));
+
+            return words;
+        }
+
+        @Override
+        public List<String> words(int count)
+        {
+            return repeated(count);
+        }
+
+        @Override
+        public int count(List<String> words)
+        {
+            return words.size();
+        }
+
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public List<String> uncompressed(int count)
+        {
+            return repeated(count);
+        }
+    }
+}
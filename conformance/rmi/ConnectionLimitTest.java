@@ -0,0 +1,266 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Checks the limit on the number of connections serviced at once by the
+    <code>BLOCKING</code> transport.
+
+    <p>
+    The test limits the skeleton to one connection, occupies it with a call
+    that blocks, and checks that a call made through the stub waits until the
+    blocking call returns and its connection ends. It then checks that the
+    keep-alive connection left idle by the stub is closed to make room for a
+    new connection, and that the stub still reaches the skeleton afterwards.
+ */
+public class ConnectionLimitTest
+    extends BasicTestBase<ConnectionLimitTest.ConnectionLimitTestInterface>
+{
+    public static final String  notice =
+        "checking the limit on connections serviced at once";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Time for which a call over the limit must not complete, in
+        milliseconds. */
+    private static final int    WAIT = 500;
+    /** Time to wait for a connection to be serviced, in milliseconds. */
+    private static final int    TIMEOUT = 10000;
+
+    private final ConnectionLimitTestServer     server =
+        new ConnectionLimitTestServer();
+
+    public ConnectionLimitTest()
+    {
+        super(ConnectionLimitTestInterface.class);
+        setServer(server);
+    }
+
+    @Override
+    protected void configure() throws TestFailed
+    {
+        task("limiting the skeleton to one connection");
+
+        try
+        {
+            skeleton.setTransport(Skeleton.Transport.BLOCKING);
+            skeleton.setConnectionLimit(1);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to set connection limit", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("occupying the only connection");
+
+        Socket                  occupant = connect();
+        Caller                  caller = new Caller();
+        Thread                  thread = new Thread(caller);
+
+        try
+        {
+            ObjectOutputStream  output =
+                new ObjectOutputStream(occupant.getOutputStream());
+            output.writeObject("hold");
+            output.writeObject(new Class<?>[0]);
+            output.flush();
+
+            server.awaitEntered();
+
+            task("calling while the only connection is occupied");
+
+            thread.start();
+            thread.join(WAIT);
+
+            if(caller.done)
+                throw new TestFailed("connection serviced beyond the limit");
+
+            task("servicing the waiting connection once the other ends");
+
+            server.release();
+
+            occupant.setSoTimeout(TIMEOUT);
+            ObjectInputStream   input =
+                new ObjectInputStream(occupant.getInputStream());
+
+            if(input.readBoolean())
+                throw new TestFailed("single-call request raised exception");
+
+            thread.join(TIMEOUT);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to occupy the only connection", t);
+        }
+        finally
+        {
+            server.release();
+            close(occupant);
+        }
+
+        if(!caller.done)
+            throw new TestFailed("waiting connection not serviced");
+
+        if(caller.failure != null)
+            throw new TestFailed("waiting call failed", caller.failure);
+
+        task("closing an idle connection to make room");
+
+        Socket                  socket = connect();
+
+        try
+        {
+            socket.setSoTimeout(TIMEOUT);
+
+            ObjectOutputStream  output =
+                new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            ObjectInputStream   input =
+                new ObjectInputStream(socket.getInputStream());
+
+            output.writeObject("add");
+            output.writeObject(new Class<?>[] {int.class, int.class});
+            output.writeObject(3);
+            output.writeObject(4);
+            output.flush();
+
+            if(input.readBoolean())
+                throw new TestFailed("single-call request raised exception");
+
+            if(!Integer.valueOf(7).equals(input.readObject()))
+                throw new TestFailed("unexpected result from single call");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("new connection not serviced", t);
+        }
+        finally
+        {
+            close(socket);
+        }
+
+        task("calling again after the idle connection was closed");
+
+        try
+        {
+            if(stub.add(5, 6) != 11)
+                throw new TestFailed("unexpected result from method call");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Opens a socket to the skeleton. */
+    private static Socket connect() throws TestFailed
+    {
+        Socket                  socket = new Socket();
+
+        try
+        {
+            socket.connect(new InetSocketAddress("127.0.0.1",
+                                                 TestConstants.PORT));
+        }
+        catch(Throwable t)
+        {
+            close(socket);
+            throw new TestFailed("unable to connect to skeleton", t);
+        }
+
+        return socket;
+    }
+
+    private static void close(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch(Throwable t) { }
+    }
+
+    /** Makes a call through the stub from a thread of its own. */
+    private class Caller implements Runnable
+    {
+        volatile boolean    done = false;
+        volatile Throwable  failure = null;
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if(stub.add(1, 2) != 3)
+                    throw new TestFailed("unexpected result from add");
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+
+            done = true;
+        }
+    }
+
+    public interface ConnectionLimitTestInterface
+    {
+        public int add(int x, int y) throws RMIException;
+        public void hold() throws RMIException;
+    }
+
+    private static class ConnectionLimitTestServer
+        implements ConnectionLimitTestInterface
+    {
+        private boolean     entered = false;
+        private boolean     released = false;
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        /** Waits until <code>release</code> is called. */
+        @Override
+        public synchronized void hold()
+        {
+            entered = true;
+            notifyAll();
+
+            while(!released)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        synchronized void awaitEntered() throws InterruptedException
+        {
+            while(!entered)
+                wait();
+        }
+
+        synchronized void release()
+        {
+            released = true;
+            notifyAll();
+        }
+    }
+}
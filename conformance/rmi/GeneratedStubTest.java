@@ -0,0 +1,170 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/** Checks the stub and skeleton dispatcher generated by
+    <code>rmi.StubGenerator</code>.
+
+    <p>
+    The build generates both classes for <code>GeneratedTestInterface</code>.
+    The test checks that they are used, and that they carry calls like the
+    dynamic proxy stubs do.
+ */
+public class GeneratedStubTest extends BasicTestBase<GeneratedTestInterface>
+{
+    public static final String  notice =
+        "checking generated stubs and skeleton dispatchers";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    public GeneratedStubTest()
+    {
+        super(GeneratedTestInterface.class);
+        setServer(new GeneratedTestServer());
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking that the generated stub is used");
+
+        if(!(stub instanceof GeneratedStub))
+            throw new TestFailed("Stub.create did not return generated stub");
+
+        task("making calls through the generated stub");
+
+        try
+        {
+            if(stub.add(2, 3) != 5)
+                throw new TestFailed("unexpected result from add(int, int)");
+
+            if(stub.add(new int[] {1, 2, 3}) != 6)
+                throw new TestFailed("unexpected result from add(int[])");
+
+            if(!"text".equals(stub.echo("text")))
+                throw new TestFailed("unexpected result from echo");
+
+            if(!Arrays.equals(stub.reverse("abc".toCharArray()),
+                              "cba".toCharArray()))
+            {
+                throw new TestFailed("unexpected result from reverse");
+            }
+
+            stub.ping();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("checking exception forwarding");
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("remote method did not throw an exception");
+        }
+        catch(FileNotFoundException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("remote method call threw an unexpected " +
+                                 "exception", t);
+        }
+
+        task("checking that the generated dispatcher is used");
+
+        try
+        {
+            if(!stub.calledThroughGeneratedDispatcher())
+                throw new TestFailed("skeleton did not use generated " +
+                                     "dispatcher");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("comparing generated stubs");
+
+        GeneratedTestInterface  other =
+            Stub.create(GeneratedTestInterface.class,
+                        new InetSocketAddress(TestConstants.PORT));
+
+        if(!stub.equals(other) || stub.hashCode() != other.hashCode())
+            throw new TestFailed("stubs for the same skeleton are not equal");
+
+        if(!stub.toString().equals(other.toString()))
+            throw new TestFailed("stubs for the same skeleton have different " +
+                                 "string representations");
+
+        task();
+    }
+
+    private static class GeneratedTestServer implements GeneratedTestInterface
+    {
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public long add(int[] values)
+        {
+            long    sum = 0;
+
+            for(int value : values)
+                sum += value;
+
+            return sum;
+        }
+
+        @Override
+        public String echo(String s)
+        {
+            return s;
+        }
+
+        @Override
+        public char[] reverse(char[] characters)
+        {
+            char[]  reversed = new char[characters.length];
+
+            for(int i = 0; i < characters.length; ++i)
+                reversed[i] = characters[characters.length - 1 - i];
+
+            return reversed;
+        }
+
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException();
+        }
+
+        @Override
+        public boolean calledThroughGeneratedDispatcher()
+        {
+            for(StackTraceElement frame : new Throwable().getStackTrace())
+            {
+                if(frame.getClassName().endsWith("_RMIDispatch"))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+}
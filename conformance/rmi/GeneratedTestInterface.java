@@ -0,0 +1,36 @@
+package conformance.rmi;
+
+import rmi.RMIException;
+import java.io.FileNotFoundException;
+
+/** Remote interface for which the build generates a stub and a skeleton
+    dispatcher.
+
+    <p>
+    The methods cover primitive, object and array arguments and results,
+    overloads, <code>void</code> methods, and checked exceptions.
+ */
+public interface GeneratedTestInterface
+{
+    /** Returns the sum of its arguments. */
+    public int add(int x, int y) throws RMIException;
+
+    /** Returns the sum of the elements of its argument. */
+    public long add(int[] values) throws RMIException;
+
+    /** Returns its argument. */
+    public String echo(String s) throws RMIException;
+
+    /** Returns its argument with its characters in reverse order. */
+    public char[] reverse(char[] characters) throws RMIException;
+
+    /** Does nothing. */
+    public void ping() throws RMIException;
+
+    /** Throws <code>FileNotFoundException</code>. */
+    public void fail() throws RMIException, FileNotFoundException;
+
+    /** Returns <code>true</code> if the server was called through the
+        generated skeleton dispatcher. */
+    public boolean calledThroughGeneratedDispatcher() throws RMIException;
+}
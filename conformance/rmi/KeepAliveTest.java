@@ -0,0 +1,209 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+
+public class KeepAliveTest
+    extends BasicTestBase<KeepAliveTest.KeepAliveTestInterface>
+{
+    public static final String  notice =
+        "checking keep-alive and single-call connections";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Magic number opening the keep-alive preface. */
+    private static final int    PREFACE_MAGIC = 0x524d494b;
+    /** Idle timeout set on the skeleton, in milliseconds. */
+    private static final int    IDLE_TIMEOUT = 100;
+
+    public KeepAliveTest()
+    {
+        super(KeepAliveTestInterface.class);
+        setServer(new KeepAliveTestServer());
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("making repeated calls through one stub");
+
+        for(int i = 0; i < 20; ++i)
+            checkCall(i);
+
+        task("making a call over an old-style single-call connection");
+
+        checkSingleCall();
+
+        task("making a call over a version 1 framed connection");
+
+        checkVersionOneCall(0);
+
+        task("making a call after the skeleton closes idle connections");
+
+        skeleton.setIdleTimeout(IDLE_TIMEOUT);
+
+        checkCall(1);
+
+        try
+        {
+            Thread.sleep(500);
+        }
+        catch(InterruptedException e) { }
+
+        checkCall(2);
+
+        task("making a call whose request arrives slower than the idle " +
+             "timeout");
+
+        checkVersionOneCall(3 * IDLE_TIMEOUT);
+
+        task();
+    }
+
+    private void checkCall(int x) throws TestFailed
+    {
+        try
+        {
+            if(stub.add(x, x) != 2 * x)
+                throw new TestFailed("unexpected result from method call");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+    }
+
+    private void checkSingleCall() throws TestFailed
+    {
+        Socket                  socket = new Socket();
+
+        try
+        {
+            socket.connect(new InetSocketAddress("127.0.0.1",
+                                                 TestConstants.PORT));
+
+            ObjectOutputStream  output =
+                new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            ObjectInputStream   input =
+                new ObjectInputStream(socket.getInputStream());
+
+            output.writeObject("add");
+            output.writeObject(new Class<?>[] {int.class, int.class});
+            output.writeObject(3);
+            output.writeObject(4);
+            output.flush();
+
+            if(input.readBoolean())
+                throw new TestFailed("single-call request raised exception");
+
+            if(!Integer.valueOf(7).equals(input.readObject()))
+                throw new TestFailed("unexpected result from single call");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make single-call request", t);
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(Throwable t) { }
+        }
+    }
+
+    /** Makes a call over a version 1 framed connection.
+
+        @param pause Time for which to stop halfway through writing the
+                     request, in milliseconds.
+     */
+    private void checkVersionOneCall(int pause) throws TestFailed
+    {
+        Socket                  socket = new Socket();
+
+        try
+        {
+            socket.connect(new InetSocketAddress("127.0.0.1",
+                                                 TestConstants.PORT));
+
+            DataOutputStream    output =
+                new DataOutputStream(socket.getOutputStream());
+            DataInputStream     input =
+                new DataInputStream(socket.getInputStream());
+
+            output.writeInt(PREFACE_MAGIC);
+            output.writeInt(1);
+            output.flush();
+
+            if(input.readInt() != PREFACE_MAGIC || input.readInt() != 1)
+                throw new TestFailed("skeleton did not accept version 1");
+
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      request = new ObjectOutputStream(bytes);
+
+            request.writeObject("add");
+            request.writeObject(new Class<?>[] {int.class, int.class});
+            request.writeObject(5);
+            request.writeObject(6);
+            request.close();
+
+            byte[]              written = bytes.toByteArray();
+            int                 half = written.length / 2;
+
+            output.writeInt(written.length);
+            output.write(written, 0, half);
+            output.flush();
+
+            if(pause > 0)
+                Thread.sleep(pause);
+
+            output.write(written, half, written.length - half);
+            output.flush();
+
+            byte[]              payload = new byte[input.readInt()];
+            input.readFully(payload);
+
+            ObjectInputStream   response =
+                new ObjectInputStream(new ByteArrayInputStream(payload));
+
+            if(response.readBoolean())
+                throw new TestFailed("version 1 request raised exception");
+
+            if(!Integer.valueOf(11).equals(response.readObject()))
+                throw new TestFailed("unexpected result from version 1 call");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make version 1 request", t);
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(Throwable t) { }
+        }
+    }
+
+    public interface KeepAliveTestInterface
+    {
+        public int add(int x, int y) throws RMIException;
+    }
+
+    private static class KeepAliveTestServer implements KeepAliveTestInterface
+    {
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+    }
+}
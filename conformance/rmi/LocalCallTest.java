@@ -0,0 +1,287 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/** Checks calls made through a stub created for a skeleton in the same
+    virtual machine.
+
+    <p>
+    The test checks that such a stub calls the server in the calling thread,
+    and that arguments and results are still passed by copy, so that changes
+    made by one side are not seen by the other. It checks that asynchronous
+    calls run on threads of the skeleton, so that more of them can block at
+    once than there are threads in the common fork-join pool. It then checks
+    that a copy of
+    the stub made by serialization calls the skeleton over the network, and
+    that calls made after the skeleton has stopped fail.
+ */
+public class LocalCallTest extends Test
+{
+    public static final String  notice =
+        "checking calls to skeletons in the same virtual machine";
+    public static final Class[] prerequisites = {SerializableTest.class};
+
+    /** Time to wait for asynchronous calls, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private final LocalCallTestServer   server = new LocalCallTestServer();
+    private TestSkeleton<LocalCallTestInterface>    skeleton = null;
+    private boolean                     started = false;
+    private LocalCallTestInterface      stub;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        task("creating and starting skeleton");
+
+        try
+        {
+            skeleton = new TestSkeleton<LocalCallTestInterface>(
+                LocalCallTestInterface.class, server, address, this);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task("creating stub");
+
+        try
+        {
+            stub = Stub.create(LocalCallTestInterface.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking that the call is made in the calling thread");
+
+        try
+        {
+            stub.record();
+
+            if(server.caller != Thread.currentThread())
+                throw new TestFailed("call not made in the calling thread");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("checking that arguments and results are copied");
+
+        try
+        {
+            int[]           values = {1, 2, 3};
+            int[]           doubled = stub.twice(values);
+
+            if(!Arrays.equals(values, new int[] {1, 2, 3}))
+                throw new TestFailed("server changed the caller's array");
+
+            if(doubled == server.kept ||
+               !Arrays.equals(doubled, new int[] {2, 4, 6}))
+            {
+                throw new TestFailed("result array not copied");
+            }
+
+            ArrayList<String>   names =
+                new ArrayList<String>(Arrays.asList("a", "b"));
+            List<String>        same = stub.append(names, names);
+
+            names.add("c");
+            if(!same.equals(Arrays.asList("a", "b", "x", "a", "b", "x")))
+                throw new TestFailed("unexpected result from append");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("making blocking asynchronous calls on the skeleton's threads");
+
+        try
+        {
+            LocalCallTestView       view =
+                Stub.async(stub, LocalCallTestView.class);
+            int                     calls =
+                ForkJoinPool.getCommonPoolParallelism() + 1;
+            CompletableFuture<?>[]  futures = new CompletableFuture<?>[calls];
+
+            server.meeting = new CountDownLatch(calls);
+            for(int i = 0; i < calls; ++i)
+                futures[i] = view.meet();
+
+            for(int i = 0; i < calls; ++i)
+            {
+                if(!Boolean.TRUE.equals(
+                       futures[i].get(TIMEOUT, TimeUnit.MILLISECONDS)))
+                {
+                    throw new TestFailed("asynchronous calls did not run " +
+                                         "at the same time");
+                }
+            }
+
+            view.record().get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if(server.caller instanceof ForkJoinWorkerThread)
+                throw new TestFailed("call made on the common pool");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method asynchronously", t);
+        }
+
+        task("checking that a serialized stub calls over the network");
+
+        try
+        {
+            LocalCallTestInterface  copy = serializedCopy(stub);
+
+            copy.record();
+
+            if(server.caller == Thread.currentThread())
+                throw new TestFailed("serialized stub called in this thread");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling through " +
+                                 "serialized stub", t);
+        }
+
+        task("calling after the skeleton has stopped");
+
+        skeleton.stop();
+        skeleton.join();
+        started = false;
+
+        try
+        {
+            stub.record();
+            throw new TestFailed("call succeeded after skeleton stopped");
+        }
+        catch(RMIException e) { }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+        }
+    }
+
+    /** Copies a stub by serializing it. */
+    private static LocalCallTestInterface serializedCopy(Object stub)
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        ObjectOutputStream      ostream = new ObjectOutputStream(bytes);
+
+        ostream.writeObject(stub);
+        ostream.close();
+
+        ObjectInputStream       istream =
+            new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        return (LocalCallTestInterface)istream.readObject();
+    }
+
+    public interface LocalCallTestInterface
+    {
+        public void record() throws RMIException;
+        public int[] twice(int[] values) throws RMIException;
+        public List<String> append(List<String> first, List<String> second)
+            throws RMIException;
+        public boolean meet() throws RMIException;
+    }
+
+    public interface LocalCallTestView
+    {
+        public CompletableFuture<Void> record();
+        public CompletableFuture<Boolean> meet();
+    }
+
+    private static class LocalCallTestServer implements LocalCallTestInterface
+    {
+        volatile Thread     caller;
+        int[]               kept;
+        volatile CountDownLatch meeting;
+
+        @Override
+        public void record()
+        {
+            caller = Thread.currentThread();
+        }
+
+        @Override
+        public int[] twice(int[] values)
+        {
+            for(int i = 0; i < values.length; ++i)
+                values[i] *= 2;
+
+            kept = values;
+            return values;
+        }
+
+        @Override
+        public List<String> append(List<String> first, List<String> second)
+        {
+            first.add("x");
+
+            // The two arguments refer to the same list in the caller, and
+            // must do so here as well.
+            ArrayList<String>   result = new ArrayList<String>(first);
+            result.addAll(second);
+            return result;
+        }
+
+        /** Waits for the other calls counted by <code>meeting</code>. */
+        @Override
+        public boolean meet() throws RMIException
+        {
+            meeting.countDown();
+
+            try
+            {
+                return meeting.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+        }
+    }
+}
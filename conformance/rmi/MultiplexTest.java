@@ -0,0 +1,158 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Checks that concurrent calls share a connection without blocking each
+    other.
+
+    <p>
+    The stub's pool is limited to a single connection. One call is held in
+    the server while a second call is made. The second call can complete only
+    if both calls are carried by one connection at the same time, and if the
+    skeleton answers it before the first call, which is still running.
+ */
+public class MultiplexTest
+    extends BasicTestBase<MultiplexTest.MultiplexTestInterface>
+{
+    public static final String  notice =
+        "checking multiplexed calls on one connection";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Time after which the held call returns even if it was not released. */
+    private static final long   TIMEOUT = 10000;
+
+    private final MultiplexTestServer   server = new MultiplexTestServer();
+
+    public MultiplexTest()
+    {
+        super(MultiplexTestInterface.class);
+        setServer(server);
+    }
+
+    @Override
+    protected void configure() throws TestFailed
+    {
+        task("limiting the stub to one connection");
+
+        Stub.setPoolLimits(1, 1);
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("holding a call in the server");
+
+        final CompletableFuture<Long>   held =
+            new CompletableFuture<Long>();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    held.complete(stub.hold());
+                }
+                catch(Throwable t)
+                {
+                    held.completeExceptionally(t);
+                }
+            }
+        }).start();
+
+        try
+        {
+            if(!server.entered.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("held call did not reach the server");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for held call", e);
+        }
+
+        task("calling while the first call is held");
+
+        long                        answered;
+
+        try
+        {
+            if(stub.add(2, 3) != 5)
+                throw new TestFailed("unexpected result from add");
+
+            answered = System.nanoTime();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        task("checking that the held call was answered last");
+
+        try
+        {
+            long                    released =
+                held.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if(released < answered)
+            {
+                throw new TestFailed("second call waited for the held call " +
+                                     "to complete");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("held call failed", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        server.release.countDown();
+        Stub.setPoolLimits(64, 8);
+        super.clean();
+    }
+
+    public interface MultiplexTestInterface
+    {
+        public long hold() throws RMIException;
+        public int add(int x, int y) throws RMIException;
+    }
+
+    private static class MultiplexTestServer implements MultiplexTestInterface
+    {
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public long hold()
+        {
+            entered.countDown();
+
+            try
+            {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            return System.nanoTime();
+        }
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+    }
+}
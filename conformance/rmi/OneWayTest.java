@@ -0,0 +1,203 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+
+/** Checks calls to methods annotated with <code>OneWay</code>.
+
+    <p>
+    The test calls a one-way method that is held in the server, and checks
+    that the call returns while the method is still running. It then calls a
+    one-way method that throws an exception, and checks that the exception is
+    reported to the skeleton's <code>service_error</code> rather than to the
+    caller. Finally, it checks that the annotation is ignored on a method that
+    returns a value.
+ */
+public class OneWayTest extends Test
+{
+    public static final String  notice = "checking one-way calls";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Time after which the test stops waiting for the server. */
+    private static final long   TIMEOUT = 10000;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private final OneWayTestServer      server = new OneWayTestServer();
+    private OneWayTestSkeleton          skeleton = null;
+    private boolean                     started = false;
+    private OneWayTestInterface         stub;
+
+    private final CompletableFuture<RMIException>   reported =
+        new CompletableFuture<RMIException>();
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        task("creating and starting skeleton");
+
+        try
+        {
+            skeleton = new OneWayTestSkeleton();
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task("creating stub");
+
+        try
+        {
+            stub = Stub.create(OneWayTestInterface.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling a one-way method held in the server");
+
+        try
+        {
+            stub.hold();
+
+            if(server.finished.getCount() == 0)
+                throw new TestFailed("one-way call waited for the method");
+
+            server.release.countDown();
+
+            if(!server.finished.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("one-way method was not called");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from one-way call", t);
+        }
+
+        task("checking that failures are reported to service_error");
+
+        try
+        {
+            stub.explode();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("failing one-way call threw an exception", t);
+        }
+
+        try
+        {
+            RMIException    error =
+                reported.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if(!(error.getCause() instanceof IllegalStateException))
+            {
+                throw new TestFailed("service_error called with unexpected " +
+                                     "exception", error);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("service_error not called", t);
+        }
+
+        task("checking that the annotation is ignored on other methods");
+
+        try
+        {
+            if(stub.answer() != 42)
+                throw new TestFailed("unexpected result from answer");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        server.release.countDown();
+
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+        }
+    }
+
+    public interface OneWayTestInterface
+    {
+        @OneWay
+        public void hold() throws RMIException;
+        @OneWay
+        public void explode() throws RMIException;
+        @OneWay
+        public int answer() throws RMIException;
+    }
+
+    private static class OneWayTestServer implements OneWayTestInterface
+    {
+        final CountDownLatch    release = new CountDownLatch(1);
+        final CountDownLatch    finished = new CountDownLatch(1);
+
+        @Override
+        public void hold()
+        {
+            try
+            {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            finished.countDown();
+        }
+
+        @Override
+        public void explode()
+        {
+            throw new IllegalStateException("one-way failure");
+        }
+
+        @Override
+        public int answer()
+        {
+            return 42;
+        }
+    }
+
+    private class OneWayTestSkeleton extends TestSkeleton<OneWayTestInterface>
+    {
+        OneWayTestSkeleton()
+        {
+            super(OneWayTestInterface.class, server, address, OneWayTest.this);
+        }
+
+        @Override
+        protected void service_error(RMIException e)
+        {
+            if(!reported.complete(e))
+            {
+                test.failure(new TestFailed("only one call to service_error " +
+                                            "is expected", e));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Checks calls made while requests are coalesced into shared writes.
+
+    <p>
+    The test sets a write coalescing delay, and then fans out many small
+    asynchronous calls, which are held back and written together. It checks
+    that every call receives its own result, that a synchronous call still
+    completes once the delay has passed, and that a request larger than the
+    coalescing limit is written at once.
+ */
+public class PipelineTest
+    extends BasicTestBase<PipelineTest.PipelineTestInterface>
+{
+    public static final String  notice =
+        "checking calls with coalesced request writes";
+    public static final Class[] prerequisites = {AsyncTest.class};
+
+    /** Number of calls fanned out at once. */
+    private static final int    CALLS = 256;
+    /** Coalescing delay, in microseconds. */
+    private static final long   DELAY = 500;
+    /** Time after which a call is considered lost. */
+    private static final long   TIMEOUT = 10000;
+
+    public PipelineTest()
+    {
+        super(PipelineTestInterface.class);
+        setServer(new PipelineTestServer());
+    }
+
+    @Override
+    protected void configure() throws TestFailed
+    {
+        task("checking that invalid delays are rejected");
+
+        try
+        {
+            Stub.setWriteCoalescing(-1);
+            throw new TestFailed("negative delay accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            Stub.setWriteCoalescing(1001);
+            throw new TestFailed("excessive delay accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("enabling write coalescing");
+
+        Stub.setWriteCoalescing(DELAY);
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("fanning out coalesced calls");
+
+        PipelineView                view = Stub.async(stub, PipelineView.class);
+        CompletableFuture<?>[]      futures = new CompletableFuture<?>[CALLS];
+
+        for(int i = 0; i < CALLS; ++i)
+            futures[i] = view.echo(i);
+
+        for(int i = 0; i < CALLS; ++i)
+        {
+            if(!Integer.valueOf(i).equals(result(futures[i])))
+                throw new TestFailed("unexpected result from echo");
+        }
+
+        task("making a synchronous call");
+
+        try
+        {
+            if(stub.echo(7) != 7)
+                throw new TestFailed("unexpected result from echo");
+
+            task("sending a request larger than the coalescing limit");
+
+            if(stub.length(new byte[256 * 1024]) != 256 * 1024)
+                throw new TestFailed("unexpected result from length");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    /** Waits for a future and returns its result. */
+    private Object result(CompletableFuture<?> future) throws TestFailed
+    {
+        try
+        {
+            return future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("coalesced call failed", t);
+        }
+    }
+
+    @Override
+    protected void clean()
+    {
+        Stub.setWriteCoalescing(0);
+        super.clean();
+    }
+
+    public interface PipelineTestInterface
+    {
+        public int echo(int value) throws RMIException;
+        public int length(byte[] data) throws RMIException;
+    }
+
+    public interface PipelineView
+    {
+        public CompletableFuture<Integer> echo(int value);
+    }
+
+    private static class PipelineTestServer implements PipelineTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public int length(byte[] data)
+        {
+            return data.length;
+        }
+    }
+}
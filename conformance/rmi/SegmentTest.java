@@ -0,0 +1,236 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/** Checks calls passing byte arrays and byte buffers.
+
+    <p>
+    The test passes large byte arrays, heap and direct byte buffers,
+    including buffers whose position is not zero, and arrays of buffers
+    holding <code>null</code>, both as arguments and as results, and checks
+    that they arrive unchanged and that the positions of the caller's
+    buffers are left as they were. It checks that an array changed just
+    after an asynchronous call is made is sent as it was when the call was
+    made, and that buffers are copied for a stub whose skeleton is in the
+    same virtual machine.
+ */
+public class SegmentTest extends Test
+{
+    public static final String  notice =
+        "checking calls passing byte arrays and buffers";
+    public static final Class[] prerequisites = {AsyncTest.class,
+                                                 LocalCallTest.class};
+
+    /** Length of the large array passed to the server. */
+    private static final int    LENGTH = 1 << 20;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private TestSkeleton<SegmentTestInterface>  skeleton = null;
+    private boolean                     started = false;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            skeleton = new TestSkeleton<SegmentTestInterface>(
+                SegmentTestInterface.class, new SegmentTestServer(), address,
+                this);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        SegmentTestInterface    stub =
+            Stub.create(SegmentTestInterface.class, address);
+        byte[]                  bytes = new byte[LENGTH];
+
+        for(int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)(i * 31 + 7);
+
+        try
+        {
+            task("passing a large byte array");
+
+            byte[]              reversed = stub.reverse(bytes);
+
+            for(int i = 0; i < bytes.length; ++i)
+            {
+                if(reversed[i] != bytes[bytes.length - 1 - i])
+                    throw new TestFailed("array not passed back reversed");
+            }
+
+            if(stub.reverse(new byte[0]).length != 0)
+                throw new TestFailed("empty array not passed back");
+
+            task("passing byte buffers");
+
+            ByteBuffer          direct = ByteBuffer.allocateDirect(64);
+
+            for(int i = 0; i < 64; ++i)
+                direct.put((byte)i);
+
+            direct.position(10).limit(50);
+
+            ByteBuffer          echoed = stub.echo(direct);
+
+            if(direct.position() != 10 || direct.limit() != 50)
+                throw new TestFailed("position of argument changed");
+
+            if(!echoed.equals(direct))
+                throw new TestFailed("buffer not passed back unchanged");
+
+            ByteBuffer          heap =
+                ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}, 1, 3);
+            ByteBuffer[]        buffers = {heap, null, direct,
+                                           ByteBuffer.allocate(0)};
+
+            if(stub.total(buffers) != 3 + 40)
+                throw new TestFailed("buffers not passed unchanged");
+
+            task("passing byte arrays with other values");
+
+            byte[]              joined = stub.join(new byte[] {1, 2}, "-",
+                                                   new byte[] {3});
+
+            if(!Arrays.equals(joined, new byte[] {1, 2, '-', 3}))
+            {
+                throw new TestFailed("unexpected result: " +
+                                     Arrays.toString(joined));
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("sending arrays as they were when an asynchronous call was made");
+
+        try
+        {
+            AsyncView           view = Stub.async(stub, AsyncView.class);
+            byte[]              sent = {1, 2, 3};
+            CompletableFuture<byte[]>   result = view.reverse(sent);
+
+            Arrays.fill(sent, (byte)0);
+
+            if(!Arrays.equals(result.get(), new byte[] {3, 2, 1}))
+                throw new TestFailed("array sent after it was changed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("copying buffers for calls in the same virtual machine");
+
+        try
+        {
+            SegmentTestInterface    local =
+                Stub.create(SegmentTestInterface.class, skeleton);
+            ByteBuffer          buffer = ByteBuffer.wrap(new byte[] {4, 5});
+            ByteBuffer          echoed = local.echo(buffer);
+
+            if(echoed == buffer || !echoed.equals(buffer))
+                throw new TestFailed("buffer not copied");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+            started = false;
+        }
+    }
+
+    public interface SegmentTestInterface
+    {
+        public byte[] reverse(byte[] bytes) throws RMIException;
+        public ByteBuffer echo(ByteBuffer buffer) throws RMIException;
+        public int total(ByteBuffer[] buffers) throws RMIException;
+        public byte[] join(byte[] first, String separator, byte[] second)
+            throws RMIException;
+    }
+
+    /** Asynchronous view of the remote interface. */
+    public interface AsyncView
+    {
+        public CompletableFuture<byte[]> reverse(byte[] bytes);
+    }
+
+    private static class SegmentTestServer implements SegmentTestInterface
+    {
+        @Override
+        public byte[] reverse(byte[] bytes)
+        {
+            byte[]              reversed = new byte[bytes.length];
+
+            for(int i = 0; i < bytes.length; ++i)
+                reversed[i] = bytes[bytes.length - 1 - i];
+
+            return reversed;
+        }
+
+        @Override
+        public ByteBuffer echo(ByteBuffer buffer)
+        {
+            return buffer;
+        }
+
+        @Override
+        public int total(ByteBuffer[] buffers)
+        {
+            int                 total = 0;
+
+            for(ByteBuffer buffer : buffers)
+            {
+                if(buffer != null)
+                    total += buffer.remaining();
+            }
+
+            return total;
+        }
+
+        @Override
+        public byte[] join(byte[] first, String separator, byte[] second)
+        {
+            byte[]              joined =
+                Arrays.copyOf(first, first.length + 1 + second.length);
+
+            joined[first.length] = (byte)separator.charAt(0);
+            System.arraycopy(second, 0, joined, first.length + 1,
+                             second.length);
+
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package conformance.rmi;
+
+import rmi.*;
+import test.*;
+import java.io.FileNotFoundException;
+
+public class SelectorTransportTest extends BasicTestBase<TestInterface>
+{
+    public static final String  notice =
+        "checking calls through the selector transport";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    private final TestServer    test_server = new TestServer();
+
+    public SelectorTransportTest()
+    {
+        super(TestInterface.class);
+        setServer(test_server);
+    }
+
+    @Override
+    protected void configure() throws TestFailed
+    {
+        task("selecting the selector transport");
+
+        try
+        {
+            skeleton.setTransport(Skeleton.Transport.SELECTOR);
+            skeleton.setSelectorThreads(2);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to select the selector transport", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("making repeated calls");
+
+        for(int i = 0; i < 20; ++i)
+        {
+            try
+            {
+                if(stub.method(false) != null)
+                    throw new TestFailed("unexpected result from method call");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception when calling " +
+                                     "remote method", t);
+            }
+        }
+
+        task("checking exception forwarding");
+
+        try
+        {
+            stub.method(true);
+            throw new TestFailed("remote method did not throw an exception");
+        }
+        catch(FileNotFoundException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("remote method call threw an unexpected " +
+                                 "exception", t);
+        }
+
+        task("arranging thread rendezvous in the server");
+
+        new Thread(new SecondThread()).start();
+
+        try
+        {
+            stub.rendezvous();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to rendezvous in the first thread", t);
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        test_server.wake();
+
+        super.clean();
+    }
+
+    private class SecondThread implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.rendezvous();
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to rendezvous in second " +
+                                       "thread", t));
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Checks calls to a skeleton through shared memory.
+
+    <p>
+    The test starts a skeleton that is also reached through a shared-memory
+    file with two channels, and calls it through a stub created for the file.
+    It checks results and exceptions, an argument larger than the ring
+    buffers, which has to wrap around them, and calls made from more threads
+    at once than there are channels. It also makes asynchronous calls and
+    executes a batch through the file. It then checks that the file is
+    removed when the skeleton stops, and that calls then fail.
+ */
+public class SharedMemoryTest extends Test
+{
+    public static final String  notice = "checking calls through shared memory";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    /** Number of channels of the shared-memory file. */
+    private static final int    CHANNELS = 2;
+    /** Number of threads calling at once. */
+    private static final int    THREADS = 4;
+    /** Number of calls made by each thread. */
+    private static final int    CALLS = 100;
+    /** Time to wait for an asynchronous call, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private TemporaryDirectory          directory = null;
+    private Path                        path;
+    private TestSkeleton<SharedMemoryTestInterface> skeleton = null;
+    private boolean                     started = false;
+    private SharedMemoryTestInterface   stub;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        task("creating temporary directory");
+
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        path = new File(directory.root(), "rmi.shm").toPath();
+
+        task("creating and starting skeleton");
+
+        try
+        {
+            skeleton = new TestSkeleton<SharedMemoryTestInterface>(
+                SharedMemoryTestInterface.class, new SharedMemoryTestServer(),
+                address, this);
+            skeleton.setSharedMemory(path, CHANNELS);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        if(!path.toFile().exists())
+            throw new TestFailed("shared-memory file not created");
+
+        stub = Stub.create(SharedMemoryTestInterface.class,
+                           new SharedMemoryAddress(path));
+
+        task();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling through shared memory");
+
+        try
+        {
+            if(stub.echo(7) != 7)
+                throw new TestFailed("unexpected result from echo");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("checking that exceptions are passed back");
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("exception not passed back");
+        }
+        catch(FileNotFoundException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("passing an argument larger than the ring buffers");
+
+        try
+        {
+            byte[]      data = new byte[1024 * 1024];
+            for(int i = 0; i < data.length; ++i)
+                data[i] = (byte)(i * 31);
+
+            byte[]      reversed = stub.reverse(data);
+
+            for(int i = 0; i < data.length; ++i)
+            {
+                if(reversed[i] != data[data.length - 1 - i])
+                    throw new TestFailed("large array corrupted");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("calling from more threads than there are channels");
+
+        Caller[]        callers = new Caller[THREADS];
+        Thread[]        threads = new Thread[THREADS];
+
+        for(int i = 0; i < THREADS; ++i)
+        {
+            callers[i] = new Caller(i);
+            threads[i] = new Thread(callers[i]);
+            threads[i].start();
+        }
+
+        for(int i = 0; i < THREADS; ++i)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for callers", e);
+            }
+
+            if(callers[i].failure != null)
+            {
+                throw new TestFailed("concurrent call failed",
+                                     callers[i].failure);
+            }
+        }
+
+        task("making asynchronous calls through shared memory");
+
+        try
+        {
+            SharedMemoryView                view =
+                Stub.async(stub, SharedMemoryView.class);
+            CompletableFuture<?>[]          echoes =
+                new CompletableFuture<?>[THREADS];
+
+            for(int i = 0; i < THREADS; ++i)
+                echoes[i] = view.echo(i);
+
+            for(int i = 0; i < THREADS; ++i)
+            {
+                if(!Integer.valueOf(i).equals(
+                       echoes[i].get(TIMEOUT, TimeUnit.MILLISECONDS)))
+                    throw new TestFailed("unexpected result from echo");
+            }
+
+            try
+            {
+                view.fail().get(TIMEOUT, TimeUnit.MILLISECONDS);
+                throw new TestFailed("future of failing call completed " +
+                                     "normally");
+            }
+            catch(ExecutionException e)
+            {
+                if(!(e.getCause() instanceof FileNotFoundException))
+                {
+                    throw new TestFailed("future completed with unexpected " +
+                                         "exception", e.getCause());
+                }
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("asynchronous call failed", t);
+        }
+
+        task("executing a batch through shared memory");
+
+        try
+        {
+            Batch                           batch = Stub.batch(false);
+            SharedMemoryView                view =
+                batch.view(stub, SharedMemoryView.class);
+            CompletableFuture<Integer>      first = view.echo(1);
+            CompletableFuture<Void>         failure = view.fail();
+            CompletableFuture<Integer>      second = view.echo(2);
+
+            batch.execute();
+
+            if(first.getNow(null) != 1 || second.getNow(null) != 2)
+                throw new TestFailed("unexpected result from batched echo");
+
+            if(!failure.isCompletedExceptionally())
+                throw new TestFailed("failing batched call completed normally");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batched call failed", t);
+        }
+
+        task("stopping skeleton");
+
+        skeleton.stop();
+        skeleton.join();
+        started = false;
+
+        if(path.toFile().exists())
+            throw new TestFailed("shared-memory file not removed");
+
+        try
+        {
+            stub.echo(0);
+            throw new TestFailed("call succeeded after skeleton stopped");
+        }
+        catch(RMIException e) { }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+        }
+
+        if(directory != null)
+            directory.remove();
+    }
+
+    /** Makes calls through the stub from a thread of its own. */
+    private class Caller implements Runnable
+    {
+        private final int   index;
+        volatile Throwable  failure = null;
+
+        Caller(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for(int i = 0; i < CALLS; ++i)
+                {
+                    int     value = index * CALLS + i;
+
+                    if(stub.echo(value) != value)
+                        throw new TestFailed("unexpected result from echo");
+                }
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    public interface SharedMemoryTestInterface
+    {
+        public int echo(int value) throws RMIException;
+        public byte[] reverse(byte[] data) throws RMIException;
+        public void fail() throws RMIException, FileNotFoundException;
+    }
+
+    public interface SharedMemoryView
+    {
+        public CompletableFuture<Integer> echo(int value);
+        public CompletableFuture<Void> fail();
+    }
+
+    private static class SharedMemoryTestServer
+        implements SharedMemoryTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public byte[] reverse(byte[] data)
+        {
+            byte[]      reversed = Arrays.copyOf(data, data.length);
+
+            for(int i = 0; i < data.length; ++i)
+                reversed[i] = data[data.length - 1 - i];
+
+            return reversed;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks calls passing and returning streams.
+
+    <p>
+    The test passes an input stream much larger than the flow control window
+    to the server, several at once through asynchronous calls, and an output
+    stream to which the server writes, and checks that the bytes arrive
+    whole and in order. It checks that input streams and publishers returned
+    by the server can be read, that publishers can be passed to it, that a
+    stream the server stops reading is closed on the caller's side, and that
+    a failure reading a stream returned by the server is reported to the
+    reader. It checks that streams are passed unchanged to a skeleton in the
+    same virtual machine, and that calls passing streams cannot be batched.
+ */
+public class StreamTest extends Test
+{
+    public static final String  notice = "checking calls passing streams";
+    public static final Class[] prerequisites = {MultiplexTest.class,
+                                                 AsyncTest.class,
+                                                 BatchTest.class,
+                                                 LocalCallTest.class};
+
+    /** Length of the large stream passed to the server. */
+    private static final int    LENGTH = 16 << 20;
+    /** Length of each of the streams passed concurrently. */
+    private static final int    CONCURRENT_LENGTH = 2 << 20;
+    /** Number of streams passed concurrently. */
+    private static final int    CONCURRENT = 4;
+    /** Time after which a step that does not finish fails. */
+    private static final long   TIMEOUT = 20000;
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private final StreamTestServer      server = new StreamTestServer();
+    private TestSkeleton<StreamTestInterface>   skeleton = null;
+    private boolean                     started = false;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            skeleton = new TestSkeleton<StreamTestInterface>(
+                StreamTestInterface.class, server, address, this);
+            skeleton.start();
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StreamTestInterface     stub =
+            Stub.create(StreamTestInterface.class, address);
+
+        try
+        {
+            task("passing a large input stream");
+
+            if(stub.count(new Pattern(LENGTH)) != LENGTH)
+                throw new TestFailed("stream not read whole");
+
+            if(stub.count(new Pattern(0)) != 0)
+                throw new TestFailed("empty stream not read");
+
+            task("passing input streams in concurrent calls");
+
+            AsyncView           view = Stub.async(stub, AsyncView.class);
+            List<CompletableFuture<Long>>   counts =
+                new ArrayList<CompletableFuture<Long>>();
+
+            for(int i = 0; i < CONCURRENT; ++i)
+                counts.add(view.count(new Pattern(CONCURRENT_LENGTH)));
+
+            for(CompletableFuture<Long> count : counts)
+            {
+                if(count.get(TIMEOUT, TimeUnit.MILLISECONDS) !=
+                   CONCURRENT_LENGTH)
+                {
+                    throw new TestFailed("concurrent stream not read whole");
+                }
+            }
+
+            task("reading an input stream returned by the server");
+
+            InputStream         generated = stub.generate(LENGTH);
+
+            try
+            {
+                if(Pattern.check(generated) != LENGTH)
+                    throw new TestFailed("returned stream not read whole");
+            }
+            finally
+            {
+                generated.close();
+            }
+
+            task("passing an output stream to which the server writes");
+
+            ByteArrayOutputStream   written = new ByteArrayOutputStream();
+            stub.fill(1 << 20, written);
+
+            if(Pattern.check(new ByteArrayInputStream(
+                    written.toByteArray())) != 1 << 20)
+            {
+                throw new TestFailed("output stream not written whole");
+            }
+
+            task("passing and returning publishers");
+
+            if(stub.total(new Chunks(64, 10000)) != 640000)
+                throw new TestFailed("publisher not read whole");
+
+            if(total(stub.chunks(64, 10000)) != 640000)
+                throw new TestFailed("returned publisher not read whole");
+
+            task("closing a stream the server stops reading");
+
+            Pattern             endless = new Pattern(Long.MAX_VALUE);
+
+            if(stub.peek(endless) != 7)
+                throw new TestFailed("first byte of stream not read");
+
+            if(!endless.closed.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("stream not closed");
+
+            if(stub.count(new Pattern(10)) != 10)
+                throw new TestFailed("call after cancelled stream failed");
+
+            task("reporting a failure of a returned stream");
+
+            InputStream         broken = stub.broken(1 << 20);
+
+            try
+            {
+                Pattern.check(broken);
+                throw new TestFailed("failure of stream not reported");
+            }
+            catch(IOException e) { }
+            finally
+            {
+                broken.close();
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("passing streams unchanged in the same virtual machine");
+
+        try
+        {
+            StreamTestInterface local =
+                Stub.create(StreamTestInterface.class, skeleton);
+            Pattern             stream = new Pattern(10);
+
+            if(local.count(stream) != 10 || server.last != stream)
+                throw new TestFailed("stream not passed unchanged");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when calling remote " +
+                                 "method", t);
+        }
+
+        task("rejecting streams in batches");
+
+        Batch                   batch = Stub.batch(false);
+        CompletableFuture<Long> rejected =
+            batch.view(stub, AsyncView.class).count(new Pattern(10));
+
+        if(!rejected.isCompletedExceptionally() || batch.size() != 0)
+            throw new TestFailed("call passing a stream recorded in a batch");
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+            started = false;
+        }
+    }
+
+    /** Reads every item of a publisher, and returns their total length. */
+    private static long total(Flow.Publisher<ByteBuffer> publisher)
+        throws Exception
+    {
+        final CompletableFuture<Long>   total = new CompletableFuture<Long>();
+
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription   subscription;
+            private long                length = 0;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription)
+            {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item)
+            {
+                length += item.remaining();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable error)
+            {
+                total.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete()
+            {
+                total.complete(length);
+            }
+        });
+
+        return total.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public interface StreamTestInterface
+    {
+        public long count(InputStream in) throws RMIException, IOException;
+        public InputStream generate(int length) throws RMIException;
+        public void fill(int length, OutputStream out)
+            throws RMIException, IOException;
+        public long total(Flow.Publisher<ByteBuffer> publisher)
+            throws RMIException, Exception;
+        public Flow.Publisher<ByteBuffer> chunks(int count, int size)
+            throws RMIException;
+        public int peek(InputStream in) throws RMIException, IOException;
+        public InputStream broken(int length) throws RMIException;
+    }
+
+    /** Asynchronous view of the remote interface. */
+    public interface AsyncView
+    {
+        public CompletableFuture<Long> count(InputStream in);
+    }
+
+    /** Input stream of a given length, whose bytes follow a pattern, and
+        which records when it is closed. */
+    private static class Pattern extends InputStream
+    {
+        final CountDownLatch    closed = new CountDownLatch(1);
+        private final long      length;
+        private long            position = 0;
+
+        Pattern(long length)
+        {
+            this.length = length;
+        }
+
+        /** Returns the byte of the pattern at a position. */
+        static byte at(long position)
+        {
+            return (byte)(position * 31 + 7);
+        }
+
+        /** Reads a stream to its end, and returns its length.
+
+            @throws IOException If the stream does not follow the pattern, or
+                                cannot be read.
+         */
+        static long check(InputStream in) throws IOException
+        {
+            byte[]              buffer = new byte[50000];
+            long                position = 0;
+            int                 count;
+
+            while((count = in.read(buffer)) >= 0)
+            {
+                for(int i = 0; i < count; ++i)
+                {
+                    if(buffer[i] != at(position++))
+                        throw new IOException("unexpected byte in stream");
+                }
+            }
+
+            return position;
+        }
+
+        @Override
+        public int read()
+        {
+            return position < length ? at(position++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+            throws IOException
+        {
+            if(position >= length)
+                return -1;
+
+            count = (int)Math.min(count, length - position);
+
+            for(int i = 0; i < count; ++i)
+                buffer[offset + i] = at(position++);
+
+            return count;
+        }
+
+        @Override
+        public void close()
+        {
+            closed.countDown();
+        }
+    }
+
+    /** Publisher of a number of byte buffers of a given size, published to
+        each subscriber by a thread of its own. */
+    private static class Chunks implements Flow.Publisher<ByteBuffer>
+    {
+        private final int       count;
+        private final int       size;
+
+        Chunks(int count, int size)
+        {
+            this.count = count;
+            this.size = size;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            final SubmissionPublisher<ByteBuffer>   publisher =
+                new SubmissionPublisher<ByteBuffer>();
+
+            publisher.subscribe(subscriber);
+
+            new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for(int i = 0; i < count; ++i)
+                        publisher.submit(ByteBuffer.allocate(size));
+
+                    publisher.close();
+                }
+            }).start();
+        }
+    }
+
+    private static class StreamTestServer implements StreamTestInterface
+    {
+        /** Last stream passed to <code>count</code>. */
+        volatile InputStream    last;
+
+        @Override
+        public long count(InputStream in) throws IOException
+        {
+            last = in;
+            return Pattern.check(in);
+        }
+
+        @Override
+        public InputStream generate(int length)
+        {
+            return new Pattern(length);
+        }
+
+        @Override
+        public void fill(int length, OutputStream out) throws IOException
+        {
+            byte[]              buffer = new byte[length];
+
+            for(int i = 0; i < length; ++i)
+                buffer[i] = Pattern.at(i);
+
+            out.write(buffer, 0, length / 2);
+            out.write(buffer, length / 2, length - length / 2);
+        }
+
+        @Override
+        public long total(Flow.Publisher<ByteBuffer> publisher)
+            throws Exception
+        {
+            return StreamTest.total(publisher);
+        }
+
+        @Override
+        public Flow.Publisher<ByteBuffer> chunks(int count, int size)
+        {
+            return new Chunks(count, size);
+        }
+
+        @Override
+        public int peek(InputStream in) throws IOException
+        {
+            return in.read();
+        }
+
+        @Override
+        public InputStream broken(final int length)
+        {
+            return new Pattern(length) {
+                @Override
+                public int read(byte[] buffer, int offset, int count)
+                    throws IOException
+                {
+                    int         read = super.read(buffer, offset, count);
+
+                    if(read < 0)
+                        throw new IOException("stream broken");
+
+                    return read;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Path;
+
+/** Checks skeletons listening on a Unix domain socket.
+
+    <p>
+    The test starts a skeleton that listens on a Unix domain socket as well as
+    on TCP, and calls it through a stub created for the socket and through a
+    stub created for its TCP address. It checks that the socket file is
+    removed when the skeleton stops, and that calls on the socket then fail.
+    The checks are made with both transports.
+ */
+public class UnixSocketTest extends Test
+{
+    public static final String  notice =
+        "checking calls over Unix domain sockets";
+    public static final Class[] prerequisites = {CallTest.class};
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress(TestConstants.PORT);
+    private TemporaryDirectory          directory = null;
+    private Path                        path;
+    private TestSkeleton<UnixSocketTestInterface>   skeleton = null;
+    private boolean                     started = false;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        task("creating temporary directory");
+
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        path = new File(directory.root(), "rmi.sock").toPath();
+
+        task("creating skeleton");
+
+        skeleton = new TestSkeleton<UnixSocketTestInterface>(
+            UnixSocketTestInterface.class, new UnixSocketTestServer(),
+            address, this);
+        skeleton.setUnixSocket(path);
+
+        task();
+    }
+
+    @Override
+    protected void perform() throws TestFailed
+    {
+        UnixSocketTestInterface     unix =
+            Stub.create(UnixSocketTestInterface.class,
+                        UnixDomainSocketAddress.of(path));
+        UnixSocketTestInterface     tcp =
+            Stub.create(UnixSocketTestInterface.class, address);
+
+        task("checking stub identity");
+
+        if(!unix.equals(Stub.create(UnixSocketTestInterface.class,
+                                    UnixDomainSocketAddress.of(path))))
+        {
+            throw new TestFailed("stubs for the same socket not equal");
+        }
+
+        if(unix.equals(tcp))
+            throw new TestFailed("stubs for socket and TCP address equal");
+
+        if(unix.toString().indexOf(path.toString()) == -1)
+            throw new TestFailed("path not found in " + unix);
+
+        for(Skeleton.Transport transport : Skeleton.Transport.values())
+        {
+            task("starting skeleton with " + transport + " transport");
+
+            try
+            {
+                skeleton.setTransport(transport);
+                skeleton.start();
+                started = true;
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            if(!path.toFile().exists())
+                throw new TestFailed("socket file not created");
+
+            try
+            {
+                skeleton.setUnixSocket(null);
+                throw new TestFailed("socket changed while skeleton running");
+            }
+            catch(IllegalStateException e) { }
+
+            task("calling through the socket and over TCP");
+
+            try
+            {
+                for(int i = 0; i < 3; ++i)
+                {
+                    if(unix.echo(i) != i || tcp.echo(i) != i)
+                        throw new TestFailed("unexpected result from echo");
+                }
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception when calling " +
+                                     "remote method", t);
+            }
+
+            task("stopping skeleton");
+
+            skeleton.stop();
+            skeleton.join();
+            started = false;
+
+            if(path.toFile().exists())
+                throw new TestFailed("socket file not removed");
+
+            try
+            {
+                unix.echo(0);
+                throw new TestFailed("call succeeded after skeleton stopped");
+            }
+            catch(RMIException e) { }
+        }
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if((skeleton != null) && started)
+        {
+            skeleton.stop();
+            skeleton.join();
+        }
+
+        if(directory != null)
+            directory.remove();
+    }
+
+    public interface UnixSocketTestInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    private static class UnixSocketTestServer
+        implements UnixSocketTestInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+/** Invocation handler of the asynchronous views returned by
+    <code>Stub.async</code>.
+
+    <p>
+    Each method of the view is matched, when the view is created, with the
+    method of the remote interface that has the same name and parameter types.
+    Calls are then forwarded to the stub's core with
+    <code>StubCore.callAsync</code>, or recorded in a <code>Batch</code> for
+    the views of batches. The methods of <code>Object</code> are handled
+    locally: a view is equal only to itself.
+ */
+class AsyncInvocationHandler implements InvocationHandler {
+    private final StubCore<?> core;
+    private final Batch batch;
+    private final String description;
+    private final HashMap<Method, Method> remoteMethods =
+        new HashMap<Method, Method>();
+
+    /** Creates the handler of a view.
+
+        @param core The core of the stub.
+        @param batch The batch in which calls are recorded, or
+                     <code>null</code> to make calls at once.
+        @param stub The string representation of the stub.
+        @param c The remote interface.
+        @param asyncInterface The interface of the view.
+        @throws IllegalArgumentException If the interface of the view does not
+                                         match the remote interface.
+     */
+    AsyncInvocationHandler(StubCore<?> core, Batch batch, String stub,
+                           Class<?> c, Class<?> asyncInterface) {
+        if(!asyncInterface.isInterface()) {
+            throw new IllegalArgumentException(asyncInterface.getName() +
+                                               " is not an interface");
+        }
+
+        for(Method method : asyncInterface.getMethods()) {
+            if(isObjectMethod(method)) {
+                continue;
+            }
+            if(!method.getReturnType()
+                   .isAssignableFrom(CompletableFuture.class)) {
+                throw new IllegalArgumentException(method.getName() +
+                    " does not return a future");
+            }
+
+            try {
+                remoteMethods.put(method,
+                    c.getMethod(method.getName(), method.getParameterTypes()));
+            } catch(NoSuchMethodException e) {
+                throw new IllegalArgumentException(method.getName() +
+                    " does not match a method of " + c.getName());
+            }
+        }
+
+        this.core = core;
+        this.batch = batch;
+        this.description = (batch == null ? "Asynchronous" : "Batched") +
+                           " view of " + stub;
+    }
+
+    /** Returns <code>true</code> if a method overrides a public method of
+        <code>Object</code>. The proxy handles such methods as methods of
+        <code>Object</code>. */
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(),
+                                   method.getParameterTypes());
+            return true;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        Method remote = remoteMethods.get(method);
+        if(remote != null) {
+            if(batch != null) {
+                return batch.record(core, remote, args);
+            }
+            return core.callAsync(remote, args);
+        }
+
+        switch(method.getName()) {
+        case "equals":
+            return proxy == args[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        default:
+            return description;
+        }
+    }
+}
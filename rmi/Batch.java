@@ -0,0 +1,143 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/** A group of calls sent to one skeleton in a single request.
+
+    <p>
+    Batches are created by <code>Stub.batch</code>. Calls are recorded through
+    views of stubs, returned by <code>view</code>, whose methods return
+    futures in the same way as the asynchronous views returned by
+    <code>Stub.async</code>. Recording a call encodes its arguments, but sends
+    nothing. <code>execute</code> then sends every call recorded, waits for
+    the skeleton's single response, and completes the future of each call with
+    its result or with the exception it raised. Views of several stubs may be
+    used in one batch, provided that all the stubs call the same skeleton.
+
+    <p>
+    A batch is executed at most once. If the skeleton does not accept
+    batches, its calls are made one by one, as asynchronous calls.
+ */
+public final class Batch
+{
+    private final boolean parallel;
+    private final ArrayList<StubCore.BatchEntry> entries =
+        new ArrayList<StubCore.BatchEntry>();
+    private StubCore<?> skeleton;
+    private boolean executed = false;
+
+    Batch(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    /** Returns a view of a stub through which calls are recorded in this
+        batch.
+
+        @param stub A stub created by one of the <code>Stub.create</code>
+                    methods.
+        @param asyncInterface The interface of the view, declared as for
+                              <code>Stub.async</code>.
+        @return The view.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub,
+                                         calls a different skeleton than the
+                                         stubs of the other views of this
+                                         batch, or if
+                                         <code>asyncInterface</code> does not
+                                         match its remote interface.
+     */
+    public <A> A view(Object stub, Class<A> asyncInterface)
+    {
+        if(stub == null || asyncInterface == null) {
+            throw new NullPointerException();
+        }
+
+        StubCore<?> core = Stub.core(stub);
+        synchronized(this) {
+            if(skeleton == null) {
+                skeleton = core;
+            } else if(!skeleton.sameSkeleton(core)) {
+                throw new IllegalArgumentException("stubs of a batch must " +
+                                                   "call the same skeleton");
+            }
+        }
+
+        return asyncInterface.cast(java.lang.reflect.Proxy.newProxyInstance(
+            asyncInterface.getClassLoader(), new Class<?>[] { asyncInterface },
+            new AsyncInvocationHandler(core, this, stub.toString(),
+                                       ((ProxyDetails<?>) stub).getCls(),
+                                       asyncInterface)));
+    }
+
+    /** Returns the number of calls recorded. */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /** Sends the calls recorded and waits for their results.
+
+        <p>
+        When this method returns normally, the future of every call recorded
+        has been completed, normally or exceptionally.
+
+        @throws RMIException If the batch could not be carried out. The future
+                             of every call then fails with the same exception.
+                             Exceptions raised by the calls themselves are
+                             reported only through their futures.
+        @throws IllegalStateException If the batch has already been executed.
+     */
+    public void execute() throws RMIException
+    {
+        CompletableFuture<Void> done;
+
+        synchronized(this) {
+            if(executed) {
+                throw new IllegalStateException("batch already executed");
+            }
+            executed = true;
+
+            if(entries.isEmpty()) {
+                return;
+            }
+            done = skeleton.callBatch(entries, parallel);
+        }
+
+        try {
+            done.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RMIException("Interrupted waiting for batch", e);
+        } catch(ExecutionException e) {
+            throw (RMIException) e.getCause();
+        }
+    }
+
+    /** Records a call made through a view of this batch.
+
+        @return The future of the call. If the call cannot be encoded, the
+                future has already failed, and the call is not recorded.
+        @throws IllegalStateException If the batch has already been executed.
+     */
+    synchronized CompletableFuture<Object> record(StubCore<?> core,
+                                                  Method method,
+                                                  Object[] args) {
+        if(executed) {
+            throw new IllegalStateException("batch already executed");
+        }
+
+        try {
+            StubCore.BatchEntry entry = core.record(method, args);
+            entries.add(entry);
+            return entry.result;
+        } catch(RMIException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<Object>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Codec writing a compact binary form of common value types.
+
+    <p>
+    Each value begins with a tag byte giving its kind. Primitives follow in
+    their fixed-width big-endian form, and strings as a length and their
+    UTF-8 bytes. Arrays of primitives follow as a length and their elements;
+    arrays of objects also name their component class. Lists, sets and maps
+    follow as a size and their elements, or keys and values. Records name
+    their class and follow with their components in declaration order, and
+    are read back through their canonical constructor, so that records
+    validating their components do so on both sides. Enumeration constants
+    name their class and the constant.
+
+    <p>
+    Reading checks every length against the bytes remaining in the payload,
+    and limits the nesting of values to <code>MAX_DEPTH</code>. Classes named
+    in the payload are loaded without being initialized, and only records,
+    enumerations and array components are ever looked up.
+ */
+class BinaryCodec implements Codec {
+    /** Deepest nesting of values written or read. */
+    static final int MAX_DEPTH = 64;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int PRIMITIVE_ARRAY = 11;
+    private static final int OBJECT_ARRAY = 12;
+    private static final int LIST = 13;
+    private static final int SET = 14;
+    private static final int MAP = 15;
+    private static final int RECORD = 16;
+    private static final int ENUM = 17;
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public void write(OutputStream out, Class<?>[] types, Object[] values)
+        throws IOException {
+        DataOutputStream ostream = new DataOutputStream(out);
+        for(Object value : values) {
+            writeValue(ostream, value, 0);
+        }
+        ostream.flush();
+    }
+
+    @Override
+    public Object[] read(InputStream in, Class<?>[] types)
+        throws IOException, ClassNotFoundException {
+        DataInputStream istream = new DataInputStream(in);
+        Object[] values = new Object[types.length];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = readValue(istream, 0);
+        }
+        return values;
+    }
+
+    private void writeValue(DataOutputStream out, Object value, int depth)
+        throws IOException {
+        if(depth > MAX_DEPTH) {
+            throw new IOException("values nested too deeply");
+        }
+
+        if(value == null) {
+            out.writeByte(NULL);
+        } else if(value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if(value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if(value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if(value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if(value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if(value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if(value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if(value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if(value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if(value.getClass().isArray()) {
+            writeArray(out, value, depth);
+        } else if(value instanceof List) {
+            out.writeByte(LIST);
+            writeElements(out, (List<?>) value, depth);
+        } else if(value instanceof Set) {
+            out.writeByte(SET);
+            writeElements(out, (Set<?>) value, depth);
+        } else if(value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for(Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey(), depth + 1);
+                writeValue(out, entry.getValue(), depth + 1);
+            }
+        } else if(value instanceof Enum) {
+            Enum<?> constant = (Enum<?>) value;
+            out.writeByte(ENUM);
+            out.writeUTF(constant.getDeclaringClass().getName());
+            out.writeUTF(constant.name());
+        } else if(value.getClass().isRecord()) {
+            writeRecord(out, (Record) value, depth);
+        } else {
+            throw new IOException("cannot encode " +
+                                  value.getClass().getName() +
+                                  " with the binary codec");
+        }
+    }
+
+    private void writeArray(DataOutputStream out, Object array, int depth)
+        throws IOException {
+        Class<?> component = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+
+        if(!component.isPrimitive()) {
+            out.writeByte(OBJECT_ARRAY);
+            out.writeUTF(component.getName());
+            out.writeInt(length);
+            for(int i = 0; i < length; i++) {
+                writeValue(out, Array.get(array, i), depth + 1);
+            }
+            return;
+        }
+
+        out.writeByte(PRIMITIVE_ARRAY);
+        out.writeByte(primitiveTag(component));
+        out.writeInt(length);
+        if(component == byte.class) {
+            out.write((byte[]) array);
+        } else if(component == boolean.class) {
+            for(boolean element : (boolean[]) array) {
+                out.writeBoolean(element);
+            }
+        } else if(component == short.class) {
+            for(short element : (short[]) array) {
+                out.writeShort(element);
+            }
+        } else if(component == char.class) {
+            for(char element : (char[]) array) {
+                out.writeChar(element);
+            }
+        } else if(component == int.class) {
+            for(int element : (int[]) array) {
+                out.writeInt(element);
+            }
+        } else if(component == long.class) {
+            for(long element : (long[]) array) {
+                out.writeLong(element);
+            }
+        } else if(component == float.class) {
+            for(float element : (float[]) array) {
+                out.writeFloat(element);
+            }
+        } else {
+            for(double element : (double[]) array) {
+                out.writeDouble(element);
+            }
+        }
+    }
+
+    private void writeElements(DataOutputStream out, Collection<?> elements,
+                               int depth)
+        throws IOException {
+        out.writeInt(elements.size());
+        for(Object element : elements) {
+            writeValue(out, element, depth + 1);
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, Record record, int depth)
+        throws IOException {
+        out.writeByte(RECORD);
+        out.writeUTF(record.getClass().getName());
+
+        for(RecordComponent component :
+                record.getClass().getRecordComponents()) {
+            Method accessor = component.getAccessor();
+            accessor.trySetAccessible();
+            try {
+                writeValue(out, accessor.invoke(record), depth + 1);
+            } catch(IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("cannot read component " +
+                                      component.getName() + " of " +
+                                      record.getClass().getName(), e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private Object readValue(DataInputStream in, int depth)
+        throws IOException, ClassNotFoundException {
+        if(depth > MAX_DEPTH) {
+            throw new IOException("values nested too deeply");
+        }
+
+        int tag = in.readUnsignedByte();
+        switch(tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return in.readByte();
+        case SHORT:
+            return in.readShort();
+        case CHAR:
+            return in.readChar();
+        case INT:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case FLOAT:
+            return in.readFloat();
+        case DOUBLE:
+            return in.readDouble();
+        case STRING:
+            return readString(in);
+        case PRIMITIVE_ARRAY:
+            return readPrimitiveArray(in);
+        case OBJECT_ARRAY:
+            return readObjectArray(in, depth);
+        case LIST: {
+            int size = length(in, 1);
+            List<Object> list = new ArrayList<Object>(size);
+            for(int i = 0; i < size; i++) {
+                list.add(readValue(in, depth + 1));
+            }
+            return list;
+        }
+        case SET: {
+            int size = length(in, 1);
+            Set<Object> set = new LinkedHashSet<Object>();
+            for(int i = 0; i < size; i++) {
+                set.add(readValue(in, depth + 1));
+            }
+            return set;
+        }
+        case MAP: {
+            int size = length(in, 2);
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            for(int i = 0; i < size; i++) {
+                map.put(readValue(in, depth + 1), readValue(in, depth + 1));
+            }
+            return map;
+        }
+        case ENUM:
+            return readEnum(in);
+        case RECORD:
+            return readRecord(in, depth);
+        default:
+            throw new IOException("invalid value tag " + tag);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[length(in, 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Object readPrimitiveArray(DataInputStream in)
+        throws IOException {
+        int tag = in.readUnsignedByte();
+        Class<?> component = primitiveType(tag);
+        int length = length(in, tag == BYTE || tag == TRUE ? 1
+                              : tag == SHORT || tag == CHAR ? 2
+                              : tag == INT || tag == FLOAT ? 4 : 8);
+
+        if(component == byte.class) {
+            byte[] array = new byte[length];
+            in.readFully(array);
+            return array;
+        }
+
+        Object array = Array.newInstance(component, length);
+        for(int i = 0; i < length; i++) {
+            if(component == boolean.class) {
+                Array.setBoolean(array, i, in.readBoolean());
+            } else if(component == short.class) {
+                Array.setShort(array, i, in.readShort());
+            } else if(component == char.class) {
+                Array.setChar(array, i, in.readChar());
+            } else if(component == int.class) {
+                Array.setInt(array, i, in.readInt());
+            } else if(component == long.class) {
+                Array.setLong(array, i, in.readLong());
+            } else if(component == float.class) {
+                Array.setFloat(array, i, in.readFloat());
+            } else {
+                Array.setDouble(array, i, in.readDouble());
+            }
+        }
+        return array;
+    }
+
+    private Object readObjectArray(DataInputStream in, int depth)
+        throws IOException, ClassNotFoundException {
+        Class<?> component = load(in.readUTF());
+        if(component.isPrimitive()) {
+            throw new IOException("invalid array component " +
+                                  component.getName());
+        }
+
+        int length = length(in, 1);
+        Object array = Array.newInstance(component, length);
+        for(int i = 0; i < length; i++) {
+            try {
+                Array.set(array, i, readValue(in, depth + 1));
+            } catch(IllegalArgumentException e) {
+                throw new IOException("invalid element of " +
+                                      component.getName() + " array", e);
+            }
+        }
+        return array;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(DataInputStream in)
+        throws IOException, ClassNotFoundException {
+        Class<?> type = load(in.readUTF());
+        String name = in.readUTF();
+        if(!type.isEnum()) {
+            throw new IOException(type.getName() + " is not an enumeration");
+        }
+
+        try {
+            return Enum.valueOf((Class) type, name);
+        } catch(IllegalArgumentException e) {
+            throw new IOException("no constant " + name + " in " +
+                                  type.getName(), e);
+        }
+    }
+
+    private Object readRecord(DataInputStream in, int depth)
+        throws IOException, ClassNotFoundException {
+        Class<?> type = load(in.readUTF());
+        if(!type.isRecord()) {
+            throw new IOException(type.getName() + " is not a record");
+        }
+
+        RecordComponent[] components = type.getRecordComponents();
+        Class<?>[] types = new Class<?>[components.length];
+        Object[] values = new Object[components.length];
+        for(int i = 0; i < components.length; i++) {
+            types[i] = components[i].getType();
+            values[i] = readValue(in, depth + 1);
+        }
+
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(types);
+            constructor.trySetAccessible();
+            return constructor.newInstance(values);
+        } catch(InvocationTargetException e) {
+            throw new IOException("invalid " + type.getName(), e.getCause());
+        } catch(ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException("cannot create " + type.getName(), e);
+        }
+    }
+
+    /** Reads a length, and checks that the payload holds at least that many
+        elements of the given size. */
+    private static int length(DataInputStream in, int elementSize)
+        throws IOException {
+        int length = in.readInt();
+        if(length < 0 || (long) length * elementSize > in.available()) {
+            throw new IOException("invalid length " + length);
+        }
+        return length;
+    }
+
+    private static Class<?> load(String name) throws ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if(loader == null) {
+            loader = BinaryCodec.class.getClassLoader();
+        }
+        return Class.forName(name, false, loader);
+    }
+
+    private static int primitiveTag(Class<?> type) {
+        if(type == boolean.class) {
+            return TRUE;
+        } else if(type == byte.class) {
+            return BYTE;
+        } else if(type == short.class) {
+            return SHORT;
+        } else if(type == char.class) {
+            return CHAR;
+        } else if(type == int.class) {
+            return INT;
+        } else if(type == long.class) {
+            return LONG;
+        } else if(type == float.class) {
+            return FLOAT;
+        }
+        return DOUBLE;
+    }
+
+    private static Class<?> primitiveType(int tag) throws IOException {
+        switch(tag) {
+        case TRUE:
+            return boolean.class;
+        case BYTE:
+            return byte.class;
+        case SHORT:
+            return short.class;
+        case CHAR:
+            return char.class;
+        case INT:
+            return int.class;
+        case LONG:
+            return long.class;
+        case FLOAT:
+            return float.class;
+        case DOUBLE:
+            return double.class;
+        default:
+            throw new IOException("invalid array element tag " + tag);
+        }
+    }
+}
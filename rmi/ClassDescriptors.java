@@ -0,0 +1,336 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Class descriptors shared by the serialized payloads of a connection.
+
+    <p>
+    Java serialization writes, in every payload, the descriptor of each class
+    it serializes: its name, serial version and fields, and those of its
+    superclasses. When both sides of a connection support
+    <code>Protocol.CAP_DESCRIPTORS</code>, payloads written with Java
+    serialization refer to descriptors by an identifier instead, and omit the
+    stream header. Identifiers are assigned once per class in this virtual
+    machine, so a payload can be encoded before the connection carrying it is
+    chosen. The registry of identifiers holds classes weakly, so that
+    classes and class loaders no longer in use can be unloaded.
+
+    <p>
+    The writer of each connection keeps an <code>Outgoing</code> set of the
+    identifiers it has defined on the connection. Before writing a frame
+    whose payload uses identifiers not yet defined, it writes a definitions
+    frame, marked with <code>Protocol.FLAG_DEFINITIONS</code>, holding the
+    descriptors they stand for. The reader of the connection records them in
+    its <code>Incoming</code> table as frames arrive, before any later frame
+    is decoded, so payloads may still be decoded in any order and on any
+    thread.
+
+    <p>
+    Each payload is otherwise a separate object stream, as if the stream
+    were reset between calls: objects are never shared between payloads, and
+    the only state kept for a connection is its descriptors, of which there
+    is one per class sent.
+ */
+class ClassDescriptors {
+    /** Largest number of descriptors a peer may define on a connection. */
+    static final int MAX_DEFINITIONS = 1 << 16;
+
+    /** Identifiers of the classes whose descriptors have been written. The
+        identifier of a class does not keep the class, or its loader,
+        reachable. */
+    private static final ClassValue<Integer> ids = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return register(type);
+        }
+    };
+    /** Classes by identifier, held weakly. Identifiers are never reused, so
+        that a peer never reads a payload with the descriptor another class
+        had under the same identifier. */
+    private static final Map<Integer, Registered> classes =
+        new ConcurrentHashMap<Integer, Registered>();
+    private static final ReferenceQueue<Class<?>> unloaded =
+        new ReferenceQueue<Class<?>>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private ClassDescriptors() {
+    }
+
+    /** Class registered under an identifier. */
+    private static class Registered extends WeakReference<Class<?>> {
+        final int id;
+
+        Registered(Class<?> type, int id) {
+            super(type, unloaded);
+            this.id = id;
+        }
+    }
+
+    /** Assigns an identifier to a class, and forgets the classes that have
+        been unloaded since the last call. */
+    private static int register(Class<?> type) {
+        Reference<? extends Class<?>> reference;
+        while((reference = unloaded.poll()) != null) {
+            classes.remove(((Registered) reference).id);
+        }
+
+        int id = nextId.getAndIncrement();
+        classes.put(id, new Registered(type, id));
+        return id;
+    }
+
+    /** Returns the identifier of a descriptor, assigning one if its class has
+        none yet. */
+    private static int id(ObjectStreamClass descriptor) {
+        return ids.get(descriptor.forClass());
+    }
+
+    private static ObjectStreamClass descriptor(int id) throws IOException {
+        Registered registered = classes.get(id);
+        Class<?> type = registered == null ? null : registered.get();
+        if(type == null) {
+            throw new InvalidClassException("class of descriptor " + id +
+                                            " has been unloaded");
+        }
+        return ObjectStreamClass.lookupAny(type);
+    }
+
+    /** Writes values with Java serialization, referring to descriptors by
+        identifier.
+
+        @param out The stream, which is not closed.
+        @param values The values.
+        @return The identifiers used, which the payload's frame must carry.
+     */
+    static int[] write(OutputStream out, Object[] values) throws IOException {
+        Output ostream = new Output(out);
+        for(Object value : values) {
+            ostream.writeObject(value);
+        }
+        ostream.flush();
+        return ostream.used.stream().toArray();
+    }
+
+    /** Reads values written by <code>write</code>.
+
+        @param in The stream.
+        @param count The number of values.
+        @param table The descriptors defined on the connection.
+     */
+    static Object[] read(InputStream in, int count, Incoming table)
+        throws IOException, ClassNotFoundException {
+        Input istream = new Input(in, table);
+        Object[] values = new Object[count];
+        for(int i = 0; i < count; i++) {
+            values[i] = istream.readObject();
+        }
+        return values;
+    }
+
+    /** Returns the union of the identifiers used by several frames, or
+        <code>null</code> if they use none. */
+    static int[] union(Protocol.Frame[] frames) {
+        BitSet all = new BitSet();
+        for(Protocol.Frame frame : frames) {
+            if(frame.descriptorIds != null) {
+                for(int id : frame.descriptorIds) {
+                    all.set(id);
+                }
+            }
+        }
+        return all.isEmpty() ? null : all.stream().toArray();
+    }
+
+    /** The identifiers defined by the writer of a connection. */
+    static class Outgoing {
+        private final BitSet defined = new BitSet();
+
+        /** Returns the definitions frame to write before a frame, and
+            records its identifiers as defined. The caller must write the
+            definitions frame, if any, and the frame in the order in which
+            it calls this method.
+
+            @return The definitions frame, or <code>null</code> if the frame
+                    uses no identifier not yet defined.
+         */
+        synchronized Protocol.Frame definitions(Protocol.Frame frame)
+            throws IOException {
+            if(frame == null || frame.descriptorIds == null) {
+                return null;
+            }
+
+            int count = 0;
+            for(int id : frame.descriptorIds) {
+                if(!defined.get(id)) {
+                    ++count;
+                }
+            }
+            if(count == 0) {
+                return null;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(count);
+            for(int id : frame.descriptorIds) {
+                if(!defined.get(id)) {
+                    header.writeInt(id);
+                }
+            }
+            header.flush();
+
+            // The descriptors are written as ordinary serialized objects, in
+            // one stream, so that superclasses shared between them are
+            // written once.
+            ObjectOutputStream ostream = new ObjectOutputStream(bytes);
+            for(int id : frame.descriptorIds) {
+                if(!defined.get(id)) {
+                    ostream.writeObject(descriptor(id));
+                    defined.set(id);
+                }
+            }
+            ostream.close();
+
+            Protocol.Frame definitions =
+                new Protocol.Frame(Protocol.NO_METHOD_ID, bytes.toByteArray());
+            definitions.flags = Protocol.FLAG_DEFINITIONS;
+            definitions.requestId = frame.requestId;
+            return definitions;
+        }
+    }
+
+    /** The descriptors defined by the peer on a connection. */
+    static class Incoming {
+        private final Map<Integer, Object> defined =
+            new ConcurrentHashMap<Integer, Object>();
+
+        /** Records the descriptors of a definitions frame.
+
+            @throws IOException If the frame is invalid, or defines too many
+                                descriptors.
+         */
+        void define(Protocol.Frame frame) throws IOException {
+            DataInputStream header = new DataInputStream(
+                new ByteArrayInputStream(frame.payload));
+            int count = header.readInt();
+            if(count <= 0 || count > frame.payload.length / 4 ||
+               defined.size() + count > MAX_DEFINITIONS) {
+                throw new IOException("invalid class descriptor " +
+                                      "definitions");
+            }
+
+            int[] newIds = new int[count];
+            for(int i = 0; i < count; i++) {
+                newIds[i] = header.readInt();
+                if(newIds[i] < 0) {
+                    throw new IOException("invalid class descriptor " +
+                                          "identifier " + newIds[i]);
+                }
+            }
+
+            ObjectInputStream istream = new ObjectInputStream(header);
+            for(int id : newIds) {
+                Object descriptor;
+                try {
+                    descriptor = istream.readObject();
+                } catch(ClassNotFoundException e) {
+                    // Reported when a payload uses the descriptor.
+                    descriptor = e;
+                }
+                if(!(descriptor instanceof ObjectStreamClass) &&
+                   !(descriptor instanceof ClassNotFoundException)) {
+                    throw new IOException("invalid class descriptor " +
+                                          "definition");
+                }
+                defined.put(id, descriptor);
+            }
+        }
+
+        /** Returns the descriptor defined with an identifier.
+
+            @throws InvalidClassException If no descriptor is defined with
+                                          the identifier.
+            @throws ClassNotFoundException If the descriptor's class could not
+                                           be loaded.
+         */
+        ObjectStreamClass get(int id)
+            throws InvalidClassException, ClassNotFoundException {
+            Object descriptor = defined.get(id);
+            if(descriptor == null) {
+                throw new InvalidClassException("undefined class descriptor " +
+                                                id);
+            }
+            if(descriptor instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) descriptor;
+            }
+            return (ObjectStreamClass) descriptor;
+        }
+    }
+
+    /** Object stream writing descriptor identifiers in place of
+        descriptors. */
+    private static class Output extends ObjectOutputStream {
+        final BitSet used = new BitSet();
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass descriptor)
+            throws IOException {
+            int id = id(descriptor);
+            used.set(id);
+            writeInt(id);
+        }
+    }
+
+    /** Object stream reading descriptors by identifier. */
+    private static class Input extends ObjectInputStream {
+        private final Incoming table;
+
+        Input(InputStream in, Incoming table) throws IOException {
+            super(in);
+            this.table = table;
+        }
+
+        @Override
+        protected void readStreamHeader() {
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+            throws IOException, ClassNotFoundException {
+            return table.get(readInt());
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass descriptor)
+            throws IOException, ClassNotFoundException {
+            // Descriptors were resolved when they were defined.
+            Class<?> c = descriptor.forClass();
+            return c != null ? c : super.resolveClass(descriptor);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/** Reads responses without a thread waiting for each call.
+
+    <p>
+    The client selector is a single daemon thread shared by all stubs. It
+    reads the responses on every <code>MultiplexedConnection</code>, which stay
+    registered with it for as long as they are open, and writes the requests
+    that callers could not write at once.
+
+    <p>
+    It also serves asynchronous calls made on connections that carry one call
+    at a time. Such a call sends its request on a pooled connection and hands
+    the connection over with <code>await</code>. The selector puts the
+    connection's channel into non-blocking mode, reads the response frame as
+    its bytes arrive, and then returns the channel to blocking mode, so that
+    the connection can go back to the pool and carry ordinary calls.
+
+    <p>
+    Tasks may be run on the selector thread, at once with <code>execute</code>
+    or after a delay with <code>schedule</code>. Delays are meant to be short,
+    so that requests can be held back for a few microseconds to be written
+    together: delays under a millisecond, which <code>Selector.select</code>
+    cannot express, are waited out by parking the selector thread.
+
+    <p>
+    Response handlers are notified on the selector thread, and must not block.
+ */
+class ClientSelector implements Runnable {
+    /** Receives the outcome of waiting for a response. */
+    interface ResponseHandler {
+        /** Called with the response frame. */
+        void completed(Protocol.Frame response);
+
+        /** Called if the response cannot be read. The connection is closed,
+            or should be discarded.
+
+            @param cause The error.
+            @param unsent <code>true</code> if the skeleton cannot have run
+                          the call: the request was not written in full, or
+                          the skeleton closed a connection carrying one call
+                          at a time without answering it.
+         */
+        void failed(IOException cause, boolean unsent);
+    }
+
+    /** Attachment of a key registered with the selector. */
+    interface Selectable {
+        /** Called on the selector thread when the key is selected. */
+        void ready(SelectionKey key);
+    }
+
+    private static final long MILLISECOND = 1000000L;
+
+    private static ClientSelector instance;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+        new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayList<PendingResponse> finished =
+        new ArrayList<PendingResponse>();
+    /** Scheduled tasks, by deadline. Touched only by the selector thread. */
+    private final PriorityQueue<Scheduled> timers =
+        new PriorityQueue<Scheduled>();
+
+    private ClientSelector(Selector selector) {
+        this.selector = selector;
+    }
+
+    /** Returns the client selector, starting it if necessary.
+
+        @throws IOException If the selector cannot be opened.
+     */
+    static synchronized ClientSelector get() throws IOException {
+        if(instance == null) {
+            instance = new ClientSelector(Selector.open());
+
+            Thread thread = new Thread(instance, "rmi-client-selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    /** Runs a task on the selector thread. */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Runs a task on the selector thread once a delay has passed.
+
+        @param task The task.
+        @param delayNanos The delay, in nanoseconds.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        final Scheduled scheduled =
+            new Scheduled(System.nanoTime() + delayNanos, task);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timers.add(scheduled);
+            }
+        });
+    }
+
+    /** Registers a channel, which must be in non-blocking mode, with the
+        selector. The key is passed to <code>registered</code>, on the
+        selector thread.
+
+        @param channel The channel.
+        @param ops The initial interest set.
+        @param attachment The object notified when the key is selected.
+        @param registered Called with the key, or with <code>null</code> if
+                          the channel could not be registered.
+     */
+    void register(final SocketChannel channel, final int ops,
+                  final Selectable attachment,
+                  final Consumer<SelectionKey> registered) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key;
+                try {
+                    key = channel.register(selector, ops, attachment);
+                } catch(IOException | RuntimeException e) {
+                    key = null;
+                }
+                registered.accept(key);
+            }
+        });
+    }
+
+    /** Waits, without blocking the caller, for the response to a request
+        just sent on a connection. The connection must not be used until the
+        handler is notified.
+
+        @param connection The connection.
+        @param request The request, as sent.
+        @param handler The handler to notify.
+     */
+    void await(Connection connection, Protocol.Frame request,
+               ResponseHandler handler) {
+        final PendingResponse pending =
+            new PendingResponse(connection, request, handler);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                pending.register();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                // The keys of finished responses were cancelled during the
+                // previous pass. Their channels are deregistered only by the
+                // next selection, and only then can be made blocking again.
+                if(!finished.isEmpty()) {
+                    selector.selectNow();
+                    for(PendingResponse pending : finished) {
+                        pending.finish();
+                    }
+                    finished.clear();
+                } else if(timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = timers.peek().deadline - System.nanoTime();
+                    if(wait >= MILLISECOND) {
+                        selector.select(wait / MILLISECOND);
+                    } else {
+                        if(wait > 0 && tasks.isEmpty()) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        selector.selectNow();
+                    }
+                }
+
+                Runnable task;
+                while((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                long now = System.nanoTime();
+                while(!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                    timers.poll().task.run();
+                }
+
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if(key.isValid()) {
+                        ((Selectable) key.attachment()).ready(key);
+                    }
+                }
+            } catch(IOException e) {
+                Log.error("client selector failed", e);
+            } catch(RuntimeException e) {
+                Log.error("client selector failed", e);
+            }
+        }
+    }
+
+    /** A task scheduled to run at a given time. */
+    private static class Scheduled implements Comparable<Scheduled> {
+        final long deadline;
+        final Runnable task;
+
+        Scheduled(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Scheduled other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    /** A response being read from a connection that carries one call at a
+        time. */
+    private class PendingResponse implements Selectable {
+        private final Connection connection;
+        private final Protocol.Frame request;
+        private final ResponseHandler handler;
+        private final ByteBuffer header;
+        private ByteBuffer payload;
+        private Protocol.Frame response;
+        private IOException error;
+        private boolean started = false;
+        /** Set if the skeleton closed the connection before answering. */
+        private boolean unanswered = false;
+
+        PendingResponse(Connection connection, Protocol.Frame request,
+                        ResponseHandler handler) {
+            this.connection = connection;
+            this.request = request;
+            this.handler = handler;
+            this.header = ByteBuffer.allocate(
+                Protocol.headerLength(connection.version()));
+        }
+
+        /** Registers the connection's channel with the selector. */
+        void register() {
+            SocketChannel channel = connection.channel();
+
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, this);
+            } catch(IOException e) {
+                handler.failed(e, false);
+            } catch(RuntimeException e) {
+                handler.failed(new IOException("cannot wait for response", e),
+                               false);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            if(read()) {
+                key.cancel();
+                finished.add(this);
+            }
+        }
+
+        /** Reads the bytes available.
+
+            @return <code>true</code> if the response is complete or has
+                    failed.
+         */
+        private boolean read() {
+            SocketChannel channel = connection.channel();
+
+            try {
+                while(true) {
+                    if(response != null) {
+                        payload = Protocol.growPayload(payload, response);
+                    }
+                    ByteBuffer target = response == null ? header : payload;
+
+                    if(target.hasRemaining()) {
+                        int count = channel.read(target);
+                        if(count < 0) {
+                            unanswered = !started;
+                            throw new IOException("connection closed by " +
+                                                  "skeleton");
+                        }
+                        if(count == 0) {
+                            return false;
+                        }
+                        started = true;
+                        if(target.hasRemaining()) {
+                            continue;
+                        }
+                    }
+                    if(response != null &&
+                       payload.position() < response.length) {
+                        continue;
+                    }
+
+                    if(response == null) {
+                        header.flip();
+                        response = Protocol.parseHeader(header,
+                                                        connection.version());
+                        payload = Protocol.newPayload(response);
+                    } else {
+                        response.payload = payload.array();
+                        if(Protocol.receive(response,
+                                            connection.capabilities(),
+                                            connection.incoming())) {
+                            response = null;
+                            header.clear();
+                            continue;
+                        }
+                        connection.checkResponse(request, response);
+                        return true;
+                    }
+                }
+            } catch(IOException e) {
+                error = e;
+                return true;
+            }
+        }
+
+        /** Returns the channel to blocking mode and notifies the handler.
+            Called once the channel has been deregistered. */
+        void finish() {
+            if(error == null) {
+                try {
+                    connection.channel().configureBlocking(true);
+                } catch(IOException e) {
+                    error = e;
+                }
+            }
+
+            if(error != null) {
+                handler.failed(error, unanswered);
+            } else {
+                handler.completed(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Encoding of the arguments and results of remote calls.
+
+    <p>
+    Stubs and skeletons agree on a codec when a connection is opened: the
+    skeleton names the codec selected for its remote interface, and a stub
+    that has selected a codec of the same name encodes its arguments with it,
+    and receives results encoded with it. Otherwise both sides fall back to
+    Java serialization, the codec <code>Codecs.JAVA</code>, which is also
+    used for exceptions raised by remote methods and for stubs and skeletons
+    speaking older versions of the protocol. Codecs are selected per remote
+    interface through <code>Codecs.select</code>, without changes to the
+    interface itself.
+
+    <p>
+    A codec writes and reads the values of one request or response at a time:
+    all the arguments of a call, or its result alone. It is given the
+    declared types of the values, the parameter types or return type of the
+    method, which it may use to make its encoding more compact. Values are
+    read from streams over complete payloads, held in memory. Codecs are
+    shared by every thread, and must be thread-safe.
+ */
+public interface Codec
+{
+    /** Returns the name by which stubs and skeletons agree on the codec. */
+    String name();
+
+    /** Writes values to a stream, without closing it.
+
+        @param out The stream.
+        @param types The declared types of the values, as many as there are
+                     values.
+        @param values The values.
+        @throws IOException If a value cannot be encoded by this codec, or
+                            the stream cannot be written.
+     */
+    void write(OutputStream out, Class<?>[] types, Object[] values)
+        throws IOException;
+
+    /** Reads values written by <code>write</code> with the same declared
+        types.
+
+        @param in The stream.
+        @param types The declared types of the values. An element is
+                     <code>null</code> if the type is not known, in which
+                     case the value is read as an <code>Object</code>.
+        @return The values, as many as there are types.
+        @throws IOException If the values cannot be read or are invalid.
+        @throws ClassNotFoundException If the values refer to a class that
+                                       cannot be loaded.
+     */
+    Object[] read(InputStream in, Class<?>[] types)
+        throws IOException, ClassNotFoundException;
+}
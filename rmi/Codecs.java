@@ -0,0 +1,59 @@
+package rmi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The codecs selected for remote interfaces.
+
+    <p>
+    Two codecs are built in. <code>JAVA</code> writes values with Java
+    serialization, and is selected for every interface unless another codec
+    is. <code>BINARY</code> writes a compact binary form of primitives,
+    strings, enumeration constants, records, arrays, lists, sets and maps,
+    and nothing else. Values need not be serializable, but lists, sets and
+    maps arrive as <code>ArrayList</code>, <code>LinkedHashSet</code> and
+    <code>LinkedHashMap</code>, so remote interfaces should declare them by
+    their interfaces. The binary codec does not preserve shared references.
+
+    <p>
+    A selection applies to the stubs and skeletons for the interface created
+    after it in this virtual machine. Both sides of a call must select codecs
+    of the same name for the codec to be used; otherwise calls fall back to
+    Java serialization.
+ */
+public final class Codecs
+{
+    /** Codec writing values with Java serialization. */
+    public static final Codec JAVA = new SerializationCodec();
+    /** Codec writing a compact binary form of common value types. */
+    public static final Codec BINARY = new BinaryCodec();
+
+    private static final Map<Class<?>, Codec> selected =
+        new ConcurrentHashMap<Class<?>, Codec>();
+
+    private Codecs()
+    {
+    }
+
+    /** Selects the codec used by stubs and skeletons for a remote interface.
+
+        @param remoteInterface The remote interface.
+        @param codec The codec.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    public static void select(Class<?> remoteInterface, Codec codec)
+    {
+        if(remoteInterface == null || codec == null)
+            throw new NullPointerException();
+
+        selected.put(remoteInterface, codec);
+    }
+
+    /** Returns the codec selected for a remote interface, which is
+        <code>JAVA</code> unless another codec has been selected. */
+    public static Codec selected(Class<?> remoteInterface)
+    {
+        Codec codec = selected.get(remoteInterface);
+        return codec == null ? JAVA : codec;
+    }
+}
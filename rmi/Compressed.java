@@ -0,0 +1,33 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Includes methods of a remote interface in, or excludes them from, the
+    compression of their payloads.
+
+    <p>
+    When a compressor is selected for a remote interface through
+    <code>Compressors.select</code>, the requests and responses of every
+    method are compressed once their payloads reach the threshold. A method
+    annotated <code>@Compressed(false)</code> is never compressed, whatever
+    the length of its payloads. An interface annotated
+    <code>@Compressed(false)</code> compresses only its methods annotated
+    <code>@Compressed</code>. A method annotation takes precedence over that
+    of the interface declaring the method.
+
+    <p>
+    The annotation has no effect when no compressor is selected for the
+    interface, or when the skeleton does not accept compressed payloads.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Compressed
+{
+    /** Whether the payloads are compressed. */
+    boolean value() default true;
+}
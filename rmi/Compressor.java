@@ -0,0 +1,54 @@
+package rmi;
+
+import java.io.IOException;
+
+/** Compression of the payloads of remote calls.
+
+    <p>
+    A compressor is selected for a remote interface through
+    <code>Compressors.select</code>, together with a threshold. Stubs and
+    skeletons for the interface then compress the requests and responses of
+    its calls whose payloads are at least that long, unless the method is
+    excluded with <code>Compressed</code>, and send them compressed only if
+    that makes them shorter. A compressed payload names its compressor, and
+    is decompressed by the side receiving it with the compressor of that
+    name: the built-in compressors are known to every stub and skeleton, and
+    others to those in a virtual machine in which they have been selected.
+
+    <p>
+    A compressor works on one complete payload at a time, held in memory.
+    Compressors are shared by every thread, and must be thread-safe.
+ */
+public interface Compressor
+{
+    /** Returns the name by which the side receiving a compressed payload
+        finds the compressor. Compressors of the same name must read each
+        other's output. */
+    String name();
+
+    /** Compresses bytes.
+
+        @param bytes The bytes.
+        @return The compressed bytes.
+        @throws IOException If the bytes cannot be compressed.
+     */
+    byte[] compress(byte[] bytes) throws IOException;
+
+    /** Decompresses bytes written by <code>compress</code>.
+
+        @param bytes An array holding the compressed bytes.
+        @param offset The position of the compressed bytes in the array.
+        @param length The number of compressed bytes.
+        @param decompressedLength The number of bytes that were compressed,
+                                  as declared by the sender. It is not to be
+                                  trusted: the output should grow only as
+                                  bytes are decompressed, and exceeding it is
+                                  an error.
+        @return The bytes that were compressed.
+        @throws IOException If the bytes are invalid, or do not decompress to
+                            <code>decompressedLength</code> bytes.
+     */
+    byte[] decompress(byte[] bytes, int offset, int length,
+                      int decompressedLength)
+        throws IOException;
+}
@@ -0,0 +1,163 @@
+package rmi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/** The compressors selected for remote interfaces.
+
+    <p>
+    The built-in compressors write the DEFLATE format through
+    <code>java.util.zip.Deflater</code>, at the level of their choice.
+    <code>DEFLATE_FASTEST</code> suits payloads sent over fast networks,
+    <code>DEFLATE_BEST</code> payloads sent over slow ones, and
+    <code>DEFLATE</code> lies between the two; <code>deflate</code> returns
+    a compressor for any other level. They all have the name
+    <code>"deflate"</code>, and decompress each other's output.
+
+    <p>
+    No compressor is selected for an interface until one is. A selection
+    applies to the stubs and skeletons for the interface created after it in
+    this virtual machine, each of which compresses the payloads it sends. A
+    compressor other than the built-in ones must also be selected, for some
+    interface, in the virtual machine receiving its payloads.
+
+    <p>
+    Compression costs time on both sides of a call, and pays only for large
+    payloads that compress well, such as collections of strings. Payloads
+    shorter than the threshold given with the selection are never
+    compressed, so small calls are left as they are, and methods may be
+    excluded with <code>Compressed</code>.
+ */
+public final class Compressors
+{
+    /** Threshold used when none is given, in bytes. */
+    public static final int         DEFAULT_THRESHOLD = 4096;
+
+    /** Compressor writing the DEFLATE format at its fastest level. */
+    public static final Compressor  DEFLATE_FASTEST =
+        new DeflateCompressor(Deflater.BEST_SPEED);
+    /** Compressor writing the DEFLATE format at its default level. */
+    public static final Compressor  DEFLATE =
+        new DeflateCompressor(Deflater.DEFAULT_COMPRESSION);
+    /** Compressor writing the DEFLATE format at its smallest output. */
+    public static final Compressor  DEFLATE_BEST =
+        new DeflateCompressor(Deflater.BEST_COMPRESSION);
+
+    private static final Map<Class<?>, Selection>   selected =
+        new ConcurrentHashMap<Class<?>, Selection>();
+    private static final Map<String, Compressor>    named =
+        new ConcurrentHashMap<String, Compressor>();
+
+    static
+    {
+        named.put(DEFLATE.name(), DEFLATE);
+    }
+
+    private Compressors()
+    {
+    }
+
+    /** Returns a compressor writing the DEFLATE format at the given level.
+
+        @param level A level from <code>Deflater.BEST_SPEED</code> to
+                     <code>Deflater.BEST_COMPRESSION</code>, or
+                     <code>Deflater.DEFAULT_COMPRESSION</code>.
+        @throws IllegalArgumentException If the level is not valid.
+     */
+    public static Compressor deflate(int level)
+    {
+        if(level != Deflater.DEFAULT_COMPRESSION &&
+           (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION))
+        {
+            throw new IllegalArgumentException("invalid deflate level " +
+                                               level);
+        }
+
+        return new DeflateCompressor(level);
+    }
+
+    /** Selects the compressor used by stubs and skeletons for a remote
+        interface, for payloads of at least <code>DEFAULT_THRESHOLD</code>
+        bytes.
+
+        @param remoteInterface The remote interface.
+        @param compressor The compressor.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    public static void select(Class<?> remoteInterface, Compressor compressor)
+    {
+        select(remoteInterface, compressor, DEFAULT_THRESHOLD);
+    }
+
+    /** Selects the compressor used by stubs and skeletons for a remote
+        interface.
+
+        @param remoteInterface The remote interface.
+        @param compressor The compressor.
+        @param threshold The length, in bytes, from which payloads are
+                         compressed.
+        @throws NullPointerException If either object argument is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If the threshold is negative.
+     */
+    public static void select(Class<?> remoteInterface, Compressor compressor,
+                              int threshold)
+    {
+        if(remoteInterface == null || compressor == null)
+            throw new NullPointerException();
+
+        if(threshold < 0)
+            throw new IllegalArgumentException("negative threshold");
+
+        named.put(compressor.name(), compressor);
+        selected.put(remoteInterface, new Selection(compressor, threshold));
+    }
+
+    /** Removes the compressor selected for a remote interface, so that
+        stubs and skeletons created after this leave its payloads
+        uncompressed.
+
+        @param remoteInterface The remote interface.
+     */
+    public static void deselect(Class<?> remoteInterface)
+    {
+        selected.remove(remoteInterface);
+    }
+
+    /** Returns the compressor selected for a remote interface, or
+        <code>null</code> if there is none. */
+    public static Compressor selected(Class<?> remoteInterface)
+    {
+        Selection selection = selected.get(remoteInterface);
+        return selection == null ? null : selection.compressor;
+    }
+
+    /** Returns the length from which payloads are compressed for a remote
+        interface, if a compressor is selected for it. */
+    public static int threshold(Class<?> remoteInterface)
+    {
+        Selection selection = selected.get(remoteInterface);
+        return selection == null ? DEFAULT_THRESHOLD : selection.threshold;
+    }
+
+    /** Returns the compressor of the given name, or <code>null</code> if it
+        is not known in this virtual machine. */
+    static Compressor named(String name)
+    {
+        return named.get(name);
+    }
+
+    /** A compressor selected for an interface, and its threshold. */
+    private static class Selection
+    {
+        final Compressor    compressor;
+        final int           threshold;
+
+        Selection(Compressor compressor, int threshold)
+        {
+            this.compressor = compressor;
+            this.threshold = threshold;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Client-side connection to a skeleton.
+
+    <p>
+    A connection owns a connected socket together with the buffered streams
+    layered on top of it. The keep-alive preface described in
+    <code>Protocol</code> is exchanged once, when the connection is opened, so
+    that a connection taken from a <code>ConnectionPool</code> can carry any
+    number of calls without repeating the TCP handshake.
+
+    <p>
+    A connection is made either over TCP or over a Unix domain socket. The
+    skeleton may advertise a domain socket in its answer to the preface. The
+    advertised socket is returned by <code>unixSocket</code> only when the
+    skeleton was reached over TCP at an address of this host, since the path
+    names a file on the skeleton's host.
+
+    <p>
+    A connection to a <code>SharedMemoryAddress</code> is carried by a
+    <code>SharedMemoryChannel</code> instead of a socket. It has no socket
+    channel, and is never multiplexed.
+
+    <p>
+    When the skeleton agrees to <code>CAP_DESCRIPTORS</code>, the connection
+    keeps the class descriptors defined on it in each direction, as described
+    in <code>ClassDescriptors</code>. Setting the system property
+    <code>rmi.pool.classDescriptors</code> to <code>false</code> keeps the
+    capability from being offered, so that every payload carries its own
+    descriptors. Setting <code>rmi.pool.primitives</code> to
+    <code>false</code> likewise keeps <code>CAP_PRIMITIVES</code> from being
+    offered, so that values of primitive and string types are serialized as
+    objects, and setting <code>rmi.pool.segments</code> to <code>false</code>
+    keeps <code>CAP_SEGMENTS</code> from being offered, so that byte arrays
+    are serialized and byte buffers cannot be sent. Setting
+    <code>rmi.pool.compression</code> to <code>false</code> keeps
+    <code>CAP_COMPRESSION</code> from being offered, so that no payload is
+    compressed in either direction.
+
+    <p>
+    A connection is used by at most one call at a time. It is not thread-safe.
+ */
+class Connection {
+    /** Capabilities offered to skeletons. */
+    private static final int offered = Protocol.CAPABILITIES &
+        ~("false".equals(System.getProperty("rmi.pool.classDescriptors"))
+          ? Protocol.CAP_DESCRIPTORS : 0) &
+        ~("false".equals(System.getProperty("rmi.pool.primitives"))
+          ? Protocol.CAP_PRIMITIVES : 0) &
+        ~("false".equals(System.getProperty("rmi.pool.segments"))
+          ? Protocol.CAP_SEGMENTS : 0) &
+        ~("false".equals(System.getProperty("rmi.pool.compression"))
+          ? Protocol.CAP_COMPRESSION : 0);
+
+    private final SocketChannel channel;
+    private final SharedMemoryChannel sharedMemory;
+    private final DataOutputStream ostream;
+    private final DataInputStream istream;
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    private final int version;
+    private final int capabilities;
+    private final long fingerprint;
+    private final UnixDomainSocketAddress unixSocket;
+    private final String codec;
+    private final ClassDescriptors.Outgoing outgoing;
+    private final ClassDescriptors.Incoming incoming;
+    private int nextRequestId = 0;
+    private long lastUsed;
+    private boolean reused = false;
+    /** Whether the last exchange failed where the skeleton cannot have
+        run the call. */
+    private boolean unsent = false;
+    private volatile Streams streams;
+
+    private Connection(SocketChannel channel,
+                       SharedMemoryChannel sharedMemory) throws IOException {
+        this.channel = channel;
+        this.sharedMemory = sharedMemory;
+
+        SocketAddress peer = channel == null ? null
+                           : channel.getRemoteAddress();
+        InputStream in;
+        OutputStream out;
+        if(sharedMemory != null) {
+            in = sharedMemory.inputStream();
+            out = sharedMemory.outputStream();
+        } else if(peer instanceof InetSocketAddress) {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        } else {
+            in = Channels.newInputStream(channel);
+            out = Channels.newOutputStream(channel);
+        }
+        ostream = new DataOutputStream(new BufferedOutputStream(out));
+        istream = new DataInputStream(new BufferedInputStream(in));
+
+        ostream.writeInt(Protocol.MAGIC);
+        ostream.writeInt(Protocol.VERSION);
+        ostream.writeInt(offered);
+        ostream.flush();
+
+        if(istream.readInt() != Protocol.MAGIC) {
+            throw new IOException("skeleton does not accept keep-alive " +
+                                  "connections");
+        }
+        version = istream.readInt();
+        if(version < Protocol.MIN_VERSION || version > Protocol.VERSION) {
+            throw new IOException("skeleton answered with unsupported " +
+                                  "protocol version " + version);
+        }
+        capabilities = version >= 2 ? istream.readInt() : 0;
+        if((capabilities & Protocol.CAP_METHOD_IDS) != 0) {
+            fingerprint = istream.readLong();
+        } else {
+            fingerprint = 0;
+        }
+        if((capabilities & Protocol.CAP_UNIX_SOCKET) != 0) {
+            String path = istream.readUTF();
+            unixSocket = isLocal(peer) ? UnixDomainSocketAddress.of(path)
+                                       : null;
+        } else {
+            unixSocket = null;
+        }
+        codec = (capabilities & Protocol.CAP_CODEC) != 0 ? istream.readUTF()
+                                                         : null;
+        if((capabilities & Protocol.CAP_DESCRIPTORS) != 0) {
+            outgoing = new ClassDescriptors.Outgoing();
+            incoming = new ClassDescriptors.Incoming();
+        } else {
+            outgoing = null;
+            incoming = null;
+        }
+
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /** Opens a new connection to the given address.
+
+        @param address The address of the skeleton: an
+                       <code>InetSocketAddress</code>, a
+                       <code>UnixDomainSocketAddress</code> or a
+                       <code>SharedMemoryAddress</code>.
+        @return The connection.
+        @throws IOException If the connection cannot be established.
+     */
+    static Connection open(SocketAddress address) throws IOException {
+        if(address instanceof SharedMemoryAddress) {
+            SharedMemoryChannel sharedMemory = SharedMemoryChannel.connect(
+                ((SharedMemoryAddress) address).getPath());
+
+            try {
+                return new Connection(null, sharedMemory);
+            } catch(IOException e) {
+                sharedMemory.close();
+                throw e;
+            }
+        }
+
+        SocketChannel channel = SocketChannel.open(address);
+
+        try {
+            return new Connection(channel, null);
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the largest number of connections that may be open to the
+        skeleton at once: the number of channels of a shared-memory file, and
+        no limit for sockets. */
+    int limit() {
+        return sharedMemory != null ? sharedMemory.channels()
+                                    : Integer.MAX_VALUE;
+    }
+
+    /** Returns the protocol version agreed with the skeleton. */
+    int version() {
+        return version;
+    }
+
+    /** Returns the optional capabilities agreed with the skeleton. */
+    int capabilities() {
+        return capabilities;
+    }
+
+    /** Returns <code>true</code> if the skeleton accepts several requests at
+        once on this connection. */
+    boolean multiplexes() {
+        return (capabilities & Protocol.CAP_MULTIPLEX) != 0;
+    }
+
+    /** Returns <code>true</code> if the skeleton accepts batches of calls. */
+    boolean batches() {
+        return (capabilities & Protocol.CAP_BATCH) != 0;
+    }
+
+    /** Returns <code>true</code> if the skeleton accepts requests that are
+        not answered. */
+    boolean acceptsOneWay() {
+        return (capabilities & Protocol.CAP_ONE_WAY) != 0;
+    }
+
+    /** Returns the Unix domain socket on which the skeleton also listens, or
+        <code>null</code> if it has none or is on another host. */
+    UnixDomainSocketAddress unixSocket() {
+        return unixSocket;
+    }
+
+    /** Returns <code>true</code> if the skeleton accepts arguments encoded
+        with the given codec: that is, if the codec is
+        <code>Codecs.JAVA</code>, or has the name of the skeleton's codec. */
+    boolean accepts(Codec codec) {
+        return codec == Codecs.JAVA || codec.name().equals(this.codec);
+    }
+
+    /** Returns the definitions frame to be written just before the given
+        frame, or <code>null</code> if there is none. The frames must be
+        written in the order in which this method is called for them. */
+    Protocol.Frame definitions(Protocol.Frame frame) throws IOException {
+        return outgoing == null ? null : outgoing.definitions(frame);
+    }
+
+    /** Returns the class descriptors defined by the skeleton, or
+        <code>null</code> if payloads on this connection do not refer to
+        them. */
+    ClassDescriptors.Incoming incoming() {
+        return incoming;
+    }
+
+    /** Returns the streams of the calls carried by this connection, or
+        <code>null</code> if it does not carry streams. Only a connection
+        taken over by a <code>MultiplexedConnection</code>, with a skeleton
+        that agreed to <code>CAP_STREAMS</code>, carries them. */
+    Streams streams() {
+        return streams;
+    }
+
+    /** Sets the streams of the calls carried by this connection. */
+    void setStreams(Streams streams) {
+        this.streams = streams;
+    }
+
+    /** Returns <code>true</code> if the skeleton accepts method identifiers
+        for the interface with the given method table: that is, if it supports
+        them and its interface has the same fingerprint. */
+    boolean acceptsMethodIds(MethodTable table) {
+        return (capabilities & Protocol.CAP_METHOD_IDS) != 0 &&
+               fingerprint == table.fingerprint();
+    }
+
+    /** Sends a request frame and waits for the response frame. The request
+        is given the next request identifier of this connection.
+
+        @param request The request frame.
+        @return The response frame.
+        @throws IOException If the exchange fails. If it fails where the
+                            skeleton cannot have run the call,
+                            <code>unsent</code> returns <code>true</code>
+                            afterwards.
+     */
+    Protocol.Frame exchange(Protocol.Frame request) throws IOException {
+        send(request);
+
+        // A skeleton closing a connection that sat idle does so without
+        // reading the request, and the stub sees the end of the stream at
+        // once. A reset or a timeout may come after the call has run.
+        int first = istream.read();
+        if(first < 0) {
+            unsent = true;
+            throw new IOException("connection closed by skeleton");
+        }
+
+        Protocol.Frame response =
+            Protocol.readFrame(istream, version, first, capabilities,
+                               incoming);
+        checkResponse(request, response);
+        return response;
+    }
+
+    /** Sends a request frame without waiting for the response. The request is
+        given the next request identifier of this connection. The response is
+        read by the caller, directly from the channel.
+
+        @param request The request frame.
+        @throws IOException If the request cannot be sent.
+     */
+    void send(Protocol.Frame request) throws IOException {
+        if(request.streamValues != null) {
+            throw new IOException("streams are carried only by shared " +
+                                  "connections");
+        }
+        request.requestId = nextRequestId++;
+        unsent = true;
+        Protocol.appendFrame(ostream, version, request, outgoing);
+        ostream.flush();
+        unsent = false;
+    }
+
+    /** Checks that a response answers the given request. Version 1 frames do
+        not carry request identifiers, so any response matches.
+
+        @throws IOException If the response answers another request.
+     */
+    void checkResponse(Protocol.Frame request, Protocol.Frame response)
+        throws IOException {
+        if(version >= 2 && response.requestId != request.requestId) {
+            throw new IOException("response to request " +
+                                  response.requestId + " received for " +
+                                  "request " + request.requestId);
+        }
+    }
+
+    /** Returns the channel of this connection, or <code>null</code> if it is
+        carried by shared memory. */
+    SocketChannel channel() {
+        return channel;
+    }
+
+    /** Returns <code>true</code> if the last call to <code>send</code> or
+        <code>exchange</code> failed before the request was written in full,
+        or because the skeleton closed the connection without answering it.
+        The skeleton cannot have run the call then, and it may be sent again
+        on another connection. */
+    boolean unsent() {
+        return unsent;
+    }
+
+    /** Returns <code>true</code> if this connection has already carried at
+        least one call before the current one. */
+    boolean isReused() {
+        return reused;
+    }
+
+    /** Records that a call has completed on this connection. Calls made after
+        this point see the connection as reused. */
+    void touch() {
+        reused = true;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /** Returns the time, in milliseconds, at which the last call on this
+        connection completed. */
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    /** Checks whether the connection can carry another call.
+
+        <p>
+        The check is non-blocking. A connection is unhealthy if it has been
+        closed locally, if it has unread data left over from a previous call, or
+        if the peer has closed its end of the connection.
+
+        @return <code>true</code> if the connection appears usable.
+     */
+    boolean isHealthy() {
+        if(sharedMemory != null) {
+            try {
+                return sharedMemory.isOpen() && istream.available() == 0;
+            } catch(IOException e) {
+                return false;
+            }
+        }
+        if(!channel.isOpen()) {
+            return false;
+        }
+
+        try {
+            if(istream.available() > 0) {
+                return false;
+            }
+
+            probe.clear();
+            channel.configureBlocking(false);
+            try {
+                return channel.read(probe) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /** Returns <code>true</code> if the given peer is reached over TCP at an
+        address of this host. */
+    private static boolean isLocal(SocketAddress peer) {
+        if(!(peer instanceof InetSocketAddress)) {
+            return false;
+        }
+
+        InetAddress host = ((InetSocketAddress) peer).getAddress();
+        if(host == null) {
+            return false;
+        }
+        if(host.isLoopbackAddress() || host.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(host) != null;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /** Closes the connection, ignoring any errors. */
+    void close() {
+        if(sharedMemory != null) {
+            sharedMemory.close();
+            return;
+        }
+        try {
+            channel.close();
+        } catch(IOException e) { }
+    }
+}
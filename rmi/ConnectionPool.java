@@ -0,0 +1,518 @@
+package rmi;
+
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Pool of client connections to a single skeleton address.
+
+    <p>
+    One pool exists per address, and it is shared by all stubs that carry that
+    address. The pool is forgotten once it has no connections open and no
+    stub refers to it any longer. Idle connections are kept in last-in,
+    first-out order, so that steady-state calls reuse the most recently used
+    (warmest) connection and surplus connections age out at the tail.
+
+    <p>
+    The pool limits the number of connections open at once to
+    <code>maxConnections</code>; callers that find the limit reached wait for a
+    connection to be released. The limit is lowered to the number of channels
+    for a skeleton listening on shared memory. At most <code>maxIdle</code>
+    connections are kept open while not in use. Idle connections are checked
+    for health before being handed out, and are closed by a background timer
+    after they have been idle for longer than <code>idleTimeout</code>
+    milliseconds. Changing the limits wakes every caller waiting for room.
+
+    <p>
+    When the skeleton supports it, the pool also keeps a single
+    <code>MultiplexedConnection</code>, which carries any number of calls at
+    once. Stubs prefer it to the connections above, which are then used only
+    for skeletons that cannot multiplex, or when multiplexing is disabled. The
+    multiplexed connection is closed by the same timer once it has been idle
+    for longer than <code>idleTimeout</code>, and does not count towards
+    <code>maxConnections</code>. Requests on the multiplexed connection may be
+    held back for up to <code>coalesceDelay</code> microseconds, so that many
+    small requests are written with one system call.
+
+    <p>
+    A skeleton on this host may advertise a Unix domain socket when a
+    connection is opened to it over TCP. Connections opened after that are
+    opened on the domain socket instead, until opening one there fails, in
+    which case the pool returns to TCP. Setting the system property
+    <code>rmi.pool.unixSockets</code> to <code>false</code> keeps every
+    connection on TCP.
+
+    <p>
+    The defaults may be given with the system properties
+    <code>rmi.pool.maxConnections</code>, <code>rmi.pool.maxIdle</code>,
+    <code>rmi.pool.idleTimeout</code>, <code>rmi.pool.multiplex</code> and
+    <code>rmi.pool.coalesceDelay</code>, and changed at run time through
+    <code>Stub.setPoolLimits</code>, <code>Stub.setPoolIdleTimeout</code>,
+    <code>Stub.setMultiplexing</code> and <code>Stub.setWriteCoalescing</code>.
+ */
+class ConnectionPool {
+    /** Pools by address. Each is held weakly, and strongly only while it
+        has connections open, so that pools no stub refers to are collected
+        once their connections have been closed. */
+    private static final ConcurrentHashMap<SocketAddress, Entry> pools =
+        new ConcurrentHashMap<SocketAddress, Entry>();
+    /** Entries of pools that have been collected. */
+    private static final ReferenceQueue<ConnectionPool> collected =
+        new ReferenceQueue<ConnectionPool>();
+
+    private static volatile int maxConnections =
+        Integer.getInteger("rmi.pool.maxConnections", 64);
+    private static volatile int maxIdle =
+        Integer.getInteger("rmi.pool.maxIdle", 8);
+    private static volatile long idleTimeout =
+        Long.getLong("rmi.pool.idleTimeout", 30000L);
+
+    private static volatile boolean multiplexing =
+        !"false".equals(System.getProperty("rmi.pool.multiplex"));
+    /** Longest time, in microseconds, that requests may be held back to be
+        written together. */
+    static final long MAX_COALESCE_DELAY = 1000L;
+    private static volatile long coalesceDelay = Math.max(0L,
+        Math.min(MAX_COALESCE_DELAY,
+                 Long.getLong("rmi.pool.coalesceDelay", 0L)));
+
+    private static final boolean unixSockets =
+        !"false".equals(System.getProperty("rmi.pool.unixSockets"));
+
+    private static Timer evictor;
+    /** The task closing idle connections, scheduled on
+        <code>evictor</code> at a period derived from the idle timeout. */
+    private static TimerTask eviction;
+
+    private final SocketAddress address;
+    private final Entry entry;
+    /** Unix domain socket advertised by the skeleton, on which new
+        connections are opened, or <code>null</code> to use
+        <code>address</code>. */
+    private volatile UnixDomainSocketAddress unixSocket;
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    private int open = 0;
+    /** Largest number of connections the skeleton accepts at once, as told
+        by the last connection opened. */
+    private volatile int limit = Integer.MAX_VALUE;
+
+    /** The multiplexed connection, and whether the skeleton was last found
+        unable to multiplex. Opening the connection is guarded by
+        <code>sharedLock</code>. */
+    private final Object sharedLock = new Object();
+    private volatile MultiplexedConnection shared;
+    private volatile boolean exclusiveOnly = false;
+
+    private ConnectionPool(SocketAddress address) {
+        this.address = address;
+        this.entry = new Entry(this);
+    }
+
+    /** Returns the pool for the given address, creating it if necessary. */
+    static ConnectionPool get(SocketAddress address) {
+        expunge();
+
+        while(true) {
+            Entry existing = pools.get(address);
+            ConnectionPool pool = existing == null ? null : existing.get();
+            if(pool != null) {
+                return pool;
+            }
+
+            pool = new ConnectionPool(address);
+            boolean added = existing == null ?
+                pools.putIfAbsent(address, pool.entry) == null :
+                pools.replace(address, existing, pool.entry);
+            if(added) {
+                startEvictor();
+                return pool;
+            }
+        }
+    }
+
+    /** Removes the entries of pools that have been collected. */
+    private static void expunge() {
+        Entry entry;
+        while((entry = (Entry)collected.poll()) != null) {
+            pools.remove(entry.address, entry);
+        }
+    }
+
+    /** Sets the connection limits applied to every pool.
+
+        @param connections Maximum number of connections open to one address.
+        @param idleConnections Maximum number of idle connections kept open to
+                               one address.
+        @throws IllegalArgumentException If <code>connections</code> is not
+                                         positive or
+                                         <code>idleConnections</code> is
+                                         negative.
+     */
+    static void setLimits(int connections, int idleConnections) {
+        if(connections <= 0 || idleConnections < 0) {
+            throw new IllegalArgumentException("invalid pool limits");
+        }
+
+        maxConnections = connections;
+        maxIdle = idleConnections;
+
+        for(Entry entry : pools.values()) {
+            ConnectionPool pool = entry.get();
+            if(pool != null) {
+                pool.limitsChanged();
+            }
+        }
+    }
+
+    /** Sets the time after which idle connections are closed.
+
+        @param millis Idle timeout in milliseconds.
+        @throws IllegalArgumentException If <code>millis</code> is not
+                                         positive.
+     */
+    static void setIdleTimeout(long millis) {
+        if(millis <= 0) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+
+        idleTimeout = millis;
+        scheduleEviction();
+    }
+
+    /** Enables or disables multiplexed connections for calls made from now
+        on. Multiplexed connections already open are closed once idle. */
+    static void setMultiplexing(boolean enabled) {
+        multiplexing = enabled;
+    }
+
+    /** Sets the time for which requests sent on multiplexed connections are
+        held back, so that requests made close together are written together.
+
+        @param micros Delay in microseconds, or <code>0</code> to write every
+                      request as soon as it is made.
+        @throws IllegalArgumentException If <code>micros</code> is negative
+                                         or greater than
+                                         <code>MAX_COALESCE_DELAY</code>.
+     */
+    static void setCoalesceDelay(long micros) {
+        if(micros < 0 || micros > MAX_COALESCE_DELAY) {
+            throw new IllegalArgumentException("invalid coalescing delay");
+        }
+
+        coalesceDelay = micros;
+    }
+
+    /** Returns the coalescing delay in nanoseconds. */
+    static long coalesceDelay() {
+        return coalesceDelay * 1000L;
+    }
+
+    /** Returns the multiplexed connection to the skeleton, opening it if
+        necessary.
+
+        @return The connection, or <code>null</code> if multiplexing is
+                disabled or the skeleton does not support it. In that case,
+                calls use connections obtained with <code>acquire</code>.
+        @throws IOException If a new connection cannot be opened.
+     */
+    MultiplexedConnection shared() throws IOException {
+        MultiplexedConnection connection = shared;
+        if(connection != null && connection.isHealthy()) {
+            return connection;
+        }
+        if(!multiplexing || exclusiveOnly) {
+            return null;
+        }
+
+        synchronized(sharedLock) {
+            connection = shared;
+            if(connection != null && connection.isOpen()) {
+                return connection;
+            }
+            if(exclusiveOnly) {
+                return null;
+            }
+
+            Connection opened = connect();
+            if(!opened.multiplexes()) {
+                // The connection is still good for calls made one at a time.
+                exclusiveOnly = true;
+                synchronized(this) {
+                    if(idle.size() < maxIdle && hasRoom()) {
+                        ++open;
+                        pin();
+                        idle.addFirst(opened);
+                        notify();
+                        return null;
+                    }
+                }
+                opened.close();
+                return null;
+            }
+
+            connection = MultiplexedConnection.open(opened);
+            synchronized(this) {
+                shared = connection;
+                pin();
+            }
+            return connection;
+        }
+    }
+
+    /** Takes a connection from the pool, opening a new one if no healthy idle
+        connection is available.
+
+        @return A connection for the exclusive use of the caller. The caller
+                must pass it to either <code>release</code> or
+                <code>discard</code> when done.
+        @throws IOException If a new connection cannot be opened.
+     */
+    Connection acquire() throws IOException {
+        while(true) {
+            Connection connection;
+
+            synchronized(this) {
+                // Wait for either an idle connection or room for a new one.
+                while((connection = idle.pollFirst()) == null && !hasRoom()) {
+                    awaitChange();
+                }
+
+                if(connection == null) {
+                    ++open;
+                    pin();
+                }
+            }
+
+            if(connection == null) {
+                return openConnection();
+            }
+
+            if(connection.isHealthy()) {
+                return connection;
+            }
+
+            discard(connection);
+        }
+    }
+
+    /** Opens a fresh connection, bypassing any idle connections. Used to retry
+        a call that failed on a stale reused connection, once that connection
+        has been discarded. Like any other, the connection counts towards
+        <code>maxConnections</code>, and the caller waits for room if the
+        limit is reached.
+
+        @return A new connection for the exclusive use of the caller.
+        @throws IOException If the connection cannot be opened.
+     */
+    Connection acquireFresh() throws IOException {
+        synchronized(this) {
+            while(!hasRoom()) {
+                awaitChange();
+            }
+            ++open;
+            pin();
+        }
+
+        return openConnection();
+    }
+
+    /** Returns <code>true</code> if another connection may be opened.
+        Called with the pool's lock held. */
+    private boolean hasRoom() {
+        return open < Math.min(maxConnections, limit);
+    }
+
+    /** Keeps the pool while it has connections open, so that they are
+        closed by the eviction timer, and lets it be collected once it has
+        none. Called with the pool's lock held. */
+    private void pin() {
+        MultiplexedConnection multiplexed = shared;
+        boolean connected = open > 0 ||
+                            (multiplexed != null && multiplexed.isOpen());
+        entry.pinned = connected ? this : null;
+    }
+
+    /** Waits for a connection to be released or closed. Called with the
+        pool's lock held. */
+    private void awaitChange() throws IOException {
+        try {
+            wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a connection", e);
+        }
+    }
+
+    /** Returns a connection to the pool after a successful call. */
+    void release(Connection connection) {
+        connection.touch();
+
+        synchronized(this) {
+            if(idle.size() < maxIdle) {
+                idle.addFirst(connection);
+                notify();
+                return;
+            }
+        }
+
+        discard(connection);
+    }
+
+    /** Closes a connection that is broken or no longer needed. */
+    void discard(Connection connection) {
+        connection.close();
+
+        synchronized(this) {
+            --open;
+            pin();
+            notify();
+        }
+    }
+
+    private Connection openConnection() throws IOException {
+        try {
+            return connect();
+        } catch(IOException e) {
+            synchronized(this) {
+                --open;
+                pin();
+                notify();
+            }
+            throw e;
+        }
+    }
+
+    /** Opens a connection to the skeleton, on the Unix domain socket it
+        advertised if there is one, and at the pool's address otherwise. A
+        skeleton found unable to multiplex may have been restarted with
+        multiplexing since, so the pool multiplexes again once a new
+        connection agrees to it. */
+    private Connection connect() throws IOException {
+        Connection connection = open();
+        if(exclusiveOnly && connection.multiplexes()) {
+            exclusiveOnly = false;
+        }
+        return connection;
+    }
+
+    /** Opens a connection on the Unix domain socket advertised by the
+        skeleton if there is one, and at the pool's address otherwise. */
+    private Connection open() throws IOException {
+        UnixDomainSocketAddress route = unixSocket;
+        if(route != null) {
+            try {
+                return Connection.open(route);
+            } catch(IOException e) {
+                // The skeleton has stopped listening on the socket, perhaps
+                // to be restarted without it.
+                Log.debug("cannot connect to " + route, e);
+                unixSocket = null;
+            }
+        }
+
+        Connection connection = Connection.open(address);
+        limit = connection.limit();
+        if(unixSockets && connection.unixSocket() != null) {
+            unixSocket = connection.unixSocket();
+        }
+        return connection;
+    }
+
+    /** Closes idle connections above the idle limit, and those that have
+        been idle for longer than the idle timeout. */
+    private void trim() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+
+        MultiplexedConnection multiplexed = shared;
+        if(multiplexed != null) {
+            multiplexed.closeIfIdleSince(multiplexing ? deadline
+                                                      : Long.MAX_VALUE);
+        }
+
+        synchronized(this) {
+            Iterator<Connection> oldest = idle.descendingIterator();
+
+            while(oldest.hasNext()) {
+                Connection connection = oldest.next();
+
+                if(idle.size() > maxIdle ||
+                   connection.lastUsed() < deadline) {
+                    oldest.remove();
+                    connection.close();
+                    --open;
+                    notify();
+                } else {
+                    break;
+                }
+            }
+
+            pin();
+        }
+    }
+
+    /** Closes idle connections beyond the limits just set, and wakes every
+        caller waiting for room, which the limits may have made. */
+    private void limitsChanged() {
+        trim();
+
+        synchronized(this) {
+            notifyAll();
+        }
+    }
+
+    private static synchronized void startEvictor() {
+        if(evictor != null) {
+            return;
+        }
+
+        evictor = new Timer("rmi-pool-evictor", true);
+        scheduleEviction();
+    }
+
+    /** Schedules the task closing idle connections at a period derived from
+        the current idle timeout, replacing the task scheduled before, if
+        any. Does nothing until the evictor has been started. */
+    private static synchronized void scheduleEviction() {
+        if(evictor == null) {
+            return;
+        }
+        if(eviction != null) {
+            eviction.cancel();
+        }
+
+        long period = Math.max(1000L, idleTimeout / 2);
+        eviction = new TimerTask() {
+            @Override
+            public void run() {
+                for(Entry entry : pools.values()) {
+                    ConnectionPool pool = entry.get();
+                    if(pool != null) {
+                        pool.trim();
+                    }
+                }
+                expunge();
+            }
+        };
+        evictor.schedule(eviction, period, period);
+    }
+
+    /** Entry for a pool in <code>pools</code>. */
+    private static class Entry extends WeakReference<ConnectionPool> {
+        final SocketAddress address;
+        /** The pool while it has connections open, and <code>null</code>
+            otherwise. Guarded by the pool's lock. */
+        ConnectionPool pinned;
+
+        Entry(ConnectionPool pool) {
+            super(pool, collected);
+            this.address = pool.address;
+        }
+    }
+}
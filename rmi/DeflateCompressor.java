@@ -0,0 +1,123 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Compressor writing the DEFLATE format, in the zlib wrapper whose
+    checksum lets corrupt payloads be told from valid ones, through
+    <code>Deflater</code> at a given level.
+
+    <p>
+    Deflaters and inflaters hold native memory and are costly to create, so
+    each is reset and kept for the next payload once it has been used. At
+    most as many are kept as have been in use at once.
+ */
+class DeflateCompressor implements Compressor {
+    /** Largest ratio of decompressed to compressed length that the DEFLATE
+        format allows: a match of 258 bytes takes at least two bits. */
+    private static final int MAX_RATIO = 1032;
+
+    /** Inflaters kept for reuse, shared by every level. */
+    private static final ConcurrentLinkedQueue<Inflater> inflaters =
+        new ConcurrentLinkedQueue<Inflater>();
+
+    private final int level;
+    private final ConcurrentLinkedQueue<Deflater> deflaters =
+        new ConcurrentLinkedQueue<Deflater>();
+
+    DeflateCompressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes) {
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) {
+            deflater = new Deflater(level);
+        }
+
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            // Incompressible bytes grow by a few bytes per block; the
+            // output is rarely sent then, but is still produced whole.
+            byte[] output = new byte[bytes.length / 2 + 64];
+            int length = 0;
+            while(!deflater.finished()) {
+                if(length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length,
+                                           output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int length,
+                             int decompressedLength)
+        throws IOException {
+        // The length is declared by the peer: it is checked against what
+        // the compressed bytes can hold, and the output grows with what they
+        // actually decompress to, so that a short payload declaring a huge
+        // length costs no more than it holds.
+        if(decompressedLength > (long) length * MAX_RATIO) {
+            throw new IOException(length + " compressed bytes cannot " +
+                                  "decompress to " + decompressedLength);
+        }
+
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] output = new byte[(int) Math.min(decompressedLength,
+                                                    4L * length + 64)];
+            // Once the output is full, the checksum may still have to be
+            // read: a byte more of room tells it from excess output.
+            byte[] excess = new byte[1];
+            int count = 0;
+            while(!inflater.finished() && count <= decompressedLength) {
+                if(count == output.length && count < decompressedLength) {
+                    output = Arrays.copyOf(output, (int) Math.min(
+                        decompressedLength, 2L * output.length));
+                }
+                int inflated = count < output.length
+                    ? inflater.inflate(output, count, output.length - count)
+                    : inflater.inflate(excess);
+                if(inflated == 0 && (inflater.needsInput() ||
+                                     inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if(count != decompressedLength || !inflater.finished() ||
+               inflater.getRemaining() != 0) {
+                throw new IOException("compressed payload does not " +
+                                      "decompress to " + decompressedLength +
+                                      " bytes");
+            }
+            return output;
+        } catch(DataFormatException e) {
+            throw new IOException("invalid compressed payload", e);
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+}
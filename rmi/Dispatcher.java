@@ -0,0 +1,396 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Executes call requests on a skeleton's remote object.
+
+    <p>
+    The dispatcher is independent of the transport: the blocking and selector
+    transports both hand it complete request frames, and write back the
+    response frames it returns.
+
+    <p>
+    Requests are resolved through the <code>MethodTable</code> of the remote
+    interface: requests carrying a method identifier index straight into it,
+    and requests naming their method are looked up by signature. Requests for
+    methods that are not part of the remote interface find nothing and are
+    answered with an <code>RMIException</code>.
+
+    <p>
+    For each method in the table, the dispatcher prepares a method handle bound
+    to the remote object, adapted to take its arguments as an
+    <code>Object[]</code> and to return an <code>Object</code>. Calling a method
+    is then an array index and an exact invocation of its handle, without the
+    access checks of core reflection or the wrapping of exceptions in
+    <code>InvocationTargetException</code>. Methods that cannot be accessed
+    through a method handle from this package are called reflectively.
+
+    <p>
+    If a dispatcher generated by <code>StubGenerator</code> for the remote
+    interface is on the class path, it is used instead of the method handles.
+
+    <p>
+    Arguments and results are decoded and encoded with the codec selected for
+    the remote interface when the skeleton was created, for requests that
+    were encoded with it, and with Java serialization otherwise. Responses
+    are compressed with the compressor selected for the interface at the
+    same time, if there is one, as requests are by stubs.
+
+    <p>
+    A batch request carries several calls, which are handled one after another
+    by the thread handling the batch. If the batch allows it, the calls are
+    instead shared between that thread and up to <code>MAX_BATCH_HELPERS</code>
+    tasks on the transport's worker pool. Each of them takes the next call not
+    yet started until none is left, so a batch always completes, even when the
+    pool is saturated or rejects the tasks.
+
+    <p>
+    Once a request received on a connection carrying streams has been
+    handled, or rejected, its streams are released, as described in
+    <code>Streams</code>: output streams passed to the call are closed, so
+    that their ends are written before the response, and streams the call
+    did not take are cancelled.
+ */
+class Dispatcher<T> {
+    /** Message of the exception returned for calls rejected by a busy
+        skeleton. */
+    static final String BUSY_MESSAGE = "server busy";
+
+    /** Largest number of pool tasks helping to make the calls of one
+        batch. */
+    static final int MAX_BATCH_HELPERS = 16;
+
+    /** Encoded busy responses, by protocol version and by whether they
+        refer to class descriptors by identifier, at index
+        <code>2 * version + form</code>. Threads that find a response missing
+        may encode it at once; any of their encodings will do. */
+    private static final AtomicReferenceArray<Protocol.Frame> busyResponses =
+        new AtomicReferenceArray<Protocol.Frame>(2 * (Protocol.VERSION + 1));
+
+    private final Skeleton<T> skeleton;
+    private final MethodTable table;
+    private final MethodHandle[] handles;
+    private final GeneratedDispatcher generated;
+    private final Codec codec;
+    /** Compressor of the responses, or <code>null</code> if they are not
+        compressed. */
+    private final Compressor compressor;
+    /** Length from which responses are compressed. */
+    private final int threshold;
+
+    Dispatcher(Skeleton<T> skeleton) {
+        this.skeleton = skeleton;
+        this.table = MethodTable.of(skeleton.getCls());
+        this.codec = Codecs.selected(skeleton.getCls());
+        this.compressor = Compressors.selected(skeleton.getCls());
+        this.threshold = Compressors.threshold(skeleton.getCls());
+
+        this.generated = loadGenerated(skeleton.getCls());
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        T server = skeleton.getRemoteObject();
+        handles = new MethodHandle[generated == null ? table.size() : 0];
+        for(int id = 0; id < handles.length; id++) {
+            Method method = table.method(id);
+            int count = method.getParameterTypes().length;
+            try {
+                handles[id] = lookup.unreflect(method)
+                                    .bindTo(server)
+                                    .asType(MethodType.genericMethodType(count))
+                                    .asSpreader(Object[].class, count);
+            } catch(IllegalAccessException e) {
+                handles[id] = null;
+            }
+        }
+    }
+
+    /** Returns the method table of the remote interface. */
+    MethodTable getMethodTable() {
+        return table;
+    }
+
+    /** Returns the codec selected for the remote interface. */
+    Codec getCodec() {
+        return codec;
+    }
+
+    /** Decodes a request frame, performs the call and encodes the response.
+        The calls of a batch are made one after another.
+
+        @param version The protocol version spoken on the connection.
+        @param request The request frame.
+        @return The response frame, or <code>null</code> if the request is
+                one-way.
+        @throws IOException If the request cannot be decoded or the response
+                            cannot be encoded.
+        @throws ClassNotFoundException If the request refers to a class that
+                                       cannot be loaded.
+     */
+    Protocol.Frame handle(int version, Protocol.Frame request)
+        throws IOException, ClassNotFoundException {
+        return handle(version, request, null);
+    }
+
+    /** Decodes a request frame, performs the call or calls and encodes the
+        response.
+
+        @param version The protocol version spoken on the connection.
+        @param request The request frame.
+        @param pool The pool on which the calls of a batch may be made
+                    concurrently, or <code>null</code>.
+        @return The response frame, or <code>null</code> if the request is
+                one-way. The outcome of a one-way call is discarded, and an
+                exception it throws is reported through
+                <code>service_error</code>.
+        @throws IOException If the request cannot be decoded or the response
+                            cannot be encoded.
+        @throws ClassNotFoundException If the request refers to a class that
+                                       cannot be loaded.
+     */
+    Protocol.Frame handle(int version, Protocol.Frame request, Executor pool)
+        throws IOException, ClassNotFoundException {
+        try {
+            return handleRequest(version, request, pool);
+        } finally {
+            if(request.streams != null) {
+                request.streams.release(request.requestId);
+            }
+        }
+    }
+
+    private Protocol.Frame handleRequest(int version, Protocol.Frame request,
+                                         Executor pool)
+        throws IOException, ClassNotFoundException {
+        if(version >= 2 && (request.flags & Protocol.FLAG_BATCH) != 0) {
+            return handleBatch(version, request,
+                (request.flags & Protocol.FLAG_PARALLEL) != 0 ? pool : null);
+        }
+
+        Protocol.Request call =
+            Protocol.decodeRequest(version, request, table, codec);
+        Outcome outcome = call(call);
+
+        if(version >= 2 && (request.flags & Protocol.FLAG_ONE_WAY) != 0) {
+            if(outcome.exceptionThrown) {
+                skeleton.service_error(new RMIException(
+                    "One-way call to " + call.methodName + " failed",
+                    (Throwable) outcome.result));
+            }
+            return null;
+        }
+
+        if(Log.debugging()) {
+            Log.debug("writing exception: " + outcome.exceptionThrown);
+            Log.debug("writing result: " + outcome.result);
+        }
+        Protocol.Frame response = Protocol.encodeResponse(
+            version, request, outcome, codec,
+            call.method == null ? Object.class : call.method.getReturnType());
+        if(compressor != null && version >= 2 &&
+           table.isCompressed(call.methodId)) {
+            Protocol.compress(response, compressor, threshold,
+                              request.capabilities);
+        }
+        return response;
+    }
+
+    /** Makes the calls of a batch and encodes their responses in one frame.
+        A call that cannot be decoded, or whose result cannot be encoded, is
+        answered with an <code>RMIException</code>, and the other calls are
+        made as usual. */
+    private Protocol.Frame handleBatch(final int version,
+                                       Protocol.Frame request, Executor pool)
+        throws IOException {
+        final Protocol.Frame[] calls = Protocol.decodeBatch(request);
+        final Protocol.Frame[] responses = new Protocol.Frame[calls.length];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(calls.length);
+
+        Runnable runner = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while((i = next.getAndIncrement()) < calls.length) {
+                    responses[i] = handleBatchCall(version, calls[i]);
+                    done.countDown();
+                }
+            }
+        };
+
+        if(pool != null) {
+            int helpers = Math.min(calls.length - 1, MAX_BATCH_HELPERS);
+            try {
+                for(int i = 0; i < helpers; i++) {
+                    pool.execute(runner);
+                }
+            } catch(RejectedExecutionException e) {
+                Log.debug("batch helper rejected; continuing with fewer");
+            }
+        }
+        runner.run();
+
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted making batch calls");
+        }
+
+        Protocol.Frame response =
+            new Protocol.Frame(request.methodId,
+                               Protocol.encodeBatch(responses));
+        response.requestId = request.requestId;
+        response.descriptorIds = ClassDescriptors.union(responses);
+        return response;
+    }
+
+    private Protocol.Frame handleBatchCall(int version, Protocol.Frame call) {
+        // Batches do not nest, and their calls are always answered.
+        call.flags &= ~(Protocol.FLAG_BATCH | Protocol.FLAG_PARALLEL |
+                        Protocol.FLAG_ONE_WAY);
+        try {
+            return handle(version, call, null);
+        } catch(Exception e) {
+            skeleton.service_error(new RMIException("Error with request", e));
+
+            Outcome outcome = new Outcome();
+            outcome.exceptionThrown = true;
+            outcome.result = new RMIException("Error with request", e);
+            try {
+                return Protocol.encodeResponse(version, call, outcome);
+            } catch(IOException encodingError) {
+                throw new IllegalStateException(encodingError);
+            }
+        }
+    }
+
+    /** Looks up and invokes a method of the remote object. */
+    Outcome call(Protocol.Request request) {
+        // TODO catch specific exception
+        Outcome outcome = new Outcome();
+        Log.debug("getting method");
+        Method method = request.method;
+        if (method == null) {
+            Log.debug(() -> "No method " + request.methodName +
+                            " in remote interface");
+            outcome.exceptionThrown = true;
+            outcome.result = new RMIException("No Such Method");
+            return outcome;
+        }
+
+        Log.debug("after getting method");
+
+        try {
+            if(Log.debugging()) {
+                Log.debug("about to invoke " + method.getName());
+            }
+            outcome.result = invoke(request.methodId, request.args);
+            Log.debug("after invoke");
+        } catch (Throwable t) {
+            Log.debug("inside catch for invoke");
+            outcome.exceptionThrown = true;
+            outcome.result = t;
+        }
+
+        return outcome;
+    }
+
+    /** Calls a method of the remote object.
+
+        @param id The identifier of the method in the method table.
+        @param args The arguments.
+        @return The value returned by the method, boxed if it is primitive, or
+                <code>null</code> if the method returns <code>void</code>.
+        @throws Throwable Whatever the method throws.
+     */
+    Object invoke(int id, Object[] args) throws Throwable {
+        if(generated != null) {
+            return generated.invoke(skeleton.getRemoteObject(), id, args);
+        }
+
+        MethodHandle handle = handles[id];
+        if(handle != null) {
+            return (Object) handle.invokeExact(args);
+        }
+
+        try {
+            return table.method(id).invoke(skeleton.getRemoteObject(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static GeneratedDispatcher loadGenerated(Class<?> c) {
+        Class<?> generated =
+            GeneratedStub.loadGenerated(c, GeneratedDispatcher.SUFFIX);
+        if(generated == null ||
+           !GeneratedDispatcher.class.isAssignableFrom(generated)) {
+            return null;
+        }
+
+        try {
+            return (GeneratedDispatcher)
+                generated.getConstructor().newInstance();
+        } catch(ReflectiveOperationException e) {
+            Log.warning("unable to create generated dispatcher", e);
+            return null;
+        }
+    }
+
+    /** Returns the response to a call rejected because the skeleton's worker
+        pool is saturated, or <code>null</code> if the call is one-way. The
+        payload is encoded once per protocol version, and per form of class
+        descriptors, and shared, so that rejecting a call costs next to
+        nothing. It is built only for calls that are rejected, as it releases
+        the streams of the request. */
+    static Protocol.Frame busyResponse(int version, Protocol.Frame request)
+        throws IOException {
+        if(request.streams != null) {
+            request.streams.release(request.requestId);
+        }
+        if(version >= 2 && (request.flags & Protocol.FLAG_ONE_WAY) != 0) {
+            return null;
+        }
+
+        int form =
+            (request.capabilities & Protocol.CAP_DESCRIPTORS) != 0 ? 1 : 0;
+        Protocol.Frame encoded = busyResponses.get(2 * version + form);
+        if(encoded == null) {
+            encoded = Protocol.encodeResponse(version, request, Outcome.busy());
+            busyResponses.set(2 * version + form, encoded);
+        }
+
+        Protocol.Frame response =
+            new Protocol.Frame(request.methodId, encoded.payload);
+        response.requestId = request.requestId;
+        response.descriptorIds = encoded.descriptorIds;
+        if(version >= 2) {
+            response.flags = Protocol.FLAG_EXCEPTION;
+        }
+        return response;
+    }
+
+    /** Result of a call on the remote object. */
+    static class Outcome {
+        boolean exceptionThrown = false;
+        Object result = null;
+
+        /** Returns the outcome of a call rejected by a busy skeleton. */
+        static Outcome busy() {
+            Outcome outcome = new Outcome();
+            outcome.exceptionThrown = true;
+            outcome.result = new RMIException(BUSY_MESSAGE);
+            return outcome;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package rmi;
+
+/** Interface of skeleton dispatchers generated by <code>StubGenerator</code>.
+
+    <p>
+    A generated dispatcher calls the methods of a remote object directly, with
+    a switch on the method identifier and a typed call for each method, so
+    that no reflection is involved in dispatching a call. When a generated
+    dispatcher for its remote interface is available, a skeleton uses it in
+    place of method handles.
+
+    <p>
+    This interface is public only so that generated code in other packages can
+    implement it. It is not intended to be used directly.
+ */
+public interface GeneratedDispatcher
+{
+    /** Suffix appended to the name of a remote interface to obtain the name of
+        its generated dispatcher class. */
+    static final String SUFFIX = "_RMIDispatch";
+
+    /** Calls a method of a remote object.
+
+        @param server The remote object.
+        @param methodId The identifier of the method in the method table of the
+                        remote interface.
+        @param args The arguments.
+        @return The value returned by the method, boxed if it is primitive, or
+                <code>null</code> if the method returns <code>void</code>.
+        @throws Throwable Whatever the method throws.
+     */
+    Object invoke(Object server, int methodId, Object[] args) throws Throwable;
+}
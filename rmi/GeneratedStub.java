@@ -0,0 +1,217 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.lang.reflect.Constructor;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Base class of stubs generated by <code>StubGenerator</code>.
+
+    <p>
+    A generated stub implements its remote interface with one ordinary method
+    per remote method. Each method packs its arguments and calls
+    <code>call</code> with the method's identifier in the interface's method
+    table, so that no reflection is involved in making a call. Generated stubs
+    behave exactly like the stubs created with
+    <code>java.lang.reflect.Proxy</code>: they are serializable, and they are
+    equal to, and have the same hash code and string representation as, any
+    other stub for the same interface and address.
+
+    <p>
+    This class is public only so that generated code in other packages can
+    extend it. It is not intended to be used directly.
+ */
+public abstract class GeneratedStub<T> implements ProxyDetails<T>, Serializable
+{
+    /** Version of the serialized form, shared with stubs in other virtual
+        machines. */
+    private static final long serialVersionUID = 1L;
+
+    /** Suffix appended to the name of a remote interface to obtain the name of
+        its generated stub class. */
+    static final String SUFFIX = "_RMIStub";
+
+    /** Constructors of generated stubs, by interface. Interfaces with no
+        usable generated stub map to <code>NONE</code>. */
+    private static final ConcurrentHashMap<Class<?>, Constructor<?>>
+        constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+    private static final Constructor<?> NONE = noneMarker();
+
+    private final Class<T> c;
+    private final InetSocketAddress address;
+    private transient StubCore<T> core;
+    /** Hash code and string representation, computed when first needed.
+        They are not serialized, and recomputed after deserialization. */
+    private transient int hash;
+    private transient String description;
+
+    /** Creates a generated stub.
+
+        @param c The remote interface.
+        @param address The address of the skeleton.
+     */
+    protected GeneratedStub(Class<T> c, InetSocketAddress address)
+    {
+        this.c = c;
+        this.address = address;
+    }
+
+    /** Calls a remote method.
+
+        @param methodId The identifier of the method in the method table of the
+                        remote interface.
+        @param args The arguments.
+        @return The value returned by the remote method.
+        @throws Exception Whatever the remote method throws, or an
+                          <code>RMIException</code> if the call cannot be
+                          carried out.
+     */
+    protected final Object call(int methodId, Object[] args) throws Exception
+    {
+        return core().call(methodId, args);
+    }
+
+    /** Sets the core that carries this stub's calls. Used for stubs whose
+        skeleton is in this virtual machine. */
+    final void setCore(StubCore<T> core)
+    {
+        this.core = core;
+    }
+
+    /** Returns the core that carries this stub's calls, creating it when
+        first needed. */
+    final StubCore<T> core()
+    {
+        StubCore<T> s = core;
+        if(s == null) {
+            s = new StubCore<T>(c, address);
+            core = s;
+        }
+        return s;
+    }
+
+    @Override
+    public final Class<T> getCls()
+    {
+        return c;
+    }
+
+    @Override
+    public final InetSocketAddress getServerAddress()
+    {
+        return address;
+    }
+
+    @Override
+    public final boolean equals(Object other)
+    {
+        return other == this || StubCore.same(c, address, other);
+    }
+
+    @Override
+    public final int hashCode()
+    {
+        int h = hash;
+        if(h == 0) {
+            h = StubCore.hash(c, address);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public final String toString()
+    {
+        String s = description;
+        if(s == null) {
+            s = StubCore.describe(c, address);
+            description = s;
+        }
+        return s;
+    }
+
+    /** Creates a generated stub for the given interface, if one is available.
+
+        <p>
+        The generated class is looked up once per interface, with the
+        interface's class loader. It is used only if it was generated from the
+        same version of the interface, as told by the interface fingerprint it
+        records.
+
+        @return The stub, or <code>null</code> if there is no usable generated
+                stub for the interface.
+     */
+    static <T> T create(Class<T> c, InetSocketAddress address)
+    {
+        Constructor<?> constructor = constructors.get(c);
+        if(constructor == null) {
+            constructor = lookup(c);
+            constructors.putIfAbsent(c, constructor);
+        }
+        if(constructor == NONE) {
+            return null;
+        }
+
+        try {
+            return c.cast(constructor.newInstance(address));
+        } catch(ReflectiveOperationException e) {
+            Log.warning("unable to create generated stub", e);
+            return null;
+        }
+    }
+
+    private static Constructor<?> lookup(Class<?> c)
+    {
+        Class<?> generated = loadGenerated(c, SUFFIX);
+        if(generated == null || !GeneratedStub.class.isAssignableFrom(generated)) {
+            return NONE;
+        }
+
+        try {
+            return generated.getConstructor(InetSocketAddress.class);
+        } catch(NoSuchMethodException e) {
+            return NONE;
+        }
+    }
+
+    /** Loads the class generated for a remote interface, if it exists and was
+        generated from the current version of the interface.
+
+        @param c The remote interface.
+        @param suffix The suffix of the generated class name.
+        @return The generated class, or <code>null</code>.
+     */
+    static Class<?> loadGenerated(Class<?> c, String suffix)
+    {
+        Class<?> generated;
+        try {
+            generated = Class.forName(c.getName() + suffix, true,
+                                      c.getClassLoader());
+        } catch(ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+
+        try {
+            long fingerprint =
+                generated.getField("FINGERPRINT").getLong(null);
+            if(fingerprint != MethodTable.of(c).fingerprint()) {
+                Log.warning("ignoring stale generated class " +
+                            generated.getName());
+                return null;
+            }
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
+
+        return generated;
+    }
+
+    private static Constructor<?> noneMarker()
+    {
+        try {
+            return Object.class.getConstructor();
+        } catch(NoSuchMethodException e) {
+            throw new Error(e);
+        }
+    }
+}
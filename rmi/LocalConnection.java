@@ -0,0 +1,289 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Carries the calls of a stub to a skeleton in the same virtual machine.
+
+    <p>
+    Stubs created with <code>Stub.create(Class, Skeleton)</code> keep a
+    reference to their skeleton. While the skeleton is running, their calls are
+    handed directly to the skeleton's <code>Dispatcher</code>, in the calling
+    thread, without a socket, a frame or a service thread. Calls the stub does
+    not wait for in its own thread, asynchronous and one-way calls, run on
+    the skeleton's workers instead, under its limits. Calls made while the
+    skeleton is stopped go through the network like any other, and so fail in
+    the same way. The reference is not serialized: a stub sent to another
+    virtual machine, or deserialized in this one, calls its skeleton over the
+    network.
+
+    <p>
+    Arguments and results are passed by copy, as they are over the network, so
+    that neither side sees later changes made by the other. Strings, boxed
+    primitives and enumeration constants are immutable, and are shared rather
+    than copied, as are streams, which both sides use as they would over the
+    network. Arrays of primitives are cloned, and the bytes of byte
+    buffers, from position to limit, are copied into new buffers. Any other
+    value is copied by encoding it into memory and reading it back, with the
+    codec the stub and skeleton would agree on over the network. The
+    arguments of a call are then copied together, so that arguments referring
+    to the same object still do in the copy, if the codec preserves shared
+    references.
+ */
+class LocalConnection {
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final Set<Class<?>> IMMUTABLE = new HashSet<Class<?>>(
+        Arrays.<Class<?>>asList(String.class, Boolean.class, Byte.class,
+                                Character.class, Short.class, Integer.class,
+                                Long.class, Float.class, Double.class));
+
+    private final Skeleton<?> skeleton;
+    private final int port;
+    private final Codec codec;
+
+    /** Creates a connection to a skeleton.
+
+        @param skeleton The skeleton.
+        @param address The address of the skeleton, as given to the stub.
+        @param codec The codec of the stub.
+     */
+    LocalConnection(Skeleton<?> skeleton, InetSocketAddress address,
+                    Codec codec) {
+        this.skeleton = skeleton;
+        this.port = address.getPort();
+        this.codec = codec.name().equals(
+            skeleton.getDispatcher().getCodec().name()) ? codec : Codecs.JAVA;
+    }
+
+    /** Returns the codec with which values are copied. */
+    Codec codec() {
+        return codec;
+    }
+
+    /** Returns <code>true</code> if the skeleton is running at the address
+        the stub was given. */
+    boolean isOpen() {
+        InetSocketAddress current = skeleton.getAddress();
+        return skeleton.isRunning() && current != null &&
+               current.getPort() == port;
+    }
+
+    /** Builds the request of a call, copying its arguments.
+
+        @param table The method table of the stub's interface.
+        @param methodId The identifier of the method in <code>table</code>.
+        @param method The method.
+        @param args The arguments, or <code>null</code> if there are none.
+        @throws RMIException If the arguments cannot be copied.
+     */
+    Protocol.Request request(MethodTable table, int methodId, Method method,
+                             Object[] args)
+        throws RMIException {
+        Object[] copies;
+        try {
+            copies = copyArguments(method.getParameterTypes(), args);
+        } catch(IOException | ClassNotFoundException e) {
+            throw new RMIException("Error invoking method: " +
+                                   method.getName(), e);
+        }
+
+        MethodTable target = skeleton.getDispatcher().getMethodTable();
+        if(target == table) {
+            return new Protocol.Request(method.getName(), methodId,
+                                        table.method(methodId), copies);
+        }
+        return new Protocol.Request(method.getName(), target,
+                                    target.lookup(Protocol.signature(method)),
+                                    copies);
+    }
+
+    /** Makes a call in the calling thread.
+
+        @return The outcome of the call, with a copy of its result.
+        @throws RMIException If the result cannot be copied.
+     */
+    Dispatcher.Outcome call(Protocol.Request request) throws RMIException {
+        Dispatcher.Outcome outcome = skeleton.getDispatcher().call(request);
+        // Exceptions are always copied with Java serialization, as they are
+        // over the network.
+        Codec resultCodec = outcome.exceptionThrown ? Codecs.JAVA : codec;
+        Class<?> type = request.method == null ? Object.class
+                      : request.method.getReturnType();
+
+        try {
+            outcome.result = copy(resultCodec, type, outcome.result);
+        } catch(IOException | ClassNotFoundException e) {
+            throw new RMIException("Error invoking method: " +
+                                   request.methodName, e);
+        }
+        return outcome;
+    }
+
+    /** Makes a call on the skeleton's workers, without waiting for it.
+
+        @return A future completed with the outcome of the call, with a copy
+                of its result, or completed exceptionally with an
+                <code>RMIException</code> if the result cannot be copied.
+        @throws RMIException If the skeleton is too busy to accept the call.
+     */
+    CompletableFuture<Dispatcher.Outcome> callLater(
+        final Protocol.Request request) throws RMIException {
+        final CompletableFuture<Dispatcher.Outcome> outcome =
+            new CompletableFuture<Dispatcher.Outcome>();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outcome.complete(call(request));
+                } catch(RMIException e) {
+                    outcome.completeExceptionally(e);
+                }
+            }
+        });
+        return outcome;
+    }
+
+    /** Makes a one-way call on the skeleton's workers. An exception thrown by
+        the call is reported to the skeleton's <code>service_error</code>, as
+        for one-way calls made over the network.
+
+        @throws RMIException If the skeleton is too busy to accept the call.
+     */
+    void callOneWay(final Protocol.Request request) throws RMIException {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Dispatcher.Outcome outcome =
+                    skeleton.getDispatcher().call(request);
+                if(outcome.exceptionThrown) {
+                    skeleton.service_error(new RMIException(
+                        "One-way call to " + request.methodName + " failed",
+                        (Throwable) outcome.result));
+                }
+            }
+        });
+    }
+
+    /** Hands a call to the skeleton, which runs it under the same limits as
+        calls made over the network. A rejected call fails as it would over
+        the network. */
+    private void execute(Runnable call) throws RMIException {
+        try {
+            skeleton.runLocalCall(call);
+        } catch(RejectedExecutionException e) {
+            throw new RMIException(Dispatcher.BUSY_MESSAGE);
+        }
+    }
+
+    /** Copies the arguments of a call. */
+    private Object[] copyArguments(Class<?>[] types, Object[] args)
+        throws IOException, ClassNotFoundException {
+        if(args == null || args.length == 0) {
+            return NO_ARGUMENTS;
+        }
+
+        boolean separately = true;
+        for(int i = 0; i < args.length && separately; i++) {
+            if(!shared(args[i])) {
+                separately = isPrimitiveArray(args[i]) || isBuffer(args[i]);
+                // Arrays shared between arguments must stay shared.
+                for(int j = 0; j < i && separately; j++) {
+                    separately = args[j] != args[i];
+                }
+            }
+        }
+
+        if(!separately) {
+            return encodedCopy(codec, types, args);
+        }
+
+        Object[] copies = new Object[args.length];
+        for(int i = 0; i < args.length; i++) {
+            copies[i] = shared(args[i]) ? args[i]
+                      : isBuffer(args[i]) ? copyBuffer(args[i])
+                      : clonePrimitiveArray(args[i]);
+        }
+        return copies;
+    }
+
+    /** Copies a single value of the given declared type. */
+    private static Object copy(Codec codec, Class<?> type, Object value)
+        throws IOException, ClassNotFoundException {
+        if(shared(value)) {
+            return value;
+        }
+        if(isPrimitiveArray(value)) {
+            return clonePrimitiveArray(value);
+        }
+        if(isBuffer(value)) {
+            return copyBuffer(value);
+        }
+        return encodedCopy(codec, new Class<?>[] {type},
+                           new Object[] {value})[0];
+    }
+
+    /** Returns <code>true</code> if a value is passed as it is: an
+        immutable value, or a stream. */
+    private static boolean shared(Object value) {
+        return immutable(value) || Streams.isStream(value);
+    }
+
+    private static boolean immutable(Object value) {
+        return value == null || IMMUTABLE.contains(value.getClass()) ||
+               value instanceof Enum;
+    }
+
+    private static boolean isPrimitiveArray(Object value) {
+        Class<?> type = value.getClass();
+        return type.isArray() && type.getComponentType().isPrimitive();
+    }
+
+    private static boolean isBuffer(Object value) {
+        return value instanceof ByteBuffer || value instanceof ByteBuffer[];
+    }
+
+    /** Copies a byte buffer, or each buffer of an array of them. */
+    private static Object copyBuffer(Object value) {
+        if(value instanceof ByteBuffer[]) {
+            ByteBuffer[] buffers = ((ByteBuffer[]) value).clone();
+            for(int i = 0; i < buffers.length; i++) {
+                if(buffers[i] != null) {
+                    buffers[i] = (ByteBuffer) copyBuffer(buffers[i]);
+                }
+            }
+            return buffers;
+        }
+
+        ByteBuffer buffer = (ByteBuffer) value;
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    private static Object clonePrimitiveArray(Object array) {
+        int length = Array.getLength(array);
+        Object copy =
+            Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static Object[] encodedCopy(Codec codec, Class<?>[] types,
+                                        Object[] values)
+        throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(bytes, types, values);
+        return codec.read(new ByteArrayInputStream(bytes.toByteArray()),
+                          types);
+    }
+}
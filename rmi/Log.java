@@ -0,0 +1,171 @@
+package rmi;
+
+import java.util.function.Supplier;
+
+/** Logging facade for the RMI library.
+
+    <p>
+    Skeletons and stubs report what they are doing through this class rather
+    than printing to <code>System.err</code> directly. Messages have a level,
+    and are passed to the current sink only if their level is at least the
+    current threshold. The default threshold is <code>WARNING</code>, so that
+    the debugging messages written on every call are discarded, and the
+    default sink prints to <code>System.err</code>. The initial threshold may
+    be set with the <code>rmi.log.level</code> system property, for example
+    <code>-Drmi.log.level=DEBUG</code>.
+
+    <p>
+    Checking whether a level is enabled reads a single volatile field and
+    allocates nothing. Messages that are expensive to build, such as those
+    including call arguments or results, should be guarded with
+    <code>isEnabled</code> or given as a <code>Supplier</code>, so that they
+    cost nothing when the level is disabled.
+ */
+public final class Log
+{
+    /** Message levels, from the most to the least verbose. */
+    public enum Level { DEBUG, INFO, WARNING, ERROR, OFF }
+
+    /** Destination of log messages. */
+    public interface Sink
+    {
+        /** Records a message.
+
+            @param level The level of the message. This is never
+                         <code>OFF</code>.
+            @param message The message.
+            @param cause An exception associated with the message, or
+                         <code>null</code>.
+         */
+        void log(Level level, String message, Throwable cause);
+    }
+
+    /** Sink that prints messages to <code>System.err</code>. */
+    public static final Sink STANDARD_ERROR = new Sink() {
+        @Override
+        public void log(Level level, String message, Throwable cause)
+        {
+            System.err.println("rmi " + level + ": " + message);
+            if(cause != null) {
+                cause.printStackTrace();
+            }
+        }
+    };
+
+    /** Ordinal of the least verbose level that is logged. */
+    private static volatile int threshold = initialLevel().ordinal();
+    private static volatile Sink sink = STANDARD_ERROR;
+
+    private Log()
+    {
+    }
+
+    /** Sets the threshold below which messages are discarded.
+
+        @param level The least verbose level to log, or <code>OFF</code> to
+                     discard all messages.
+        @throws NullPointerException If <code>level</code> is
+                                     <code>null</code>.
+     */
+    public static void setLevel(Level level)
+    {
+        threshold = level.ordinal();
+    }
+
+    /** Returns the current threshold. */
+    public static Level getLevel()
+    {
+        return Level.values()[threshold];
+    }
+
+    /** Sets the destination of log messages.
+
+        @param destination The new sink.
+        @throws NullPointerException If <code>destination</code> is
+                                     <code>null</code>.
+     */
+    public static void setSink(Sink destination)
+    {
+        if(destination == null) {
+            throw new NullPointerException();
+        }
+        sink = destination;
+    }
+
+    /** Tells whether messages of the given level are logged. */
+    public static boolean isEnabled(Level level)
+    {
+        return level.ordinal() >= threshold && level != Level.OFF;
+    }
+
+    /** Tells whether debugging messages are logged. */
+    static boolean debugging()
+    {
+        return threshold == 0;
+    }
+
+    static void debug(String message)
+    {
+        log(Level.DEBUG, message, null);
+    }
+
+    static void debug(Supplier<String> message)
+    {
+        if(debugging()) {
+            sink.log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    static void debug(String message, Throwable cause)
+    {
+        log(Level.DEBUG, message, cause);
+    }
+
+    static void info(String message)
+    {
+        log(Level.INFO, message, null);
+    }
+
+    static void warning(String message)
+    {
+        log(Level.WARNING, message, null);
+    }
+
+    static void warning(String message, Throwable cause)
+    {
+        log(Level.WARNING, message, cause);
+    }
+
+    static void error(String message, Throwable cause)
+    {
+        log(Level.ERROR, message, cause);
+    }
+
+    private static void log(Level level, String message, Throwable cause)
+    {
+        if(isEnabled(level)) {
+            sink.log(level, message, cause);
+        }
+    }
+
+    /** Reads the initial threshold from the <code>rmi.log.level</code>
+        system property. */
+    private static Level initialLevel()
+    {
+        String name;
+        try {
+            name = System.getProperty("rmi.log.level");
+        } catch(SecurityException e) {
+            name = null;
+        }
+
+        if(name != null) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase());
+            } catch(IllegalArgumentException e) {
+                System.err.println("rmi: unknown log level " + name);
+            }
+        }
+        return Level.WARNING;
+    }
+}
@@ -0,0 +1,185 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Integer identifiers for the methods of a remote interface.
+
+    <p>
+    The methods are ordered by their wire signature - the method name followed
+    by the names of the parameter types - and numbered from zero in that order.
+    Because the order depends only on the interface, a stub and a skeleton
+    built from the same interface assign the same identifier to each method,
+    and overloads, which differ in their parameter types, get distinct
+    identifiers.
+
+    <p>
+    The table also computes a fingerprint of the interface from the signatures
+    and return types of its methods. The skeleton sends its fingerprint when a
+    connection is opened. A stub sends method identifiers only on connections
+    whose fingerprint matches that of its own interface, and falls back to
+    naming methods otherwise.
+
+    <p>
+    The table records which methods are one-way, and which may have their
+    payloads compressed, so that stubs and skeletons can tell without looking
+    at annotations on each call.
+
+    <p>
+    Tables are immutable, and are built once per interface.
+ */
+class MethodTable {
+    private static final ConcurrentHashMap<Class<?>, MethodTable> tables =
+        new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    private final Method[] methods;
+    private final boolean[] oneWay;
+    private final boolean[] streams;
+    private final boolean[] compressed;
+    private final Map<String, Integer> bySignature =
+        new HashMap<String, Integer>();
+    private final Map<Method, Integer> byMethod =
+        new HashMap<Method, Integer>();
+    private final long fingerprint;
+
+    private MethodTable(Class<?> c) {
+        Map<String, Method> unique = new HashMap<String, Method>();
+        for(Method method : c.getMethods()) {
+            String signature = Protocol.signature(method);
+            if(!unique.containsKey(signature)) {
+                unique.put(signature, method);
+            }
+        }
+
+        List<String> signatures = new ArrayList<String>(unique.keySet());
+        Collections.sort(signatures);
+
+        methods = new Method[signatures.size()];
+        oneWay = new boolean[methods.length];
+        streams = new boolean[methods.length];
+        compressed = new boolean[methods.length];
+        StringBuilder description = new StringBuilder();
+        for(int id = 0; id < methods.length; id++) {
+            String signature = signatures.get(id);
+            methods[id] = unique.get(signature);
+            bySignature.put(signature, id);
+            oneWay[id] = methods[id].getReturnType() == void.class &&
+                         methods[id].isAnnotationPresent(OneWay.class);
+            streams[id] = Streams.uses(methods[id]);
+            compressed[id] = isCompressed(methods[id]);
+            description.append(methods[id].getReturnType().getName())
+                       .append(' ').append(signature).append('\n');
+        }
+
+        // Interfaces inheriting the same signature from several parents
+        // report several Method objects for it. All of them map to the one
+        // identifier.
+        for(Method method : c.getMethods()) {
+            byMethod.put(method, bySignature.get(Protocol.signature(method)));
+        }
+
+        fingerprint = digest(description.toString());
+    }
+
+    /** Returns the table for the given interface. */
+    static MethodTable of(Class<?> c) {
+        MethodTable table = tables.get(c);
+        if(table == null) {
+            table = new MethodTable(c);
+            MethodTable previous = tables.putIfAbsent(c, table);
+            if(previous != null) {
+                table = previous;
+            }
+        }
+        return table;
+    }
+
+    /** Returns the fingerprint of the interface. */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /** Returns the number of methods in the table. */
+    int size() {
+        return methods.length;
+    }
+
+    /** Returns the method with the given identifier, or <code>null</code> if
+        there is no such method. */
+    Method method(int id) {
+        if(id < 0 || id >= methods.length) {
+            return null;
+        }
+        return methods[id];
+    }
+
+    /** Returns <code>true</code> if the method with the given identifier
+        returns <code>void</code> and is annotated with
+        <code>OneWay</code>. */
+    boolean isOneWay(int id) {
+        return id >= 0 && id < oneWay.length && oneWay[id];
+    }
+
+    /** Returns <code>true</code> if the method with the given identifier
+        takes or returns a stream, as described in <code>Streams</code>. */
+    boolean usesStreams(int id) {
+        return id >= 0 && id < streams.length && streams[id];
+    }
+
+    /** Returns <code>true</code> if the payloads of the method with the
+        given identifier may be compressed, as described in
+        <code>Compressed</code>. */
+    boolean isCompressed(int id) {
+        return id >= 0 && id < compressed.length && compressed[id];
+    }
+
+    /** Returns whether a method is compressed according to its
+        <code>Compressed</code> annotation, or to that of the interface
+        declaring it. */
+    private static boolean isCompressed(Method method) {
+        Compressed annotation = method.getAnnotation(Compressed.class);
+        if(annotation == null) {
+            annotation =
+                method.getDeclaringClass().getAnnotation(Compressed.class);
+        }
+        return annotation == null || annotation.value();
+    }
+
+    /** Returns the identifier of a method of the interface, or
+        <code>Protocol.NO_METHOD_ID</code> if the method is not part of it. */
+    int id(Method method) {
+        Integer id = byMethod.get(method);
+        return id == null ? Protocol.NO_METHOD_ID : id;
+    }
+
+    /** Returns the method with the given wire signature, or
+        <code>null</code> if there is no such method. */
+    Method lookup(String signature) {
+        Integer id = bySignature.get(signature);
+        return id == null ? null : methods[id];
+    }
+
+    private static long digest(String description) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(
+                description.getBytes(StandardCharsets.UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 is not available", e);
+        }
+
+        long fingerprint = 0;
+        for(int i = 0; i < 8; i++) {
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,532 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/** Client-side connection shared by many concurrent calls.
+
+    <p>
+    A multiplexed connection is opened like any other <code>Connection</code>,
+    and is used in its place when the skeleton supports
+    <code>Protocol.CAP_MULTIPLEX</code>. Its channel is then kept in
+    non-blocking mode and registered with the <code>ClientSelector</code> for
+    as long as it is open. Callers send requests with <code>send</code>, each
+    with the next request identifier of the connection, and return at once.
+    The selector reads the responses in whatever order the skeleton writes
+    them, and notifies the handler registered for each request identifier.
+
+    <p>
+    Callers write their requests directly when nothing else is waiting to be
+    written. The rest of a request that does not fit in the socket's send
+    buffer is queued, and written by the selector when the channel becomes
+    writable, so that callers never block on a slow connection. Requests made
+    while others are queued join the queue, and the whole queue is written
+    with one gathering write.
+
+    <p>
+    When the pool's coalescing delay is positive, a request that finds the
+    queue empty is not written at once: the selector writes the queue once
+    the delay has passed, together with every request made in the meantime.
+    A caller whose request brings the queue to <code>COALESCE_LIMIT</code>
+    bytes writes it without waiting.
+
+    <p>
+    When the skeleton agrees to <code>Protocol.CAP_STREAMS</code>, the
+    connection also carries the streams passed to and returned by its calls,
+    as described in <code>Streams</code>. A request is preceded by the
+    announcements of the streams it carries, which start to be sent once it
+    has been queued. The selector hands stream frames to the connection's
+    <code>Streams</code>, and holds back the response to a call that was
+    passed output streams until their bytes have all been written to them.
+
+    <p>
+    If the connection fails, every call waiting for a response on it fails,
+    and so does every stream, and the connection is closed. The pool then
+    opens a new connection for later calls.
+ */
+class MultiplexedConnection implements ClientSelector.Selectable {
+    /** Number of queued bytes beyond which requests are written without
+        waiting for the coalescing delay. */
+    static final int COALESCE_LIMIT = 64 * 1024;
+
+    private final Connection connection;
+    private final SocketChannel channel;
+    private final ClientSelector selector;
+    /** Streams of the calls on this connection, or <code>null</code> if the
+        skeleton does not accept them. */
+    private final Streams streams;
+    private final ConcurrentHashMap<Integer, ClientSelector.ResponseHandler>
+        pending =
+            new ConcurrentHashMap<Integer, ClientSelector.ResponseHandler>();
+
+    /** Guarded by this connection's lock. */
+    private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+    private long queued = 0;
+    /** Number of bytes queued since the connection was opened. */
+    private long enqueued = 0;
+    /** Requests not yet written in full, in the order they were queued,
+        with the value <code>enqueued</code> had once each was queued. */
+    private final ArrayDeque<long[]> unwritten = new ArrayDeque<long[]>();
+    /** Set while the selector waits for the channel to become writable. */
+    private boolean waitingForWrite = false;
+    /** Set while a delayed write is scheduled with the selector. */
+    private boolean flushScheduled = false;
+    private int nextRequestId = 0;
+    private boolean closed = false;
+    private SelectionKey key;
+
+    private volatile boolean reused = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /** Buffer into which <code>isHealthy</code> reads. */
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    /** Reading state, touched only by the selector thread. */
+    private final ByteBuffer header;
+    private Protocol.Frame frame;
+    private ByteBuffer payload;
+
+    private MultiplexedConnection(Connection connection,
+                                  ClientSelector selector) {
+        this.connection = connection;
+        this.channel = connection.channel();
+        this.selector = selector;
+        this.header = ByteBuffer.allocate(
+            Protocol.headerLength(connection.version()));
+        if((connection.capabilities() & Protocol.CAP_STREAMS) != 0) {
+            this.streams = new Streams(new Streams.Sender() {
+                @Override
+                public void send(Protocol.Frame frame) throws IOException {
+                    sendStream(frame);
+                }
+            });
+        } else {
+            this.streams = null;
+        }
+        connection.setStreams(streams);
+    }
+
+    /** Takes over a connection whose handshake has completed, and registers it
+        with the client selector.
+
+        @param connection A connection that multiplexes, on which no call has
+                          been made.
+        @return The multiplexed connection.
+        @throws IOException If the connection cannot be registered.
+     */
+    static MultiplexedConnection open(Connection connection)
+        throws IOException {
+        final MultiplexedConnection multiplexed =
+            new MultiplexedConnection(connection, ClientSelector.get());
+
+        multiplexed.channel.configureBlocking(false);
+        multiplexed.selector.register(multiplexed.channel,
+                                      SelectionKey.OP_READ, multiplexed,
+                                      new Consumer<SelectionKey>() {
+            @Override
+            public void accept(SelectionKey key) {
+                multiplexed.registered(key);
+            }
+        });
+        return multiplexed;
+    }
+
+    /** Returns the connection whose channel this connection took over. Its
+        version and capabilities are those of this connection. */
+    Connection connection() {
+        return connection;
+    }
+
+    /** Returns the protocol version agreed with the skeleton. */
+    int version() {
+        return connection.version();
+    }
+
+    /** Returns <code>true</code> if this connection has carried at least one
+        complete call. */
+    boolean isReused() {
+        return reused;
+    }
+
+    /** Returns <code>true</code> until the connection has failed or been
+        closed. */
+    synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    /** Checks whether the connection can carry another call.
+
+        <p>
+        A connection on which no call is in progress may have been closed by
+        the skeleton, for instance while it stopped, before the selector has
+        read the end of the stream. A request sent on it then fails once
+        written, and is not retried, as the skeleton might have run it. While
+        the connection is idle, the skeleton sends nothing, so the channel is
+        read here without waiting: the connection fails if the end of the
+        stream, or anything else, has arrived.
+
+        @return <code>true</code> if the connection appears usable.
+     */
+    boolean isHealthy() {
+        synchronized(this) {
+            if(closed) {
+                return false;
+            }
+            if(!pending.isEmpty() || !writes.isEmpty() ||
+               (streams != null && !streams.isIdle())) {
+                return true;
+            }
+            try {
+                if(channel.read(probe) == 0) {
+                    return true;
+                }
+            } catch(IOException e) { }
+        }
+        fail(new IOException("connection closed by skeleton"));
+        return false;
+    }
+
+    /** Sends a request. The request is given the next request identifier of
+        this connection, and the handler is notified, on the selector thread,
+        when the response arrives or the connection fails. Streams carried by
+        the request are announced before it, and start to be sent once it has
+        been queued.
+
+        @param request The request frame.
+        @param handler The handler to notify, or <code>null</code> if the
+                       request is not answered.
+        @throws IOException If the connection is closed, the request carries
+                            streams the skeleton does not accept, or the
+                            request cannot be written. The handler is not
+                            notified.
+     */
+    void send(Protocol.Frame request, ClientSelector.ResponseHandler handler)
+        throws IOException {
+        long delay = ConnectionPool.coalesceDelay();
+
+        synchronized(this) {
+            if(closed) {
+                throw new IOException("connection closed");
+            }
+            if(request.streamValues != null && streams == null) {
+                throw new IOException("skeleton does not accept streams");
+            }
+
+            request.requestId = nextRequestId++;
+            Protocol.Frame definitions = connection.definitions(request);
+            if(definitions != null) {
+                queue(Protocol.toBuffers(connection.version(), definitions));
+            }
+            if(request.streamValues != null) {
+                for(Protocol.Frame announcement : streams.open(request)) {
+                    queue(Protocol.toBuffers(connection.version(),
+                                             announcement));
+                }
+            }
+            ByteBuffer[] buffers =
+                Protocol.toBuffers(connection.version(), request);
+            if(handler != null) {
+                pending.put(request.requestId, handler);
+            }
+            lastUsed = System.currentTimeMillis();
+            queue(buffers);
+            unwritten.add(new long[] {request.requestId, enqueued});
+
+            try {
+                writeQueue(delay);
+            } catch(IOException e) {
+                pending.remove(request.requestId);
+                fail(e);
+                throw e;
+            }
+        }
+
+        if(request.streamValues != null) {
+            streams.start(request);
+        }
+    }
+
+    /** Sends a stream frame. It is written without waiting for the
+        coalescing delay. */
+    private synchronized void sendStream(Protocol.Frame frame)
+        throws IOException {
+        if(closed) {
+            throw new IOException("connection closed");
+        }
+
+        queue(Protocol.toBuffers(connection.version(), frame));
+        try {
+            writeQueue(0);
+        } catch(IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    /** Writes the queue, unless the selector is to write it when the channel
+        becomes writable or once the coalescing delay has passed. Called
+        with this connection's lock held.
+
+        @param delay The coalescing delay, in microseconds.
+     */
+    private void writeQueue(long delay) throws IOException {
+        if(waitingForWrite) {
+            return;
+        }
+
+        if(delay > 0 && queued < COALESCE_LIMIT) {
+            if(!flushScheduled) {
+                flushScheduled = true;
+                selector.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        delayedWrite();
+                    }
+                }, delay);
+            }
+            return;
+        }
+
+        write();
+    }
+
+    /** Adds the buffers of a frame to the queue. Called with this
+        connection's lock held. */
+    private void queue(ByteBuffer[] buffers) {
+        for(ByteBuffer buffer : buffers) {
+            writes.add(buffer);
+            queued += buffer.remaining();
+            enqueued += buffer.remaining();
+        }
+    }
+
+    /** Writes the queue once the coalescing delay has passed. Called on the
+        selector thread. */
+    private synchronized void delayedWrite() {
+        flushScheduled = false;
+        if(closed || waitingForWrite) {
+            return;
+        }
+
+        try {
+            write();
+        } catch(IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Writes as much of the queue as possible, and has the selector write
+        the rest. Called with this connection's lock held. */
+    private void write() throws IOException {
+        flush();
+        if(!writes.isEmpty()) {
+            waitingForWrite = true;
+            selector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    /** Writes queued requests until the queue is empty or the socket's send
+        buffer is full. */
+    private void flush() throws IOException {
+        while(!writes.isEmpty()) {
+            queued -= channel.write(writes.toArray(
+                new ByteBuffer[writes.size()]));
+            while(!writes.isEmpty() && !writes.peek().hasRemaining()) {
+                writes.poll();
+            }
+            long written = enqueued - queued;
+            while(!unwritten.isEmpty() && unwritten.peek()[1] <= written) {
+                unwritten.poll();
+            }
+            if(!writes.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void registered(SelectionKey key) {
+        if(key == null) {
+            fail(new IOException("cannot register connection"));
+            return;
+        }
+
+        this.key = key;
+        if(closed) {
+            key.cancel();
+        }
+    }
+
+    private synchronized void interestOps(int ops) {
+        if(key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    @Override
+    public void ready(SelectionKey key) {
+        if(key.isWritable()) {
+            synchronized(this) {
+                try {
+                    flush();
+                } catch(IOException e) {
+                    fail(e);
+                    return;
+                }
+                if(writes.isEmpty()) {
+                    waitingForWrite = false;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        if(key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    /** Reads and delivers the responses available. */
+    private void read() {
+        try {
+            while(true) {
+                if(frame != null) {
+                    payload = Protocol.growPayload(payload, frame);
+                }
+                ByteBuffer target = frame == null ? header : payload;
+
+                if(target.hasRemaining()) {
+                    int count = channel.read(target);
+                    if(count < 0) {
+                        throw new IOException("connection closed by skeleton");
+                    }
+                    if(count == 0) {
+                        return;
+                    }
+                    if(target.hasRemaining()) {
+                        continue;
+                    }
+                }
+                if(frame != null && payload.position() < frame.length) {
+                    continue;
+                }
+
+                if(frame == null) {
+                    header.flip();
+                    frame = Protocol.parseHeader(header, connection.version());
+                    payload = Protocol.newPayload(frame);
+                    continue;
+                }
+
+                Protocol.Frame response = frame;
+                response.payload = payload.array();
+                frame = null;
+                payload = null;
+                header.clear();
+                if(Protocol.receive(response, connection.capabilities(),
+                                     connection.incoming())) {
+                    continue;
+                }
+                if(streams != null &&
+                   response.methodId == Protocol.STREAM_METHOD_ID) {
+                    streams.receive(response);
+                    continue;
+                }
+
+                ClientSelector.ResponseHandler handler =
+                    pending.remove(response.requestId);
+                if(handler == null) {
+                    throw new IOException("response received for unknown " +
+                                          "request " + response.requestId);
+                }
+                reused = true;
+                lastUsed = System.currentTimeMillis();
+                response.streams = streams;
+                complete(handler, response);
+            }
+        } catch(IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Notifies the handler of a response, once the bytes sent to the output
+        streams passed to the call, if any, have all been written to them. */
+    private void complete(final ClientSelector.ResponseHandler handler,
+                          final Protocol.Frame response) {
+        CompletableFuture<Void> sinks =
+            streams == null ? null : streams.sinks(response.requestId);
+        if(sinks == null) {
+            handler.completed(response);
+            return;
+        }
+
+        sinks.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if(error == null) {
+                    handler.completed(response);
+                } else {
+                    handler.failed(new IOException(
+                        "cannot write stream passed to call", error), false);
+                }
+            }
+        });
+    }
+
+    /** Closes the connection if no call is waiting for a response on it and
+        it has been unused since the given time. */
+    void closeIfIdleSince(long deadline) {
+        synchronized(this) {
+            if(closed || !pending.isEmpty() || !writes.isEmpty() ||
+               lastUsed >= deadline ||
+               (streams != null && !streams.isIdle())) {
+                return;
+            }
+        }
+        fail(new IOException("connection closed after idle timeout"));
+    }
+
+    /** Closes the connection and fails every call waiting for a response.
+        Only the calls whose requests were not written in full are reported
+        as unsent: the skeleton may have read any other request, and be
+        running its call. */
+    private void fail(IOException cause) {
+        HashSet<Integer> unsent = new HashSet<Integer>();
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            for(long[] request : unwritten) {
+                unsent.add((int) request[0]);
+            }
+            unwritten.clear();
+            writes.clear();
+            queued = 0;
+        }
+        connection.close();
+        if(streams != null) {
+            streams.fail(cause);
+        }
+
+        ArrayList<Integer> ids = new ArrayList<Integer>(pending.keySet());
+        for(Integer id : ids) {
+            ClientSelector.ResponseHandler handler = pending.remove(id);
+            if(handler != null) {
+                handler.failed(cause, unsent.contains(id));
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a method of a remote interface as one-way.
+
+    <p>
+    A call to a one-way method returns as soon as its request has been handed
+    to the transport, without waiting for the remote method to run. The
+    skeleton runs the method as usual, but sends no response: if the method
+    throws an exception, or the call cannot be carried out, the skeleton
+    reports it through <code>Skeleton.service_error</code>, and the caller is
+    not told. Calls rejected by a busy skeleton are only counted by
+    <code>Skeleton.getRejectedCalls</code>. The stub throws
+    <code>RMIException</code> only if the request cannot be sent.
+
+    <p>
+    Only methods returning <code>void</code> may be one-way; the annotation is
+    ignored on other methods. It is also ignored when the skeleton does not
+    support one-way calls, in which case the method is called as usual. Calls
+    recorded in a <code>Batch</code> are always answered.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay
+{
+}
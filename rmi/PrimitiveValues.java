@@ -0,0 +1,223 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/** Encoding of values whose declared type is primitive, boxed or
+    <code>String</code>.
+
+    <p>
+    When both sides of a connection support
+    <code>Protocol.CAP_PRIMITIVES</code>, a value written with Java
+    serialization whose parameter or return type is one of these is written
+    raw instead, from the declared type alone: <code>int</code> and
+    <code>long</code> values as zig-zag variable-length integers, so that
+    small values of either sign take one byte, <code>float</code> and
+    <code>double</code> values as their bits, and the other primitives at their
+    natural width. A boxed value is preceded by a byte telling whether it is
+    present or <code>null</code>. A string is written as a variable-length
+    integer, zero for <code>null</code> and otherwise one more than the number
+    of bytes to follow, and then its characters in the modified UTF-8 of
+    <code>DataOutput.writeUTF</code>, so that every string, including one with
+    unpaired surrogates, is read back unchanged.
+
+    <p>
+    Reading checks every length against the bytes remaining in the payload.
+ */
+class PrimitiveValues {
+    private PrimitiveValues() {
+    }
+
+    /** Returns <code>true</code> if values of the given declared type are
+        written raw. */
+    static boolean specialized(Class<?> type) {
+        return type != null && type != void.class &&
+               (type.isPrimitive() || type == String.class ||
+                type == Integer.class || type == Long.class ||
+                type == Boolean.class || type == Byte.class ||
+                type == Short.class || type == Character.class ||
+                type == Float.class || type == Double.class);
+    }
+
+    /** Writes a value of a specialized declared type. */
+    static void write(DataOutputStream out, Class<?> type, Object value)
+        throws IOException {
+        if(!type.isPrimitive()) {
+            if(type == String.class) {
+                writeString(out, (String) value);
+                return;
+            }
+            out.writeBoolean(value != null);
+            if(value == null) {
+                return;
+            }
+        } else if(value == null) {
+            throw new IOException("null value for primitive type " + type);
+        }
+
+        if(value instanceof Integer) {
+            writeVarLong(out, (Integer) value);
+        } else if(value instanceof Long) {
+            writeVarLong(out, (Long) value);
+        } else if(value instanceof Boolean) {
+            out.writeBoolean((Boolean) value);
+        } else if(value instanceof Byte) {
+            out.writeByte((Byte) value);
+        } else if(value instanceof Short) {
+            out.writeShort((Short) value);
+        } else if(value instanceof Character) {
+            out.writeChar((Character) value);
+        } else if(value instanceof Float) {
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if(value instanceof Double) {
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else {
+            throw new IOException("value of " + value.getClass() +
+                                  " given for " + type);
+        }
+    }
+
+    /** Reads a value of a specialized declared type.
+
+        @throws IOException If the payload ends early or holds an invalid
+                            value.
+     */
+    static Object read(DataInputStream in, Class<?> type) throws IOException {
+        if(!type.isPrimitive()) {
+            if(type == String.class) {
+                return readString(in);
+            }
+            if(!in.readBoolean()) {
+                return null;
+            }
+        }
+
+        if(type == int.class || type == Integer.class) {
+            long value = readVarLong(in);
+            if(value != (int) value) {
+                throw new IOException("integer out of range");
+            }
+            return (int) value;
+        } else if(type == long.class || type == Long.class) {
+            return readVarLong(in);
+        } else if(type == boolean.class || type == Boolean.class) {
+            return in.readBoolean();
+        } else if(type == byte.class || type == Byte.class) {
+            return in.readByte();
+        } else if(type == short.class || type == Short.class) {
+            return in.readShort();
+        } else if(type == char.class || type == Character.class) {
+            return in.readChar();
+        } else if(type == float.class || type == Float.class) {
+            return Float.intBitsToFloat(in.readInt());
+        } else {
+            return Double.longBitsToDouble(in.readLong());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException {
+        if(value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+
+        int length = value.length();
+        int encoded = length;
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(c == 0 || c >= 0x80) {
+                encoded += c < 0x800 ? 1 : 2;
+            }
+        }
+
+        writeVarLong(out, encoded + 1L);
+        if(encoded == length) {
+            out.writeBytes(value);
+            return;
+        }
+
+        byte[] bytes = new byte[encoded];
+        int position = 0;
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(c != 0 && c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if(c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if(length < 0) {
+            if(length == -1) {
+                return null;
+            }
+            throw new IOException("invalid string length " + length);
+        }
+        if(length > in.available()) {
+            throw new EOFException("string longer than the payload");
+        }
+
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+
+        char[] chars = new char[bytes.length];
+        int count = 0;
+        for(int i = 0; i < bytes.length; ) {
+            int b = bytes[i++] & 0xff;
+            if(b < 0x80) {
+                chars[count++] = (char) b;
+            } else if((b & 0xe0) == 0xc0 && i < bytes.length &&
+                      (bytes[i] & 0xc0) == 0x80) {
+                chars[count++] = (char) (((b & 0x1f) << 6) |
+                                         (bytes[i++] & 0x3f));
+            } else if((b & 0xf0) == 0xe0 && i + 1 < bytes.length &&
+                      (bytes[i] & 0xc0) == 0x80 &&
+                      (bytes[i + 1] & 0xc0) == 0x80) {
+                chars[count++] = (char) (((b & 0x0f) << 12) |
+                                         ((bytes[i] & 0x3f) << 6) |
+                                         (bytes[i + 1] & 0x3f));
+                i += 2;
+            } else {
+                throw new UTFDataFormatException("malformed string");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /** Writes a zig-zag variable-length integer: seven bits per byte, least
+        significant first, the high bit set on every byte but the last. */
+    static void writeVarLong(DataOutputStream out, long value)
+        throws IOException {
+        long bits = (value << 1) ^ (value >> 63);
+        while((bits & ~0x7fL) != 0) {
+            out.writeByte((int) (bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte((int) bits);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long bits = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            bits |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0) {
+                return (bits >>> 1) ^ -(bits & 1);
+            }
+        }
+        throw new IOException("variable-length integer too long");
+    }
+}
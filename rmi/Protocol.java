@@ -0,0 +1,1219 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/** Wire protocol shared by stubs and skeletons.
+
+    <p>
+    A stub that wishes to make several calls over one connection begins the
+    connection with a preface: the integer <code>MAGIC</code> followed by the
+    highest protocol version it speaks and, from version 2, a bitmask of the
+    optional capabilities it supports. The skeleton answers with the same magic
+    number, the version both sides will speak, which is the lower of the two
+    versions, and from version 2 the capabilities both sides support. When both
+    sides support <code>CAP_METHOD_IDS</code>, the skeleton's answer ends with
+    the eight-byte fingerprint of its remote interface, computed by
+    <code>MethodTable</code>. Both sides then exchange frames until the stub
+    closes the connection.
+
+    <p>
+    In version 1, a frame is a four-byte length followed by that many bytes of
+    payload. Request payloads carry the method name, parameter types and
+    arguments; response payloads carry a flag telling whether the call raised an
+    exception, followed by the result or the exception. Both are written with
+    Java serialization.
+
+    <p>
+    In version 2, a frame opens with a fixed header of
+    <code>HEADER_LENGTH</code> bytes: the two-byte <code>FRAME_MAGIC</code>, the
+    version byte, a flags byte, the request identifier, the method identifier
+    and the payload length. The response to a request carries the request's
+    identifier. A request payload names the method in binary form - the method
+    name and the names of its parameter types as UTF strings - so that the
+    skeleton can parse it with a few bounded reads. Only the arguments, if
+    there are any, are written with Java serialization. A response payload is
+    the serialized result or exception. Whether it is an exception, and whether
+    the result is <code>null</code>, in which case the payload is empty, is
+    given by the flags.
+
+    <p>
+    A version 2 request whose method identifier is not
+    <code>NO_METHOD_ID</code> identifies its method by its index in the
+    <code>MethodTable</code> of the remote interface. Its payload carries only
+    the arguments. Stubs send such requests only when the skeleton's interface
+    fingerprint matches their own.
+
+    <p>
+    When both sides support <code>CAP_MULTIPLEX</code>, a connection carries
+    many calls at once. The stub may send a request before the responses to
+    its earlier requests have arrived, the skeleton runs the requests
+    concurrently, and it writes each response as soon as its call completes,
+    so responses may arrive in any order. The stub matches them to requests by
+    their request identifiers. Without this capability, a stub sends its next
+    request only once the response to the previous one has arrived.
+
+    <p>
+    When both sides support <code>CAP_BATCH</code>, the stub may send several
+    calls in one request, marked with <code>FLAG_BATCH</code>. The payload of
+    a batch is a count followed by one entry per call, each of which is a
+    flags byte, a method identifier, a length and the payload of the call's
+    own request. The skeleton makes the calls in order or, if the request also
+    carries <code>FLAG_PARALLEL</code>, concurrently, and answers with a single
+    response whose payload holds the responses to the calls, in the same
+    order and in the same format. The response flags of each call are given
+    in its entry.
+
+    <p>
+    When both sides support <code>CAP_ONE_WAY</code>, a request marked with
+    <code>FLAG_ONE_WAY</code> is not answered. The skeleton makes the call
+    and discards its outcome.
+
+    <p>
+    When both sides support <code>CAP_UNIX_SOCKET</code>, the skeleton also
+    listens on a Unix domain socket, whose path follows the fingerprint in its
+    answer as a UTF string. The skeleton advertises the path only on TCP
+    connections. Stubs on the same host may open their later connections on
+    the domain socket, over which the protocol is otherwise unchanged.
+
+    <p>
+    When both sides support <code>CAP_CODEC</code>, the skeleton's answer
+    ends with the name of the <code>Codec</code> selected for its remote
+    interface, as a UTF string. A stub that has selected a codec of the same
+    name encodes the arguments of its requests with it, and marks them with
+    <code>FLAG_CODEC</code>. The skeleton then encodes the result of the call
+    with the codec, and marks the response in the same way. Exceptions, and
+    requests and responses without the flag, are written with Java
+    serialization.
+
+    <p>
+    When both sides support <code>CAP_DESCRIPTORS</code>, payloads written
+    with Java serialization omit the stream header and refer to class
+    descriptors by identifier, as described in <code>ClassDescriptors</code>.
+    The descriptors are sent once per connection, in frames marked with
+    <code>FLAG_DEFINITIONS</code>, each of which comes just before the first
+    frame that needs it. Definitions frames are neither requests nor
+    responses; readers record their descriptors and pass on to the next
+    frame.
+
+    <p>
+    When both sides support <code>CAP_PRIMITIVES</code>, values written with
+    Java serialization whose declared type is primitive, boxed or
+    <code>String</code> are written raw instead, as described in
+    <code>PrimitiveValues</code>, ahead of the object stream holding the
+    other values, which is omitted if there are none. The declared types are
+    the method's parameter types and, for a response to a request carrying a
+    method identifier, its return type. The result of a request naming its
+    method, and an exception, are always written in the object stream.
+
+    <p>
+    When both sides support <code>CAP_SEGMENTS</code>, values written with
+    Java serialization whose declared type is <code>byte[]</code>,
+    <code>ByteBuffer</code> or <code>ByteBuffer[]</code> are not serialized.
+    Their bytes follow the rest of the payload as raw segments, as described
+    in <code>Segments</code>, and are counted in the frame length. A batch
+    entry carries the segments of its call in the same way, after the rest
+    of its payload.
+
+    <p>
+    When both sides support <code>CAP_STREAMS</code>, which a skeleton
+    agrees to only together with <code>CAP_MULTIPLEX</code>, values written
+    with Java serialization whose declared type is <code>InputStream</code>,
+    <code>OutputStream</code> or <code>Flow.Publisher</code> are not
+    serialized either. The payload holds only whether each is
+    <code>null</code>, and the bytes of the streams travel in frames whose
+    method identifier is <code>STREAM_METHOD_ID</code>, interleaved with
+    the other frames of the connection, as described in
+    <code>Streams</code>. Stream frames are neither requests nor responses.
+
+    <p>
+    When both sides support <code>CAP_COMPRESSION</code>, the payload of a
+    request or response, or of a call in a batch, may be compressed, in which
+    case it is marked with <code>FLAG_COMPRESSED</code>. Its payload is then
+    the name of the <code>Compressor</code> as a UTF string, the length of
+    the uncompressed payload, segments included, and the compressed bytes.
+    The receiver decompresses the payload before decoding it, and the frame
+    is otherwise unchanged. Each side decides which of the payloads it sends
+    are compressed, as described in <code>Compressors</code>.
+
+    <p>
+    A connection that does not begin with the preface is an old-style
+    single-call connection: it begins directly with an object stream header and
+    carries exactly one call.
+ */
+class Protocol {
+    /** Magic number opening a keep-alive connection preface. */
+    static final int MAGIC = 0x524d494b;
+    /** Highest version of the framed protocol spoken by this implementation. */
+    static final int VERSION = 2;
+    /** Lowest version of the framed protocol accepted by skeletons. */
+    static final int MIN_VERSION = 1;
+    /** Capability: the skeleton sends its interface fingerprint and accepts
+        requests carrying method identifiers. */
+    static final int CAP_METHOD_IDS = 0x01;
+    /** Capability: requests on a connection may be outstanding at the same
+        time, and are answered in any order. */
+    static final int CAP_MULTIPLEX = 0x02;
+    /** Capability: requests may carry a batch of calls. */
+    static final int CAP_BATCH = 0x04;
+    /** Capability: requests may ask not to be answered. */
+    static final int CAP_ONE_WAY = 0x08;
+    /** Capability: the skeleton answers with the path of a Unix domain socket
+        on which it also listens. */
+    static final int CAP_UNIX_SOCKET = 0x10;
+    /** Capability: the skeleton answers with the name of its codec, and
+        accepts requests encoded with it. */
+    static final int CAP_CODEC = 0x20;
+    /** Capability: serialized payloads refer to class descriptors sent
+        earlier on the connection. */
+    static final int CAP_DESCRIPTORS = 0x40;
+    /** Capability: serialized values of primitive, boxed and string types
+        are written raw. */
+    static final int CAP_PRIMITIVES = 0x80;
+    /** Capability: serialized values of binary types are sent as raw
+        segments after the payload. */
+    static final int CAP_SEGMENTS = 0x100;
+    /** Capability: serialized values of stream types are sent as streams
+        of frames after the frame carrying them. */
+    static final int CAP_STREAMS = 0x200;
+    /** Capability: payloads may be compressed. */
+    static final int CAP_COMPRESSION = 0x400;
+    /** Optional capabilities supported by this implementation. */
+    static final int CAPABILITIES =
+        CAP_METHOD_IDS | CAP_MULTIPLEX | CAP_BATCH | CAP_ONE_WAY |
+        CAP_UNIX_SOCKET | CAP_CODEC | CAP_DESCRIPTORS | CAP_PRIMITIVES |
+        CAP_SEGMENTS | CAP_STREAMS | CAP_COMPRESSION;
+    /** Largest frame accepted from the network. */
+    static final int MAX_FRAME_LENGTH = 1 << 30;
+    /** Size of the buffer first allocated for the payload of a received
+        frame. Larger payloads are read into buffers that grow as their bytes
+        arrive, so that a header declaring a large payload does not by itself
+        make the reader allocate it. */
+    static final int INITIAL_PAYLOAD = 64 * 1024;
+
+    /** Magic number opening each version 2 frame. */
+    static final short FRAME_MAGIC = 0x524d;
+    /** Length of a version 2 frame header. */
+    static final int HEADER_LENGTH = 16;
+    /** Method identifier of requests that name their method in the
+        payload. */
+    static final int NO_METHOD_ID = -1;
+    /** Method identifier of the frames carrying the bytes of streams. */
+    static final int STREAM_METHOD_ID = -2;
+
+    /** Response flag: the result is an exception thrown by the call. */
+    static final int FLAG_EXCEPTION = 0x01;
+    /** Response flag: the result is <code>null</code> and the payload is
+        empty. */
+    static final int FLAG_NULL_RESULT = 0x02;
+    /** Request flag: the payload is a batch of calls. */
+    static final int FLAG_BATCH = 0x04;
+    /** Request flag: the calls of a batch may be made concurrently. */
+    static final int FLAG_PARALLEL = 0x08;
+    /** Request flag: the request is not answered. */
+    static final int FLAG_ONE_WAY = 0x10;
+    /** Request and response flag: the arguments or result are encoded with
+        the codec agreed on the connection. */
+    static final int FLAG_CODEC = 0x20;
+    /** Frame flag: the frame defines class descriptors used by the frames
+        after it. */
+    static final int FLAG_DEFINITIONS = 0x40;
+    /** Request and response flag: the payload is compressed. */
+    static final int FLAG_COMPRESSED = 0x80;
+
+    private Protocol() {
+    }
+
+    /** Returns the version a skeleton speaks with a stub offering the given
+        version.
+
+        @throws IOException If the offered version is too old.
+     */
+    static int acceptVersion(int offered) throws IOException {
+        if(offered < MIN_VERSION) {
+            throw new IOException("unsupported protocol version " + offered);
+        }
+        return Math.min(offered, VERSION);
+    }
+
+    /** Returns the length of the preface sent by a stub speaking the given
+        version. */
+    static int prefaceLength(int version) {
+        return version >= 2 ? 12 : 8;
+    }
+
+    /** Writes the skeleton's answer to a preface, without flushing the
+        stream.
+
+        @param version The agreed version.
+        @param capabilities The agreed capabilities.
+        @param fingerprint The fingerprint of the skeleton's remote interface,
+                           written if <code>CAP_METHOD_IDS</code> was agreed.
+        @param unixSocket The path of the skeleton's Unix domain socket,
+                          written if <code>CAP_UNIX_SOCKET</code> was agreed.
+        @param codec The name of the skeleton's codec, written if
+                     <code>CAP_CODEC</code> was agreed.
+     */
+    static void writeReply(DataOutputStream out, int version,
+                           int capabilities, long fingerprint,
+                           String unixSocket, String codec)
+        throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+        if(version >= 2) {
+            out.writeInt(capabilities);
+        }
+        if((capabilities & CAP_METHOD_IDS) != 0) {
+            out.writeLong(fingerprint);
+        }
+        if((capabilities & CAP_UNIX_SOCKET) != 0) {
+            out.writeUTF(unixSocket);
+        }
+        if((capabilities & CAP_CODEC) != 0) {
+            out.writeUTF(codec);
+        }
+    }
+
+    /** Writes a frame and flushes the stream. */
+    static void writeFrame(DataOutputStream out, int version, Frame frame)
+        throws IOException {
+        appendFrame(out, version, frame);
+        out.flush();
+    }
+
+    /** Writes a frame without flushing the stream, so that it can be sent
+        together with the frames written after it. */
+    static void appendFrame(DataOutputStream out, int version, Frame frame)
+        throws IOException {
+        if(version >= 2) {
+            out.writeShort(FRAME_MAGIC);
+            out.writeByte(version);
+            out.writeByte(frame.flags);
+            out.writeInt(frame.requestId);
+            out.writeInt(frame.methodId);
+        }
+        out.writeInt(frame.wireLength());
+        out.write(frame.payload);
+        writeSegments(out, frame);
+    }
+
+    /** Writes the segments of a frame, if it has any. */
+    private static void writeSegments(DataOutputStream out, Frame frame)
+        throws IOException {
+        if(frame.segments != null) {
+            for(ByteBuffer segment : frame.segments) {
+                Segments.writeTo(out, segment);
+            }
+        }
+    }
+
+    /** Writes a frame without flushing the stream, preceded by a definitions
+        frame if it uses class descriptors not yet defined on the connection.
+
+        @param descriptors The descriptors defined on the connection, or
+                           <code>null</code> if <code>CAP_DESCRIPTORS</code>
+                           was not agreed.
+     */
+    static void appendFrame(DataOutputStream out, int version, Frame frame,
+                            ClassDescriptors.Outgoing descriptors)
+        throws IOException {
+        Frame definitions =
+            descriptors == null ? null : descriptors.definitions(frame);
+        if(definitions != null) {
+            appendFrame(out, version, definitions);
+        }
+        appendFrame(out, version, frame);
+    }
+
+    /** Returns a frame in buffers ready for a gathering write: the header
+        and payload in the first, and each segment, not copied, in one of its
+        own. */
+    static ByteBuffer[] toBuffers(int version, Frame frame) {
+        int count = frame.segments == null ? 0 : frame.segments.length;
+        ByteBuffer[] buffers = new ByteBuffer[1 + count];
+        ByteBuffer buffer = ByteBuffer.allocate(
+            headerLength(version) + frame.payload.length);
+        if(version >= 2) {
+            buffer.putShort(FRAME_MAGIC).put((byte) version)
+                  .put((byte) frame.flags).putInt(frame.requestId)
+                  .putInt(frame.methodId);
+        }
+        buffer.putInt(frame.wireLength()).put(frame.payload).flip();
+        buffers[0] = buffer;
+        for(int i = 0; i < count; i++) {
+            buffers[1 + i] = frame.segments[i].duplicate();
+        }
+        return buffers;
+    }
+
+    /** Returns the length of a frame header in the given version. */
+    static int headerLength(int version) {
+        return version >= 2 ? HEADER_LENGTH : 4;
+    }
+
+    /** Reads a frame.
+
+        @return The frame, or <code>null</code> if the stream ended cleanly
+                before the frame began.
+        @throws IOException If the frame cannot be read or is invalid.
+     */
+    static Frame readFrame(DataInputStream in, int version)
+        throws IOException {
+        return readFrame(in, version, in.read());
+    }
+
+    /** Reads a frame whose first byte has already been read.
+
+        @param first The first byte of the frame, or <code>-1</code> if the
+                     stream has ended.
+        @return The frame, or <code>null</code> if <code>first</code> is
+                negative.
+        @throws IOException If the frame cannot be read or is invalid.
+     */
+    static Frame readFrame(DataInputStream in, int version, int first)
+        throws IOException {
+        if(first < 0) {
+            return null;
+        }
+
+        byte[] header = new byte[headerLength(version)];
+        header[0] = (byte) first;
+        in.readFully(header, 1, header.length - 1);
+
+        Frame frame = parseHeader(ByteBuffer.wrap(header), version);
+        frame.payload = readPayload(in, frame.length);
+        return frame;
+    }
+
+    /** Reads a payload of the given length, growing the array it is read
+        into as its bytes arrive.
+
+        @throws EOFException If the stream ends before the payload does.
+     */
+    private static byte[] readPayload(DataInputStream in, int length)
+        throws IOException {
+        byte[] payload = new byte[Math.min(length, INITIAL_PAYLOAD)];
+        in.readFully(payload);
+
+        int count = payload.length;
+        while(count < length) {
+            payload = Arrays.copyOf(payload,
+                                    (int) Math.min(length, 2L * count));
+            in.readFully(payload, count, payload.length - count);
+            count = payload.length;
+        }
+        return payload;
+    }
+
+    /** Returns a buffer into which to read the payload of a frame whose
+        header has been parsed. The buffer is smaller than the payload if the
+        payload is large, and is grown with <code>growPayload</code>. */
+    static ByteBuffer newPayload(Frame frame) {
+        return ByteBuffer.allocate(Math.min(frame.length, INITIAL_PAYLOAD));
+    }
+
+    /** Returns the buffer into which to read the rest of a payload: the
+        given buffer if it has room left or holds the whole payload, and
+        otherwise a copy of it with twice the room, up to the length of the
+        payload. */
+    static ByteBuffer growPayload(ByteBuffer payload, Frame frame) {
+        if(payload.hasRemaining() || payload.capacity() == frame.length) {
+            return payload;
+        }
+
+        ByteBuffer grown = ByteBuffer.allocate(
+            (int) Math.min(frame.length, 2L * payload.capacity()));
+        payload.flip();
+        return grown.put(payload);
+    }
+
+    /** Reads a frame whose first byte has already been read, recording the
+        descriptors of any definitions frames that come before it.
+
+        @param first The first byte of the frame, or <code>-1</code> if the
+                     stream has ended.
+        @param capabilities The capabilities agreed on the connection.
+        @param descriptors The descriptors defined on the connection, or
+                           <code>null</code> if <code>CAP_DESCRIPTORS</code>
+                           was not agreed.
+        @return The frame, or <code>null</code> if <code>first</code> is
+                negative.
+        @throws IOException If the frame cannot be read or is invalid.
+     */
+    static Frame readFrame(DataInputStream in, int version, int first,
+                           int capabilities,
+                           ClassDescriptors.Incoming descriptors)
+        throws IOException {
+        Frame frame = readFrame(in, version, first);
+        while(frame != null && receive(frame, capabilities, descriptors)) {
+            frame = readFrame(in, version);
+            if(frame == null) {
+                throw new EOFException("stream ended after class " +
+                                       "descriptor definitions");
+            }
+        }
+        return frame;
+    }
+
+    /** Records the descriptors of a received frame if it is a definitions
+        frame, or otherwise attaches the capabilities and descriptors of the
+        connection to it, so that its payload can be decoded.
+
+        @param capabilities The capabilities agreed on the connection.
+        @param descriptors The descriptors defined on the connection, or
+                           <code>null</code> if <code>CAP_DESCRIPTORS</code>
+                           was not agreed.
+        @return <code>true</code> if the frame is a definitions frame, and is
+                not to be passed on.
+        @throws IOException If the frame is an invalid or unexpected
+                            definitions frame.
+     */
+    static boolean receive(Frame frame, int capabilities,
+                           ClassDescriptors.Incoming descriptors)
+        throws IOException {
+        if((frame.flags & FLAG_DEFINITIONS) == 0) {
+            frame.capabilities = capabilities;
+            frame.descriptors = descriptors;
+            return false;
+        }
+
+        if(descriptors == null) {
+            throw new IOException("unexpected class descriptor definitions");
+        }
+        descriptors.define(frame);
+        return true;
+    }
+
+    /** Parses a complete frame header. The payload of the returned frame is
+        not yet allocated; its length is given by <code>length</code>.
+
+        @throws IOException If the header is invalid.
+     */
+    static Frame parseHeader(ByteBuffer header, int version)
+        throws IOException {
+        Frame frame = new Frame();
+
+        if(version >= 2) {
+            if(header.getShort() != FRAME_MAGIC) {
+                throw new IOException("invalid frame magic");
+            }
+            int frameVersion = header.get();
+            if(frameVersion != version) {
+                throw new IOException("unexpected frame version " +
+                                      frameVersion);
+            }
+            frame.flags = header.get() & 0xff;
+            frame.requestId = header.getInt();
+            frame.methodId = header.getInt();
+        }
+
+        frame.length = header.getInt();
+        if(frame.length < 0 || frame.length > MAX_FRAME_LENGTH) {
+            throw new IOException("invalid frame length " + frame.length);
+        }
+        return frame;
+    }
+
+    /** Returns the signature by which a method is identified on the wire:
+        its name followed by the names of its parameter types. */
+    static String signature(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        String[] names = new String[types.length];
+        for(int i = 0; i < types.length; i++) {
+            names[i] = types[i].getName();
+        }
+        return signature(method.getName(), names);
+    }
+
+    static String signature(String name, String[] typeNames) {
+        StringBuilder signature = new StringBuilder(name).append('(');
+        for(int i = 0; i < typeNames.length; i++) {
+            if(i > 0) {
+                signature.append(',');
+            }
+            signature.append(typeNames[i]);
+        }
+        return signature.append(')').toString();
+    }
+
+    /** Encodes the payload of a call request.
+
+        @param version The protocol version.
+        @param methodId The identifier of the method, or
+                        <code>NO_METHOD_ID</code> to name the method in the
+                        payload. Identifiers are only used from version 2.
+        @param method The method.
+        @param args The arguments.
+        @param codec The codec encoding the arguments from version 2. The
+                     request is marked with <code>FLAG_CODEC</code> unless
+                     the codec is <code>Codecs.JAVA</code>.
+        @param capabilities The capabilities agreed on the connection, of
+                            which <code>CAP_DESCRIPTORS</code>,
+                            <code>CAP_PRIMITIVES</code>,
+                            <code>CAP_SEGMENTS</code> and
+                            <code>CAP_STREAMS</code> shape arguments
+                            written with Java serialization.
+        @return The request frame, without its request identifier. Its
+                capabilities are those on which the payload relies.
+     */
+    static Frame encodeRequest(int version, int methodId, Method method,
+                               Object[] args, Codec codec, int capabilities)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        if(version < 2) {
+            ObjectOutputStream ostream = new ObjectOutputStream(bytes);
+            ostream.writeObject(method.getName());
+            ostream.writeObject(method.getParameterTypes());
+            if(args != null) {
+                for(Object arg : args) {
+                    ostream.writeObject(arg);
+                }
+            }
+            ostream.close();
+            return new Frame(NO_METHOD_ID, bytes.toByteArray());
+        }
+
+        Frame frame = new Frame();
+        if(codec != Codecs.JAVA) {
+            frame.flags |= FLAG_CODEC;
+        }
+
+        DataOutputStream ostream = new DataOutputStream(bytes);
+        Class<?>[] types = method.getParameterTypes();
+        if(methodId == NO_METHOD_ID) {
+            ostream.writeUTF(method.getName());
+            ostream.writeShort(types.length);
+            for(Class<?> type : types) {
+                ostream.writeUTF(type.getName());
+            }
+        }
+
+        if(types.length > 0) {
+            if(codec == Codecs.JAVA) {
+                writeJava(ostream, types, args, capabilities, frame, 1);
+            } else {
+                codec.write(ostream, types, args);
+            }
+        }
+        ostream.close();
+
+        frame.methodId = methodId;
+        frame.payload = bytes.toByteArray();
+        frame.length = frame.payload.length;
+        return frame;
+    }
+
+    /** Decodes a call request, resolving its method in the remote
+        interface's method table.
+
+        @param codec The codec agreed on the connection, which decodes
+                     requests marked with <code>FLAG_CODEC</code>.
+
+        @return The request. Its method is <code>null</code> if the request
+                refers to a method that is not part of the remote interface.
+        @throws IOException If the request cannot be decoded.
+        @throws ClassNotFoundException If the request refers to a class that
+                                       cannot be loaded.
+     */
+    static Request decodeRequest(int version, Frame frame, MethodTable table,
+                                 Codec codec)
+        throws IOException, ClassNotFoundException {
+        if(version < 2) {
+            return readRequest(decode(frame.payload), table);
+        }
+
+        expand(frame);
+        DataInputStream istream =
+            new DataInputStream(new ByteArrayInputStream(frame.payload));
+        String name;
+        Method method;
+        Class<?>[] types;
+        if(frame.methodId != NO_METHOD_ID) {
+            method = table.method(frame.methodId);
+            if(method == null) {
+                return new Request("#" + frame.methodId, NO_METHOD_ID, null,
+                                   new Object[0]);
+            }
+            name = method.getName();
+            types = method.getParameterTypes();
+        } else {
+            name = istream.readUTF();
+            String[] typeNames = new String[istream.readUnsignedShort()];
+            for(int i = 0; i < typeNames.length; i++) {
+                typeNames[i] = istream.readUTF();
+            }
+            method = table.lookup(signature(name, typeNames));
+            if(method == null) {
+                // The arguments cannot be decoded without the parameter
+                // types, and the call fails anyway.
+                return new Request(name, NO_METHOD_ID, null, new Object[0]);
+            }
+            types = method.getParameterTypes();
+        }
+
+        Object[] args = new Object[0];
+        if(types.length > 0) {
+            if((frame.flags & FLAG_CODEC) != 0) {
+                args = codec.read(istream, types);
+            } else {
+                args = readJava(istream, types, frame, 1);
+            }
+        }
+
+        return new Request(name, table, method, args);
+    }
+
+    /** Reads a request written with Java serialization, as carried by
+        version 1 frames and old-style single-call connections. */
+    static Request readRequest(ObjectInputStream istream, MethodTable table)
+        throws IOException, ClassNotFoundException {
+        String methodName = (String) istream.readObject();
+        if(Log.debugging()) {
+            Log.debug("methodName: " + methodName);
+        }
+        Class<?>[] paramTypes = (Class<?>[]) istream.readObject();
+        if(Log.debugging()) {
+            Log.debug("paramTypes.length: " + paramTypes.length);
+        }
+
+        String[] typeNames = new String[paramTypes.length];
+        Object[] args = new Object[paramTypes.length];
+        for (int i = 0; i < args.length; i++) {
+            typeNames[i] = paramTypes[i].getName();
+            args[i] = istream.readObject();
+            if(Log.debugging()) {
+                Log.debug("args["+i+"] = " + args[i]);
+            }
+        }
+
+        return new Request(methodName, table,
+                           table.lookup(signature(methodName, typeNames)),
+                           args);
+    }
+
+    /** Encodes the response to a call with Java serialization. */
+    static Frame encodeResponse(int version, Frame request,
+                                Dispatcher.Outcome outcome)
+        throws IOException {
+        return encodeResponse(version, request, outcome, Codecs.JAVA,
+                              Object.class);
+    }
+
+    /** Encodes the response to a call. The result of a request marked with
+        <code>FLAG_CODEC</code> is encoded with the given codec, and an
+        exception always with Java serialization, in the form agreed on the
+        connection on which the request was received.
+
+        @param codec The codec agreed on the connection.
+        @param type The declared type of the result.
+     */
+    static Frame encodeResponse(int version, Frame request,
+                                Dispatcher.Outcome outcome, Codec codec,
+                                Class<?> type)
+        throws IOException {
+        Frame frame = new Frame();
+        frame.requestId = request.requestId;
+        frame.methodId = request.methodId;
+
+        if(version < 2) {
+            frame.payload = encodeResult(outcome.exceptionThrown,
+                                         outcome.result);
+            return frame;
+        }
+
+        if(outcome.exceptionThrown) {
+            frame.flags |= FLAG_EXCEPTION;
+        }
+        if(outcome.result == null) {
+            frame.flags |= FLAG_NULL_RESULT;
+            frame.payload = new byte[0];
+            return frame;
+        }
+
+        if(outcome.exceptionThrown || (request.flags & FLAG_CODEC) == 0) {
+            codec = Codecs.JAVA;
+        } else {
+            frame.flags |= FLAG_CODEC;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if(codec == Codecs.JAVA) {
+            DataOutputStream ostream = new DataOutputStream(bytes);
+            writeJava(ostream,
+                      new Class<?>[] {resultType(frame, outcome, type)},
+                      new Object[] {outcome.result}, request.capabilities,
+                      frame, Streams.RESULT);
+            ostream.flush();
+        } else {
+            codec.write(bytes, new Class<?>[] {type},
+                        new Object[] {outcome.result});
+        }
+        frame.payload = bytes.toByteArray();
+        return frame;
+    }
+
+    /** Encodes a result in the format of version 1 frames. */
+    static byte[] encodeResult(boolean exceptionThrown, Object result)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream ostream = new ObjectOutputStream(bytes);
+
+        ostream.writeBoolean(exceptionThrown);
+        ostream.writeObject(result);
+        ostream.close();
+
+        return bytes.toByteArray();
+    }
+
+    /** Decodes the response to a call.
+
+        @param codec The codec of the stub, which decodes responses marked
+                     with <code>FLAG_CODEC</code>.
+        @param type The declared type of the result.
+        @throws IOException If the response cannot be decoded.
+        @throws ClassNotFoundException If the response refers to a class that
+                                       cannot be loaded.
+     */
+    static Dispatcher.Outcome decodeResponse(int version, Frame frame,
+                                             Codec codec, Class<?> type)
+        throws IOException, ClassNotFoundException {
+        Dispatcher.Outcome outcome = new Dispatcher.Outcome();
+
+        if(version < 2) {
+            ObjectInputStream istream = decode(frame.payload);
+            outcome.exceptionThrown = istream.readBoolean();
+            outcome.result = istream.readObject();
+            return outcome;
+        }
+
+        expand(frame);
+        outcome.exceptionThrown = (frame.flags & FLAG_EXCEPTION) != 0;
+        if((frame.flags & FLAG_NULL_RESULT) == 0) {
+            DataInputStream istream =
+                new DataInputStream(new ByteArrayInputStream(frame.payload));
+            if((frame.flags & FLAG_CODEC) != 0) {
+                outcome.result = codec.read(istream,
+                                            new Class<?>[] {type})[0];
+            } else {
+                outcome.result = readJava(
+                    istream,
+                    new Class<?>[] {resultType(frame, outcome, type)},
+                    frame, Streams.RESULT)[0];
+            }
+        }
+        return outcome;
+    }
+
+    /** Returns the type by which the result of a response is written with
+        Java serialization: its declared type for a result answering a
+        request that carried a method identifier, and <code>Object</code>
+        for an exception or for the result of a request naming its method,
+        whose declared type may differ between stub and skeleton. */
+    private static Class<?> resultType(Frame response,
+                                       Dispatcher.Outcome outcome,
+                                       Class<?> type) {
+        return outcome.exceptionThrown || response.methodId == NO_METHOD_ID
+             ? Object.class : type;
+    }
+
+    /** Writes values with Java serialization, in the form given by the
+        capabilities agreed on the connection: values of primitive, boxed
+        and string types first and raw if <code>CAP_PRIMITIVES</code> was
+        agreed, together with the lengths of values of binary types if
+        <code>CAP_SEGMENTS</code> was agreed, whose bytes become the frame's
+        segments, and whether values of stream types are <code>null</code>
+        if <code>CAP_STREAMS</code> was agreed, and then an object stream
+        holding the other values, referring to class descriptors by
+        identifier if <code>CAP_DESCRIPTORS</code> was agreed.
+
+        @param frame The frame whose payload is written. Its capabilities
+                     are set to those on which the payload relies, its
+                     descriptor identifiers to those the payload uses, its
+                     segments to those of the values, and its stream values
+                     to the streams among them.
+        @param firstStream The number of the stream carrying the first
+                           value, if it is a stream.
+     */
+    private static void writeJava(DataOutputStream out, Class<?>[] types,
+                                  Object[] values, int capabilities,
+                                  Frame frame, int firstStream)
+        throws IOException {
+        int raw = 0;
+        for(Class<?> type : types) {
+            raw |= rawCapability(type, capabilities);
+        }
+        frame.capabilities |= raw;
+        if((raw & CAP_SEGMENTS) != 0) {
+            frame.segments = Segments.write(out, types, values);
+        }
+
+        int count = 0;
+        for(int i = 0; i < values.length; i++) {
+            switch(rawCapability(types[i], raw)) {
+            case CAP_PRIMITIVES:
+                PrimitiveValues.write(out, types[i], values[i]);
+                break;
+            case CAP_SEGMENTS:
+                Segments.write(out, types[i], values[i]);
+                break;
+            case CAP_STREAMS:
+                out.writeBoolean(values[i] != null);
+                if(values[i] != null) {
+                    if(frame.streamValues == null) {
+                        frame.streamValues =
+                            new Object[firstStream + values.length];
+                    }
+                    frame.streamValues[firstStream + i] = values[i];
+                }
+                break;
+            default:
+                ++count;
+            }
+        }
+        if(count == 0) {
+            return;
+        }
+
+        Object[] objects = values;
+        if(count < values.length) {
+            objects = new Object[count];
+            count = 0;
+            for(int i = 0; i < values.length; i++) {
+                if(rawCapability(types[i], raw) == 0) {
+                    objects[count++] = values[i];
+                }
+            }
+        }
+
+        if((capabilities & CAP_DESCRIPTORS) != 0) {
+            frame.capabilities |= CAP_DESCRIPTORS;
+            frame.descriptorIds = ClassDescriptors.write(out, objects);
+        } else {
+            Codecs.JAVA.write(out, new Class<?>[objects.length], objects);
+        }
+    }
+
+    /** Reads values written by <code>writeJava</code>, in the form agreed on
+        the connection on which the frame was received, taking the streams
+        among them from the connection. */
+    private static Object[] readJava(DataInputStream in, Class<?>[] types,
+                                     Frame frame, int firstStream)
+        throws IOException, ClassNotFoundException {
+        int raw = 0;
+        for(Class<?> type : types) {
+            raw |= rawCapability(type, frame.capabilities);
+        }
+        Segments.Region region = null;
+        if((raw & CAP_SEGMENTS) != 0) {
+            region = Segments.region(in, frame.payload);
+        }
+
+        Object[] values = new Object[types.length];
+        int count = 0;
+        for(int i = 0; i < types.length; i++) {
+            switch(rawCapability(types[i], raw)) {
+            case CAP_PRIMITIVES:
+                values[i] = PrimitiveValues.read(in, types[i]);
+                break;
+            case CAP_SEGMENTS:
+                values[i] = Segments.read(in, types[i], region);
+                break;
+            case CAP_STREAMS:
+                if(in.readBoolean()) {
+                    values[i] = Streams.take(frame, firstStream + i,
+                                             types[i]);
+                }
+                break;
+            default:
+                ++count;
+            }
+        }
+        if(region != null) {
+            region.finish();
+        }
+        if(count == 0) {
+            return values;
+        }
+
+        Object[] objects;
+        if((frame.capabilities & CAP_DESCRIPTORS) != 0) {
+            objects = ClassDescriptors.read(in, count, frame.descriptors);
+        } else {
+            objects = Codecs.JAVA.read(in, new Class<?>[count]);
+        }
+        count = 0;
+        for(int i = 0; i < types.length; i++) {
+            if(rawCapability(types[i], raw) == 0) {
+                values[i] = objects[count++];
+            }
+        }
+        return values;
+    }
+
+    /** Returns the capability under which values of the given declared type
+        are written raw, <code>CAP_PRIMITIVES</code>,
+        <code>CAP_SEGMENTS</code> or <code>CAP_STREAMS</code>, if it is among
+        the given capabilities, and zero otherwise. */
+    private static int rawCapability(Class<?> type, int capabilities) {
+        if(PrimitiveValues.specialized(type)) {
+            return capabilities & CAP_PRIMITIVES;
+        }
+        if(Segments.segmented(type)) {
+            return capabilities & CAP_SEGMENTS;
+        }
+        if(Streams.streamed(type)) {
+            return capabilities & CAP_STREAMS;
+        }
+        return 0;
+    }
+
+    /** Encodes the payload of a batch request or response.
+
+        @param frames The requests or responses of the calls in the batch.
+     */
+    static byte[] encodeBatch(Frame[] frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream ostream = new DataOutputStream(bytes);
+
+        ostream.writeInt(frames.length);
+        for(Frame frame : frames) {
+            ostream.writeByte(frame.flags);
+            ostream.writeInt(frame.methodId);
+            ostream.writeInt(frame.wireLength());
+            ostream.write(frame.payload);
+            writeSegments(ostream, frame);
+        }
+        ostream.close();
+
+        return bytes.toByteArray();
+    }
+
+    /** Decodes the payload of a batch request or response.
+
+        @return The requests or responses of the calls in the batch. Their
+                request identifiers, capabilities and class descriptors are
+                those of the batch.
+        @throws IOException If the payload is invalid.
+     */
+    static Frame[] decodeBatch(Frame batch) throws IOException {
+        DataInputStream istream =
+            new DataInputStream(new ByteArrayInputStream(batch.payload));
+
+        int count = istream.readInt();
+        if(count < 0 || count > batch.payload.length / 9) {
+            throw new IOException("invalid batch size " + count);
+        }
+
+        Frame[] frames = new Frame[count];
+        for(int i = 0; i < count; i++) {
+            Frame frame = new Frame();
+            frame.flags = istream.readUnsignedByte();
+            frame.requestId = batch.requestId;
+            frame.capabilities = batch.capabilities;
+            frame.descriptors = batch.descriptors;
+            frame.methodId = istream.readInt();
+            frame.length = istream.readInt();
+            if(frame.length < 0 || frame.length > istream.available()) {
+                throw new IOException("invalid batch entry length " +
+                                      frame.length);
+            }
+            frame.payload = new byte[frame.length];
+            istream.readFully(frame.payload);
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    /** Compresses the payload of an encoded request or response, together
+        with its segments, if it is at least <code>threshold</code> bytes
+        long and compressing makes it shorter. The frame is left as it was
+        otherwise.
+
+        @param capabilities The capabilities agreed on the connection. The
+                            payload is compressed only if they include
+                            <code>CAP_COMPRESSION</code>.
+        @throws IOException If the compressor fails.
+     */
+    static void compress(Frame frame, Compressor compressor, int threshold,
+                         int capabilities)
+        throws IOException {
+        int length = frame.wireLength();
+        if((capabilities & CAP_COMPRESSION) == 0 || length < threshold ||
+           (frame.flags & FLAG_COMPRESSED) != 0) {
+            return;
+        }
+
+        byte[] bytes = frame.payload;
+        if(frame.segments != null) {
+            ByteBuffer body = ByteBuffer.allocate(length).put(frame.payload);
+            for(ByteBuffer segment : frame.segments) {
+                body.put(segment.duplicate());
+            }
+            bytes = body.array();
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DataOutputStream ostream = new DataOutputStream(compressed);
+        ostream.writeUTF(compressor.name());
+        ostream.writeInt(length);
+        ostream.write(compressor.compress(bytes));
+        ostream.close();
+        if(compressed.size() >= length) {
+            return;
+        }
+
+        frame.payload = compressed.toByteArray();
+        frame.length = frame.payload.length;
+        frame.segments = null;
+        frame.flags |= FLAG_COMPRESSED;
+        frame.capabilities |= CAP_COMPRESSION;
+    }
+
+    /** Replaces the compressed payload of a received frame with the payload
+        that was compressed.
+
+        @throws IOException If the payload is invalid, its compressor is not
+                            known, or <code>CAP_COMPRESSION</code> was not
+                            agreed on the connection.
+     */
+    static void expand(Frame frame) throws IOException {
+        if((frame.flags & FLAG_COMPRESSED) == 0) {
+            return;
+        }
+        if((frame.capabilities & CAP_COMPRESSION) == 0) {
+            throw new IOException("unexpected compressed payload");
+        }
+
+        DataInputStream istream =
+            new DataInputStream(new ByteArrayInputStream(frame.payload));
+        String name = istream.readUTF();
+        int length = istream.readInt();
+        if(length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("invalid uncompressed length " + length);
+        }
+        Compressor compressor = Compressors.named(name);
+        if(compressor == null) {
+            throw new IOException("payload compressed by unknown " +
+                                  "compressor " + name);
+        }
+
+        int offset = frame.payload.length - istream.available();
+        frame.payload = compressor.decompress(
+            frame.payload, offset, frame.payload.length - offset, length);
+        frame.length = frame.payload.length;
+        frame.flags &= ~FLAG_COMPRESSED;
+    }
+
+    /** Opens an object stream over a received payload. */
+    static ObjectInputStream decode(byte[] payload) throws IOException {
+        return new ObjectInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /** A frame: the header fields and the payload. Version 1 frames carry
+        only the payload. */
+    static class Frame {
+        int flags = 0;
+        int requestId = 0;
+        int methodId = NO_METHOD_ID;
+        int length;
+        byte[] payload;
+        /** Identifiers of the class descriptors to which the payload refers,
+            for a frame being sent, or <code>null</code> if the payload does
+            not refer to descriptors by identifier. */
+        int[] descriptorIds;
+        /** For a frame received, the capabilities agreed on its connection;
+            for a frame encoded, the capabilities on which its payload
+            relies, so that it is encoded again for a connection lacking
+            them. */
+        int capabilities;
+        /** Descriptors defined on the connection on which the frame was
+            received, or <code>null</code> if <code>CAP_DESCRIPTORS</code>
+            was not agreed on it. */
+        ClassDescriptors.Incoming descriptors;
+        /** For a frame being sent, buffers over the bytes sent after the
+            payload, which are not copied into it, or <code>null</code> if
+            there are none. A received frame holds its segments at the end
+            of its payload. */
+        ByteBuffer[] segments;
+        /** For a frame being sent, the streams it carries, by stream
+            number, or <code>null</code> if it carries none. */
+        Object[] streamValues;
+        /** For a frame received, the streams of its connection, or
+            <code>null</code> if <code>CAP_STREAMS</code> was not agreed on
+            it. */
+        Streams streams;
+
+        Frame() {
+        }
+
+        Frame(int methodId, byte[] payload) {
+            this.methodId = methodId;
+            this.payload = payload;
+            this.length = payload.length;
+        }
+
+        /** Returns the length of the frame after its header: the length of
+            the payload and of the segments. */
+        int wireLength() {
+            int length = payload.length;
+            if(segments != null) {
+                for(ByteBuffer segment : segments) {
+                    length += segment.remaining();
+                }
+            }
+            return length;
+        }
+
+        /** Replaces the segments with copies, so that the frame can be sent
+            after the arrays and buffers they were taken from have
+            changed. */
+        void copySegments() {
+            if(segments == null) {
+                return;
+            }
+            for(int i = 0; i < segments.length; i++) {
+                ByteBuffer copy = ByteBuffer.allocate(segments[i].remaining());
+                copy.put(segments[i].duplicate()).flip();
+                segments[i] = copy;
+            }
+        }
+    }
+
+    /** A decoded call request. */
+    static class Request {
+        final String methodName;
+        /** The identifier of the method called, or <code>NO_METHOD_ID</code>
+            if the request names a method that is not part of the remote
+            interface. */
+        final int methodId;
+        /** The method called, or <code>null</code> if the request names a
+            method that is not part of the remote interface. */
+        final Method method;
+        final Object[] args;
+
+        Request(String methodName, int methodId, Method method,
+                Object[] args) {
+            this.methodName = methodName;
+            this.methodId = methodId;
+            this.method = method;
+            this.args = args;
+        }
+
+        Request(String methodName, MethodTable table, Method method,
+                Object[] args) {
+            this(methodName,
+                 method == null ? NO_METHOD_ID : table.id(method), method,
+                 args);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package rmi;
+
+import java.net.SocketAddress;
+
+/** Interface implemented by every stub, reflective or generated, through
+    which the library finds the remote interface and address of a stub. */
+interface ProxyDetails<T> {
+    public Class<T> getCls();
+    public SocketAddress getServerAddress();
+}
@@ -0,0 +1,226 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Binary values sent as raw segments after the payload of a frame.
+
+    <p>
+    When both sides of a connection support
+    <code>Protocol.CAP_SEGMENTS</code>, a value written with Java
+    serialization whose parameter or return type is <code>byte[]</code>,
+    <code>ByteBuffer</code> or <code>ByteBuffer[]</code> is not copied into
+    the payload. The payload holds only its length, and its bytes follow the
+    payload on the wire, as one segment per array or buffer, in the order of
+    the values. The frame carries the segments as buffers over the caller's
+    arrays and buffers, and the transports write them from there: the
+    blocking transports straight from the array to the socket, and the
+    selector transports with gathering writes. The bytes of a buffer are
+    those between its position and its limit; its position is left
+    unchanged.
+
+    <p>
+    The payload begins with the total length of the segments, as a
+    variable-length integer, so that the reader can locate them at the end of
+    the frame before decoding the values. Each value is then written in turn
+    with the values of other raw types, as a variable-length integer: zero
+    for <code>null</code>, and otherwise one more than the length of the
+    array or buffer or, for an array of buffers, one more than the number of
+    buffers, followed by the length of each buffer in the same form.
+
+    <p>
+    The reader takes the segments from the frame as it was read from the
+    network: a buffer received is a view of the frame's bytes, not a copy,
+    and an array received is copied out of them once.
+
+    <p>
+    Because the bytes are read from the caller's arrays and buffers when the
+    frame is written, a stub copies them when it keeps a request to send
+    after the call returns, as it does for asynchronous, one-way and batched
+    calls. A remote object returning an array or buffer must not change it
+    once the method has returned.
+ */
+class Segments {
+    private Segments() {
+    }
+
+    /** Returns <code>true</code> if values of the given declared type are
+        sent as segments. */
+    static boolean segmented(Class<?> type) {
+        return type == byte[].class || type == ByteBuffer.class ||
+               type == ByteBuffer[].class;
+    }
+
+    /** Writes the total length of the segments of values of the given
+        declared types, and returns the segments, in order.
+
+        @throws IOException If the segments are too long for a frame.
+     */
+    static ByteBuffer[] write(DataOutputStream out, Class<?>[] types,
+                              Object[] values)
+        throws IOException {
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        long total = 0;
+        for(int i = 0; i < types.length; i++) {
+            if(!segmented(types[i]) || values[i] == null) {
+                continue;
+            }
+            if(values[i] instanceof ByteBuffer[]) {
+                for(ByteBuffer buffer : (ByteBuffer[]) values[i]) {
+                    if(buffer != null) {
+                        segments.add(buffer.duplicate());
+                    }
+                }
+            } else {
+                segments.add(buffer(values[i]));
+            }
+        }
+        for(ByteBuffer segment : segments) {
+            total += segment.remaining();
+        }
+        if(total > Protocol.MAX_FRAME_LENGTH) {
+            throw new IOException("binary values of " + total +
+                                  " bytes are too long for a frame");
+        }
+
+        PrimitiveValues.writeVarLong(out, total);
+        return segments.toArray(new ByteBuffer[segments.size()]);
+    }
+
+    /** Writes the lengths of a value of a segmented declared type. */
+    static void write(DataOutputStream out, Class<?> type, Object value)
+        throws IOException {
+        if(value == null) {
+            PrimitiveValues.writeVarLong(out, 0);
+        } else if(value instanceof ByteBuffer[]) {
+            ByteBuffer[] buffers = (ByteBuffer[]) value;
+            PrimitiveValues.writeVarLong(out, buffers.length + 1L);
+            for(ByteBuffer buffer : buffers) {
+                PrimitiveValues.writeVarLong(
+                    out, buffer == null ? 0 : buffer.remaining() + 1L);
+            }
+        } else {
+            PrimitiveValues.writeVarLong(out, buffer(value).remaining() + 1L);
+        }
+    }
+
+    /** Returns a buffer over the bytes of an array or buffer. */
+    private static ByteBuffer buffer(Object value) throws IOException {
+        if(value instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) value);
+        }
+        if(value instanceof ByteBuffer) {
+            return ((ByteBuffer) value).duplicate();
+        }
+        throw new IOException("value of " + value.getClass() +
+                              " given for a binary type");
+    }
+
+    /** Writes the bytes of a segment to a stream, leaving the segment's
+        position unchanged. */
+    static void writeTo(OutputStream out, ByteBuffer segment)
+        throws IOException {
+        if(segment.hasArray()) {
+            out.write(segment.array(),
+                      segment.arrayOffset() + segment.position(),
+                      segment.remaining());
+        } else {
+            ByteBuffer bytes = segment.duplicate();
+            while(bytes.hasRemaining()) {
+                Channels.newChannel(out).write(bytes);
+            }
+        }
+    }
+
+    /** Reads the total length of the segments of a payload, and returns the
+        region of the payload holding them.
+
+        @param payload The payload, of which <code>in</code> has read
+                       everything before the total length.
+        @throws IOException If the length is invalid.
+     */
+    static Region region(DataInputStream in, byte[] payload)
+        throws IOException {
+        long total = PrimitiveValues.readVarLong(in);
+        if(total < 0 || total > in.available()) {
+            throw new EOFException("binary values longer than the payload");
+        }
+        return new Region(payload, payload.length - (int) total);
+    }
+
+    /** Reads a value of a segmented declared type, taking its bytes from the
+        region.
+
+        @throws IOException If a length is invalid.
+     */
+    static Object read(DataInputStream in, Class<?> type, Region region)
+        throws IOException {
+        long length = PrimitiveValues.readVarLong(in) - 1;
+        if(length == -1) {
+            return null;
+        }
+
+        if(type == ByteBuffer[].class) {
+            if(length < 0 || length > in.available()) {
+                throw new IOException("invalid buffer count " + length);
+            }
+            ByteBuffer[] buffers = new ByteBuffer[(int) length];
+            for(int i = 0; i < buffers.length; i++) {
+                long bytes = PrimitiveValues.readVarLong(in) - 1;
+                buffers[i] = bytes == -1 ? null : region.take(bytes);
+            }
+            return buffers;
+        }
+
+        ByteBuffer bytes = region.take(length);
+        if(type == ByteBuffer.class) {
+            return bytes;
+        }
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        return array;
+    }
+
+    /** The bytes at the end of a received payload holding its segments,
+        which are taken in order. */
+    static class Region {
+        private final byte[] payload;
+        private int position;
+
+        private Region(byte[] payload, int start) {
+            this.payload = payload;
+            this.position = start;
+        }
+
+        /** Returns a buffer over the next segment. */
+        private ByteBuffer take(long length) throws IOException {
+            if(length < 0 || length > payload.length - position) {
+                throw new IOException("invalid binary value length " +
+                                      length);
+            }
+            ByteBuffer segment =
+                ByteBuffer.wrap(payload, position, (int) length).slice();
+            position += (int) length;
+            return segment;
+        }
+
+        /** Checks that every segment has been taken.
+
+            @throws IOException If the lengths of the values do not add up to
+                                the total length of the segments.
+         */
+        void finish() throws IOException {
+            if(position != payload.length) {
+                throw new IOException("binary value lengths do not match " +
+                                      "their total");
+            }
+        }
+    }
+}
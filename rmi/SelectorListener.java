@@ -0,0 +1,720 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Selector-based transport for a skeleton.
+
+    <p>
+    Instead of dedicating a thread to each connection, the selector transport
+    multiplexes all connections over a small, fixed number of I/O loops. Each
+    loop owns a <code>Selector</code> and performs non-blocking reads of the
+    keep-alive preface and of request frames. Complete requests are handed to
+    the skeleton's worker pool, which runs the call through the skeleton's
+    dispatcher and queues the response for writing. The first loop also accepts
+    new connections and assigns them to the loops in turn.
+
+    <p>
+    Old-style single-call connections, which are not framed, are detected from
+    their first bytes and handed over to a blocking <code>ServiceThread</code>
+    running on a thread of its own.
+
+    <p>
+    A selector listener also serves a skeleton's Unix domain socket, whatever
+    the skeleton's transport. Only framed connections are accepted on a
+    domain socket, and the domain socket is not advertised on it.
+ */
+class SelectorListener<T> {
+    private static final int SWEEP_INTERVAL = 1000;
+
+    private final Skeleton<T> skeleton;
+    private final ServerSocketChannel server;
+    /** Whether the listening channel is a Unix domain socket. */
+    private final boolean unix;
+    private final List<IoLoop> loops;
+    private final Thread[] threads;
+    private final ExecutorService workers;
+    private final Set<ChannelConnection> connections =
+        ConcurrentHashMap.newKeySet();
+    private volatile boolean stopping = false;
+    private int nextLoop = 0;
+
+    /** Binds the listening channel.
+
+        @param skeleton The skeleton served by this transport.
+        @param address The address to bind: an <code>InetSocketAddress</code>,
+                       a <code>UnixDomainSocketAddress</code>, or
+                       <code>null</code> to let the system choose a port.
+        @param loopCount The number of I/O loops.
+        @param backlog The listen backlog.
+        @param workers The pool on which calls are run. It is shut down with
+                       the transport.
+        @throws IOException If the channel cannot be opened or bound, or a
+                            selector cannot be created.
+     */
+    SelectorListener(Skeleton<T> skeleton, SocketAddress address,
+                     int loopCount, int backlog, ExecutorService workers)
+        throws IOException {
+        this.skeleton = skeleton;
+        this.workers = workers;
+        this.unix = address instanceof UnixDomainSocketAddress;
+
+        server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                      : ServerSocketChannel.open();
+        try {
+            server.bind(address == null ? new InetSocketAddress(0) : address,
+                        backlog);
+            server.configureBlocking(false);
+
+            loops = new ArrayList<IoLoop>(loopCount);
+            threads = new Thread[loopCount];
+            for(int i = 0; i < loopCount; ++i) {
+                loops.add(new IoLoop());
+                threads[i] = new Thread(loops.get(i),
+                                        (unix ? "rmi-unix-" : "rmi-selector-")
+                                        + i);
+            }
+            server.register(loops.get(0).selector, SelectionKey.OP_ACCEPT);
+        } catch(IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /** Returns the listening socket. */
+    ServerSocket serverSocket() {
+        return server.socket();
+    }
+
+    /** Starts the I/O loops. */
+    void start() {
+        for(Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /** Stops accepting connections.
+
+        <p>
+        Connections that are not in the middle of a call are closed at once.
+        Calls in progress continue on the worker pool, which the skeleton
+        shares between its transports and shuts down once all of them have
+        stopped accepting.
+     */
+    void stopAccepting() throws IOException {
+        if(stopping) {
+            return;
+        }
+        stopping = true;
+        server.close();
+
+        for(ChannelConnection connection : connections) {
+            connection.loop.execute(connection::closeWhenIdle);
+        }
+    }
+
+    /** Shuts the transport down once the worker pool has terminated.
+
+        <p>
+        The responses of the calls that were in progress when the transport
+        stopped accepting are given time to be written. The method then closes
+        the remaining connections and stops the I/O loops.
+     */
+    void shutdown() throws InterruptedException {
+        for(IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for(Thread thread : threads) {
+            thread.join(SWEEP_INTERVAL);
+        }
+
+        // Connections whose peers stopped reading may still hold unwritten
+        // responses. They are closed forcibly.
+        for(IoLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        for(ChannelConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+
+        try {
+            channel = server.accept();
+            if(channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            if(!unix) {
+                channel.socket().setTcpNoDelay(true);
+            }
+        } catch(IOException e) {
+            if(!stopping && !skeleton.listen_error(e)) {
+                stopping = true;
+                try {
+                    server.close();
+                } catch(IOException closeError) { }
+            }
+            return;
+        }
+
+        IoLoop loop = loops.get(nextLoop);
+        nextLoop = (nextLoop + 1) % loops.size();
+
+        ChannelConnection connection = new ChannelConnection(channel, loop);
+        connections.add(connection);
+        loop.execute(connection::register);
+    }
+
+    /** I/O loop owning one selector. */
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+        final List<ChannelConnection> handoffs =
+            new ArrayList<ChannelConnection>();
+        volatile boolean running = true;
+        private long lastSweep = System.currentTimeMillis();
+
+        IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /** Runs a task on this loop's thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(running) {
+                    selector.select(SWEEP_INTERVAL);
+
+                    Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if(!key.isValid()) {
+                            continue;
+                        }
+                        if(key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        Attachment connection =
+                            (Attachment) key.attachment();
+                        if(key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if(key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+
+                    // Channels can only be switched to blocking mode once
+                    // their cancelled keys have been flushed from the
+                    // selector.
+                    if(!handoffs.isEmpty()) {
+                        selector.selectNow();
+                        for(ChannelConnection connection : handoffs) {
+                            connection.handOff();
+                        }
+                        handoffs.clear();
+                    }
+
+                    Runnable task;
+                    while((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if(now - lastSweep >= SWEEP_INTERVAL) {
+                        lastSweep = now;
+                        sweep(now);
+                    }
+
+                    if(stopping && selector.keys().isEmpty()) {
+                        break;
+                    }
+                }
+            } catch(IOException e) {
+                Log.error("selector loop failed", e);
+            } finally {
+                try {
+                    selector.close();
+                } catch(IOException e) { }
+            }
+        }
+
+        /** Closes connections on this loop that have been idle for longer
+            than the skeleton's idle timeout. */
+        private void sweep(long now) {
+            long deadline = now - skeleton.getIdleTimeout();
+
+            for(SelectionKey key : selector.keys()) {
+                Attachment connection = (Attachment) key.attachment();
+                if(connection != null) {
+                    connection.closeIfIdleSince(deadline);
+                }
+            }
+        }
+    }
+
+    /** Events of a connection, as seen by the loop through the attachment
+        of its selection key. Keys are attached to this interface, which does
+        not depend on the skeleton's type, so that attachments are read back
+        without an unchecked cast. */
+    private interface Attachment {
+        void onReadable();
+        void onWritable();
+        void closeIfIdleSince(long deadline);
+    }
+
+    /** State of one connection served by the selector transport.
+
+        <p>
+        Reading state is touched only by the owning loop. The write queue and
+        the count of calls in progress are shared with worker threads and are
+        guarded by the connection's lock.
+     */
+    private class ChannelConnection implements Attachment {
+        private static final int HANDSHAKE = 0;
+        private static final int HEADER = 1;
+        private static final int PAYLOAD = 2;
+
+        final SocketChannel channel;
+        final IoLoop loop;
+        private SelectionKey key;
+
+        private int state = HANDSHAKE;
+        private int version;
+        private int capabilities;
+        private final ByteBuffer header =
+            ByteBuffer.allocate(Protocol.HEADER_LENGTH);
+        private Protocol.Frame frame;
+        private ByteBuffer payload;
+        /** Class descriptors defined on the connection in each direction, or
+            <code>null</code> if <code>Protocol.CAP_DESCRIPTORS</code> was not
+            agreed. Set by the handshake. */
+        private ClassDescriptors.Outgoing outgoing;
+        private ClassDescriptors.Incoming incoming;
+        /** Streams of the calls on the connection, or <code>null</code> if
+            <code>Protocol.CAP_STREAMS</code> was not agreed. Set by the
+            handshake. */
+        private volatile Streams streams;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private final ArrayDeque<ByteBuffer> writes =
+            new ArrayDeque<ByteBuffer>();
+        /** Set while the loop waits for the channel to become writable. */
+        private boolean writable = false;
+        /** Number of workers about to queue a response. */
+        private final AtomicInteger responding = new AtomicInteger();
+        private int inFlight = 0;
+        private boolean closeWhenIdle = false;
+        private boolean closed = false;
+
+        ChannelConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            header.limit(Protocol.prefaceLength(Protocol.MIN_VERSION));
+        }
+
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ,
+                                       this);
+            } catch(IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onReadable() {
+            try {
+                while(!isClosed()) {
+                    int count;
+
+                    if(state == PAYLOAD) {
+                        payload = Protocol.growPayload(payload, frame);
+                        count = channel.read(payload);
+                    } else {
+                        count = channel.read(header);
+                    }
+
+                    if(count < 0) {
+                        endOfStream();
+                        return;
+                    }
+                    if(count == 0) {
+                        return;
+                    }
+                    lastActivity = System.currentTimeMillis();
+
+                    if(state == HANDSHAKE) {
+                        if(!handshake()) {
+                            return;
+                        }
+                    } else if(state == HEADER) {
+                        if(!header.hasRemaining()) {
+                            header.flip();
+                            frame = Protocol.parseHeader(header, version);
+                            payload = Protocol.newPayload(frame);
+                            state = PAYLOAD;
+                        }
+                    }
+
+                    if(state == PAYLOAD &&
+                       payload.position() == frame.length) {
+                        Protocol.Frame request = frame;
+                        request.payload = payload.array();
+                        frame = null;
+                        payload = null;
+                        header.clear().limit(Protocol.headerLength(version));
+                        state = HEADER;
+                        if(Protocol.receive(request, capabilities,
+                                            incoming)) {
+                            continue;
+                        }
+                        if(streams != null && request.methodId ==
+                                              Protocol.STREAM_METHOD_ID) {
+                            streams.receive(request);
+                        } else {
+                            request.streams = streams;
+                            dispatch(request);
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                fail(e);
+            }
+        }
+
+        /** Processes the bytes read so far in the handshake state.
+
+            @return <code>false</code> if the connection has been handed off
+                    and reading must stop.
+         */
+        private boolean handshake() throws IOException {
+            if(header.position() >= 4 && header.getInt(0) != Protocol.MAGIC) {
+                if(unix) {
+                    throw new IOException("connection on Unix domain socket " +
+                                          "does not begin with the preface");
+                }
+                key.cancel();
+                loop.handoffs.add(this);
+                return false;
+            }
+            if(header.hasRemaining()) {
+                return true;
+            }
+
+            // From version 2, the preface continues with the capabilities.
+            int offered = header.getInt(4);
+            if(header.limit() < Protocol.prefaceLength(offered)) {
+                header.limit(Protocol.prefaceLength(offered));
+                return true;
+            }
+
+            version = Protocol.acceptVersion(offered);
+            capabilities = 0;
+            if(version >= 2) {
+                capabilities = header.getInt(8) & Protocol.CAPABILITIES;
+            }
+
+            String unixSocket = unix ? null : skeleton.advertisedUnixSocket();
+            if(unixSocket == null) {
+                capabilities &= ~Protocol.CAP_UNIX_SOCKET;
+            }
+            if((capabilities & Protocol.CAP_MULTIPLEX) == 0) {
+                capabilities &= ~Protocol.CAP_STREAMS;
+            }
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            Protocol.writeReply(new DataOutputStream(reply), version,
+                capabilities,
+                skeleton.getDispatcher().getMethodTable().fingerprint(),
+                unixSocket, skeleton.getDispatcher().getCodec().name());
+            queue(ByteBuffer.wrap(reply.toByteArray()));
+            if((capabilities & Protocol.CAP_DESCRIPTORS) != 0) {
+                outgoing = new ClassDescriptors.Outgoing();
+                incoming = new ClassDescriptors.Incoming();
+            }
+            if((capabilities & Protocol.CAP_STREAMS) != 0) {
+                streams = new Streams(new Streams.Sender() {
+                    @Override
+                    public void send(Protocol.Frame frame)
+                        throws IOException {
+                        queue(Protocol.toBuffers(version, frame));
+                    }
+                });
+            }
+
+            header.clear().limit(Protocol.headerLength(version));
+            state = HEADER;
+            return true;
+        }
+
+        /** Serves an old-style connection with a blocking service thread. */
+        void handOff() {
+            byte[] consumed = new byte[header.position()];
+            header.flip();
+            header.get(consumed);
+            connections.remove(this);
+
+            // The service thread runs its call on the worker pool, so it must
+            // not occupy a worker itself while waiting for the call.
+            try {
+                channel.configureBlocking(true);
+                skeleton.newServiceThread(new ServiceThread<T>(
+                    channel.socket(), consumed, skeleton)).start();
+            } catch(Exception e) {
+                closeQuietly();
+                skeleton.service_error(
+                    new RMIException("Error with request", e));
+            }
+        }
+
+        private void endOfStream() throws IOException {
+            if(state == HANDSHAKE || state == PAYLOAD ||
+               header.position() != 0) {
+                throw new EOFException("connection closed in mid-request");
+            }
+            closeWhenIdle();
+        }
+
+        private void dispatch(final Protocol.Frame request) {
+            synchronized(this) {
+                ++inFlight;
+            }
+
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Protocol.Frame response;
+                        try {
+                            response = skeleton.getDispatcher().handle(
+                                version, request, workers);
+                        } catch(Exception e) {
+                            fail(e);
+                            return;
+                        }
+                        respond(response);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                skeleton.rejected();
+                try {
+                    respond(Dispatcher.busyResponse(version, request));
+                } catch(IOException f) {
+                    fail(f);
+                }
+            }
+        }
+
+        /** Queues a response for writing. Responses are batched: a worker
+            that finds other workers about to respond leaves its response in
+            the queue, and the last of them writes the whole queue with one
+            gathering write. The response is put in buffers before the lock
+            is taken; only the definitions of class descriptors it uses that
+            are new to the connection, and the announcements of the streams
+            it carries, are written under the lock, so that they are queued
+            ahead of it. The streams start to be sent once it is queued. */
+        private void respond(Protocol.Frame response) {
+            ByteBuffer[] frame = response == null ? null
+                               : Protocol.toBuffers(version, response);
+
+            responding.incrementAndGet();
+            synchronized(this) {
+                --inFlight;
+                if(frame != null && outgoing != null && !closed) {
+                    try {
+                        Protocol.Frame definitions =
+                            outgoing.definitions(response);
+                        if(definitions != null) {
+                            Collections.addAll(writes, Protocol.toBuffers(
+                                version, definitions));
+                        }
+                    } catch(IOException e) {
+                        Log.debug("cannot write class descriptors", e);
+                        closeQuietly();
+                    }
+                }
+                if(frame != null && response.streamValues != null &&
+                   !closed) {
+                    try {
+                        for(Protocol.Frame announcement :
+                                streams.open(response)) {
+                            Collections.addAll(writes, Protocol.toBuffers(
+                                version, announcement));
+                        }
+                    } catch(IOException e) {
+                        Log.debug("cannot announce streams", e);
+                        closeQuietly();
+                    }
+                }
+                boolean last = responding.decrementAndGet() == 0;
+                if(last) {
+                    queue(frame);
+                } else if(frame != null && !closed) {
+                    Collections.addAll(writes, frame);
+                }
+                if(closeWhenIdle) {
+                    closeWhenIdle();
+                }
+            }
+            if(frame != null && response.streamValues != null) {
+                streams.start(response);
+            }
+        }
+
+        /** Queues buffers, if any, for writing, and writes as much of the
+            queue as possible at once. Whatever cannot be written now is
+            written by the loop when the channel becomes writable. */
+        private synchronized void queue(ByteBuffer... buffers) {
+            if(closed) {
+                return;
+            }
+
+            boolean waiting = writable;
+            if(buffers != null) {
+                Collections.addAll(writes, buffers);
+            }
+            if(waiting || writes.isEmpty()) {
+                return;
+            }
+
+            try {
+                flush();
+            } catch(IOException e) {
+                closeQuietly();
+                return;
+            }
+
+            if(!writes.isEmpty()) {
+                writable = true;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(key != null && key.isValid()) {
+                            key.interestOps(SelectionKey.OP_READ |
+                                            SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void flush() throws IOException {
+            while(!writes.isEmpty()) {
+                channel.write(writes.toArray(new ByteBuffer[writes.size()]));
+                while(!writes.isEmpty() && !writes.peek().hasRemaining()) {
+                    writes.poll();
+                }
+                if(!writes.isEmpty()) {
+                    return;
+                }
+            }
+            lastActivity = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized void onWritable() {
+            try {
+                flush();
+            } catch(IOException e) {
+                closeQuietly();
+                return;
+            }
+
+            if(writes.isEmpty()) {
+                writable = false;
+                key.interestOps(SelectionKey.OP_READ);
+                if(closeWhenIdle) {
+                    closeWhenIdle();
+                }
+            }
+        }
+
+        /** Closes the connection now if no call is in progress and nothing
+            remains to be written, or once that becomes true otherwise. */
+        synchronized void closeWhenIdle() {
+            closeWhenIdle = true;
+            if(inFlight == 0 && writes.isEmpty()) {
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public synchronized void closeIfIdleSince(long deadline) {
+            if(inFlight == 0 && writes.isEmpty() && state == HEADER &&
+               header.position() == 0 && lastActivity < deadline &&
+               (streams == null || streams.isIdle())) {
+                closeQuietly();
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void fail(Exception e) {
+            closeQuietly();
+            if(!stopping) {
+                Log.debug("caught exception in selector transport", e);
+                skeleton.service_error(new RMIException("Error with request", e));
+            }
+        }
+
+        private synchronized void closeQuietly() {
+            closed = true;
+            writes.clear();
+            connections.remove(this);
+            close();
+            if(streams != null) {
+                streams.fail(new IOException("connection closed"));
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch(IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/** Codec writing values with Java serialization.
+
+    <p>
+    The values of a request or response are written to a single object
+    stream, so that values referring to the same object still do when read.
+    Declared types are ignored.
+ */
+class SerializationCodec implements Codec {
+    @Override
+    public String name() {
+        return "java";
+    }
+
+    @Override
+    public void write(OutputStream out, Class<?>[] types, Object[] values)
+        throws IOException {
+        ObjectOutputStream ostream = new ObjectOutputStream(out);
+        for(Object value : values) {
+            ostream.writeObject(value);
+        }
+        ostream.flush();
+    }
+
+    @Override
+    public Object[] read(InputStream in, Class<?>[] types)
+        throws IOException, ClassNotFoundException {
+        ObjectInputStream istream = new ObjectInputStream(in);
+        Object[] values = new Object[types.length];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = istream.readObject();
+        }
+        return values;
+    }
+}
@@ -1,93 +1,461 @@
 package rmi;
 
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/** Services one connection accepted by a skeleton.
+
+    <p>
+    The first bytes sent by the stub decide how the connection is served. A
+    stub that opens with the keep-alive preface described in
+    <code>Protocol</code> is answered with the preface, and its framed requests
+    are then served one after another until the stub closes the connection, the
+    connection stays idle for longer than the skeleton's idle timeout, or the
+    skeleton is stopped between requests. Any other connection is served as an
+    old-style single-call connection.
+
+    <p>
+    When the stub and skeleton agree on <code>Protocol.CAP_MULTIPLEX</code>,
+    the service thread only reads requests. Each request is run on the
+    skeleton's request pool as soon as it has been read, and the worker that
+    runs it writes the response when the call completes, so that a slow call
+    does not hold up the calls behind it. Responses are written whole, one at
+    a time, under the lock of the output stream, and responses that complete
+    together are flushed together.
+
+    <p>
+    A multiplexed connection may also carry streams, when the stub and
+    skeleton agree on <code>Protocol.CAP_STREAMS</code>. The service thread
+    then hands the stream frames it reads to the connection's
+    <code>Streams</code>, and the frames of the streams the skeleton sends
+    are written under the lock of the output stream, like responses. The
+    connection is not idle while a stream is open on it.
+ */
 class ServiceThread<T> implements Runnable {
 	private Socket socket;
+	private InputStream input;
 	private Skeleton<T> skeleton;
 
+    private int inFlight = 0;
+    private boolean closed = false;
+    /** Whether the connection is waiting for its next request, having
+        answered every request before it. */
+    private volatile boolean waiting = false;
+    /** Number of workers writing, or waiting to write, a response. */
+    private final AtomicInteger responding = new AtomicInteger();
+    /** Class descriptors defined on the connection in each direction, or
+        <code>null</code> if <code>Protocol.CAP_DESCRIPTORS</code> was not
+        agreed. Set before the first request is read. */
+    private ClassDescriptors.Outgoing outgoing;
+    private ClassDescriptors.Incoming incoming;
+    /** Streams of the calls on the connection, or <code>null</code> if
+        <code>Protocol.CAP_STREAMS</code> was not agreed. Set before the
+        first request is read. */
+    private Streams streams;
+
 	public ServiceThread(Socket socket, Skeleton<T> skeleton) {
 		this.socket   = socket;
 		this.skeleton = skeleton;
 	}
-	
+
+    /** Creates a service thread for a connection from which some bytes have
+        already been read.
+
+        @param socket The connection socket.
+        @param consumed The bytes already read from the socket, which are
+                        served before the rest of the socket's input.
+        @param skeleton The skeleton that accepted the connection.
+     */
+    ServiceThread(Socket socket, byte[] consumed, Skeleton<T> skeleton)
+        throws IOException {
+        this(socket, skeleton);
+        this.input = new SequenceInputStream(
+            new ByteArrayInputStream(consumed), socket.getInputStream());
+    }
+
+    /** Closes the connection if no request is being served on it, and causes
+        it to be closed once the current request completes otherwise. Called by
+        the skeleton when it stops. */
+    synchronized void shutdown() {
+        closed = true;
+        if(inFlight == 0) {
+            closeSocket();
+        }
+    }
+
+    /** Closes the connection if it is waiting for its next request. Called
+        by the skeleton to make room for a new connection. A request whose
+        first bytes arrive as the connection is closed is not run, and its
+        stub sees the connection end before it was answered.
+
+        @return <code>true</code> if the connection was closed.
+     */
+    synchronized boolean closeIfIdle() {
+        if(closed || !waiting || !isIdle()) {
+            return false;
+        }
+        closed = true;
+        closeSocket();
+        return true;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized boolean beginRequest() {
+        if(closed) {
+            return false;
+        }
+        ++inFlight;
+        return true;
+    }
+
+    private synchronized boolean endRequest() {
+        if(--inFlight == 0) {
+            notifyAll();
+        }
+        return !closed;
+    }
+
+    /** Ends a request run by a worker, closing the connection if the skeleton
+        has stopped and no other request is in progress. */
+    private synchronized void endMultiplexedRequest() {
+        if(!endRequest() && inFlight == 0) {
+            closeSocket();
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        return inFlight == 0 && (streams == null || streams.isIdle());
+    }
+
+    private synchronized void awaitIdle() throws InterruptedException {
+        while(inFlight > 0) {
+            wait();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch(IOException e) { }
+    }
+
     @Override
 	public void run() {
-		// get in/out streams
-        //synchronized(skeleton) {
+        try {
+            BufferedInputStream in = new BufferedInputStream(new Input(
+                input != null ? input : socket.getInputStream()));
+            DataInputStream istream = new DataInputStream(in);
+
+            in.mark(4);
+            if(istream.readInt() == Protocol.MAGIC) {
+                serveKeepAlive(istream);
+            } else {
+                in.reset();
+                serveSingle(in);
+            }
+        } catch(Exception e) {
+            Log.debug("caught exception in service thread", e);
+            skeleton.service_error(new RMIException("Error with request", e));
+        } finally {
+            closeSocket();
+            skeleton.removeConnection(this);
+        }
+	}
+
+    /** Serves framed requests until the connection is closed or times out. */
+    private void serveKeepAlive(DataInputStream istream) throws Exception {
+        socket.setTcpNoDelay(true);
+        DataOutputStream ostream = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()));
+
+        final int version = Protocol.acceptVersion(istream.readInt());
+        int capabilities = 0;
+        if(version >= 2) {
+            capabilities = istream.readInt() & Protocol.CAPABILITIES;
+        }
+        String unixSocket = skeleton.advertisedUnixSocket();
+        if(unixSocket == null) {
+            capabilities &= ~Protocol.CAP_UNIX_SOCKET;
+        }
+        if((capabilities & Protocol.CAP_MULTIPLEX) == 0) {
+            capabilities &= ~Protocol.CAP_STREAMS;
+        }
+        Protocol.writeReply(ostream, version, capabilities,
+            skeleton.getDispatcher().getMethodTable().fingerprint(),
+            unixSocket, skeleton.getDispatcher().getCodec().name());
+        ostream.flush();
+
+        if((capabilities & Protocol.CAP_DESCRIPTORS) != 0) {
+            outgoing = new ClassDescriptors.Outgoing();
+            incoming = new ClassDescriptors.Incoming();
+        }
+        if((capabilities & Protocol.CAP_STREAMS) != 0) {
+            streams = new Streams(new Streams.Sender() {
+                @Override
+                public void send(Protocol.Frame frame) throws IOException {
+                    synchronized(ostream) {
+                        Protocol.writeFrame(ostream, version, frame);
+                    }
+                }
+            });
+        }
+
+        try {
+            serveFrames(istream, ostream, version, capabilities);
+        } finally {
+            if(streams != null) {
+                streams.fail(new IOException("connection closed"));
+            }
+        }
+    }
+
+    /** Serves the frames of a keep-alive connection once the preface has
+        been answered. */
+    private void serveFrames(DataInputStream istream,
+                             DataOutputStream ostream, final int version,
+                             int capabilities) throws Exception {
+        boolean multiplexed = (capabilities & Protocol.CAP_MULTIPLEX) != 0;
+        int timeout = 0;
+
+        while(true) {
+            int first;
+
+            // The idle timeout stays set on the socket, and is changed only
+            // when the skeleton's changes. Input retries reads that time out
+            // within a request, so that only the wait for the start of the
+            // next one is bounded. Closing the socket from shutdown also ends
+            // the wait.
             try {
-                ObjectOutputStream ostream = new ObjectOutputStream(socket.getOutputStream());
+                if(timeout != skeleton.getIdleTimeout()) {
+                    timeout = skeleton.getIdleTimeout();
+                    socket.setSoTimeout(timeout);
+                }
+                waiting = true;
+                first = istream.read();
+                waiting = false;
+            } catch(SocketTimeoutException e) {
+                if(!isIdle()) {
+                    continue;
+                }
+                return;
+            } catch(SocketException e) {
+                if(isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+
+            if(first < 0) {
+                return;
+            }
+            if(!beginRequest()) {
+                // Calls still running answer before the socket is closed.
+                awaitIdle();
+                return;
+            }
+
+            final Protocol.Frame request =
+                Protocol.readFrame(istream, version, first, capabilities,
+                                   incoming);
+            if(streams != null &&
+               request.methodId == Protocol.STREAM_METHOD_ID) {
+                streams.receive(request);
+                if(!endRequest()) {
+                    awaitIdle();
+                    return;
+                }
+                continue;
+            }
+            request.streams = streams;
+            if(multiplexed) {
+                dispatch(version, request, ostream);
+                continue;
+            }
+
+            Protocol.Frame response = skeleton.runCall(
+                new Callable<Protocol.Frame>() {
+                    @Override
+                    public Protocol.Frame call() throws Exception {
+                        return skeleton.getDispatcher().handle(
+                            version, request, skeleton.requestPool());
+                    }
+                },
+                new Callable<Protocol.Frame>() {
+                    @Override
+                    public Protocol.Frame call() throws IOException {
+                        return Dispatcher.busyResponse(version, request);
+                    }
+                });
+            if(response != null) {
+                Protocol.appendFrame(ostream, version, response, outgoing);
                 ostream.flush();
-                ObjectInputStream istream  = new ObjectInputStream(socket.getInputStream());
-
-                String methodName = (String) istream.readObject();
-                System.err.println("methodName: " + methodName);
-                
-                Class<?>[] paramTypes = (Class<?>[]) istream.readObject();
-                System.err.println("paramTypes.length: " + paramTypes.length);
-
-                Object[] args = new Object[paramTypes.length];
-                if(paramTypes.length > 0) {
-                    for (int i = 0; i < args.length; i++) {
-                        args[i] = istream.readObject();
-                        System.err.println("args["+i+"] = " + args[i]);
+            }
+
+            if(!endRequest()) {
+                return;
+            }
+        }
+    }
+
+    /** Runs a request of a multiplexed connection on the request pool. If the
+        pool rejects it, the stub is told at once that the skeleton is busy. */
+    private void dispatch(final int version, final Protocol.Frame request,
+                          final DataOutputStream ostream) throws IOException {
+        try {
+            skeleton.requestPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Protocol.Frame response;
+                    try {
+                        response = skeleton.getDispatcher().handle(
+                            version, request, skeleton.requestPool());
+                    } catch(Exception e) {
+                        closeSocket();
+                        skeleton.service_error(
+                            new RMIException("Error with request", e));
+                        endMultiplexedRequest();
+                        return;
                     }
+                    respond(version, response, ostream);
                 }
-                
-                // TODO catch specific exception
-                Object result = null;
-                Method method = null;
-                boolean exceptionThrown = false;
-                System.err.println("getting method");
+            });
+        } catch(RejectedExecutionException e) {
+            skeleton.rejected();
+            respond(version, Dispatcher.busyResponse(version, request),
+                    ostream);
+        }
+    }
+
+    /** Writes the response to a request of a multiplexed connection, if the
+        request is answered, preceded by the announcements of the streams it
+        carries, which then start to be sent.
+
+        <p>
+        Responses are batched: a worker that finds other workers waiting to
+        write leaves its response in the stream's buffer, and the last of them
+        flushes all the responses in one write. A response written when no
+        other is waiting is flushed at once. */
+    private void respond(int version, Protocol.Frame response,
+                         DataOutputStream ostream) {
+        responding.incrementAndGet();
+        try {
+            synchronized(ostream) {
+                boolean last;
                 try {
-                    method = skeleton.getCls().getMethod(methodName, paramTypes);
-                } catch (NoSuchMethodException e) {
-                    System.err.println("Inside NoSuchMethodException for getMethod in ServiceThread");
-                    exceptionThrown = true;
-                    result = new RMIException("No Such Method");
-
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    if(response != null) {
+                        if(response.streamValues != null) {
+                            for(Protocol.Frame announcement :
+                                    streams.open(response)) {
+                                Protocol.appendFrame(ostream, version,
+                                                     announcement);
+                            }
+                        }
+                        Protocol.appendFrame(ostream, version, response,
+                                             outgoing);
+                    }
+                } finally {
+                    last = responding.decrementAndGet() == 0;
+                }
+                if(last) {
+                    ostream.flush();
+                }
+            }
+            if(response != null && response.streamValues != null) {
+                streams.start(response);
+            }
+        } catch(IOException e) {
+            Log.debug("cannot write response", e);
+            closeSocket();
+        } finally {
+            endMultiplexedRequest();
+        }
+    }
+
+    /** Serves the single call carried by an old-style connection. */
+    private void serveSingle(BufferedInputStream in) throws Exception {
+        ObjectOutputStream ostream = new ObjectOutputStream(socket.getOutputStream());
+        ostream.flush();
+        ObjectInputStream istream  = new ObjectInputStream(in);
+
+        final Protocol.Request request = Protocol.readRequest(
+            istream, skeleton.getDispatcher().getMethodTable());
+
+        Dispatcher.Outcome outcome = skeleton.runCall(
+            new Callable<Dispatcher.Outcome>() {
+                @Override
+                public Dispatcher.Outcome call() {
+                    return skeleton.getDispatcher().call(request);
                 }
+            },
+            new Callable<Dispatcher.Outcome>() {
+                @Override
+                public Dispatcher.Outcome call() {
+                    return Dispatcher.Outcome.busy();
+                }
+            });
 
-                System.err.println("after getting method");
-                T ror = null;
-                if (!exceptionThrown)
-                    ror = skeleton.getRemoteObject();
+        if(Log.debugging()) {
+            Log.debug("writing exception: " + outcome.exceptionThrown);
+            Log.debug("writing result: " + outcome.result);
+        }
+        ostream.writeBoolean(outcome.exceptionThrown);
+        ostream.writeObject(outcome.result);
+        istream.close();
+        ostream.close();
+    }
 
+    /** Input of the connection. A read that times out is retried unless the
+        connection is waiting for its next request, so that the idle timeout
+        does not end a request that arrives slowly. A read that times out
+        consumes nothing, so retrying it loses no input. */
+    private class Input extends FilterInputStream {
+        Input(InputStream in) {
+            super(in);
+        }
 
+        @Override
+        public int read() throws IOException {
+            while(true) {
                 try {
-                    if (!exceptionThrown) {
-                        System.err.println("about to invoke " + method.getName());
-                        System.err.println("really - about to invoke");
-                        result = method.invoke(ror, args);
+                    return super.read();
+                } catch(SocketTimeoutException e) {
+                    if(waiting) {
+                        throw e;
                     }
-                    System.err.println("after invoke");
-                } catch (InvocationTargetException e) {
-                    System.err.println("inside catch for invoke");
-                    exceptionThrown = true;
-                    result = e.getCause();
-                } catch(Exception e) {
-                    e.printStackTrace();
                 }
-
-                System.err.println("writing exception: " + exceptionThrown);
-                ostream.writeBoolean(exceptionThrown);
-                System.err.println("writing result: " + result);
-                ostream.writeObject(result);
-                istream.close();
-                ostream.close();
-                socket.close();
-
-            } catch(Exception e) {
-                System.err.println("caught exception in service thread: " + e);
-                skeleton.service_error(new RMIException("Error with request", e));
             }
+        }
 
- //        }
-
-	}
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+            throws IOException {
+            while(true) {
+                try {
+                    return super.read(buffer, offset, length);
+                } catch(SocketTimeoutException e) {
+                    if(waiting) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package rmi;
+
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Address of a skeleton listening on shared memory.
+
+    <p>
+    The address names the shared-memory file created by a skeleton given the
+    path with <code>Skeleton.setSharedMemory</code>. Stubs for the address are
+    created with <code>Stub.create(Class, SharedMemoryAddress)</code>, and must
+    run on the same host as the skeleton.
+
+    <p>
+    Shared memory is an experimental transport.
+ */
+public final class SharedMemoryAddress extends SocketAddress
+{
+    /** Version of the serialized form, shared with stubs in other virtual
+        machines. */
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+
+    /** Creates an address.
+
+        @param path The path of the shared-memory file.
+        @throws NullPointerException If <code>path</code> is
+                                     <code>null</code>.
+     */
+    public SharedMemoryAddress(Path path)
+    {
+        this.path = path.toString();
+    }
+
+    /** Returns the path of the shared-memory file. */
+    public Path getPath()
+    {
+        return Paths.get(path);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof SharedMemoryAddress &&
+               path.equals(((SharedMemoryAddress) other).path);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
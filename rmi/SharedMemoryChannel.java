@@ -0,0 +1,376 @@
+package rmi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/** One end of a channel of a shared-memory file.
+
+    <p>
+    A skeleton listening on shared memory creates a file holding a header
+    and a fixed number of channels, and maps it into memory. The header gives
+    the layout of the file, the process identifier of the skeleton and whether
+    the skeleton is still listening. Each channel holds the process identifier
+    of the stub that owns it, or zero if it is free, followed by two
+    <code>SharedMemoryRing</code>s: one carrying requests from the stub, and
+    one carrying responses from the skeleton. A stub maps the same file and
+    takes a free channel by setting its owner with a compare-and-set. The
+    bytes carried by the rings are those of a TCP connection: the keep-alive
+    preface, followed by frames.
+
+    <p>
+    Reads and writes wait for the other side by spinning briefly, if there is
+    more than one processor, then by yielding, and then by parking for
+    increasing periods of up to <code>MAX_PARK</code> nanoseconds, since the
+    other side may be in another process and cannot wake the waiting thread.
+    While parked, the waiting side checks from time to time that the other
+    process is still alive.
+
+    <p>
+    A stub ends its session by closing its request ring. The skeleton then
+    empties both rings and frees the channel. A skeleton that stops closes the
+    response rings of every channel, and stubs reading them see the end of
+    the stream.
+ */
+class SharedMemoryChannel {
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class,
+                                              ByteOrder.nativeOrder());
+
+    /** Magic number opening a shared-memory file. */
+    private static final int MAGIC = 0x524d4953;
+    /** Version of the file layout. */
+    private static final int LAYOUT = 1;
+
+    private static final int FILE_MAGIC = 0;
+    private static final int FILE_LAYOUT = 4;
+    private static final int FILE_CHANNELS = 8;
+    private static final int FILE_CAPACITY = 12;
+    private static final int FILE_PID = 16;
+    private static final int FILE_OPEN = 24;
+    private static final int FILE_HEADER = 64;
+
+    private static final int OWNER = 0;
+    private static final int CHANNEL_HEADER = 64;
+
+    /** Number of times a waiting side spins before yielding. Spinning only
+        delays the other side on a single processor. */
+    private static final int SPINS =
+        Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    /** Number of times a waiting side yields before parking. */
+    private static final int YIELDS = 100;
+    /** Longest time, in nanoseconds, for which a waiting side parks. */
+    private static final long MAX_PARK = 1000000L;
+    /** Number of parks between checks that the other process is alive. */
+    private static final int LIVENESS_CHECK = 256;
+
+    /** Threads on which stubs wait for the responses of calls they do not
+        wait for themselves. A waiting thread spins and parks until the
+        skeleton answers, so each exchange has a thread of its own rather than
+        one of a pool shared with other work. */
+    private static final ExecutorService exchanges =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rmi-shared-memory");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final boolean stub;
+    private final SharedMemoryRing in;
+    private final SharedMemoryRing out;
+    private volatile boolean closed = false;
+
+    private final InputStream input = new InputStream() {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+            throws IOException {
+            if(length == 0) {
+                return 0;
+            }
+
+            for(int round = 0; ; ++round) {
+                int count = in.poll(bytes, offset, length);
+                if(count > 0) {
+                    return count;
+                }
+                if(in.isClosed()) {
+                    // Bytes published just before the ring was closed.
+                    count = in.poll(bytes, offset, length);
+                    return count > 0 ? count : -1;
+                }
+                idle(round);
+            }
+        }
+
+        @Override
+        public int available() {
+            return in.available();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+            throws IOException {
+            int round = 0;
+            while(length > 0) {
+                int count = out.offer(bytes, offset, length);
+                if(count > 0) {
+                    offset += count;
+                    length -= count;
+                    round = 0;
+                    continue;
+                }
+
+                // The ring is full: let the other side drain it.
+                out.publish();
+                if(in.isClosed()) {
+                    throw new IOException("shared-memory channel closed by " +
+                                          "peer");
+                }
+                idle(round++);
+            }
+        }
+
+        @Override
+        public void flush() {
+            out.publish();
+        }
+    };
+
+    private SharedMemoryChannel(ByteBuffer buffer, int base, int capacity,
+                                boolean stub) {
+        this.buffer = buffer;
+        this.base = base;
+        this.stub = stub;
+
+        int first = base + CHANNEL_HEADER;
+        int second = first + SharedMemoryRing.size(capacity);
+        SharedMemoryRing requests =
+            new SharedMemoryRing(buffer, first, capacity);
+        SharedMemoryRing responses =
+            new SharedMemoryRing(buffer, second, capacity);
+        in = stub ? responses : requests;
+        out = stub ? requests : responses;
+    }
+
+    /** Creates and maps a shared-memory file, and returns the skeleton's ends
+        of its channels.
+
+        @param path The path of the file, at which no file may exist.
+        @param channels The number of channels.
+        @param capacity The capacity of each ring, a power of two.
+        @throws IOException If the file cannot be created or mapped.
+     */
+    static SharedMemoryChannel[] create(Path path, int channels, int capacity)
+        throws IOException {
+        int channelSize = CHANNEL_HEADER + 2 * SharedMemoryRing.size(capacity);
+        long size = FILE_HEADER + (long) channels * channelSize;
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("shared-memory file too large");
+        }
+
+        MappedByteBuffer buffer;
+        try(FileChannel file = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        buffer.putInt(FILE_MAGIC, MAGIC);
+        buffer.putInt(FILE_LAYOUT, LAYOUT);
+        buffer.putInt(FILE_CHANNELS, channels);
+        buffer.putInt(FILE_CAPACITY, capacity);
+        buffer.putLong(FILE_PID, ProcessHandle.current().pid());
+
+        SharedMemoryChannel[] ends = new SharedMemoryChannel[channels];
+        for(int i = 0; i < channels; ++i) {
+            ends[i] = new SharedMemoryChannel(
+                buffer, FILE_HEADER + i * channelSize, capacity, false);
+        }
+        LONGS.setRelease(buffer, FILE_OPEN, 1L);
+        return ends;
+    }
+
+    /** Maps a shared-memory file and takes a free channel.
+
+        @param path The path of the file.
+        @return The stub's end of the channel.
+        @throws IOException If the file cannot be mapped, is not a
+                            shared-memory file, belongs to a skeleton that has
+                            stopped, or has no free channel.
+     */
+    static SharedMemoryChannel connect(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+            if(file.size() < FILE_HEADER || file.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is not a shared-memory file");
+            }
+            buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, file.size());
+        }
+
+        if(buffer.getInt(FILE_MAGIC) != MAGIC ||
+           buffer.getInt(FILE_LAYOUT) != LAYOUT) {
+            throw new IOException(path + " is not a shared-memory file");
+        }
+        if((long) LONGS.getAcquire(buffer, FILE_OPEN) == 0) {
+            throw new IOException("skeleton no longer listens on " + path);
+        }
+
+        int channels = buffer.getInt(FILE_CHANNELS);
+        int capacity = buffer.getInt(FILE_CAPACITY);
+        int channelSize = CHANNEL_HEADER + 2 * SharedMemoryRing.size(capacity);
+        long pid = ProcessHandle.current().pid();
+
+        for(int i = 0; i < channels; ++i) {
+            int base = FILE_HEADER + i * channelSize;
+            if(LONGS.compareAndSet(buffer, base + OWNER, 0L, pid)) {
+                return new SharedMemoryChannel(buffer, base, capacity, true);
+            }
+        }
+        throw new IOException("no free channel in " + path);
+    }
+
+    /** Returns the executor on which stubs make the exchanges of
+        asynchronous and batched calls carried by shared memory. */
+    static Executor exchanges() {
+        return exchanges;
+    }
+
+    /** Returns the number of channels of the file this channel belongs to. */
+    int channels() {
+        return buffer.getInt(FILE_CHANNELS);
+    }
+
+    /** Returns the stream of bytes sent by the other side. */
+    InputStream inputStream() {
+        return input;
+    }
+
+    /** Returns the stream of bytes sent to the other side. Bytes written are
+        seen by the other side once the stream is flushed. */
+    OutputStream outputStream() {
+        return output;
+    }
+
+    /** Returns <code>true</code> if a stub owns the channel. Used by the
+        skeleton. */
+    boolean isOwned() {
+        return (long) LONGS.getAcquire(buffer, base + OWNER) != 0;
+    }
+
+    /** Returns <code>true</code> if neither side has closed the channel. */
+    boolean isOpen() {
+        return !closed && !in.isClosed() &&
+               (long) LONGS.getAcquire(buffer, FILE_OPEN) != 0;
+    }
+
+    /** Closes this end of the channel. A stub closing its end ends its
+        session. */
+    void close() {
+        closed = true;
+        out.publish();
+        out.close();
+    }
+
+    /** Closes the file to new stubs. Used by the skeleton when it stops. */
+    void closeFile() {
+        LONGS.setRelease(buffer, FILE_OPEN, 0L);
+    }
+
+    /** Empties both rings and frees the channel for another stub. Used by
+        the skeleton at the end of a session. */
+    void free() {
+        in.reset();
+        out.reset();
+        LONGS.setRelease(buffer, base + OWNER, 0L);
+    }
+
+    /** Ends a session that failed, from the skeleton's side. The response
+        ring is closed, so that the stub sees the end of the stream, and the
+        method returns once the stub has closed its end, has exited, or this
+        end has been closed. The channel may then be freed. */
+    void abandon() {
+        out.publish();
+        out.close();
+        try {
+            for(int round = 0; !in.isClosed(); ++round) {
+                idle(round);
+            }
+        } catch(IOException e) { }
+    }
+
+    /** Waits for the other side, after finding no progress
+        <code>round</code> times in a row.
+
+        @throws IOException If this end has been closed, or the other
+                            process has exited.
+     */
+    private void idle(int round) throws IOException {
+        if(closed) {
+            throw new IOException("shared-memory channel closed");
+        }
+
+        if(round < SPINS) {
+            Thread.onSpinWait();
+            return;
+        }
+        if(round < SPINS + YIELDS) {
+            Thread.yield();
+            return;
+        }
+
+        int parks = round - SPINS - YIELDS;
+        LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << Math.min(parks, 10)));
+        if(parks % LIVENESS_CHECK == LIVENESS_CHECK - 1 && !peerAlive()) {
+            throw new IOException("peer process of shared-memory channel " +
+                                  "exited");
+        }
+    }
+
+    /** Returns <code>false</code> if the process at the other side is known
+        to have exited. */
+    private boolean peerAlive() {
+        long pid = stub ? buffer.getLong(FILE_PID)
+                        : (long) LONGS.getAcquire(buffer, base + OWNER);
+        if(pid == 0) {
+            return true;
+        }
+        return ProcessHandle.of(pid).map(ProcessHandle::isAlive)
+                            .orElse(false);
+    }
+}
@@ -0,0 +1,181 @@
+package rmi;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/** Shared-memory transport for a skeleton.
+
+    <p>
+    The transport creates a shared-memory file, described in
+    <code>SharedMemoryChannel</code>, and serves each of its channels with a
+    thread of its own. A channel carries one stub connection at a time. Its
+    thread answers the keep-alive preface, and then serves the connection's
+    requests one after another, as the <code>BLOCKING</code> transport serves
+    a connection that does not multiplex: calls run through the skeleton's
+    dispatcher, subject to its worker limits. Multiplexing is never agreed on
+    a channel, and neither is the Unix domain socket advertised, nor
+    compression, which costs more than copying the payload through memory.
+
+    <p>
+    The transport is experimental. It is meant for stubs in other processes on
+    the same host that make many small calls, for which even a Unix domain
+    socket costs too much.
+ */
+class SharedMemoryListener<T> {
+    /** Capacity of each ring of a channel, in bytes. */
+    static final int RING_CAPACITY = 256 * 1024;
+
+    private final Skeleton<T> skeleton;
+    private final Path path;
+    private final SharedMemoryChannel[] channels;
+    private final Thread[] threads;
+    private volatile boolean stopping = false;
+
+    /** Creates the shared-memory file.
+
+        @param skeleton The skeleton served by this transport.
+        @param path The path of the file, at which no file may exist.
+        @param channelCount The number of channels.
+        @throws IOException If the file cannot be created or mapped.
+     */
+    SharedMemoryListener(Skeleton<T> skeleton, Path path, int channelCount)
+        throws IOException {
+        this.skeleton = skeleton;
+        this.path = path;
+
+        channels = SharedMemoryChannel.create(path, channelCount,
+                                              RING_CAPACITY);
+        threads = new Thread[channelCount];
+        for(int i = 0; i < channelCount; ++i) {
+            final SharedMemoryChannel channel = channels[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(channel);
+                }
+            }, "rmi-shm-" + i);
+            threads[i].setDaemon(true);
+        }
+    }
+
+    /** Starts serving the channels. */
+    void start() {
+        for(Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /** Stops serving the channels and removes the file.
+
+        <p>
+        Stubs can no longer take channels. Channels that are not in the middle
+        of a call are closed at once; the others are closed once the response
+        to their call has been written.
+     */
+    void shutdown() throws InterruptedException {
+        stopping = true;
+        for(SharedMemoryChannel channel : channels) {
+            channel.closeFile();
+            channel.close();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch(IOException e) {
+            Log.debug("cannot remove shared-memory file", e);
+        }
+    }
+
+    /** Serves the connections carried by a channel, one after another. */
+    private void serve(SharedMemoryChannel channel) {
+        while(!stopping) {
+            try {
+                serveConnection(channel);
+            } catch(Exception e) {
+                if(stopping) {
+                    return;
+                }
+                Log.debug("caught exception in shared-memory transport", e);
+                skeleton.service_error(
+                    new RMIException("Error with request", e));
+                channel.abandon();
+            }
+
+            if(!stopping) {
+                channel.free();
+            }
+        }
+    }
+
+    /** Serves a connection from its preface until the stub closes it. */
+    private void serveConnection(SharedMemoryChannel channel)
+        throws Exception {
+        DataInputStream istream = new DataInputStream(
+            new BufferedInputStream(channel.inputStream()));
+        DataOutputStream ostream = new DataOutputStream(
+            new BufferedOutputStream(channel.outputStream()));
+
+        if(istream.readInt() != Protocol.MAGIC) {
+            throw new IOException("connection on shared memory does not " +
+                                  "begin with the preface");
+        }
+        final int version = Protocol.acceptVersion(istream.readInt());
+        int capabilities = 0;
+        if(version >= 2) {
+            capabilities = istream.readInt() & Protocol.CAPABILITIES &
+                           ~(Protocol.CAP_MULTIPLEX |
+                             Protocol.CAP_UNIX_SOCKET |
+                             Protocol.CAP_STREAMS |
+                             Protocol.CAP_COMPRESSION);
+        }
+        Protocol.writeReply(ostream, version, capabilities,
+            skeleton.getDispatcher().getMethodTable().fingerprint(), null,
+            skeleton.getDispatcher().getCodec().name());
+        ostream.flush();
+
+        ClassDescriptors.Outgoing outgoing = null;
+        ClassDescriptors.Incoming incoming = null;
+        if((capabilities & Protocol.CAP_DESCRIPTORS) != 0) {
+            outgoing = new ClassDescriptors.Outgoing();
+            incoming = new ClassDescriptors.Incoming();
+        }
+
+        while(true) {
+            int first = istream.read();
+            if(first < 0) {
+                return;
+            }
+
+            final Protocol.Frame request =
+                Protocol.readFrame(istream, version, first, capabilities,
+                                   incoming);
+            Protocol.Frame response = skeleton.runCall(
+                new Callable<Protocol.Frame>() {
+                    @Override
+                    public Protocol.Frame call() throws Exception {
+                        return skeleton.getDispatcher().handle(
+                            version, request, skeleton.requestPool());
+                    }
+                },
+                new Callable<Protocol.Frame>() {
+                    @Override
+                    public Protocol.Frame call() throws IOException {
+                        return Dispatcher.busyResponse(version, request);
+                    }
+                });
+            if(response != null) {
+                Protocol.appendFrame(ostream, version, response, outgoing);
+                ostream.flush();
+            }
+        }
+    }
+}
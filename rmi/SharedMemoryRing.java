@@ -0,0 +1,139 @@
+package rmi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Single-producer, single-consumer ring of bytes in shared memory.
+
+    <p>
+    A ring occupies <code>size(capacity)</code> bytes of a mapped buffer. It
+    begins with the producer's position and a flag telling that the producer
+    has closed the ring, then, on a cache line of its own, the consumer's
+    position, and then the data area. Positions count the bytes written and
+    read since the ring was last reset, and are taken modulo the capacity, a
+    power of two, to index the data area. The producer publishes its position
+    with release semantics once the bytes before it have been written, and
+    the consumer reads it with acquire semantics, and likewise in the other
+    direction, so that the two sides may be in different processes.
+
+    <p>
+    The methods of a ring never block. Each side keeps its own position, and a
+    cached copy of the other side's, in the ring object, so an instance is
+    used by only one side, and by one thread at a time.
+ */
+class SharedMemoryRing {
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class,
+                                              ByteOrder.nativeOrder());
+
+    private static final int TAIL = 0;
+    private static final int CLOSED = 8;
+    private static final int HEAD = 64;
+    private static final int DATA = 128;
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int capacity;
+    private final int mask;
+
+    /** Position of this side: the tail for the producer, the head for the
+        consumer. */
+    private long position;
+    /** Last position seen of the other side. */
+    private long seen;
+
+    /** Creates a view of a ring.
+
+        @param buffer The mapped buffer.
+        @param base The offset of the ring in the buffer, a multiple of 64.
+        @param capacity The size of the data area, a power of two.
+     */
+    SharedMemoryRing(ByteBuffer buffer, int base, int capacity) {
+        this.buffer = buffer;
+        this.base = base;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /** Returns the number of bytes taken by a ring of the given capacity. */
+    static int size(int capacity) {
+        return DATA + capacity;
+    }
+
+    /** Empties the ring and clears its closed flag. Neither side may be using
+        the ring. */
+    void reset() {
+        LONGS.setRelease(buffer, base + HEAD, 0L);
+        LONGS.setRelease(buffer, base + CLOSED, 0L);
+        LONGS.setRelease(buffer, base + TAIL, 0L);
+        position = 0;
+        seen = 0;
+    }
+
+    /** Copies bytes into the ring, as far as there is room. The bytes are
+        seen by the consumer once <code>publish</code> is called.
+
+        @return The number of bytes copied, which is zero if the ring is full.
+     */
+    int offer(byte[] bytes, int offset, int length) {
+        long free = capacity - (position - seen);
+        if(free == 0) {
+            seen = (long) LONGS.getAcquire(buffer, base + HEAD);
+            free = capacity - (position - seen);
+            if(free == 0) {
+                return 0;
+            }
+        }
+
+        int index = (int) position & mask;
+        int count = (int) Math.min(Math.min(free, length), capacity - index);
+        buffer.put(base + DATA + index, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    /** Makes the bytes offered so far visible to the consumer. */
+    void publish() {
+        LONGS.setRelease(buffer, base + TAIL, position);
+    }
+
+    /** Copies bytes out of the ring, as far as there are any.
+
+        @return The number of bytes copied, which is zero if the ring is empty.
+     */
+    int poll(byte[] bytes, int offset, int length) {
+        long available = seen - position;
+        if(available == 0) {
+            seen = (long) LONGS.getAcquire(buffer, base + TAIL);
+            available = seen - position;
+            if(available == 0) {
+                return 0;
+            }
+        }
+
+        int index = (int) position & mask;
+        int count =
+            (int) Math.min(Math.min(available, length), capacity - index);
+        buffer.get(base + DATA + index, bytes, offset, count);
+        position += count;
+        LONGS.setRelease(buffer, base + HEAD, position);
+        return count;
+    }
+
+    /** Returns the number of bytes the consumer can read without waiting. */
+    int available() {
+        return (int) ((long) LONGS.getAcquire(buffer, base + TAIL) - position);
+    }
+
+    /** Marks the ring as closed by its producer. */
+    void close() {
+        LONGS.setRelease(buffer, base + CLOSED, 1L);
+    }
+
+    /** Returns <code>true</code> if the producer has closed the ring. */
+    boolean isClosed() {
+        return (long) LONGS.getAcquire(buffer, base + CLOSED) != 0;
+    }
+}
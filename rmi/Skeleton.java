@@ -8,7 +8,25 @@ import java.util.List;
 import java.lang.reflect.*;
 import java.lang.InterruptedException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -33,6 +51,13 @@ import java.util.Vector;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    A skeleton may also listen on a Unix domain socket, set with
+    <code>setUnixSocket</code>. Stubs on the same host as the skeleton learn
+    of the socket when they first connect over TCP, and then prefer it.
+    Stubs in other processes on the same host may also reach the skeleton
+    through shared memory, set with <code>setSharedMemory</code>.
 */
 public class Skeleton<T>
 {
@@ -45,8 +70,54 @@ public class Skeleton<T>
     private ThreadGroup serviceGroup;
     private Vector<Thread> serviceThreads;
     private ServerSocket servSocket;
+    private final Set<ServiceThread<T>> connections =
+        ConcurrentHashMap.newKeySet();
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private final Dispatcher<T> dispatcher;
+    private Transport transport = Transport.BLOCKING;
+    private int selectorThreads = DEFAULT_SELECTOR_THREADS;
+    private SelectorListener<T> selectorListener;
+    private Path unixSocket;
+    private SelectorListener<T> unixListener;
+    /** Path advertised to stubs while the Unix domain socket is open. */
+    private volatile String advertisedUnixSocket;
+    private Path sharedMemory;
+    private int sharedMemoryChannels;
+    private SharedMemoryListener<T> sharedMemoryListener;
+    private volatile boolean virtualThreads = false;
+    private int workerThreads = 0;
+    private int workerQueue = 0;
+    private volatile ThreadPoolExecutor callPool;
+    private int connectionLimit = DEFAULT_CONNECTION_LIMIT;
+    /** Connections the <code>BLOCKING</code> transport may still service, or
+        <code>null</code> if their number is not limited. */
+    private volatile Semaphore connectionSlots;
+    private volatile ExecutorService requestPool;
+    private final AtomicLong rejectedCalls = new AtomicLong();
 
     private static final int MAX_Q_CONNECTIONS = 10;
+    private static final int DEFAULT_IDLE_TIMEOUT = 60000;
+    private static final int DEFAULT_CONNECTION_LIMIT = 1024;
+    /** Time, in milliseconds, between attempts to close an idle connection
+        while a new connection waits for a service thread. */
+    private static final int RECLAIM_INTERVAL = 100;
+    private static final int DEFAULT_SELECTOR_THREADS =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Ways in which a skeleton can service its connections.
+
+        <p>
+        <code>BLOCKING</code>, the default, dedicates a thread to each
+        connection. <code>SELECTOR</code> serves all connections from a small
+        number of I/O threads using non-blocking channels, and runs each call on
+        a worker thread, so that the number of threads does not grow with the
+        number of connected stubs. Both transports accept the same stubs.
+     */
+    public enum Transport
+    {
+        BLOCKING,
+        SELECTOR
+    }
 
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
@@ -78,6 +149,7 @@ public class Skeleton<T>
         }
 
         this.c = c; this.server = server; this.address = null;
+        this.dispatcher = new Dispatcher<T>(this);
     }
 
     /** Creates a <code>Skeleton</code> with the given initial server address.
@@ -136,7 +208,7 @@ public class Skeleton<T>
      */
     protected void stopped(Throwable cause)
     {
-        System.err.println("WHYYY ARE WE CALLING DEFAULT STOPPED!!!");
+        Log.debug("default stopped handler called");
         if(cause == null) {
             isRunning = false;
         }
@@ -173,7 +245,7 @@ public class Skeleton<T>
      */
     protected void service_error(RMIException exception)
     {
-        System.err.println("CALLING DEFAULT SERVICE_ERROR");
+        Log.debug("default service_error handler called");
     }
 
     /** Starts the skeleton server.
@@ -191,11 +263,24 @@ public class Skeleton<T>
      */
     public synchronized void start() throws RMIException
     {
-        System.err.println("beginning of start");
+        Log.debug("beginning of start");
         try {
+            requestPool = newWorkerPool();
+            if(unixSocket != null) {
+                unixListener = new SelectorListener<T>(
+                    this, UnixDomainSocketAddress.of(unixSocket), 1,
+                    MAX_Q_CONNECTIONS, requestPool);
+            }
+            if(sharedMemory != null) {
+                sharedMemoryListener = new SharedMemoryListener<T>(
+                    this, sharedMemory, sharedMemoryChannels);
+            }
+
             // make sure we have an address
-            if(address == null) {
-                System.err.println("address is null");
+            if(transport == Transport.SELECTOR) {
+                // the selector transport binds its own channel
+            } else if(address == null) {
+                Log.debug("address is null");
                 servSocket = new ServerSocket(0);
                 address = (InetSocketAddress)servSocket.getLocalSocketAddress();
             } else {
@@ -203,13 +288,36 @@ public class Skeleton<T>
                 servSocket.bind(address);
             }
             
-            listener = new SocketListener<T>(servSocket, this);
-            listenerThread = new Thread(listener);
             serviceThreads = new Vector<Thread>();
-            listenerThread.start();
+            connectionSlots = connectionLimit > 0 ?
+                new Semaphore(connectionLimit) : null;
+            if(transport == Transport.SELECTOR) {
+                selectorListener = new SelectorListener<T>(
+                    this, address, selectorThreads, MAX_Q_CONNECTIONS,
+                    requestPool);
+                servSocket = selectorListener.serverSocket();
+                address = (InetSocketAddress)servSocket.getLocalSocketAddress();
+                selectorListener.start();
+            } else {
+                listener = new SocketListener<T>(servSocket, this);
+                listenerThread = new Thread(listener);
+                listenerThread.start();
+            }
+            if(unixListener != null) {
+                unixListener.start();
+                advertisedUnixSocket = unixSocket.toString();
+            }
+            if(sharedMemoryListener != null) {
+                sharedMemoryListener.start();
+            }
             this.isRunning = true;
 
         } catch (IOException e) {
+            closeUnixSocket();
+            closeSharedMemory();
+            requestPool.shutdown();
+            requestPool = null;
+            callPool = null;
             throw new RMIException("failed to start Skeleton server", e);
         }
 
@@ -226,20 +334,39 @@ public class Skeleton<T>
      */
     public synchronized void stop()
     {
-        System.err.println("inside stop");
+        Log.debug("inside stop");
 
         try {
-            System.err.println("check running");
+            Log.debug("check running");
             if (isRunning) {
                 isRunning = false;
-                System.err.println("about to close socket");
+                Log.debug("about to close socket");
 
+                // Every transport stops accepting before the worker pool they
+                // share is shut down, so that none of them has its calls
+                // rejected while another is still draining.
                 if(listener != null) {
                     listener.stopMe();
+                    // The listener may be waiting for a connection to end.
+                    listenerThread.interrupt();
                     servSocket.close();
                     listenerThread.join();
+                    listener = null;
                     stopped(null);
                 }
+                if(selectorListener != null) {
+                    selectorListener.stopAccepting();
+                }
+                if(unixListener != null) {
+                    unixListener.stopAccepting();
+                }
+                closeSharedMemory();
+
+                // Keep-alive connections waiting for their next request would
+                // otherwise keep their service threads alive indefinitely.
+                for(ServiceThread<T> connection : connections) {
+                    connection.shutdown();
+                }
 
                 if(serviceThreads != null) {
                     for(Thread thread : serviceThreads) {
@@ -247,22 +374,512 @@ public class Skeleton<T>
                     }
                     serviceThreads.clear();
                 }
-                System.err.println("after stopped");
+
+                ExecutorService pool = requestPool;
+                if(pool != null) {
+                    pool.shutdown();
+                    while(!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    }
+                    requestPool = null;
+                }
+
+                if(selectorListener != null) {
+                    selectorListener.shutdown();
+                    selectorListener = null;
+                    stopped(null);
+                }
+                closeUnixSocket();
+                callPool = null;
+                Log.debug("after stopped");
 
             }
         } catch (InterruptedException e) {
-            System.err.println("InterruptedException");
-            e.printStackTrace();
+            Log.debug("interrupted while stopping", e);
             stopped(e);
 
         } catch(IOException e) {
-            System.err.println("IOException");
-            e.printStackTrace();
+            Log.debug("error while stopping", e);
             stopped(e);
         }
 
         //this.stopped(null);
-        System.err.println("end of stop");
+        Log.debug("end of stop");
+    }
+
+    /** Stops listening on the Unix domain socket, if the skeleton does, and
+        removes the socket file. */
+    private void closeUnixSocket() {
+        advertisedUnixSocket = null;
+        if(unixListener == null) {
+            return;
+        }
+
+        try {
+            unixListener.stopAccepting();
+            unixListener.shutdown();
+        } catch(IOException | InterruptedException e) {
+            Log.debug("error while closing Unix domain socket", e);
+        }
+        unixListener = null;
+
+        try {
+            Files.deleteIfExists(unixSocket);
+        } catch(IOException e) {
+            Log.debug("cannot remove Unix domain socket", e);
+        }
+    }
+
+    /** Stops listening on shared memory, if the skeleton does, and removes
+        the shared-memory file. */
+    private void closeSharedMemory() {
+        if(sharedMemoryListener == null) {
+            return;
+        }
+
+        try {
+            sharedMemoryListener.shutdown();
+        } catch(InterruptedException e) {
+            Log.debug("interrupted while closing shared memory", e);
+            Thread.currentThread().interrupt();
+        }
+        sharedMemoryListener = null;
+    }
+
+    /** Sets how long a keep-alive connection may wait for its next request.
+
+        <p>
+        Stubs keep connections to the skeleton open between calls. A connection
+        on which no new request starts within the idle timeout is closed by the
+        skeleton. The new timeout applies to waits that begin after this call.
+
+        @param millis The idle timeout, in milliseconds.
+        @throws IllegalArgumentException If <code>millis</code> is not
+                                         positive.
+     */
+    public void setIdleTimeout(int millis)
+    {
+        if(millis <= 0) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+        idleTimeout = millis;
+    }
+
+    /** Selects the transport used when the skeleton is next started.
+
+        @param transport The transport.
+        @throws NullPointerException If <code>transport</code> is
+                                     <code>null</code>.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setTransport(Transport transport)
+    {
+        if(transport == null) {
+            throw new NullPointerException("transport must not be null");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        this.transport = transport;
+    }
+
+    /** Returns the transport used by the skeleton. */
+    public synchronized Transport getTransport() {
+        return transport;
+    }
+
+    /** Selects a Unix domain socket on which the skeleton listens, in addition
+        to its TCP address, when it is next started.
+
+        <p>
+        The socket is served by a selector I/O thread, as with the
+        <code>SELECTOR</code> transport, and its calls run on the same workers
+        as those of TCP connections. Stubs created with the skeleton's TCP
+        address that find the skeleton on their own host are told of the
+        socket when they connect, and open their later connections on it.
+        Stubs may also be created directly for the socket with
+        <code>Stub.create(Class, UnixDomainSocketAddress)</code>.
+
+        <p>
+        No file may exist at the path when the skeleton is started. The socket
+        file is removed when the skeleton stops.
+
+        @param path The path of the socket, or <code>null</code> to listen on
+                    TCP only.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setUnixSocket(Path path)
+    {
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        unixSocket = path;
+    }
+
+    /** Returns the path of the skeleton's Unix domain socket, or
+        <code>null</code> if it listens on TCP only. */
+    public synchronized Path getUnixSocket() {
+        return unixSocket;
+    }
+
+    /** Selects a shared-memory file through which the skeleton is also
+        reached, when it is next started. This transport is experimental.
+
+        <p>
+        The skeleton creates the file and maps it into memory. The file holds
+        the given number of channels, each of which carries one stub
+        connection at a time in a pair of ring buffers, and is served by a
+        thread of the skeleton that waits for requests by spinning and then
+        parking. Stubs in processes on the same host are created with
+        <code>Stub.create(Class, SharedMemoryAddress)</code>. Calls are made
+        one at a time on each channel, so the number of channels bounds the
+        number of calls in progress through shared memory. A connection holds
+        its channel while its stub's pool keeps it open, and a stub that finds
+        no free channel fails to connect.
+
+        <p>
+        No file may exist at the path when the skeleton is started. The file
+        is removed when the skeleton stops.
+
+        @param path The path of the file, or <code>null</code> to not listen
+                    on shared memory.
+        @param channels The number of channels.
+        @throws IllegalArgumentException If <code>path</code> is not
+                                         <code>null</code> and
+                                         <code>channels</code> is not
+                                         positive.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setSharedMemory(Path path, int channels)
+    {
+        if(path != null && channels <= 0) {
+            throw new IllegalArgumentException("channel count must be positive");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        sharedMemory = path;
+        sharedMemoryChannels = channels;
+    }
+
+    /** Returns the path of the skeleton's shared-memory file, or
+        <code>null</code> if it does not listen on shared memory. */
+    public synchronized Path getSharedMemory() {
+        return sharedMemory;
+    }
+
+    /** Returns the path of the Unix domain socket to advertise to stubs, or
+        <code>null</code> if the skeleton is not listening on one. */
+    String advertisedUnixSocket() {
+        return advertisedUnixSocket;
+    }
+
+    /** Sets the number of I/O threads used by the <code>SELECTOR</code>
+        transport when the skeleton is next started.
+
+        @param threads The number of I/O threads.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setSelectorThreads(int threads)
+    {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("thread count must be positive");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        selectorThreads = threads;
+    }
+
+    /** Selects whether connections and calls are serviced on virtual threads.
+
+        <p>
+        By default, the <code>BLOCKING</code> transport services each
+        connection on a new platform thread, and the <code>SELECTOR</code>
+        transport runs calls on a pool of platform threads. When virtual threads
+        are enabled, each connection of the <code>BLOCKING</code> transport,
+        and each call of the <code>SELECTOR</code> transport, runs on its own
+        virtual thread instead. Remote objects whose methods block can then have
+        very many calls in progress at once without exhausting memory for
+        thread stacks. The setting takes effect when the skeleton is next
+        started.
+
+        @param enabled <code>true</code> to use virtual threads.
+        @throws UnsupportedOperationException If <code>enabled</code> is
+                                              <code>true</code> and the Java
+                                              runtime does not support virtual
+                                              threads.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setVirtualThreads(boolean enabled)
+    {
+        if(enabled && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException(
+                "virtual threads require Java 21 or later");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        virtualThreads = enabled;
+    }
+
+    /** Returns <code>true</code> if the skeleton services connections and
+        calls on virtual threads. */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /** Creates an unstarted thread to service a connection. */
+    Thread newServiceThread(Runnable service) {
+        if(virtualThreads) {
+            return VirtualThreads.factory().newThread(service);
+        }
+        return new Thread(service);
+    }
+
+    /** Limits the number of calls the skeleton runs at once.
+
+        <p>
+        By default there is no limit: every call runs as soon as it arrives.
+        With a limit, calls run on a pool of at most <code>threads</code>
+        worker threads, and calls that arrive while all workers are busy wait
+        in a queue of at most <code>queueCapacity</code> calls. A call that
+        arrives when the queue is also full is not run. Instead, the stub is
+        answered at once with an <code>RMIException</code> reporting that the
+        server is busy, so that overload does not delay calls that are admitted.
+        The limits apply to both transports and take effect when the skeleton
+        is next started.
+
+        @param threads The maximum number of calls running at once, or zero for
+                       no limit.
+        @param queueCapacity The maximum number of calls waiting for a worker.
+                             Zero rejects every call that cannot start
+                             immediately.
+        @throws IllegalArgumentException If either argument is negative.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setWorkerLimits(int threads, int queueCapacity)
+    {
+        if(threads < 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("worker limits must not be negative");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        workerThreads = threads;
+        workerQueue = queueCapacity;
+    }
+
+    /** Limits the number of connections the <code>BLOCKING</code> transport
+        services at once.
+
+        <p>
+        Each connection of the <code>BLOCKING</code> transport has a thread of
+        its own. Once the limit is reached, connections that arrive are
+        accepted but not serviced until another connection ends. To make room
+        for them, keep-alive connections waiting for their next request are
+        closed, one at a time; their stubs open new connections when they next
+        call. The <code>SELECTOR</code> transport does not dedicate threads to
+        connections, and is not limited. The limit takes effect when the
+        skeleton is next started.
+
+        @param connections The maximum number of connections serviced at once,
+                           or zero for no limit.
+        @throws IllegalArgumentException If <code>connections</code> is
+                                         negative.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setConnectionLimit(int connections)
+    {
+        if(connections < 0) {
+            throw new IllegalArgumentException("connection limit must not be negative");
+        }
+        if(isRunning) {
+            throw new IllegalStateException("skeleton is running");
+        }
+        connectionLimit = connections;
+    }
+
+    /** Returns the maximum number of connections the <code>BLOCKING</code>
+        transport services at once, or zero if there is no limit. */
+    public synchronized int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    /** Waits until the <code>BLOCKING</code> transport may service another
+        connection. While it may not, a keep-alive connection waiting for its
+        next request is closed from time to time to make room.
+
+        @throws InterruptedException If the skeleton stops while the method
+                                     waits.
+     */
+    void awaitConnectionSlot() throws InterruptedException {
+        Semaphore slots = connectionSlots;
+        if(slots == null) {
+            return;
+        }
+
+        while(!slots.tryAcquire(RECLAIM_INTERVAL, TimeUnit.MILLISECONDS)) {
+            for(ServiceThread<T> connection : connections) {
+                if(connection.closeIfIdle()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Returns the number of calls waiting for a worker thread. This is
+        always zero when the number of workers is not limited. */
+    public int getQueueDepth() {
+        ThreadPoolExecutor pool = callPool;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /** Returns the number of calls rejected because the skeleton was busy,
+        since the skeleton was created. */
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    /** Creates the pool on which calls are run. This is the bounded pool set
+        up by <code>setWorkerLimits</code>, if any. Otherwise it is an
+        unbounded pool, on which the <code>SELECTOR</code> transport runs calls,
+        and on which the <code>BLOCKING</code> transport runs the calls of
+        multiplexed connections. */
+    ExecutorService newWorkerPool() {
+        if(workerThreads > 0) {
+            BlockingQueue<Runnable> queue;
+            if(workerQueue > 0) {
+                queue = new ArrayBlockingQueue<Runnable>(workerQueue);
+            } else {
+                queue = new SynchronousQueue<Runnable>();
+            }
+
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                workerThreads, workerThreads, 60, TimeUnit.SECONDS, queue,
+                workerFactory());
+            pool.allowCoreThreadTimeOut(true);
+            callPool = pool;
+            return pool;
+        }
+
+        if(virtualThreads) {
+            return VirtualThreads.newPerTaskExecutor();
+        }
+
+        return Executors.newCachedThreadPool(workerFactory());
+    }
+
+    private ThreadFactory workerFactory() {
+        if(virtualThreads) {
+            return VirtualThreads.factory();
+        }
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rmi-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** Returns the pool on which the skeleton runs calls that do not run in
+        the thread that read them: the calls of the <code>SELECTOR</code>
+        transport and of the Unix domain socket, and those of multiplexed
+        connections and parallel batches. Returns <code>null</code> if the
+        skeleton is not running. */
+    ExecutorService requestPool() {
+        return requestPool;
+    }
+
+    /** Runs a call on the bounded worker pool and waits for it to complete.
+        When the number of workers is not limited, the call runs in the calling
+        thread.
+
+        @param call The call.
+        @param busy Returns the value to return if the call is rejected. It
+                    is called only then.
+        @return The value returned by the call, or by <code>busy</code> if
+                the call was rejected because the skeleton is busy.
+        @throws Exception If either callable throws an exception.
+     */
+    <V> V runCall(Callable<V> call, Callable<V> busy) throws Exception {
+        ThreadPoolExecutor pool = callPool;
+        if(pool == null) {
+            return call.call();
+        }
+
+        FutureTask<V> task = new FutureTask<V>(call);
+        try {
+            pool.execute(task);
+        } catch(RejectedExecutionException e) {
+            rejected();
+            return busy.call();
+        }
+
+        try {
+            return task.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /** Runs a call that a stub in this virtual machine does not wait for in
+        its own thread. The call runs on the bounded worker pool set up by
+        <code>setWorkerLimits</code>, if any, and otherwise on a thread of its
+        own, created as the threads servicing connections are.
+
+        @param call The call.
+        @throws RejectedExecutionException If the call is rejected because the
+                                           skeleton is busy.
+     */
+    void runLocalCall(Runnable call) {
+        ThreadPoolExecutor pool = callPool;
+        if(pool == null) {
+            newServiceThread(call).start();
+            return;
+        }
+
+        try {
+            pool.execute(call);
+        } catch(RejectedExecutionException e) {
+            rejected();
+            throw e;
+        }
+    }
+
+    /** Records a call rejected because the skeleton was busy. */
+    void rejected() {
+        rejectedCalls.incrementAndGet();
+    }
+
+    Dispatcher<T> getDispatcher() {
+        return dispatcher;
+    }
+
+    /** Returns the keep-alive idle timeout, in milliseconds. */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void addConnection(ServiceThread<T> connection) {
+        connections.add(connection);
+    }
+
+    /** Records that a connection has ended. A connection accepted by the
+        <code>BLOCKING</code> transport frees its slot. */
+    void removeConnection(ServiceThread<T> connection) {
+        Semaphore slots = connectionSlots;
+        if(connections.remove(connection) && slots != null) {
+            slots.release();
+        }
     }
 
     public InetSocketAddress getAddress() {
@@ -23,20 +23,29 @@ class SocketListener<T> implements Runnable {
 		while(!this.finished) {
 
 			try {
-				System.err.println("before accept call");
+				Log.debug("before accept call");
 				Socket socket = servSock.accept();
-				System.err.println("after accept call");
+				Log.debug("after accept call");
 
 				// not sure if needed, close on accept causes SocketException
 				if(socket != null) {
+					try {
+						skeleton.awaitConnectionSlot();
+					} catch(InterruptedException e) {
+						socket.close();
+						continue;
+					}
+
 					Vector<Thread> threads = skeleton.getServiceThreads();
-					Thread thread = new Thread(new ServiceThread<T>(socket, skeleton));
+					ServiceThread<T> service = new ServiceThread<T>(socket, skeleton);
+					skeleton.addConnection(service);
+					Thread thread = skeleton.newServiceThread(service);
 					threads.add(thread);
 					thread.start();
 				}
 
 			} catch(SocketException e) {
-				System.out.println("socket exception");
+				Log.debug("socket exception");
 			} catch(Exception e) {
 				skeleton.listen_error(e);
 			}
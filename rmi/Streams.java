@@ -0,0 +1,1125 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+
+/** Streams of bytes passed to and returned by calls on a connection shared
+    by many calls.
+
+    <p>
+    When both sides of a connection support
+    <code>Protocol.CAP_STREAMS</code>, a value written with Java
+    serialization whose parameter or return type is
+    <code>InputStream</code>, <code>OutputStream</code> or
+    <code>Flow.Publisher</code> is not serialized. The payload holds only a
+    boolean telling whether the value is <code>null</code>, and the bytes of
+    the stream travel in stream frames of their own, interleaved with the
+    other frames of the connection. A stream frame carries
+    <code>Protocol.STREAM_METHOD_ID</code> as its method identifier and the
+    identifier of the call's request as its request identifier. Its payload
+    opens with the kind of the frame and the number of the stream within the
+    call, as a byte and an unsigned short: the result is stream
+    <code>RESULT</code>, and an argument is numbered by its position, from 1.
+
+    <p>
+    The side that sends the bytes of a stream announces it with an
+    <code>OPEN</code> frame just before the request or response carrying it,
+    so that the other side holds on to the <code>DATA</code> frames that
+    follow until the call takes the stream. Each data frame carries at most
+    <code>CHUNK_LENGTH</code> bytes, and the stream ends with an
+    <code>END</code> frame, or with an <code>ERROR</code> frame carrying a
+    message. The side receiving the bytes grants the sender
+    <code>CREDIT</code> as they are consumed, in an integer count of bytes;
+    the sender may send <code>WINDOW</code> bytes before any credit arrives,
+    and stops once it has used all it was granted. So a stream never holds
+    much more than <code>WINDOW</code> bytes in memory on either side,
+    whatever its length. The receiver may send <code>CANCEL</code> to stop
+    the sender.
+
+    <p>
+    An input stream or publisher passed as an argument or returned as the
+    result is read by the side that has it, on a thread of its own, once the
+    request or response has been queued. The other side receives an input
+    stream or publisher of its own, delivering the bytes as they arrive.
+    Buffers published are copied when they are sent. An output stream
+    passed as an argument works the other way round: the remote method
+    receives an output stream whose bytes are written to the caller's
+    stream, and the call completes once all of them have been. Output
+    streams cannot be returned. The streams passed to a remote method are
+    usable only until it returns: the skeleton then closes the output
+    streams, and closes the input streams and publishers, cancelling any the
+    method did not read to their end.
+
+    <p>
+    A stream received is open until it has been read to its end, or until
+    it is closed, or its subscription cancelled, which cancels the stream on
+    the other side. Streams that a call does not take, because it failed
+    before its arguments or result were decoded, are cancelled once the call
+    completes. When the connection fails, every stream on it fails with it.
+ */
+class Streams {
+    /** Stream frame kind: the stream is carried by the frame that follows
+        and its bytes by the data frames after it. */
+    static final int OPEN = 0;
+    /** Stream frame kind: bytes of the stream follow the header. */
+    static final int DATA = 1;
+    /** Stream frame kind: the stream has ended. */
+    static final int END = 2;
+    /** Stream frame kind: the stream has failed, with the message that
+        follows the header in UTF-8. */
+    static final int ERROR = 3;
+    /** Stream frame kind: the sender may send the number of bytes that
+        follows the header. */
+    static final int CREDIT = 4;
+    /** Stream frame kind: the sender must stop. */
+    static final int CANCEL = 5;
+
+    /** Number of the stream carrying the result of a call. */
+    static final int RESULT = 0;
+    /** Length of the header of a stream frame payload. */
+    static final int HEADER_LENGTH = 3;
+    /** Largest number of bytes carried by a data frame. */
+    static final int CHUNK_LENGTH = 64 * 1024;
+    /** Number of bytes a sender may send before the receiver has consumed
+        any of them. */
+    static final int WINDOW = 4 * CHUNK_LENGTH;
+
+    /** Executor that reads the streams sent, and delivers the streams
+        received to publishers' subscribers and to output streams. */
+    private static final ExecutorService pumps =
+        VirtualThreads.isSupported() ? VirtualThreads.newPerTaskExecutor()
+                                     : Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rmi-stream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Writes the stream frames of a connection. */
+    interface Sender {
+        /** Writes a frame, together with any frames waiting to be
+            written. */
+        void send(Protocol.Frame frame) throws IOException;
+    }
+
+    private final Sender sender;
+    /** Streams whose bytes this side sends, by request and stream
+        number. */
+    private final ConcurrentHashMap<Long, Outgoing> outgoing =
+        new ConcurrentHashMap<Long, Outgoing>();
+    /** Streams whose bytes this side receives, by request and stream
+        number. */
+    private final ConcurrentHashMap<Long, Incoming> incoming =
+        new ConcurrentHashMap<Long, Incoming>();
+    /** Futures completed once the output streams passed by this side to a
+        call have been written, by request, until the response to the call
+        is received. A stream leaves <code>incoming</code> as soon as it has
+        been written, which may be before the response arrives. */
+    private final ConcurrentHashMap<Integer, List<CompletableFuture<Void>>>
+        sinks = new ConcurrentHashMap<Integer, List<CompletableFuture<Void>>>();
+    private volatile IOException failure;
+
+    Streams(Sender sender) {
+        this.sender = sender;
+    }
+
+    /** Returns <code>true</code> if values of the given declared type are
+        sent as streams. */
+    static boolean streamed(Class<?> type) {
+        return type == InputStream.class || type == OutputStream.class ||
+               type == Flow.Publisher.class;
+    }
+
+    /** Returns <code>true</code> if a value may be passed as a stream. */
+    static boolean isStream(Object value) {
+        return value instanceof InputStream ||
+               value instanceof OutputStream ||
+               value instanceof Flow.Publisher;
+    }
+
+    /** Returns <code>true</code> if a method takes or returns a stream. */
+    static boolean uses(Method method) {
+        if(streamed(method.getReturnType())) {
+            return true;
+        }
+        for(Class<?> type : method.getParameterTypes()) {
+            if(streamed(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Takes a stream received with a frame, when its value is decoded.
+
+        @param frame The frame, received on a connection carrying streams,
+                     and not part of a batch.
+        @param number The number of the stream.
+        @param type The declared type of the value.
+        @throws IOException If the frame cannot carry streams, or the stream
+                            was not announced or has already been taken.
+     */
+    static Object take(Protocol.Frame frame, int number, Class<?> type)
+        throws IOException {
+        if(frame.streams == null) {
+            throw new IOException("stream received in a frame that " +
+                                  "cannot carry streams");
+        }
+        return frame.streams.take(frame.requestId, number, type);
+    }
+
+    private Object take(int requestId, int number, Class<?> type)
+        throws IOException {
+        checkOpen();
+        long key = key(requestId, number);
+
+        if(type == OutputStream.class) {
+            if(number == RESULT) {
+                throw new IOException("output streams cannot be returned");
+            }
+            Outgoing stream = new Outgoing(key, null);
+            if(outgoing.putIfAbsent(key, stream) != null) {
+                throw new IOException("stream " + number + " of request " +
+                                      requestId + " taken twice");
+            }
+            return stream.writer;
+        }
+
+        Incoming stream = incoming.get(key);
+        if(stream == null || !stream.claim()) {
+            throw new IOException("stream " + number + " of request " +
+                                  requestId + " was not announced");
+        }
+        if(stream.isFinished()) {
+            incoming.remove(key, stream);
+        }
+        return type == InputStream.class ? stream.input()
+                                         : stream.publisher();
+    }
+
+    /** Registers the streams carried by a frame about to be written, and
+        returns the frames announcing them. The announcements must be
+        written just before the frame, and <code>start</code> called once
+        the frame has been written or queued.
+
+        @throws IOException If the frame returns an output stream, or the
+                            connection has failed.
+     */
+    Protocol.Frame[] open(Protocol.Frame frame) throws IOException {
+        checkOpen();
+        Object[] values = frame.streamValues;
+        if(values[RESULT] instanceof OutputStream) {
+            throw new IOException("output streams cannot be returned");
+        }
+
+        List<Protocol.Frame> announcements = new ArrayList<Protocol.Frame>();
+        for(int number = 0; number < values.length; number++) {
+            if(values[number] == null) {
+                continue;
+            }
+            long key = key(frame.requestId, number);
+            if(values[number] instanceof OutputStream) {
+                Incoming sink =
+                    new Incoming(key, (OutputStream) values[number]);
+                incoming.put(key, sink);
+                List<CompletableFuture<Void>> done = sinks.get(frame.requestId);
+                if(done == null) {
+                    done = new ArrayList<CompletableFuture<Void>>();
+                    sinks.put(frame.requestId, done);
+                }
+                done.add(sink.done);
+            } else {
+                outgoing.put(key, new Outgoing(key, values[number]));
+                announcements.add(frame(key, OPEN, 0));
+            }
+        }
+        return announcements.toArray(
+            new Protocol.Frame[announcements.size()]);
+    }
+
+    /** Starts sending the streams of a frame registered by
+        <code>open</code>. */
+    void start(Protocol.Frame frame) {
+        Object[] values = frame.streamValues;
+        for(int number = 0; number < values.length; number++) {
+            if(values[number] != null &&
+               !(values[number] instanceof OutputStream)) {
+                Outgoing stream =
+                    outgoing.get(key(frame.requestId, number));
+                if(stream != null) {
+                    stream.start();
+                }
+            }
+        }
+    }
+
+    /** Handles a stream frame. Called by the thread reading the connection,
+        which it never blocks.
+
+        @throws IOException If the frame is invalid.
+     */
+    void receive(Protocol.Frame frame) throws IOException {
+        byte[] payload = frame.payload;
+        if(payload.length < HEADER_LENGTH) {
+            throw new IOException("invalid stream frame");
+        }
+        int kind = payload[0];
+        int number = ((payload[1] & 0xff) << 8) | (payload[2] & 0xff);
+        long key = key(frame.requestId, number);
+
+        switch(kind) {
+        case OPEN:
+            if(incoming.putIfAbsent(key, new Incoming(key, null)) != null) {
+                throw new IOException("stream " + number + " of request " +
+                                      frame.requestId + " announced twice");
+            }
+            break;
+        case DATA:
+        case END:
+        case ERROR:
+            Incoming received = incoming.get(key);
+            if(received != null) {
+                received.receive(kind, payload);
+            }
+            break;
+        case CREDIT:
+        case CANCEL:
+            Outgoing sent = outgoing.get(key);
+            if(sent == null) {
+                break;
+            }
+            if(kind == CANCEL) {
+                sent.cancel();
+            } else if(payload.length == HEADER_LENGTH + 4) {
+                sent.credit(ByteBuffer.wrap(payload, HEADER_LENGTH, 4)
+                                      .getInt());
+            } else {
+                throw new IOException("invalid stream credit");
+            }
+            break;
+        default:
+            throw new IOException("unknown stream frame kind " + kind);
+        }
+    }
+
+    /** Releases the streams of a call: on the side answering it, once the
+        method has returned, and on the side making it, once the result has
+        been taken. Closes the streams passed as arguments, cancelling those
+        not read to their end, and closes the output streams written by the
+        method. Cancels the result if it was not taken. */
+    void release(int requestId) {
+        if(incoming.isEmpty() && outgoing.isEmpty()) {
+            return;
+        }
+        for(Incoming stream : incoming.values()) {
+            if(request(stream.key) == requestId && stream.target == null &&
+               (number(stream.key) != RESULT || !stream.isClaimed())) {
+                stream.close();
+            }
+        }
+        for(Outgoing stream : outgoing.values()) {
+            if(request(stream.key) == requestId && stream.writer != null) {
+                try {
+                    stream.writer.close();
+                } catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Returns a future completed once the bytes sent to the output streams
+        passed to a call have all been written to them, or <code>null</code>
+        if the call was passed none. The future completes exceptionally if
+        any of them failed.
+
+        <p>
+        Called once the response to the call has been received. The other
+        side closes the output streams of a call before responding to it, so
+        a stream that has not ended by then was never taken by the remote
+        method, and is ended with no bytes.
+     */
+    CompletableFuture<Void> sinks(int requestId) {
+        List<CompletableFuture<Void>> done = sinks.remove(requestId);
+        if(done == null) {
+            return null;
+        }
+        for(Incoming stream : incoming.values()) {
+            if(stream.done != null && request(stream.key) == requestId) {
+                stream.abandon();
+            }
+        }
+        return CompletableFuture.allOf(
+            done.toArray(new CompletableFuture<?>[done.size()]));
+    }
+
+    /** Returns <code>true</code> if no stream is open on the
+        connection. */
+    boolean isIdle() {
+        return incoming.isEmpty() && outgoing.isEmpty();
+    }
+
+    /** Fails every stream, once the connection has failed or been
+        closed. */
+    void fail(IOException cause) {
+        failure = cause;
+        for(Incoming stream : incoming.values()) {
+            stream.fail(cause);
+        }
+        for(Outgoing stream : outgoing.values()) {
+            stream.cancel();
+        }
+        incoming.clear();
+        outgoing.clear();
+        sinks.clear();
+    }
+
+    private void checkOpen() throws IOException {
+        IOException cause = failure;
+        if(cause != null) {
+            throw new IOException("connection failed", cause);
+        }
+    }
+
+    private void send(Protocol.Frame frame) throws IOException {
+        checkOpen();
+        sender.send(frame);
+    }
+
+    private static long key(int requestId, int number) {
+        return ((long) requestId << 32) | number;
+    }
+
+    private static int request(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int number(long key) {
+        return (int) key & 0xffff;
+    }
+
+    /** Returns a stream frame with room for the given number of bytes after
+        the header. */
+    private static Protocol.Frame frame(long key, int kind, int length) {
+        Protocol.Frame frame = new Protocol.Frame(
+            Protocol.STREAM_METHOD_ID, new byte[HEADER_LENGTH + length]);
+        frame.requestId = request(key);
+        frame.payload[0] = (byte) kind;
+        frame.payload[1] = (byte) (key >> 8);
+        frame.payload[2] = (byte) key;
+        return frame;
+    }
+
+    /** A stream whose bytes this side sends: an input stream or publisher
+        being read, or the output stream passed to a remote method. */
+    private final class Outgoing {
+        final long key;
+        /** The input stream or publisher read, or <code>null</code> for an
+            output stream. */
+        private final Object source;
+        /** The output stream through which the remote method writes the
+            bytes, or <code>null</code>. */
+        final Writer writer;
+        private long credit = WINDOW;
+        private boolean cancelled = false;
+        private boolean finished = false;
+        private Flow.Subscription subscription;
+        /** Set while a publisher waits for credit before its next item is
+            requested. */
+        private boolean waiting = false;
+
+        Outgoing(long key, Object source) {
+            this.key = key;
+            this.source = source;
+            this.writer = source == null ? new Writer(this) : null;
+        }
+
+        void start() {
+            if(source instanceof InputStream) {
+                final InputStream in = (InputStream) source;
+                pumps.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pump(in);
+                    }
+                });
+            } else {
+                subscribe((Flow.Publisher<?>) source);
+            }
+        }
+
+        /** Sends the bytes of an input stream until it ends. */
+        private void pump(InputStream in) {
+            try {
+                byte[] buffer = new byte[CHUNK_LENGTH];
+                int count;
+                while((count = in.read(buffer)) >= 0) {
+                    if(count == buffer.length) {
+                        // The frame may be written after the next read.
+                        write(ByteBuffer.wrap(buffer));
+                        buffer = new byte[CHUNK_LENGTH];
+                    } else if(count > 0) {
+                        write(ByteBuffer.wrap(Arrays.copyOf(buffer, count)));
+                    }
+                }
+                end();
+            } catch(Exception e) {
+                error(e);
+            } finally {
+                try {
+                    in.close();
+                } catch(IOException e) { }
+            }
+        }
+
+        /** Sends the items of a publisher until it completes. */
+        private void subscribe(Flow.Publisher<?> publisher) {
+            publisher.subscribe(new Flow.Subscriber<Object>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    boolean refused;
+                    synchronized(Outgoing.this) {
+                        refused =
+                            cancelled || Outgoing.this.subscription != null;
+                        if(!refused) {
+                            Outgoing.this.subscription = subscription;
+                        }
+                    }
+                    if(refused) {
+                        subscription.cancel();
+                    } else {
+                        subscription.request(1);
+                    }
+                }
+
+                @Override
+                public void onNext(Object item) {
+                    try {
+                        publish((ByteBuffer) item);
+                    } catch(Exception e) {
+                        subscription().cancel();
+                        error(e);
+                        return;
+                    }
+                    requestNext();
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    error(error);
+                }
+
+                @Override
+                public void onComplete() {
+                    end();
+                }
+            });
+        }
+
+        private synchronized Flow.Subscription subscription() {
+            return subscription;
+        }
+
+        /** Sends a copy of a published buffer, in chunks. The credit may be
+            exceeded by one item. */
+        private void publish(ByteBuffer item) throws IOException {
+            ByteBuffer bytes = item.duplicate();
+            while(bytes.hasRemaining()) {
+                int count = Math.min(bytes.remaining(), CHUNK_LENGTH);
+                ByteBuffer chunk = ByteBuffer.allocate(count);
+                ByteBuffer slice = bytes.slice();
+                slice.limit(count);
+                chunk.put(slice).flip();
+                bytes.position(bytes.position() + count);
+
+                synchronized(this) {
+                    checkCancelled();
+                    credit -= count;
+                }
+                send(data(chunk));
+            }
+        }
+
+        /** Requests the next item of a publisher, or waits for credit. */
+        private void requestNext() {
+            Flow.Subscription next;
+            synchronized(this) {
+                if(cancelled || finished) {
+                    return;
+                }
+                if(credit <= 0) {
+                    waiting = true;
+                    return;
+                }
+                next = subscription;
+            }
+            next.request(1);
+        }
+
+        /** Sends bytes once the receiver has allowed them. */
+        void write(ByteBuffer bytes) throws IOException {
+            synchronized(this) {
+                while(credit <= 0 && !cancelled) {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                            "interrupted waiting for stream credit");
+                    }
+                }
+                checkCancelled();
+                credit -= bytes.remaining();
+            }
+            send(data(bytes));
+        }
+
+        private void checkCancelled() throws IOException {
+            if(cancelled) {
+                checkOpen();
+                throw new IOException("stream cancelled by its receiver");
+            }
+        }
+
+        private Protocol.Frame data(ByteBuffer bytes) {
+            Protocol.Frame frame = frame(key, DATA, 0);
+            frame.segments = new ByteBuffer[] {bytes};
+            return frame;
+        }
+
+        void credit(int count) {
+            final Flow.Subscription next;
+            synchronized(this) {
+                credit += count;
+                notifyAll();
+                if(!waiting || credit <= 0) {
+                    return;
+                }
+                waiting = false;
+                next = subscription;
+            }
+            // The publisher may deliver its next item at once, and the
+            // thread reading the connection must not send it.
+            pumps.execute(new Runnable() {
+                @Override
+                public void run() {
+                    next.request(1);
+                }
+            });
+        }
+
+        void cancel() {
+            Flow.Subscription cancelling;
+            synchronized(this) {
+                if(cancelled) {
+                    return;
+                }
+                cancelled = true;
+                notifyAll();
+                cancelling = subscription;
+            }
+            outgoing.remove(key, this);
+            if(cancelling != null) {
+                cancelling.cancel();
+            }
+        }
+
+        void end() {
+            finish(frame(key, END, 0));
+        }
+
+        void error(Throwable error) {
+            byte[] message = String.valueOf(error).getBytes(
+                StandardCharsets.UTF_8);
+            Protocol.Frame frame = frame(key, ERROR, message.length);
+            System.arraycopy(message, 0, frame.payload, HEADER_LENGTH,
+                             message.length);
+            finish(frame);
+        }
+
+        private void finish(Protocol.Frame frame) {
+            synchronized(this) {
+                if(cancelled || finished) {
+                    return;
+                }
+                finished = true;
+            }
+            outgoing.remove(key, this);
+            try {
+                send(frame);
+            } catch(IOException e) { }
+        }
+    }
+
+    /** The output stream passed to a remote method. Bytes are sent in
+        chunks of <code>CHUNK_LENGTH</code>, or when the stream is
+        flushed. */
+    private static final class Writer extends OutputStream {
+        private final Outgoing stream;
+        private byte[] buffer = new byte[CHUNK_LENGTH];
+        private int count = 0;
+        private boolean closed = false;
+
+        Writer(Outgoing stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            checkClosed();
+            if(count == buffer.length) {
+                send();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length)
+            throws IOException {
+            Objects.checkFromIndexSize(offset, length, bytes.length);
+            checkClosed();
+            while(length > 0) {
+                if(count == buffer.length) {
+                    send();
+                }
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            checkClosed();
+            send();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            try {
+                send();
+            } finally {
+                stream.end();
+            }
+        }
+
+        /** Sends the buffered bytes. A full buffer is sent as it is, and
+            replaced, since the frame may be written later. */
+        private void send() throws IOException {
+            if(count == buffer.length) {
+                stream.write(ByteBuffer.wrap(buffer));
+                buffer = new byte[CHUNK_LENGTH];
+            } else if(count > 0) {
+                stream.write(ByteBuffer.wrap(Arrays.copyOf(buffer, count)));
+            }
+            count = 0;
+        }
+
+        private void checkClosed() throws IOException {
+            if(closed) {
+                throw new IOException("stream closed");
+            }
+        }
+    }
+
+    /** A stream whose bytes this side receives. It is read through an input
+        stream or a publisher, or, for an output stream passed by this side
+        to a remote method, written to that stream. */
+    private final class Incoming {
+        final long key;
+        /** The output stream to which the bytes are written, or
+            <code>null</code>. */
+        private final OutputStream target;
+        /** Completed once the bytes have all been written to the target, or
+            <code>null</code> if there is no target. */
+        final CompletableFuture<Void> done;
+        private final ArrayDeque<ByteBuffer> chunks =
+            new ArrayDeque<ByteBuffer>();
+        private boolean claimed;
+        private boolean ended = false;
+        private IOException error;
+        private boolean closed = false;
+        /** Number of bytes consumed since credit was last granted. */
+        private int consumed = 0;
+        private boolean subscribed = false;
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand = 0;
+        private boolean draining = false;
+
+        Incoming(long key, OutputStream target) {
+            this.key = key;
+            this.target = target;
+            this.done = target == null ? null : new CompletableFuture<Void>();
+            this.claimed = target != null;
+        }
+
+        synchronized boolean claim() {
+            boolean claimable = !claimed && !closed;
+            claimed = true;
+            return claimable;
+        }
+
+        synchronized boolean isClaimed() {
+            return claimed;
+        }
+
+        /** Returns <code>true</code> if the stream has ended or failed. */
+        synchronized boolean isFinished() {
+            return ended || error != null;
+        }
+
+        /** Handles a frame carrying bytes or ending the stream. A stream
+            that ends before it is claimed stays in the table until it is
+            claimed, or the call releases it. */
+        void receive(int kind, byte[] payload) {
+            boolean finished;
+            synchronized(this) {
+                if(closed) {
+                    return;
+                }
+                finished = kind != DATA && target == null && claimed;
+                if(kind == DATA) {
+                    if(payload.length > HEADER_LENGTH) {
+                        chunks.add(ByteBuffer.wrap(
+                            payload, HEADER_LENGTH,
+                            payload.length - HEADER_LENGTH).slice());
+                    }
+                } else if(kind == END) {
+                    ended = true;
+                } else {
+                    error = new IOException("stream failed: " + new String(
+                        payload, HEADER_LENGTH, payload.length - HEADER_LENGTH,
+                        StandardCharsets.UTF_8));
+                }
+                notifyAll();
+            }
+            if(finished) {
+                incoming.remove(key, this);
+            }
+            schedule();
+        }
+
+        void fail(IOException cause) {
+            synchronized(this) {
+                if(!ended && error == null) {
+                    error = cause;
+                }
+                notifyAll();
+            }
+            schedule();
+        }
+
+        /** Ends the stream if it has not ended or failed. */
+        void abandon() {
+            synchronized(this) {
+                if(ended || error != null) {
+                    return;
+                }
+                ended = true;
+                notifyAll();
+            }
+            schedule();
+        }
+
+        /** Stops receiving the stream, and cancels it on the other side if
+            it has not ended. */
+        void close() {
+            boolean cancel;
+            synchronized(this) {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                cancel = !ended && error == null;
+                chunks.clear();
+                notifyAll();
+            }
+            incoming.remove(key, this);
+            if(cancel) {
+                try {
+                    send(frame(key, CANCEL, 0));
+                } catch(IOException e) { }
+            }
+        }
+
+        /** Reads bytes, waiting until some have arrived or the stream has
+            ended. */
+        int read(byte[] bytes, int offset, int length) throws IOException {
+            int count;
+            synchronized(this) {
+                while(chunks.isEmpty() && !ended && error == null &&
+                      !closed) {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                            "interrupted reading stream");
+                    }
+                }
+                if(closed) {
+                    throw new IOException("stream closed");
+                }
+                if(chunks.isEmpty()) {
+                    if(error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                ByteBuffer chunk = chunks.peek();
+                count = Math.min(length, chunk.remaining());
+                chunk.get(bytes, offset, count);
+                if(!chunk.hasRemaining()) {
+                    chunks.poll();
+                }
+            }
+            consumed(count);
+            return count;
+        }
+
+        synchronized int available() {
+            int count = 0;
+            for(ByteBuffer chunk : chunks) {
+                count += chunk.remaining();
+            }
+            return count;
+        }
+
+        /** Grants the sender credit once half the window has been
+            consumed. */
+        private void consumed(int count) throws IOException {
+            int granted;
+            synchronized(this) {
+                consumed += count;
+                if(consumed < WINDOW / 2 || ended || error != null) {
+                    return;
+                }
+                granted = consumed;
+                consumed = 0;
+            }
+            Protocol.Frame frame = frame(key, CREDIT, 4);
+            ByteBuffer.wrap(frame.payload, HEADER_LENGTH, 4).putInt(granted);
+            send(frame);
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length)
+                    throws IOException {
+                    Objects.checkFromIndexSize(offset, length, bytes.length);
+                    if(length == 0) {
+                        return 0;
+                    }
+                    return Incoming.this.read(bytes, offset, length);
+                }
+
+                @Override
+                public int available() {
+                    return Incoming.this.available();
+                }
+
+                @Override
+                public void close() {
+                    Incoming.this.close();
+                }
+            };
+        }
+
+        Flow.Publisher<ByteBuffer> publisher() {
+            return new Flow.Publisher<ByteBuffer>() {
+                @Override
+                public void subscribe(
+                    Flow.Subscriber<? super ByteBuffer> subscriber) {
+                    Incoming.this.subscribe(subscriber);
+                }
+            };
+        }
+
+        /** Subscribes the only subscriber of the publisher. Items are
+            delivered once <code>onSubscribe</code> has returned. */
+        private void subscribe(
+            final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            Objects.requireNonNull(subscriber);
+            boolean taken;
+            synchronized(this) {
+                taken = subscribed;
+                subscribed = true;
+            }
+
+            if(taken) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(
+                    new IllegalStateException("stream already subscribed"));
+                return;
+            }
+
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if(n <= 0) {
+                        close();
+                        subscriber.onError(new IllegalArgumentException(
+                            "non-positive request " + n));
+                        return;
+                    }
+                    synchronized(Incoming.this) {
+                        demand = demand + n < 0 ? Long.MAX_VALUE
+                                                : demand + n;
+                    }
+                    schedule();
+                }
+
+                @Override
+                public void cancel() {
+                    close();
+                }
+            });
+            synchronized(this) {
+                this.subscriber = subscriber;
+            }
+            schedule();
+        }
+
+        /** Has the stream delivered to its subscriber or target, unless it
+            is being delivered already. */
+        private void schedule() {
+            synchronized(this) {
+                if(draining || (subscriber == null && target == null)) {
+                    return;
+                }
+                draining = true;
+            }
+            pumps.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        /** Delivers the chunks received, and the end of the stream, to the
+            subscriber, as it asks for them, or to the target. */
+        private void drain() {
+            while(true) {
+                ByteBuffer chunk = null;
+                IOException failed;
+                synchronized(this) {
+                    if(closed) {
+                        draining = false;
+                        return;
+                    }
+                    if(!chunks.isEmpty() && (target != null || demand > 0)) {
+                        chunk = chunks.poll();
+                        if(target == null) {
+                            --demand;
+                        }
+                    } else if(!chunks.isEmpty() ||
+                              (!ended && error == null)) {
+                        draining = false;
+                        return;
+                    } else {
+                        // Nothing is delivered after the end of the stream.
+                        closed = true;
+                    }
+                    failed = error;
+                }
+
+                if(chunk == null) {
+                    incoming.remove(key, this);
+                    terminate(failed);
+                    return;
+                }
+                int count = chunk.remaining();
+                if(!deliver(chunk)) {
+                    return;
+                }
+                try {
+                    consumed(count);
+                } catch(IOException e) {
+                    // The connection has failed, which fails the stream.
+                }
+            }
+        }
+
+        /** Delivers a chunk, and returns <code>false</code> if the target
+            failed to take it, in which case the stream has been
+            cancelled. */
+        private boolean deliver(ByteBuffer chunk) {
+            if(target == null) {
+                subscriber.onNext(chunk);
+                return true;
+            }
+
+            try {
+                target.write(chunk.array(),
+                             chunk.arrayOffset() + chunk.position(),
+                             chunk.remaining());
+                return true;
+            } catch(IOException e) {
+                close();
+                done.completeExceptionally(e);
+                return false;
+            }
+        }
+
+        private void terminate(IOException failed) {
+            if(target == null) {
+                if(failed == null) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onError(failed);
+                }
+                return;
+            }
+
+            if(failed != null) {
+                done.completeExceptionally(failed);
+                return;
+            }
+            try {
+                target.flush();
+                done.complete(null);
+            } catch(IOException e) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.List;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.IOException;
 import java.lang.NoSuchMethodException;
 import java.lang.ClassCastException;
 
@@ -64,37 +65,27 @@ public abstract class Stub
         throws UnknownHostException
     {
 
-        System.err.println("In T create(Class<T> c, Skeleton<T> skeleton)");
+        Log.debug("In T create(Class<T> c, Skeleton<T> skeleton)");
 
         if(c == null || skeleton == null) {
-            System.err.println("Throw Null Pointer");
+            Log.debug("Throw Null Pointer");
             throw new NullPointerException();
         }
         
         if(!skeleton.isRemoteInterface(c)) {
-            System.err.println("!isRemoteInterface");
+            Log.debug("!isRemoteInterface");
             throw new Error("All methods for class c must throw RMIException");
         }
 
         //TODO maybe separate running
         if(skeleton.getAddress() == null) {
-            System.err.println("seperate address");
+            Log.debug("seperate address");
             throw new IllegalStateException();
         }
 
-        System.err.println("stub.java - before calling handler");
+        Log.debug("stub.java - before calling handler");
         // check for no address found for local host
-        InvocationHandler handler = new RMIInvocationHandler<T>(skeleton.getAddress(), c);
-        try {
-            T t = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
-                                              new Class[] { c, ProxyDetails.class },
-                                              handler);
-            return t;
-        } catch(ClassCastException e) {
-            e.printStackTrace();
-        }
-
-        return null;
+        return newStub(c, skeleton.getAddress(), skeleton);
     }
 
     /** Creates a stub, given a skeleton with an assigned address and a hostname
@@ -131,7 +122,7 @@ public abstract class Stub
                                String hostname)
     {
 
-        System.err.println("In T create(Class<T> c, Skeleton<T> skeleton, String hostname)");
+        Log.debug("In T create(Class<T> c, Skeleton<T> skeleton, String hostname)");
 
         if(c == null || skeleton == null || hostname == null) {
             throw new NullPointerException();
@@ -145,16 +136,7 @@ public abstract class Stub
         }
 
         // check for no address found for local host
-        InvocationHandler handler = new RMIInvocationHandler<T>(skeleton.getAddress(), c);
-        try {
-            T t = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
-                                              new Class[] { c, ProxyDetails.class },
-                                              handler);
-            return t;
-        } catch(ClassCastException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return newStub(c, skeleton.getAddress(), null);
     }
 
     /** Creates a stub, given the address of a remote server.
@@ -176,7 +158,7 @@ public abstract class Stub
      */
     public static <T> T create(Class<T> c, InetSocketAddress address)
     {
-        System.err.println("In T create(Class<T> c, InetSocketAddress address)");
+        Log.debug("In T create(Class<T> c, InetSocketAddress address)");
 
         if(c == null || address == null) {
             throw new NullPointerException();
@@ -192,218 +174,394 @@ public abstract class Stub
 
 
         // check for no address found for local host
-        InvocationHandler handler = new RMIInvocationHandler<T>(address, c);
+        return newStub(c, address, null);
+    }
+
+    /** Creates a stub for a skeleton listening on a Unix domain socket.
+
+        <p>
+        The skeleton must be on the same host, and must have been given the
+        socket with <code>Skeleton.setUnixSocket</code>. Stubs created from the
+        skeleton's TCP address use the socket without being created with this
+        method, when they find the skeleton on their host. Stubs generated by
+        <code>StubGenerator</code> take TCP addresses only, so the stub is
+        always a dynamic proxy.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The address of the skeleton's Unix domain socket.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, UnixDomainSocketAddress address)
+    {
+        if(c == null || address == null) {
+            throw new NullPointerException();
+        }
+
+        for(Method method : c.getMethods()) {
+            List<Class<?>> exs = Arrays.asList(method.getExceptionTypes());
+            if(!exs.contains(RMIException.class)) {
+                throw new Error("All methods for class c must throw RMIException");
+            }
+        }
+
+        return newStub(c, address, null);
+    }
+
+    /** Creates a stub for a skeleton listening on shared memory.
+
+        <p>
+        The skeleton must be on the same host, and must have been given the
+        file with <code>Skeleton.setSharedMemory</code>. As for Unix domain
+        sockets, the stub is always a dynamic proxy. Shared memory is an
+        experimental transport.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The address of the skeleton's shared-memory file.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, SharedMemoryAddress address)
+    {
+        if(c == null || address == null) {
+            throw new NullPointerException();
+        }
+
+        for(Method method : c.getMethods()) {
+            List<Class<?>> exs = Arrays.asList(method.getExceptionTypes());
+            if(!exs.contains(RMIException.class)) {
+                throw new Error("All methods for class c must throw RMIException");
+            }
+        }
+
+        return newStub(c, address, null);
+    }
+
+    /** Creates a stub for the given interface and address. A stub generated
+        by <code>StubGenerator</code> is used if one is available; otherwise
+        the stub is a dynamic proxy. A stub given the skeleton it calls makes
+        its calls through a <code>LocalConnection</code> while the skeleton is
+        running. */
+    private static <T> T newStub(Class<T> c, SocketAddress address,
+                                 Skeleton<T> skeleton)
+    {
+        StubCore<T> core = skeleton == null ? null
+                         : new StubCore<T>(c, address, skeleton);
+
+        T generated = null;
+        if(address instanceof InetSocketAddress) {
+            generated = GeneratedStub.create(c, (InetSocketAddress) address);
+        }
+        if(generated != null) {
+            if(core != null) {
+                ((GeneratedStub<T>) generated).setCore(core);
+            }
+            return generated;
+        }
+
+        RMIInvocationHandler<T> handler =
+            new RMIInvocationHandler<T>(address, c);
+        if(core != null) {
+            handler.setCore(core);
+        }
         try {
             T t = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
                                               new Class[] { c, ProxyDetails.class },
                                               handler);
             return t;
         } catch(ClassCastException e) {
-            e.printStackTrace();
+            Log.warning("unable to create stub for " + c.getName(), e);
         }
         return null;
+    }
 
+    /** Returns an asynchronous view of a stub.
 
-    }
+        <p>
+        The view implements <code>asyncInterface</code>, an interface declared
+        by the client in which each method has the same name and parameter
+        types as a method of the stub's remote interface, but returns a
+        <code>CompletableFuture</code> of that method's result instead of the
+        result itself. For example, the asynchronous counterpart of
+        <code>int add(int x, int y) throws RMIException</code> is
+        <code>CompletableFuture&lt;Integer&gt; add(int x, int y)</code>.
+        Methods may also be declared to return <code>CompletionStage</code> or
+        <code>Future</code>.
 
-}
+        <p>
+        Calling a method of the view sends the request and returns at once.
+        The response is read by a single selector thread shared by all stubs,
+        so that many calls can be outstanding at the same time without a
+        thread waiting for each one. The future is completed with the value
+        returned by the remote method, or exceptionally with the exception the
+        remote method threw, or with an <code>RMIException</code> if the call
+        could not be carried out. Dependent actions run on the common fork-join
+        pool unless another executor is given. Asynchronous calls use the same
+        pooled connections as ordinary calls through the stub, and so wait for a
+        connection when the pool limit is reached.
+
+        @param stub A stub created by one of the <code>create</code> methods.
+        @param asyncInterface The interface of the asynchronous view.
+        @return The asynchronous view.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub, or
+                                         <code>asyncInterface</code> is not an
+                                         interface whose methods all match a
+                                         method of the remote interface and
+                                         return a future.
+     */
+    public static <A> A async(Object stub, Class<A> asyncInterface)
+    {
+        if(stub == null || asyncInterface == null) {
+            throw new NullPointerException();
+        }
 
-interface ProxyDetails<T> {
-    public Class<T> getCls(); 
-    public InetSocketAddress getServerAddress();
-}
+        return asyncInterface.cast(java.lang.reflect.Proxy.newProxyInstance(
+            asyncInterface.getClassLoader(), new Class<?>[] { asyncInterface },
+            new AsyncInvocationHandler(core(stub), null, stub.toString(),
+                                       ((ProxyDetails<?>) stub).getCls(),
+                                       asyncInterface)));
+    }
 
-class RMIInvocationHandler<T> implements InvocationHandler, ProxyDetails, Serializable {
+    /** Returns a new, empty batch of calls.
 
-    private InetSocketAddress address;
-    private Class<T> c;
-    private static Method[] localMethods;
+        <p>
+        Calls are recorded in the batch through views returned by
+        <code>Batch.view</code>, which are declared like the asynchronous views
+        returned by <code>async</code>, and are sent together, in a single
+        request, by <code>Batch.execute</code>. The skeleton makes the calls
+        and answers them all in a single response. This saves a round trip per
+        call when many small, independent calls are made at once.
+
+        @param parallel <code>false</code> if the skeleton must make the calls
+                        one after another, in the order in which they were
+                        recorded, or <code>true</code> if it may make them
+                        concurrently.
+        @return The batch.
+     */
+    public static Batch batch(boolean parallel)
+    {
+        return new Batch(parallel);
+    }
 
-    static {
-        try {
-            localMethods = new Method[] {
-                    Object.class.getMethod("equals", (Class []) new Class [] {Object.class}),
-                    Object.class.getMethod("hashCode"), Object.class.getMethod("toString"),
-                    ProxyDetails.class.getMethod("getServerAddress"),
-                    ProxyDetails.class.getMethod("getCls")
-            };  
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
+    /** Returns the core of a stub created by one of the <code>create</code>
+        methods.
+
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    static StubCore<?> core(Object stub) {
+        if(stub instanceof GeneratedStub) {
+            return ((GeneratedStub<?>) stub).core();
+        } else if(java.lang.reflect.Proxy.isProxyClass(stub.getClass()) &&
+                  java.lang.reflect.Proxy.getInvocationHandler(stub)
+                      instanceof RMIInvocationHandler) {
+            return ((RMIInvocationHandler<?>) java.lang.reflect.Proxy
+                        .getInvocationHandler(stub)).getCore();
         }
+        throw new IllegalArgumentException(stub.getClass().getName() +
+                                           " is not a stub");
     }
 
-    
-    public RMIInvocationHandler(InetSocketAddress address, Class<T> c) {
-        this.c = c;
-        this.address = address;
+    /** Sets the limits on pooled connections.
+
+        <p>
+        Stubs that carry the same skeleton address share a pool of connections
+        to that skeleton. Connections are reused by successive calls, so that
+        steady-state calls need not establish a new TCP connection. The limits
+        apply to every pool, including pools that already exist.
+
+        @param maxConnections The maximum number of connections open at once to
+                              a single skeleton. Calls made when this many
+                              connections are in use wait for one to become
+                              available.
+        @param maxIdle The maximum number of unused connections kept open to a
+                       single skeleton.
+        @throws IllegalArgumentException If <code>maxConnections</code> is not
+                                         positive or <code>maxIdle</code> is
+                                         negative.
+     */
+    public static void setPoolLimits(int maxConnections, int maxIdle)
+    {
+        ConnectionPool.setLimits(maxConnections, maxIdle);
     }
 
-    public InetSocketAddress getServerAddress() {
-        return address;
+    /** Enables or disables multiplexed connections.
+
+        <p>
+        By default, when the skeleton supports it, all calls from this virtual
+        machine to one skeleton share a single connection: requests are sent as
+        soon as they are made, and responses are matched to calls as they
+        arrive, in any order. When multiplexing is disabled, each call takes a
+        pooled connection for its own use, subject to the limits set by
+        <code>setPoolLimits</code>. The default may be given with the
+        <code>rmi.pool.multiplex</code> system property.
+
+        @param enabled <code>true</code> to multiplex calls made from now on.
+     */
+    public static void setMultiplexing(boolean enabled)
+    {
+        ConnectionPool.setMultiplexing(enabled);
     }
 
-    public Class<T> getCls() {
-        return c;
+    /** Sets how long requests on multiplexed connections may wait to be
+        written together.
+
+        <p>
+        By default, each request is written as soon as it is made. With a
+        positive delay, a request that finds no write pending waits up to the
+        delay before being written, and the requests made in the meantime are
+        written with it, in a single system call. This trades a few
+        microseconds of latency for the throughput of many small concurrent
+        calls. Requests are written at once, whatever the delay, when 64
+        kilobytes are waiting. The default may be given, in microseconds, with
+        the <code>rmi.pool.coalesceDelay</code> system property.
+
+        @param micros The delay in microseconds, at most 1000, or
+                      <code>0</code> to disable coalescing.
+        @throws IllegalArgumentException If <code>micros</code> is negative or
+                                         greater than 1000.
+     */
+    public static void setWriteCoalescing(long micros)
+    {
+        ConnectionPool.setCoalesceDelay(micros);
     }
 
-    private boolean isLocalMethod(Method method) {
-        for(Method m : localMethods) {
-            if(method.equals(m)) {
-                return true;
-            }
-        }
-        return false;
+    /** Sets the time after which unused pooled connections are closed.
+
+        @param millis The idle timeout, in milliseconds.
+        @throws IllegalArgumentException If <code>millis</code> is not
+                                         positive.
+     */
+    public static void setPoolIdleTimeout(long millis)
+    {
+        ConnectionPool.setIdleTimeout(millis);
     }
+}
 
+class RMIInvocationHandler<T>
+    implements InvocationHandler, ProxyDetails<T>, Serializable {
+    /** Version of the serialized form, shared with stubs in other virtual
+        machines. */
+    private static final long serialVersionUID = 1L;
+
+    /** Local methods, as returned by <code>localMethod</code>. */
+    private static final int REMOTE = 0;
+    private static final int EQUALS = 1;
+    private static final int HASH_CODE = 2;
+    private static final int TO_STRING = 3;
+    private static final int GET_SERVER_ADDRESS = 4;
+    private static final int GET_CLS = 5;
+
+    private SocketAddress address;
+    private Class<T> c;
+    private transient StubCore<T> core;
+    /** Hash code and string representation of the stub. They are computed at
+        construction, and again when first needed after deserialization. */
+    private transient int hash;
+    private transient String description;
 
-    private Object handleLocalMethods(Object proxy, Method method, Object[] args) {
-        System.err.println("Inside handleLocalMethods");
-        Object result;
-        try {
-            Method m = Object.class.getMethod("equals", (Class []) new Class [] {Object.class});
-
-            T p = (T) proxy;
-            if(method.equals(m)) {
-                System.err.println("---inside equals case");
-                if(args[0] != null) {
-                    System.err.println("this.getCls() = " + this.getCls());
-              
-                    if(args[0] instanceof ProxyDetails) {
-                        System.err.println("args[0].getCls() " + ((ProxyDetails)args[0]).getCls());
-                    }
-                }
-                if(args[0] == null) {
-                    result = false;
-                } else if(!(args[0] instanceof ProxyDetails)) {
-                    result = false;
-                } else{
-                    T arg = (T) args[0];
-                    result = p.hashCode() == arg.hashCode();
-                }
-                return result;
-            }
-            
-            m = Object.class.getMethod("hashCode");
-            if(method.equals(m)) {
-                return p.toString().hashCode();
-            }
+    public RMIInvocationHandler(SocketAddress address, Class<T> c) {
+        this.c = c;
+        this.address = address;
+        this.hash = StubCore.hash(c, address);
+        this.description = StubCore.describe(c, address);
+    }
 
-            m = Object.class.getMethod("toString");
-            if(method.equals(m)) {
-                Class<T> c = this.getCls();
-                InetSocketAddress a = this.getServerAddress();
-                StringBuilder sb = new StringBuilder("Remote interface: ");
-
-                if(c != null) {
-                    sb.append(c.getName());
-                } else {
-                    sb.append("null, (hostname, port): ");
-                }
-
-                if(a != null) {
-                    sb.append("(" + a.getHostName() + ", " + a.getPort() + ")" );
-                } else {
-                    sb.append("(null, null)");
-                }
-                        
-                return sb.toString();
-            }
+    public SocketAddress getServerAddress() {
+        return address;
+    }
 
-            m = ProxyDetails.class.getMethod("getServerAddress");
-            if(method.equals(m)) {
-                return this.getServerAddress();
-            }
+    public Class<T> getCls() {
+        return c;
+    }
 
-            m = ProxyDetails.class.getMethod("getCls");
-            if(method.equals(m)) {
-                return this.getCls();
+    /** Tells which local method, if any, a method invoked on the proxy is.
+        The proxy passes the methods of <code>Object</code> with
+        <code>Object</code> as their declaring class, even when the remote
+        interface redeclares them, so the declaring class and name are enough
+        to tell them apart. */
+    private static int localMethod(Method method) {
+        Class<?> declaring = method.getDeclaringClass();
+
+        if(declaring == Object.class) {
+            switch(method.getName()) {
+            case "equals":
+                return EQUALS;
+            case "hashCode":
+                return HASH_CODE;
+            case "toString":
+                return TO_STRING;
+            }
+        } else if(declaring == ProxyDetails.class) {
+            switch(method.getName()) {
+            case "getServerAddress":
+                return GET_SERVER_ADDRESS;
+            case "getCls":
+                return GET_CLS;
             }
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
         }
-        return null;
+
+        return REMOTE;
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws RMIException, Exception{
-    
-        System.err.println("In OBject invoke ");
-
-        Object result = null;
-
-        if(isLocalMethod(method)) {
-            result = handleLocalMethods(proxy, method, args);
-            return result;
-        } else {
-            
-            Socket socket = new Socket();
-
-                /*if(!Arrays.asList(this.getCls().getMethods()).contains(method)) {
-                    throw new RMIException("Method " + method.getName() 
-                        + " is not part of the remote interface " 
-                        + this.getCls().getName());
-                }*/
-
-                // TODO check parameter types
-            Class<?>[] paramTypes = method.getParameterTypes();
-            ObjectOutputStream ostream; 
-            ObjectInputStream  istream;
-            boolean exceptionThrown = false;
-                
-            try {
-
-                socket.connect(address);
-
-                ostream = new ObjectOutputStream(socket.getOutputStream());
-                ostream.flush();
-                istream = new ObjectInputStream(socket.getInputStream());
-
-                if(args != null) {
-                for(Object arg : args) {
-                    if (!(arg instanceof Serializable)) {
-                        throw new RMIException("All objects passed to method must be serializable");
-                    }
-                }
-                }
-
-                System.err.println("writing method name");
-                ostream.writeObject(method.getName());
-                System.err.println("writing param types");
-                ostream.writeObject(method.getParameterTypes());
-                if(args != null) {
-                    System.err.println("writing args");
-                    for(Object arg : args) {
-                        ostream.writeObject(arg);
-                    }
-                }
-
-                System.err.println("reading result");
-
-                exceptionThrown = istream.readBoolean();
-                result = istream.readObject();
-                System.err.println("finished reading result");
-            } catch (Exception e) {
-                throw new RMIException("Error invoking method: " + method.getName(), e);
-            }
-
-
-            System.err.println("Remote call returned: " + result);
-            if(exceptionThrown) {
-                throw (Exception)result;
-            }
+        switch(localMethod(method)) {
+        case EQUALS:
+            return proxy == args[0] || StubCore.same(c, address, args[0]);
+        case HASH_CODE:
+            return stubHashCode();
+        case TO_STRING:
+            return stubString();
+        case GET_SERVER_ADDRESS:
+            return address;
+        case GET_CLS:
+            return c;
+        default:
+            return getCore().call(method, args);
+        }
+    }
 
-            try {
+    private int stubHashCode() {
+        int h = hash;
+        if(h == 0) {
+            h = StubCore.hash(c, address);
+            hash = h;
+        }
+        return h;
+    }
 
-                istream.close();
-                ostream.close();
-                return result;
-    
+    private String stubString() {
+        String s = description;
+        if(s == null) {
+            s = StubCore.describe(c, address);
+            description = s;
+        }
+        return s;
+    }
 
-            } catch (Exception e) {
-                throw new RMIException("Error invoking method: " + method.getName(), e);
-            }
+    /** Sets the core that carries this stub's calls. Used for stubs whose
+        skeleton is in this virtual machine. */
+    void setCore(StubCore<T> core) {
+        this.core = core;
+    }
 
+    StubCore<T> getCore() {
+        StubCore<T> s = core;
+        if(s == null) {
+            s = new StubCore<T>(c, address);
+            core = s;
         }
+        return s;
     }
 }
-
@@ -0,0 +1,1022 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/** Client side of remote calls, shared by every kind of stub.
+
+    <p>
+    Stubs created with <code>java.lang.reflect.Proxy</code> and generated
+    stubs both forward their remote calls here. The core encodes the request,
+    carries it over a connection taken from the pool for the skeleton's
+    address, and decodes the response, throwing the exception raised by the
+    remote method if there was one. Calls may also be made asynchronously,
+    through <code>callAsync</code>, which shares the pool, and so the
+    connections and their request identifiers, with synchronous calls.
+
+    <p>
+    Calls are carried by the pool's <code>MultiplexedConnection</code> when
+    the skeleton supports one, so that concurrent calls share a single
+    connection. Otherwise, each call takes a connection for its exclusive use.
+    The calls recorded in a <code>Batch</code> are sent together in the same
+    way, as a single request, by <code>callBatch</code>. The request of a call
+    to a <code>OneWay</code> method is also sent in the same way, but no
+    response is awaited.
+
+    <p>
+    Arguments are encoded with the codec selected for the remote interface
+    when the core was created, if the skeleton agrees to it, and with Java
+    serialization otherwise. Only arguments encoded with Java serialization
+    must be serializable, or be byte buffers, which are sent as described in
+    <code>Segments</code>, or streams.
+
+    <p>
+    Requests are compressed with the compressor selected for the remote
+    interface when the core was created, if there is one, if the skeleton
+    accepts compressed payloads, and if the method is not excluded with
+    <code>Compressed</code>, once their payloads reach the selected
+    threshold.
+
+    <p>
+    A method taking or returning streams is called only over the pool's
+    multiplexed connection, with a skeleton that accepts streams and whose
+    interface has the same fingerprint, and the streams are sent as
+    described in <code>Streams</code>. Such calls are not retried, and
+    cannot be batched.
+
+    <p>
+    A core created for a stub whose skeleton is in the same virtual machine
+    makes its calls through a <code>LocalConnection</code> instead, for as
+    long as the skeleton is running.
+
+    <p>
+    A core is not serialized with its stub. Stubs keep the interface and
+    address themselves, and create a new core when first used after being
+    deserialized.
+ */
+class StubCore<T> {
+    private final Class<T> c;
+    private final SocketAddress address;
+    private final MethodTable table;
+    private final ConnectionPool pool;
+    private final Codec codec;
+    /** Compressor of the requests, or <code>null</code> if they are not
+        compressed. */
+    private final Compressor compressor;
+    /** Length from which requests are compressed. */
+    private final int threshold;
+    /** Connection to the skeleton in this virtual machine, if the stub was
+        created from one. */
+    private final LocalConnection local;
+
+    /** Executor on which asynchronous calls decode their responses and
+        complete their futures. */
+    private static final Executor completions = ForkJoinPool.commonPool();
+
+    StubCore(Class<T> c, SocketAddress address) {
+        this(c, address, null);
+    }
+
+    /** Creates a core for a stub whose skeleton is in this virtual machine.
+
+        @param c The remote interface.
+        @param address The address of the skeleton.
+        @param skeleton The skeleton, or <code>null</code> if it is not known
+                        to be in this virtual machine.
+     */
+    StubCore(Class<T> c, SocketAddress address, Skeleton<?> skeleton) {
+        this.c = c;
+        this.address = address;
+        this.table = MethodTable.of(c);
+        this.pool = ConnectionPool.get(address);
+        this.codec = Codecs.selected(c);
+        this.compressor = Compressors.selected(c);
+        this.threshold = Compressors.threshold(c);
+        this.local = skeleton == null ? null
+                   : new LocalConnection(skeleton,
+                                         (InetSocketAddress) address, codec);
+    }
+
+    /** Returns the string representation shared by all stubs for the given
+        interface and address.
+
+        <p>
+        The host is given as it was when the address was created, so that no
+        reverse name lookup is made. A Unix domain socket or shared-memory
+        file is given by its path. */
+    static String describe(Class<?> c, SocketAddress a) {
+        StringBuilder sb = new StringBuilder("Remote interface: ");
+
+        if(c != null) {
+            sb.append(c.getName());
+        } else {
+            sb.append("null, (hostname, port): ");
+        }
+
+        if(a instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) a;
+            sb.append("(" + inet.getHostString() + ", " + inet.getPort() + ")");
+        } else if(a instanceof UnixDomainSocketAddress) {
+            sb.append("(" + ((UnixDomainSocketAddress) a).getPath() + ")");
+        } else if(a != null) {
+            sb.append("(" + a + ")");
+        } else {
+            sb.append("(null, null)");
+        }
+
+        return sb.toString();
+    }
+
+    /** Returns the hash code shared by all stubs for the given interface and
+        address. The interface contributes its name rather than its identity
+        hash, so that the hash is the same in every virtual machine. */
+    static int hash(Class<?> c, SocketAddress a) {
+        int h = c == null ? 0 : c.getName().hashCode();
+        return 31 * h + (a == null ? 0 : a.hashCode());
+    }
+
+    /** Returns <code>true</code> if <code>other</code> is a stub, of either
+        kind, for the given interface and address. */
+    static boolean same(Class<?> c, SocketAddress a, Object other) {
+        if(!(other instanceof ProxyDetails)) {
+            return false;
+        }
+        ProxyDetails<?> details = (ProxyDetails<?>)other;
+        return c == details.getCls() &&
+               (a == null ? details.getServerAddress() == null
+                          : a.equals(details.getServerAddress()));
+    }
+
+    /** Calls a method of the remote interface.
+
+        @param method The method.
+        @param args The arguments, or <code>null</code> if there are none.
+        @return The value returned by the remote method.
+        @throws RMIException If the call cannot be carried out.
+        @throws Exception Whatever the remote method throws.
+     */
+    Object call(Method method, Object[] args) throws Exception {
+        return call(table.id(method), method, args);
+    }
+
+    /** Calls the method of the remote interface with the given identifier.
+        Used by generated stubs, which know their method identifiers. */
+    Object call(int methodId, Object[] args) throws Exception {
+        return call(methodId, table.method(methodId), args);
+    }
+
+    private Object call(int methodId, Method method, Object[] args)
+        throws Exception {
+        LocalConnection local = local();
+        if(local != null) {
+            checkSerializable(local.codec(), args);
+            Protocol.Request request =
+                local.request(table, methodId, method, args);
+            if(table.isOneWay(methodId)) {
+                local.callOneWay(request);
+                return null;
+            }
+            return result(local.call(request));
+        }
+
+        Protocol.Frame encoded = encode(methodId, method, args);
+
+        if(table.isOneWay(methodId) &&
+           sendOneWay(methodId, method, args, encoded)) {
+            return null;
+        }
+
+        MultiplexedConnection shared = shared("method: " + method.getName());
+        if(shared != null) {
+            PendingCall call = new PendingCall(methodId, method, args, encoded);
+            call.start(shared);
+
+            Protocol.Frame response;
+            try {
+                response = call.response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RMIException("Interrupted waiting for method: " + method.getName(), e);
+            } catch (ExecutionException e) {
+                throw (RMIException)e.getCause();
+            }
+
+            return result(decode(call.version, response, method));
+        }
+
+        Connection connection;
+        try {
+            connection = pool.acquire();
+        } catch (Exception e) {
+            throw new RMIException("Error invoking method: " + method.getName(), e);
+        }
+
+        // A pooled connection may have been closed by the skeleton while it
+        // sat idle. If writing the request on such a connection fails, or
+        // the skeleton closes it without answering, the skeleton cannot have
+        // run the call, so it is retried once on a fresh connection. Other
+        // failures, such as a reset or a timeout once the request has been
+        // written, may come after the call has run, and are not retried.
+        Protocol.Frame response;
+        try {
+            response = connection.exchange(
+                request(connection, methodId, method, args, encoded));
+        } catch (Exception e) {
+            pool.discard(connection);
+            if(!connection.isReused() || !connection.unsent()) {
+                throw new RMIException("Error invoking method: " + method.getName(), e);
+            }
+
+            try {
+                connection = pool.acquireFresh();
+            } catch (Exception retryError) {
+                throw new RMIException("Error invoking method: " + method.getName(), retryError);
+            }
+
+            try {
+                response = connection.exchange(
+                    request(connection, methodId, method, args, encoded));
+            } catch (Exception retryError) {
+                pool.discard(connection);
+                throw new RMIException("Error invoking method: " + method.getName(), retryError);
+            }
+        }
+
+        pool.release(connection);
+
+        return result(decode(connection.version(), response, method));
+    }
+
+    /** Calls a method of the remote interface without waiting for the result.
+
+        <p>
+        The request is sent as for a synchronous call, and the response is read
+        by the <code>ClientSelector</code>. The caller blocks only while the
+        request is written and, when the skeleton does not multiplex, while a
+        connection is acquired from the pool.
+
+        @param method The method.
+        @param args The arguments, or <code>null</code> if there are none.
+        @return A future completed with the value returned by the remote
+                method, or completed exceptionally with the exception it
+                threw, or with an <code>RMIException</code> if the call cannot
+                be carried out.
+     */
+    CompletableFuture<Object> callAsync(final Method method, Object[] args) {
+        final CompletableFuture<Object> result =
+            new CompletableFuture<Object>();
+        final PendingCall call;
+
+        LocalConnection local = local();
+        if(local != null) {
+            callLocally(local, method, args, result);
+            return result;
+        }
+
+        try {
+            int methodId = table.id(method);
+            Protocol.Frame encoded = encode(methodId, method, args);
+            // The request may be written after this method returns.
+            encoded.copySegments();
+            call = new PendingCall(methodId, method, args, encoded);
+
+            if(table.isOneWay(methodId) &&
+               sendOneWay(methodId, method, args, call.encoded)) {
+                result.complete(null);
+                return result;
+            }
+
+            MultiplexedConnection shared = shared(call.name());
+            if(shared != null) {
+                call.start(shared);
+            } else {
+                call.start(acquire(call.name()));
+            }
+        } catch(RMIException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        call.response.whenCompleteAsync(
+            new BiConsumer<Protocol.Frame, Throwable>() {
+                @Override
+                public void accept(Protocol.Frame response, Throwable error) {
+                    if(error != null) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+
+                    try {
+                        Dispatcher.Outcome outcome =
+                            decode(call.version, response, method);
+                        if(outcome.exceptionThrown) {
+                            result.completeExceptionally(
+                                (Throwable)outcome.result);
+                        } else {
+                            result.complete(outcome.result);
+                        }
+                    } catch(RMIException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            }, completions);
+        return result;
+    }
+
+    /** Returns the connection to the skeleton in this virtual machine, or
+        <code>null</code> if there is none or the skeleton is not running. */
+    private LocalConnection local() {
+        LocalConnection connection = local;
+        return connection != null && connection.isOpen() ? connection : null;
+    }
+
+    /** Makes an asynchronous call on the skeleton in this virtual machine.
+        The arguments are copied at once, and the call is made on the
+        skeleton's workers. The future is completed on the executor of
+        asynchronous completions, as for calls made over the network. */
+    private void callLocally(LocalConnection local, Method method,
+                             Object[] args,
+                             final CompletableFuture<Object> result) {
+        int methodId = table.id(method);
+        CompletableFuture<Dispatcher.Outcome> outcome;
+        try {
+            checkSerializable(local.codec(), args);
+            Protocol.Request request =
+                local.request(table, methodId, method, args);
+
+            if(table.isOneWay(methodId)) {
+                local.callOneWay(request);
+                result.complete(null);
+                return;
+            }
+
+            outcome = local.callLater(request);
+        } catch(RMIException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        outcome.whenCompleteAsync(
+            new BiConsumer<Dispatcher.Outcome, Throwable>() {
+                @Override
+                public void accept(Dispatcher.Outcome outcome,
+                                   Throwable error) {
+                    if(error != null) {
+                        result.completeExceptionally(error);
+                    } else if(outcome.exceptionThrown) {
+                        result.completeExceptionally(
+                            (Throwable)outcome.result);
+                    } else {
+                        result.complete(outcome.result);
+                    }
+                }
+            }, completions);
+    }
+
+    /** Sends the request of a one-way call, without waiting for the call to
+        be made.
+
+        @return <code>false</code> if the skeleton does not accept one-way
+                calls, in which case nothing has been sent.
+        @throws RMIException If the request cannot be sent.
+     */
+    private boolean sendOneWay(int methodId, Method method, Object[] args,
+                               Protocol.Frame encoded)
+        throws RMIException {
+        String name = "method: " + method.getName();
+
+        MultiplexedConnection shared = shared(name);
+        if(shared != null) {
+            if(!shared.connection().acceptsOneWay()) {
+                return false;
+            }
+
+            try {
+                Protocol.Frame request = request(shared.connection(),
+                                                 methodId, method, args,
+                                                 encoded);
+                request.flags |= Protocol.FLAG_ONE_WAY;
+                // The request may be written after this method returns.
+                request.copySegments();
+                shared.send(request, null);
+            } catch (IOException e) {
+                throw new RMIException("Error invoking " + name, e);
+            }
+            return true;
+        }
+
+        Connection connection = acquire(name);
+        if(!connection.acceptsOneWay()) {
+            pool.release(connection);
+            return false;
+        }
+
+        try {
+            Protocol.Frame request = request(connection, methodId, method,
+                                             args, encoded);
+            request.flags |= Protocol.FLAG_ONE_WAY;
+            connection.send(request);
+        } catch (IOException e) {
+            pool.discard(connection);
+            throw new RMIException("Error invoking " + name, e);
+        }
+        pool.release(connection);
+        return true;
+    }
+
+    /** Records a call to be made as part of a batch. The request is encoded
+        at once, so that the arguments are copied as they are now.
+
+        @throws RMIException If an argument is not serializable, or the
+                             request cannot be encoded.
+     */
+    BatchEntry record(Method method, Object[] args) throws RMIException {
+        int methodId = table.id(method);
+        if(table.usesStreams(methodId)) {
+            throw new RMIException("Calls passing or returning streams " +
+                                   "cannot be batched: " + method.getName());
+        }
+        Protocol.Frame encoded = encode(methodId, method, args);
+        encoded.copySegments();
+        return new BatchEntry(this, methodId, method, args, encoded);
+    }
+
+    /** Returns <code>true</code> if the other core calls the same
+        skeleton. */
+    boolean sameSkeleton(StubCore<?> other) {
+        return address.equals(other.address);
+    }
+
+    /** Sends a batch of calls to the skeleton in one request.
+
+        <p>
+        The calls of the batch must all be made through cores that call the
+        same skeleton as this one. If the skeleton does not accept batches,
+        the calls are made one by one, asynchronously.
+
+        @param entries The calls.
+        @param parallel <code>true</code> if the skeleton may make the calls
+                        concurrently.
+        @return A future completed once the future of every call has been
+                completed. It completes exceptionally with an
+                <code>RMIException</code> if the batch could not be carried
+                out, in which case the future of every call fails with that
+                exception.
+     */
+    CompletableFuture<Void> callBatch(final List<BatchEntry> entries,
+                                      boolean parallel) {
+        if(local() != null) {
+            return callEach(entries);
+        }
+
+        final PendingBatch batch = new PendingBatch(entries, parallel);
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        try {
+            MultiplexedConnection shared = shared(batch.name());
+            if(shared != null) {
+                if(!shared.connection().batches()) {
+                    return callEach(entries);
+                }
+                batch.start(shared);
+            } else {
+                Connection connection = acquire(batch.name());
+                if(!connection.batches()) {
+                    pool.release(connection);
+                    return callEach(entries);
+                }
+                batch.start(connection);
+            }
+        } catch(RMIException e) {
+            for(BatchEntry entry : entries) {
+                entry.result.completeExceptionally(e);
+            }
+            done.completeExceptionally(e);
+            return done;
+        }
+
+        batch.response.whenCompleteAsync(
+            new BiConsumer<Protocol.Frame, Throwable>() {
+                @Override
+                public void accept(Protocol.Frame response, Throwable error) {
+                    Protocol.Frame[] responses = null;
+                    if(error == null) {
+                        try {
+                            responses = Protocol.decodeBatch(response);
+                            if(responses.length != entries.size()) {
+                                throw new IOException("batch response has " +
+                                    responses.length + " calls instead of " +
+                                    entries.size());
+                            }
+                        } catch (IOException e) {
+                            error = new RMIException("Error invoking " +
+                                                     batch.name(), e);
+                        }
+                    }
+
+                    if(error != null) {
+                        for(BatchEntry entry : entries) {
+                            entry.result.completeExceptionally(error);
+                        }
+                        done.completeExceptionally(error);
+                        return;
+                    }
+
+                    for(int i = 0; i < responses.length; i++) {
+                        entries.get(i).complete(batch.version, responses[i]);
+                    }
+                    done.complete(null);
+                }
+            }, completions);
+        return done;
+    }
+
+    /** Makes the calls of a batch one by one, for skeletons that do not
+        accept batches. The returned future never completes
+        exceptionally. */
+    private static CompletableFuture<Void> callEach(List<BatchEntry> entries) {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[entries.size()];
+
+        for(int i = 0; i < results.length; i++) {
+            final BatchEntry entry = entries.get(i);
+            entry.core.callAsync(entry.method, entry.args).whenComplete(
+                new BiConsumer<Object, Throwable>() {
+                    @Override
+                    public void accept(Object value, Throwable error) {
+                        if(error != null) {
+                            entry.result.completeExceptionally(error);
+                        } else {
+                            entry.result.complete(value);
+                        }
+                    }
+                });
+            results[i] = entry.result;
+        }
+
+        return CompletableFuture.allOf(results).handle(
+            new BiFunction<Void, Throwable, Void>() {
+                @Override
+                public Void apply(Void value, Throwable error) {
+                    return null;
+                }
+            });
+    }
+
+    /** Returns the pool's multiplexed connection, or <code>null</code> if
+        calls must take connections of their own.
+
+        @param name What is being called, for error messages.
+     */
+    private MultiplexedConnection shared(String name) throws RMIException {
+        try {
+            return pool.shared();
+        } catch (IOException e) {
+            throw new RMIException("Error invoking " + name, e);
+        }
+    }
+
+    private Connection acquire(String name) throws RMIException {
+        try {
+            return pool.acquire();
+        } catch (IOException e) {
+            throw new RMIException("Error invoking " + name, e);
+        }
+    }
+
+    /** Returns the result of a call, or throws the exception it raised. */
+    private static Object result(Dispatcher.Outcome outcome) throws Exception {
+        if(outcome.exceptionThrown) {
+            throw (Exception)outcome.result;
+        }
+        return outcome.result;
+    }
+
+    /** Checks the arguments of a call and encodes the request.
+
+        <p>
+        The request is encoded ahead of time for the common case, a skeleton
+        speaking the current version for the same interface, and agreeing to
+        the stub's codec and to every capability that shapes payloads. It is
+        compressed only once the connection is known, so that a request
+        encoded again for a skeleton agreeing to less is compressed once.
+     */
+    private Protocol.Frame encode(int methodId, Method method, Object[] args)
+        throws RMIException {
+        checkSerializable(codec, args);
+
+        try {
+            Log.debug("writing method name, param types and args");
+            return Protocol.encodeRequest(Protocol.VERSION, methodId,
+                                          method, args, codec,
+                                          Protocol.CAPABILITIES);
+        } catch (Exception e) {
+            throw new RMIException("Error invoking method: " + method.getName(), e);
+        }
+    }
+
+    /** Compresses an encoded request, if a compressor is selected and the
+        method is not excluded from compression.
+
+        @param capabilities The capabilities agreed on the connection.
+     */
+    private void compress(Protocol.Frame request, Method method,
+                          int capabilities)
+        throws IOException {
+        if(compressor != null && table.isCompressed(table.id(method))) {
+            Protocol.compress(request, compressor, threshold, capabilities);
+        }
+    }
+
+    /** Checks that the arguments of a call can be serialized, if they are to
+        be encoded with Java serialization. Byte buffers are accepted, and
+        are sent as segments when the skeleton agrees to them, as are
+        streams, which are sent as streams. Other codecs report the values
+        they cannot encode when encoding them. */
+    private static void checkSerializable(Codec codec, Object[] args)
+        throws RMIException {
+        if(codec == Codecs.JAVA && args != null) {
+            for(Object arg : args) {
+                if (!(arg instanceof Serializable) &&
+                    !(arg instanceof ByteBuffer) &&
+                    !(arg instanceof ByteBuffer[]) &&
+                    !Streams.isStream(arg)) {
+                    throw new RMIException("All objects passed to method must be serializable");
+                }
+            }
+        }
+    }
+
+    /** Decodes the response to a call, and then releases the streams
+        announced for it that it did not take. */
+    private Dispatcher.Outcome decode(int version, Protocol.Frame response,
+                                      Method method)
+        throws RMIException {
+        Dispatcher.Outcome outcome;
+        try {
+            Log.debug("reading result");
+            outcome = Protocol.decodeResponse(version, response, codec,
+                                              method.getReturnType());
+            Log.debug("finished reading result");
+        } catch (Exception e) {
+            throw new RMIException("Error invoking method: " + method.getName(), e);
+        } finally {
+            if(response.streams != null) {
+                response.streams.release(response.requestId);
+            }
+        }
+
+        if(Log.debugging()) {
+            Log.debug("Remote call returned: " + outcome.result);
+        }
+        return outcome;
+    }
+
+    /** Builds the request frame for a connection. The request given was
+        encoded for the current protocol version using the method's
+        identifier, the stub's codec and every capability that shapes
+        payloads. It is encoded again, naming the method, for a skeleton that
+        speaks an older version or whose interface has a different
+        fingerprint, with Java serialization for a skeleton that does not
+        agree to the codec, and in the form agreed on a connection lacking
+        a capability on which the payload relies.
+
+        @throws IOException If the method takes or returns streams and the
+                            connection cannot carry them, or the request
+                            cannot be encoded.
+     */
+    private Protocol.Frame request(Connection connection, int methodId,
+                                   Method method, Object[] args,
+                                   Protocol.Frame encoded)
+        throws IOException {
+        Codec used = connection.accepts(codec) ? codec : Codecs.JAVA;
+
+        if(table.usesStreams(methodId)) {
+            if(connection.streams() == null) {
+                throw new IOException("streams are carried only by a " +
+                                      "shared connection to a skeleton " +
+                                      "accepting them");
+            }
+            if(connection.version() != Protocol.VERSION ||
+               !connection.acceptsMethodIds(table)) {
+                throw new IOException("streams are carried only for " +
+                                      "skeletons of the same interface");
+            }
+        }
+
+        if(connection.version() != Protocol.VERSION ||
+           !connection.acceptsMethodIds(table)) {
+            if(methodId != Protocol.NO_METHOD_ID) {
+                if(Log.debugging()) {
+                    Log.debug("skeleton does not accept method ids for " +
+                              c.getName() + "; calling " + method.getName() +
+                              " by name");
+                }
+            }
+            methodId = Protocol.NO_METHOD_ID;
+            encoded = null;
+        }
+        if(encoded == null || used != codec ||
+           (encoded.capabilities & ~connection.capabilities()) != 0) {
+            encoded = Protocol.encodeRequest(connection.version(), methodId,
+                                             method, args, used,
+                                             connection.capabilities());
+        }
+        compress(encoded, method, connection.capabilities());
+
+        // The encoded request may be sent more than once, so each request
+        // is a frame of its own.
+        Protocol.Frame request =
+            new Protocol.Frame(encoded.methodId, encoded.payload);
+        request.flags = encoded.flags;
+        request.descriptorIds = encoded.descriptorIds;
+        request.segments = encoded.segments;
+        request.streamValues = encoded.streamValues;
+        return request;
+    }
+
+    /** A request that has been sent without waiting for the response.
+
+        <p>
+        The request is carried either by the multiplexed connection, or by a
+        connection of its own, whose response is read by the
+        <code>ClientSelector</code>. In both cases the handler is notified on
+        the selector thread. A connection carried by shared memory has no
+        channel to select, and its exchange is made on a thread of the
+        shared-memory transport instead. The handler does no more than
+        complete <code>response</code> with the response frame, or with an
+        <code>RMIException</code>. A request that fails on a reused connection
+        where the skeleton cannot have run it is retried once, as are
+        synchronous calls: on the multiplexed connection, only requests that
+        were not written in full are.
+     */
+    private abstract class PendingRequest
+        implements ClientSelector.ResponseHandler {
+        final CompletableFuture<Protocol.Frame> response =
+            new CompletableFuture<Protocol.Frame>();
+        /** Protocol version of the connection carrying the request. */
+        volatile int version;
+        private volatile MultiplexedConnection shared;
+        private volatile Connection exclusive;
+        private volatile boolean reused;
+        private boolean retried = false;
+
+        /** Builds the request frame for the connection carrying it. */
+        abstract Protocol.Frame request(Connection connection)
+            throws IOException;
+
+        /** Describes what is being called, for error messages. */
+        abstract String name();
+
+        /** Returns <code>true</code> if the request may be sent again after
+            failing on a reused connection. */
+        boolean retries() {
+            return true;
+        }
+
+        /** Sends the request on the multiplexed connection. */
+        void start(MultiplexedConnection connection) {
+            shared = connection;
+            exclusive = null;
+            version = connection.version();
+            reused = connection.isReused();
+
+            try {
+                connection.send(request(connection.connection()), this);
+            } catch (IOException e) {
+                failed(e, true);
+            }
+        }
+
+        /** Sends the request on a connection for the exclusive use of this
+            request. */
+        void start(Connection connection) {
+            shared = null;
+            exclusive = connection;
+            version = connection.version();
+            reused = connection.isReused();
+
+            if(connection.channel() == null) {
+                exchange(connection);
+                return;
+            }
+
+            Protocol.Frame request;
+            try {
+                request = request(connection);
+                connection.send(request);
+            } catch (IOException e) {
+                failed(e, true);
+                return;
+            }
+
+            try {
+                ClientSelector.get().await(connection, request, this);
+            } catch (IOException e) {
+                failed(e, false);
+            }
+        }
+
+        /** Makes the exchange on a connection carried by shared memory,
+            which has no channel for the selector to wait on. The exchange
+            blocks, so it is made on a thread of the shared-memory
+            transport. */
+        private void exchange(final Connection connection) {
+            SharedMemoryChannel.exchanges().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Protocol.Frame request;
+                    try {
+                        request = request(connection);
+                    } catch (IOException e) {
+                        failed(e, true);
+                        return;
+                    }
+
+                    Protocol.Frame response;
+                    try {
+                        response = connection.exchange(request);
+                    } catch (IOException e) {
+                        failed(e, connection.unsent());
+                        return;
+                    }
+                    completed(response);
+                }
+            });
+        }
+
+        @Override
+        public void completed(Protocol.Frame frame) {
+            Connection connection = exclusive;
+            if(connection != null) {
+                pool.release(connection);
+            }
+            response.complete(frame);
+        }
+
+        @Override
+        public void failed(IOException cause, boolean unsent) {
+            Connection connection = exclusive;
+            if(connection != null) {
+                pool.discard(connection);
+            }
+
+            if(retried || !reused || !unsent || !retries()) {
+                fail(cause);
+                return;
+            }
+
+            // Opening a connection blocks, so the retry does not run on the
+            // selector thread.
+            retried = true;
+            completions.execute(new Runnable() {
+                @Override
+                public void run() {
+                    retry();
+                }
+            });
+        }
+
+        private void retry() {
+            try {
+                MultiplexedConnection connection = shared != null ?
+                    pool.shared() : null;
+                if(connection != null) {
+                    start(connection);
+                } else {
+                    start(pool.acquireFresh());
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Exception cause) {
+            response.completeExceptionally(
+                new RMIException("Error invoking " + name(), cause));
+        }
+    }
+
+    /** A single call sent without waiting for the response. */
+    private class PendingCall extends PendingRequest {
+        final int methodId;
+        final Method method;
+        final Object[] args;
+        final Protocol.Frame encoded;
+
+        PendingCall(int methodId, Method method, Object[] args,
+                    Protocol.Frame encoded) {
+            this.methodId = methodId;
+            this.method = method;
+            this.args = args;
+            this.encoded = encoded;
+        }
+
+        @Override
+        Protocol.Frame request(Connection connection) throws IOException {
+            return StubCore.this.request(connection, methodId, method, args,
+                                         encoded);
+        }
+
+        @Override
+        String name() {
+            return "method: " + method.getName();
+        }
+
+        /** A call passing streams is not retried, since they may have been
+            read since it was first sent. */
+        @Override
+        boolean retries() {
+            return encoded.streamValues == null;
+        }
+    }
+
+    /** A batch of calls sent in one request. */
+    private class PendingBatch extends PendingRequest {
+        final List<BatchEntry> entries;
+        final boolean parallel;
+
+        PendingBatch(List<BatchEntry> entries, boolean parallel) {
+            this.entries = entries;
+            this.parallel = parallel;
+        }
+
+        @Override
+        Protocol.Frame request(Connection connection) throws IOException {
+            if(!connection.batches()) {
+                throw new IOException("skeleton does not accept batches");
+            }
+
+            Protocol.Frame[] calls = new Protocol.Frame[entries.size()];
+            for(int i = 0; i < calls.length; i++) {
+                calls[i] = entries.get(i).request(connection);
+            }
+
+            Protocol.Frame request = new Protocol.Frame(
+                Protocol.NO_METHOD_ID, Protocol.encodeBatch(calls));
+            request.flags = Protocol.FLAG_BATCH;
+            if(parallel) {
+                request.flags |= Protocol.FLAG_PARALLEL;
+            }
+            request.descriptorIds = ClassDescriptors.union(calls);
+            return request;
+        }
+
+        @Override
+        String name() {
+            return "batch of " + entries.size() + " calls";
+        }
+    }
+
+    /** A call recorded in a <code>Batch</code>, and the future completed with
+        its result. */
+    static class BatchEntry {
+        final StubCore<?> core;
+        final int methodId;
+        final Method method;
+        final Object[] args;
+        final Protocol.Frame encoded;
+        final CompletableFuture<Object> result =
+            new CompletableFuture<Object>();
+
+        private BatchEntry(StubCore<?> core, int methodId, Method method,
+                           Object[] args, Protocol.Frame encoded) {
+            this.core = core;
+            this.methodId = methodId;
+            this.method = method;
+            this.args = args;
+            this.encoded = encoded;
+        }
+
+        private Protocol.Frame request(Connection connection)
+            throws IOException {
+            return core.request(connection, methodId, method, args, encoded);
+        }
+
+        /** Completes the future with the outcome of the call. */
+        private void complete(int version, Protocol.Frame response) {
+            try {
+                Dispatcher.Outcome outcome =
+                    core.decode(version, response, method);
+                if(outcome.exceptionThrown) {
+                    result.completeExceptionally((Throwable)outcome.result);
+                } else {
+                    result.complete(outcome.result);
+                }
+            } catch(RMIException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
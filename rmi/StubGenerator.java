@@ -0,0 +1,304 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/** Generates stub and dispatcher source code for remote interfaces.
+
+    <p>
+    For each remote interface named on the command line, the generator writes
+    two classes into the output directory, in the interface's package: a stub,
+    named after the interface with the suffix <code>_RMIStub</code>, and a
+    skeleton dispatcher, with the suffix <code>_RMIDispatch</code>. The stub
+    implements the interface with one method per remote method, and the
+    dispatcher calls the remote object with a switch over the method
+    identifiers, so that neither side uses reflection to make a call.
+    <code>Stub.create</code> returns an instance of the generated stub whenever
+    it is on the class path, and skeletons use the generated dispatcher in the
+    same way. Both classes record the fingerprint of the interface they were
+    generated from, and are ignored if the interface has changed since.
+
+    <p>
+    The generator loads the interfaces, so they must be compiled and on the
+    class path. The source files are written flat into the output directory and
+    should be compiled with <code>javac -d</code> so that the class files are
+    placed according to their packages. For example:
+
+    <pre>
+    java rmi.StubGenerator generated example.Calculator
+    javac -d . generated/*.java
+    </pre>
+ */
+public class StubGenerator
+{
+    /** Generates source code for the interfaces given on the command line.
+
+        @param arguments The output directory, followed by the binary names of
+                         the remote interfaces.
+     */
+    public static void main(String[] arguments)
+    {
+        if(arguments.length < 1) {
+            System.err.println("usage: java rmi.StubGenerator output-directory " +
+                               "interface...");
+            System.exit(2);
+        }
+
+        File directory = new File(arguments[0]);
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("cannot create directory " + directory);
+            System.exit(1);
+        }
+
+        for(int i = 1; i < arguments.length; i++) {
+            try {
+                Class<?> c = Class.forName(arguments[i]);
+                write(directory, c, GeneratedStub.SUFFIX, stub(c));
+                write(directory, c, GeneratedDispatcher.SUFFIX, dispatcher(c));
+            } catch(Exception e) {
+                System.err.println("cannot generate code for " + arguments[i] +
+                                   ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /** Returns the source code of the stub for a remote interface. */
+    static String stub(Class<?> c) {
+        check(c);
+
+        MethodTable table = MethodTable.of(c);
+        String name = typeName(c);
+        StringBuilder out = header(c, GeneratedStub.SUFFIX);
+
+        out.append(" extends rmi.GeneratedStub<").append(name).append(">\n")
+           .append("    implements ").append(name).append("\n{\n");
+        fingerprint(out, table);
+        out.append("    private static final long serialVersionUID = ")
+           .append("FINGERPRINT;\n\n");
+        out.append("    public ").append(simpleName(c, GeneratedStub.SUFFIX))
+           .append("(java.net.InetSocketAddress address)\n    {\n")
+           .append("        super(").append(name).append(".class, address);\n")
+           .append("    }\n");
+
+        for(int id = 0; id < table.size(); id++) {
+            Method method = table.method(id);
+            if(isObjectMethod(method)) {
+                continue;
+            }
+
+            Class<?>[] types = method.getParameterTypes();
+            Class<?> returnType = method.getReturnType();
+
+            out.append("\n    @Override\n    public ")
+               .append(typeName(returnType)).append(' ')
+               .append(method.getName()).append('(');
+            for(int i = 0; i < types.length; i++) {
+                out.append(i > 0 ? ", " : "").append(typeName(types[i]))
+                   .append(" p").append(i);
+            }
+            out.append(")\n        throws ");
+            Class<?>[] exceptions = method.getExceptionTypes();
+            for(int i = 0; i < exceptions.length; i++) {
+                out.append(i > 0 ? ", " : "").append(typeName(exceptions[i]));
+            }
+            out.append("\n    {\n        try\n        {\n            ");
+
+            String call = "call(" + id + ", new Object[] {" +
+                          parameters(types.length) + "})";
+            if(returnType == void.class) {
+                out.append(call).append(";\n");
+            } else if(returnType.isPrimitive()) {
+                out.append("return ((").append(typeName(box(returnType)))
+                   .append(") ").append(call).append(").")
+                   .append(returnType.getName()).append("Value();\n");
+            } else {
+                out.append("return (").append(typeName(returnType))
+                   .append(") ").append(call).append(";\n");
+            }
+
+            out.append("        }\n")
+               .append("        catch(RuntimeException e) { throw e; }\n")
+               .append("        catch(Exception e)\n        {\n");
+            for(Class<?> exception : exceptions) {
+                out.append("            if(e instanceof ")
+                   .append(typeName(exception)).append(")\n")
+                   .append("                throw (")
+                   .append(typeName(exception)).append(") e;\n");
+            }
+            out.append("            throw new ")
+               .append("java.lang.reflect.UndeclaredThrowableException(e);\n")
+               .append("        }\n    }\n");
+        }
+
+        return out.append("}\n").toString();
+    }
+
+    /** Returns the source code of the skeleton dispatcher for a remote
+        interface. */
+    static String dispatcher(Class<?> c) {
+        check(c);
+
+        MethodTable table = MethodTable.of(c);
+        String name = typeName(c);
+        StringBuilder out = header(c, GeneratedDispatcher.SUFFIX);
+
+        out.append(" implements rmi.GeneratedDispatcher\n{\n");
+        fingerprint(out, table);
+        out.append("    @Override\n")
+           .append("    public Object invoke(Object server, int methodId, " +
+                   "Object[] args)\n        throws Throwable\n    {\n")
+           .append("        ").append(name).append(" target = (")
+           .append(name).append(") server;\n\n")
+           .append("        switch(methodId)\n        {\n");
+
+        for(int id = 0; id < table.size(); id++) {
+            Method method = table.method(id);
+            Class<?>[] types = method.getParameterTypes();
+
+            StringBuilder call = new StringBuilder("target.")
+                .append(method.getName()).append('(');
+            for(int i = 0; i < types.length; i++) {
+                Class<?> type = types[i].isPrimitive() ? box(types[i])
+                                                       : types[i];
+                call.append(i > 0 ? ", " : "").append('(')
+                    .append(typeName(type)).append(") args[").append(i)
+                    .append(']');
+            }
+            call.append(')');
+
+            out.append("        case ").append(id).append(":\n");
+            if(method.getReturnType() == void.class) {
+                out.append("            ").append(call).append(";\n")
+                   .append("            return null;\n");
+            } else {
+                out.append("            return ").append(call).append(";\n");
+            }
+        }
+
+        out.append("        default:\n")
+           .append("            throw new rmi.RMIException(\"No Such Method\");\n")
+           .append("        }\n    }\n}\n");
+        return out.toString();
+    }
+
+    /** Checks that code can be generated for an interface.
+
+        @throws IllegalArgumentException If the interface is not a remote
+                                         interface, is not accessible from
+                                         its package, or declares methods that
+                                         clash with those of generated stubs.
+     */
+    private static void check(Class<?> c) {
+        if(!c.isInterface()) {
+            throw new IllegalArgumentException(c.getName() +
+                                               " is not an interface");
+        }
+        if(c.getCanonicalName() == null ||
+           Modifier.isPrivate(c.getModifiers())) {
+            throw new IllegalArgumentException(c.getName() + " is not " +
+                                               "accessible from its package");
+        }
+
+        for(Method method : c.getMethods()) {
+            boolean remote = false;
+            for(Class<?> exception : method.getExceptionTypes()) {
+                remote |= exception == RMIException.class;
+            }
+            if(!remote) {
+                throw new IllegalArgumentException(method.getName() +
+                    " is not marked as throwing RMIException");
+            }
+
+            String signature = Protocol.signature(method);
+            if(signature.equals("getCls()") ||
+               signature.equals("getServerAddress()") ||
+               signature.equals("call(int,[Ljava.lang.Object;)")) {
+                throw new IllegalArgumentException(method.getName() +
+                    " clashes with a method of generated stubs");
+            }
+        }
+    }
+
+    /** Returns <code>true</code> for remote methods with the signature of
+        <code>equals</code>, <code>hashCode</code> or <code>toString</code>.
+        Stubs handle these locally. */
+    private static boolean isObjectMethod(Method method) {
+        String signature = Protocol.signature(method);
+        return signature.equals("equals(java.lang.Object)") ||
+               signature.equals("hashCode()") ||
+               signature.equals("toString()");
+    }
+
+    private static StringBuilder header(Class<?> c, String suffix) {
+        StringBuilder out = new StringBuilder();
+        if(c.getPackage() != null && !c.getPackage().getName().isEmpty()) {
+            out.append("package ").append(c.getPackage().getName())
+               .append(";\n\n");
+        }
+        out.append("/** Generated by <code>rmi.StubGenerator</code> from ")
+           .append("<code>").append(typeName(c)).append("</code>. Do not ")
+           .append("edit. */\n")
+           .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+           .append("public final class ").append(simpleName(c, suffix));
+        return out;
+    }
+
+    private static void fingerprint(StringBuilder out, MethodTable table) {
+        out.append("    /** Fingerprint of the interface this class was ")
+           .append("generated from. */\n")
+           .append("    public static final long FINGERPRINT = 0x")
+           .append(Long.toHexString(table.fingerprint())).append("L;\n\n");
+    }
+
+    private static void write(File directory, Class<?> c, String suffix,
+                              String source) throws IOException {
+        File file = new File(directory, simpleName(c, suffix) + ".java");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                                               StandardCharsets.UTF_8);
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Returns the name of the generated class within its package. Nested
+        interfaces keep the <code>$</code> separators of their binary name. */
+    private static String simpleName(Class<?> c, String suffix) {
+        String name = c.getName();
+        return name.substring(name.lastIndexOf('.') + 1) + suffix;
+    }
+
+    private static String typeName(Class<?> type) {
+        if(type.isArray()) {
+            return typeName(type.getComponentType()) + "[]";
+        }
+        return type.getCanonicalName();
+    }
+
+    private static String parameters(int count) {
+        StringBuilder names = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            names.append(i > 0 ? ", " : "").append('p').append(i);
+        }
+        return names.toString();
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if(type == boolean.class) return Boolean.class;
+        if(type == byte.class) return Byte.class;
+        if(type == char.class) return Character.class;
+        if(type == short.class) return Short.class;
+        if(type == int.class) return Integer.class;
+        if(type == long.class) return Long.class;
+        if(type == float.class) return Float.class;
+        return Double.class;
+    }
+}
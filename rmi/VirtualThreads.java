@@ -0,0 +1,72 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Access to virtual threads.
+
+    <p>
+    Virtual threads are available from Java 21. The library is compiled for
+    older releases, so the virtual thread factory is looked up reflectively,
+    once, when this class is initialized. After that, creating a virtual thread
+    is an ordinary call through the <code>ThreadFactory</code> interface.
+ */
+class VirtualThreads {
+    private static final ThreadFactory factory = lookupFactory();
+
+    private VirtualThreads() {
+    }
+
+    /** Returns <code>true</code> if the running Java runtime supports virtual
+        threads. */
+    static boolean isSupported() {
+        return factory != null;
+    }
+
+    /** Returns a factory for unstarted virtual threads.
+
+        @throws UnsupportedOperationException If virtual threads are not
+                                              supported.
+     */
+    static ThreadFactory factory() {
+        if(factory == null) {
+            throw new UnsupportedOperationException(
+                "virtual threads require Java 21 or later");
+        }
+        return factory;
+    }
+
+    /** Returns an executor that runs each task on a new virtual thread.
+
+        @throws UnsupportedOperationException If virtual threads are not
+                                              supported.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        ThreadFactory threads = factory();
+
+        try {
+            Method perTask = Executors.class.getMethod(
+                "newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, threads);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(threads);
+        }
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, "rmi-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory")
+                                               .invoke(builder);
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -8,6 +8,17 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link rmi.SampleUnitTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.MethodTableTest}</li>
+    <li>{@link rmi.StubIdentityTest}</li>
+    <li>{@link rmi.LogTest}</li>
+    <li>{@link rmi.UnixSocketRouteTest}</li>
+    <li>{@link rmi.BinaryCodecTest}</li>
+    <li>{@link rmi.ClassDescriptorsTest}</li>
+    <li>{@link rmi.PrimitiveValuesTest}</li>
+    <li>{@link rmi.SegmentsTest}</li>
+    <li>{@link rmi.StreamsTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +32,19 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {rmi.SampleUnitTest.class};
+            new Class[] {rmi.SampleUnitTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.MethodTableTest.class,
+                         rmi.StubIdentityTest.class,
+                         rmi.LogTest.class,
+                         rmi.UnixSocketRouteTest.class,
+                         rmi.BinaryCodecTest.class,
+                         rmi.ClassDescriptorsTest.class,
+                         rmi.PrimitiveValuesTest.class,
+                         rmi.SegmentsTest.class,
+                         rmi.StreamsTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.FrameLengthTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
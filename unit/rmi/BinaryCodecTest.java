@@ -0,0 +1,211 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.util.*;
+
+/** Unit tests for <code>BinaryCodec</code>.
+
+    <p>
+    The tests write values of every supported kind and check that they are
+    read back equal, and that values of other kinds are refused. They then
+    check that malformed payloads are rejected: truncated values, lengths
+    larger than the payload, and names of classes that are neither records
+    nor enumerations.
+ */
+public class BinaryCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary codec";
+
+    /** Tag of a string, as written by the codec. */
+    private static final int    STRING = 10;
+    /** Tag of a record, as written by the codec. */
+    private static final int    RECORD = 16;
+
+    /** Checks the codec.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Codec                   codec = Codecs.BINARY;
+
+        task("writing and reading supported values");
+
+        Map<String, Object>     map = new LinkedHashMap<String, Object>();
+        map.put("point", new Point(1, -2));
+        map.put("none", null);
+
+        Object[]                values =
+            {null, true, (byte)-3, (short)400, 'x', 123456, -7L, 1.5f, 2.25,
+             "caf\u00e9", new int[] {1, 2, 3}, new byte[] {4, 5},
+             new double[] {0.5}, new String[] {"a", null},
+             Arrays.asList(1, "two", Color.BLUE), new HashSet<Object>(
+                 Arrays.asList(3L, 'c')), map, Color.RED,
+             new Line(new Point(0, 0), new Point(3, 4), "segment")};
+        Class<?>[]              types = new Class<?>[values.length];
+        Arrays.fill(types, Object.class);
+
+        Object[]                read;
+
+        try
+        {
+            read = roundTrip(codec, types, values);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write and read values", e);
+        }
+
+        if(!Arrays.deepEquals(values, read))
+        {
+            throw new TestFailed("values read differ from values written: " +
+                                 Arrays.deepToString(read));
+        }
+
+        if(!(read[14] instanceof ArrayList) ||
+           !(read[15] instanceof LinkedHashSet) ||
+           !(read[16] instanceof LinkedHashMap))
+        {
+            throw new TestFailed("collections not read as the documented " +
+                                 "classes");
+        }
+
+        task("refusing unsupported values");
+
+        try
+        {
+            roundTrip(codec, new Class<?>[] {Object.class},
+                      new Object[] {new StringBuilder("x")});
+            throw new TestFailed("unsupported value encoded");
+        }
+        catch(IOException e) { }
+
+        task("refusing values nested too deeply");
+
+        List<Object>            nested = new ArrayList<Object>();
+        List<Object>            inner = nested;
+        for(int i = 0; i <= BinaryCodec.MAX_DEPTH; ++i)
+        {
+            List<Object>        next = new ArrayList<Object>();
+            inner.add(next);
+            inner = next;
+        }
+
+        try
+        {
+            roundTrip(codec, new Class<?>[] {List.class},
+                      new Object[] {nested});
+            throw new TestFailed("values nested too deeply encoded");
+        }
+        catch(IOException e) { }
+
+        task("rejecting truncated payloads");
+
+        byte[]                  bytes;
+
+        try
+        {
+            bytes = write(codec, new Class<?>[] {String.class},
+                          new Object[] {"truncated"});
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write payload", e);
+        }
+
+        expectRejected(codec, Arrays.copyOf(bytes, bytes.length - 1));
+
+        task("rejecting lengths larger than the payload");
+
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        DataOutputStream        ostream = new DataOutputStream(buffer);
+
+        try
+        {
+            ostream.writeByte(STRING);
+            ostream.writeInt(Integer.MAX_VALUE);
+            ostream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write payload", e);
+        }
+
+        expectRejected(codec, buffer.toByteArray());
+
+        task("rejecting classes that are not records");
+
+        buffer = new ByteArrayOutputStream();
+        ostream = new DataOutputStream(buffer);
+
+        try
+        {
+            ostream.writeByte(RECORD);
+            ostream.writeUTF(Thread.class.getName());
+            ostream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write payload", e);
+        }
+
+        expectRejected(codec, buffer.toByteArray());
+
+        task();
+    }
+
+    /** Writes values and reads them back. */
+    private Object[] roundTrip(Codec codec, Class<?>[] types,
+                               Object[] values)
+        throws TestFailed, IOException
+    {
+        byte[]                  bytes = write(codec, types, values);
+
+        try
+        {
+            return codec.read(new ByteArrayInputStream(bytes), types);
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to read values", e);
+        }
+    }
+
+    /** Writes values to a byte array. */
+    private byte[] write(Codec codec, Class<?>[] types, Object[] values)
+        throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        codec.write(bytes, types, values);
+        return bytes.toByteArray();
+    }
+
+    /** Checks that reading a single value from a payload fails. */
+    private void expectRejected(Codec codec, byte[] payload)
+        throws TestFailed
+    {
+        try
+        {
+            codec.read(new ByteArrayInputStream(payload),
+                       new Class<?>[] {Object.class});
+            throw new TestFailed("malformed payload accepted");
+        }
+        catch(IOException e) { }
+        catch(ClassNotFoundException e)
+        {
+            throw new TestFailed("unexpected exception reading payload", e);
+        }
+    }
+
+    /** Enumeration written by the test. */
+    public enum Color { RED, BLUE }
+
+    /** Record written by the test. It is not serializable. */
+    public record Point(int x, int y) { }
+
+    /** Record holding other records. */
+    public record Line(Point from, Point to, String label) { }
+}
@@ -0,0 +1,364 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/** Unit tests for <code>ClassDescriptors</code>.
+
+    <p>
+    The tests write payloads that refer to class descriptors by identifier,
+    carry them between an <code>Outgoing</code> set and an
+    <code>Incoming</code> table as a connection would, and check that the
+    values are read back equal. They check that descriptors are defined only
+    the first time a connection uses them, that payloads are smaller than
+    those of plain serialization, and that payloads referring to undefined
+    descriptors, malformed definitions and unexpected definitions frames are
+    rejected, and that the descriptors written do not keep a class loader
+    reachable once its classes are no longer used.
+ */
+public class ClassDescriptorsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking shared class descriptors";
+
+    /** Number of garbage collections requested before a class loader no
+        longer in use must have been collected. */
+    private static final int    GC_ATTEMPTS = 20;
+    /** Time to wait after each garbage collection, in milliseconds. */
+    private static final int    GC_DELAY = 100;
+
+    /** Checks shared class descriptors.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Object[]                values =
+            {42, "text", new ArrayList<Object>(Arrays.asList(1L, 2.5)),
+             new Labelled("point", 3), null, Level.HIGH};
+
+        ClassDescriptors.Outgoing outgoing = new ClassDescriptors.Outgoing();
+        ClassDescriptors.Incoming incoming = new ClassDescriptors.Incoming();
+
+        task("defining descriptors on first use");
+
+        Protocol.Frame          first = frame(values);
+        Protocol.Frame          definitions;
+
+        try
+        {
+            definitions = outgoing.definitions(first);
+            if(definitions == null)
+                throw new TestFailed("no definitions for new descriptors");
+            if((definitions.flags & Protocol.FLAG_DEFINITIONS) == 0)
+                throw new TestFailed("definitions frame not flagged");
+
+            incoming.define(definitions);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to define descriptors", e);
+        }
+
+        check(first, incoming, values);
+
+        task("reusing descriptors already defined");
+
+        Protocol.Frame          second = frame(values);
+
+        try
+        {
+            if(outgoing.definitions(second) != null)
+                throw new TestFailed("descriptors defined twice");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to check definitions", e);
+        }
+
+        check(second, incoming, values);
+
+        task("comparing payload size with plain serialization");
+
+        ByteArrayOutputStream   plain = new ByteArrayOutputStream();
+
+        try
+        {
+            Codecs.JAVA.write(plain, new Class<?>[values.length], values);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to serialize values", e);
+        }
+
+        if(second.payload.length >= plain.size())
+        {
+            throw new TestFailed("payload of " + second.payload.length +
+                                 " bytes is not smaller than " +
+                                 plain.size() + " bytes");
+        }
+
+        task("rejecting payloads with undefined descriptors");
+
+        try
+        {
+            read(second, new ClassDescriptors.Incoming(), values.length);
+            throw new TestFailed("undefined descriptor accepted");
+        }
+        catch(IOException e) { }
+
+        task("rejecting malformed definitions");
+
+        expectRejected(new byte[] {0, 0, 0, 1});
+        expectRejected(new byte[] {0x7f, 0, 0, 0, 0, 0, 0, 0});
+        expectRejected(Arrays.copyOf(definitions.payload,
+                                     definitions.payload.length - 1));
+
+        task("reading frames behind their definitions");
+
+        ByteArrayOutputStream   stream = new ByteArrayOutputStream();
+        DataOutputStream        ostream = new DataOutputStream(stream);
+
+        try
+        {
+            Protocol.appendFrame(ostream, Protocol.VERSION, frame(values),
+                                 new ClassDescriptors.Outgoing());
+            ostream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write frames", e);
+        }
+
+        Protocol.Frame          frame;
+
+        try
+        {
+            frame = Protocol.readFrame(input(stream), Protocol.VERSION, 0x52,
+                                       Protocol.CAP_DESCRIPTORS,
+                                       new ClassDescriptors.Incoming());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read frames", e);
+        }
+
+        if((frame.flags & Protocol.FLAG_DEFINITIONS) != 0)
+            throw new TestFailed("definitions frame passed on");
+
+        check(frame, frame.descriptors, values);
+
+        try
+        {
+            Protocol.readFrame(input(stream), Protocol.VERSION, 0x52, 0,
+                               null);
+            throw new TestFailed("definitions accepted on a connection " +
+                                 "that does not share descriptors");
+        }
+        catch(IOException e) { }
+
+        task("releasing classes no longer in use");
+
+        WeakReference<ClassLoader>  loader = writeFromDiscardedLoader();
+
+        for(int i = 0; i < GC_ATTEMPTS && loader.get() != null; ++i)
+        {
+            System.gc();
+
+            try
+            {
+                Thread.sleep(GC_DELAY);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        if(loader.get() != null)
+            throw new TestFailed("class loader kept reachable by descriptors");
+
+        task();
+    }
+
+    /** Writes a value whose class is defined by a new class loader, and
+        returns a weak reference to the loader, which is no longer used. */
+    private WeakReference<ClassLoader> writeFromDiscardedLoader()
+        throws TestFailed
+    {
+        SeparateLoader          loader = new SeparateLoader();
+
+        try
+        {
+            Class<?>            type = loader.define(Level.class.getName());
+
+            ClassDescriptors.write(new ByteArrayOutputStream(),
+                                   new Object[] {type.getEnumConstants()[0]});
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write value", e);
+        }
+
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    /** Returns a frame whose payload holds the given values. */
+    private Protocol.Frame frame(Object[] values) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        int[]                   ids;
+
+        try
+        {
+            ids = ClassDescriptors.write(bytes, values);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write values", e);
+        }
+
+        Protocol.Frame          frame =
+            new Protocol.Frame(Protocol.NO_METHOD_ID, bytes.toByteArray());
+        frame.descriptorIds = ids;
+        return frame;
+    }
+
+    /** Reads the values of a frame. */
+    private Object[] read(Protocol.Frame frame,
+                          ClassDescriptors.Incoming table, int count)
+        throws TestFailed, IOException
+    {
+        try
+        {
+            return ClassDescriptors.read(
+                new ByteArrayInputStream(frame.payload), count, table);
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to read values", e);
+        }
+    }
+
+    /** Checks that the values read from a frame are those written. */
+    private void check(Protocol.Frame frame, ClassDescriptors.Incoming table,
+                       Object[] values) throws TestFailed
+    {
+        Object[]                read;
+
+        try
+        {
+            read = read(frame, table, values.length);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read values", e);
+        }
+
+        if(!Arrays.deepEquals(read, values))
+        {
+            throw new TestFailed("values read differ from values written: " +
+                                 Arrays.deepToString(read));
+        }
+    }
+
+    /** Returns a stream over the bytes written, without the first byte,
+        which the reader is given separately. */
+    private DataInputStream input(ByteArrayOutputStream stream)
+    {
+        byte[]                  bytes = stream.toByteArray();
+
+        return new DataInputStream(
+            new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+    }
+
+    /** Checks that a definitions frame with the given payload is
+        rejected. */
+    private void expectRejected(byte[] payload) throws TestFailed
+    {
+        Protocol.Frame          definitions =
+            new Protocol.Frame(Protocol.NO_METHOD_ID, payload);
+        definitions.flags = Protocol.FLAG_DEFINITIONS;
+
+        try
+        {
+            new ClassDescriptors.Incoming().define(definitions);
+            throw new TestFailed("malformed definitions accepted");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Class loader defining its own copies of classes of this test. */
+    private static class SeparateLoader extends ClassLoader
+    {
+        SeparateLoader()
+        {
+            super(ClassDescriptorsTest.class.getClassLoader());
+        }
+
+        /** Defines a copy of a class from its class file. */
+        Class<?> define(String name) throws IOException
+        {
+            InputStream         in = getParent().getResourceAsStream(
+                name.replace('.', '/') + ".class");
+
+            if(in == null)
+                throw new FileNotFoundException("class file of " + name);
+
+            try
+            {
+                byte[]          bytes = in.readAllBytes();
+
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    /** Enumeration written by the test. */
+    public enum Level { LOW, HIGH }
+
+    /** Serializable class with a serializable superclass. */
+    public static class Named implements Serializable
+    {
+        private static final long   serialVersionUID = 1L;
+
+        final String            name;
+
+        Named(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /** Subclass written by the test. */
+    public static class Labelled extends Named
+    {
+        private static final long   serialVersionUID = 1L;
+
+        final int               label;
+
+        Labelled(String name, int label)
+        {
+            super(name);
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Labelled &&
+                   name.equals(((Labelled) other).name) &&
+                   label == ((Labelled) other).label;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.hashCode() * 31 + label;
+        }
+    }
+}
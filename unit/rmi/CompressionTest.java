@@ -0,0 +1,335 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/** Unit tests for the compression of payloads.
+
+    <p>
+    The tests encode requests passing a large, repetitive string and a byte
+    array, carried as a segment, and check that the built-in compressors
+    shorten them, segment included, and that they are decoded as encoded,
+    alone and as calls of a batch. They check that payloads shorter than the
+    threshold, payloads that do not compress, and payloads on connections
+    that did not agree to compression are left as they are, and that
+    compressed payloads that are corrupt, name an unknown compressor,
+    declare a wrong uncompressed length, or arrive on such connections are
+    rejected. They check that methods are included in and excluded from
+    compression according to their annotations.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking compressed payloads";
+
+    /** Checks the compression.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Method                  method = method(CompressedInterface.class,
+                                                "call", String.class,
+                                                byte[].class);
+        MethodTable             table =
+            MethodTable.of(CompressedInterface.class);
+        int                     methodId = table.id(method);
+
+        StringBuilder           builder = new StringBuilder();
+
+        for(int i = 0; i < 2000; ++i)
+            builder.append("value ").append(i % 10).append(';');
+
+        String                  text = builder.toString();
+        byte[]                  bytes = new byte[3000];
+        Arrays.fill(bytes, (byte)9);
+        Object[]                args = {text, bytes};
+
+        task("compressing and decompressing requests");
+
+        Compressor[]            compressors =
+            {Compressors.DEFLATE_FASTEST, Compressors.DEFLATE,
+             Compressors.DEFLATE_BEST,
+             Compressors.deflate(4)};
+
+        for(Compressor compressor : compressors)
+        {
+            Protocol.Frame      request = encode(method, methodId, args);
+            int                 length = request.wireLength();
+
+            compress(request, compressor, 1024, Protocol.CAPABILITIES);
+
+            if((request.flags & Protocol.FLAG_COMPRESSED) == 0 ||
+               request.segments != null || request.wireLength() >= length / 4)
+            {
+                throw new TestFailed("request of " + length + " bytes " +
+                                     "compressed to " + request.wireLength());
+            }
+
+            check(decode(read(request), table), args);
+        }
+
+        task("decompressing the calls of a batch");
+
+        Protocol.Frame          call = encode(method, methodId, args);
+        compress(call, Compressors.DEFLATE, 1024, Protocol.CAPABILITIES);
+
+        try
+        {
+            Protocol.Frame      batch = new Protocol.Frame(
+                Protocol.NO_METHOD_ID,
+                Protocol.encodeBatch(new Protocol.Frame[] {call}));
+            batch.capabilities = Protocol.CAPABILITIES;
+
+            check(decode(Protocol.decodeBatch(batch)[0], table), args);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode batch", e);
+        }
+
+        task("leaving small and incompressible payloads uncompressed");
+
+        Protocol.Frame          small = encode(method, methodId,
+                                               new Object[] {"ping",
+                                                             new byte[0]});
+        byte[]                  payload = small.payload;
+        compress(small, Compressors.DEFLATE, Compressors.DEFAULT_THRESHOLD,
+                 Protocol.CAPABILITIES);
+
+        if(small.flags != 0 || small.payload != payload)
+            throw new TestFailed("small payload compressed");
+
+        byte[]                  random = new byte[20000];
+        new Random(17).nextBytes(random);
+        Protocol.Frame          noise =
+            encode(method, methodId, new Object[] {"", random});
+        compress(noise, Compressors.DEFLATE, 0, Protocol.CAPABILITIES);
+
+        if((noise.flags & Protocol.FLAG_COMPRESSED) != 0)
+            throw new TestFailed("incompressible payload compressed");
+
+        Protocol.Frame          plain = encode(method, methodId, args);
+        compress(plain, Compressors.DEFLATE, 0,
+                 Protocol.CAPABILITIES & ~Protocol.CAP_COMPRESSION);
+
+        if((plain.flags & Protocol.FLAG_COMPRESSED) != 0)
+            throw new TestFailed("payload compressed without capability");
+
+        task("rejecting invalid compressed payloads");
+
+        Protocol.Frame          valid = encode(method, methodId, args);
+        compress(valid, Compressors.DEFLATE, 0, Protocol.CAPABILITIES);
+
+        Protocol.Frame          corrupt = read(valid);
+        corrupt.payload[corrupt.payload.length - 5] ^= 0x5a;
+        expectRejected(corrupt, table);
+
+        Protocol.Frame          truncated = read(valid);
+        truncated.payload = Arrays.copyOf(truncated.payload,
+                                          truncated.payload.length - 10);
+        expectRejected(truncated, table);
+
+        Protocol.Frame          unexpected = read(valid);
+        unexpected.capabilities &= ~Protocol.CAP_COMPRESSION;
+        expectRejected(unexpected, table);
+
+        Protocol.Frame          unknown = encode(method, methodId, args);
+        compress(unknown, new Compressor() {
+            @Override
+            public String name()
+            {
+                return "unknown";
+            }
+
+            @Override
+            public byte[] compress(byte[] bytes)
+            {
+                return new byte[1];
+            }
+
+            @Override
+            public byte[] decompress(byte[] bytes, int offset, int length,
+                                     int decompressedLength)
+            {
+                throw new IllegalStateException("decompressed");
+            }
+        }, 0, Protocol.CAPABILITIES);
+        expectRejected(read(unknown), table);
+
+        task("rejecting payloads declaring a wrong uncompressed length");
+
+        byte[]                  zeros = new byte[1000];
+        byte[]                  deflated;
+
+        try
+        {
+            deflated = Compressors.DEFLATE.compress(zeros);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to compress bytes", e);
+        }
+
+        int[]                   lengths = {Protocol.MAX_FRAME_LENGTH,
+                                           Integer.MAX_VALUE, 20000, 999,
+                                           1001};
+
+        for(int declared : lengths)
+        {
+            try
+            {
+                Compressors.DEFLATE.decompress(deflated, 0, deflated.length,
+                                               declared);
+                throw new TestFailed("payload of 1000 bytes accepted as " +
+                                     declared + " bytes");
+            }
+            catch(IOException e) { }
+        }
+
+        task("following the annotations of methods and interfaces");
+
+        MethodTable             annotated =
+            MethodTable.of(ExcludingInterface.class);
+
+        if(!table.isCompressed(methodId) ||
+           table.isCompressed(table.id(method(CompressedInterface.class,
+                                              "ping"))) ||
+           !annotated.isCompressed(annotated.id(
+               method(ExcludingInterface.class, "list"))) ||
+           annotated.isCompressed(annotated.id(
+               method(ExcludingInterface.class, "ping"))))
+        {
+            throw new TestFailed("annotations not followed");
+        }
+
+        task();
+    }
+
+    /** Returns a method of a remote interface. */
+    private Method method(Class<?> c, String name, Class<?>... types)
+        throws TestFailed
+    {
+        try
+        {
+            return c.getMethod(name, types);
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("unable to find method", e);
+        }
+    }
+
+    /** Encodes a request. */
+    private Protocol.Frame encode(Method method, int methodId, Object[] args)
+        throws TestFailed
+    {
+        try
+        {
+            return Protocol.encodeRequest(Protocol.VERSION, methodId, method,
+                                          args, Codecs.JAVA,
+                                          Protocol.CAPABILITIES);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode request", e);
+        }
+    }
+
+    /** Compresses a request. */
+    private void compress(Protocol.Frame frame, Compressor compressor,
+                          int threshold, int capabilities)
+        throws TestFailed
+    {
+        try
+        {
+            Protocol.compress(frame, compressor, threshold, capabilities);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to compress request", e);
+        }
+    }
+
+    /** Returns a frame as it is received after being written. */
+    private Protocol.Frame read(Protocol.Frame frame) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream    ostream = new DataOutputStream(bytes);
+            Protocol.appendFrame(ostream, Protocol.VERSION, frame,
+                                 new ClassDescriptors.Outgoing());
+            ostream.close();
+
+            DataInputStream     istream = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            return Protocol.readFrame(istream, Protocol.VERSION,
+                                      istream.read(), Protocol.CAPABILITIES,
+                                      new ClassDescriptors.Incoming());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write and read frame", e);
+        }
+    }
+
+    /** Decodes the arguments of a request. */
+    private Object[] decode(Protocol.Frame frame, MethodTable table)
+        throws TestFailed
+    {
+        try
+        {
+            return Protocol.decodeRequest(Protocol.VERSION, frame, table,
+                                          Codecs.JAVA).args;
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to decode request", e);
+        }
+    }
+
+    /** Checks that decoded arguments equal those encoded. */
+    private void check(Object[] decoded, Object[] args) throws TestFailed
+    {
+        if(!args[0].equals(decoded[0]) ||
+           !Arrays.equals((byte[])decoded[1], (byte[])args[1]))
+        {
+            throw new TestFailed("request not decoded as encoded");
+        }
+    }
+
+    /** Checks that a request cannot be decoded. */
+    private void expectRejected(Protocol.Frame frame, MethodTable table)
+        throws TestFailed
+    {
+        try
+        {
+            Protocol.decodeRequest(Protocol.VERSION, frame, table,
+                                   Codecs.JAVA);
+            throw new TestFailed("invalid compressed payload accepted");
+        }
+        catch(IOException | ClassNotFoundException e) { }
+    }
+
+    /** Remote interface whose methods are compressed unless excluded. */
+    public interface CompressedInterface
+    {
+        public void call(String text, byte[] bytes) throws RMIException;
+        @Compressed(false)
+        public void ping() throws RMIException;
+    }
+
+    /** Remote interface whose methods are compressed only if included. */
+    @Compressed(false)
+    public interface ExcludingInterface
+    {
+        @Compressed
+        public List<String> list() throws RMIException;
+        public void ping() throws RMIException;
+    }
+}
@@ -0,0 +1,384 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.*;
+import java.util.*;
+
+/** Unit tests for <code>ConnectionPool</code>.
+
+    <p>
+    The pool is tested against a minimal server which accepts connections,
+    answers the keep-alive preface on each, and then leaves them open until
+    told to close them. The server first answers that it cannot multiplex,
+    and then that it can, as a skeleton restarted with multiplexing would.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking client connection pool";
+
+    /** Server socket accepting pooled connections. */
+    private ServerSocket        listen_socket = null;
+    /** Connections accepted by the server. */
+    private final List<Socket>  accepted = new ArrayList<Socket>();
+    /** Address of the server. */
+    private InetSocketAddress   address;
+    /** Capabilities the server answers with. */
+    private volatile int        capabilities = 0;
+
+    /** Number of times the garbage collector is asked to run. */
+    private static final int    GC_ATTEMPTS = 20;
+    /** Time to wait after each request to the garbage collector, in
+        milliseconds. */
+    private static final int    GC_DELAY = 100;
+
+    /** Starts the minimal server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            listen_socket = new ServerSocket(0);
+            address = new InetSocketAddress("127.0.0.1",
+                                            listen_socket.getLocalPort());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to bind listening socket", t);
+        }
+
+        new Thread(new AcceptThread(listen_socket)).start();
+    }
+
+    /** Checks that connections are reused, and that connections closed by the
+        server are not handed out again.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ConnectionPool      pool = ConnectionPool.get(address);
+        Connection          first;
+        Connection          second;
+
+        task("acquiring and releasing a connection");
+
+        try
+        {
+            first = pool.acquire();
+            pool.release(first);
+            second = pool.acquire();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to acquire connection", e);
+        }
+
+        if(second != first)
+            throw new TestFailed("released connection was not reused");
+
+        if(!second.isReused())
+            throw new TestFailed("reused connection not marked as reused");
+
+        pool.release(second);
+
+        task("closing the connection at the server");
+
+        synchronized(accepted)
+        {
+            for(Socket socket : accepted)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+
+        task("checking that the closed connection is not handed out again");
+
+        long                deadline = System.currentTimeMillis() + 2000;
+
+        while(first.isHealthy())
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("closed connection reported healthy");
+
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        try
+        {
+            second = pool.acquire();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to acquire connection", e);
+        }
+
+        if(second == first)
+            throw new TestFailed("pool handed out connection closed by server");
+
+        pool.discard(second);
+
+        task("multiplexing once a restarted server agrees to it");
+
+        try
+        {
+            if(pool.shared() != null)
+                throw new TestFailed("multiplexed without the capability");
+
+            capabilities = Protocol.CAP_MULTIPLEX;
+
+            // The connection left idle above answered without the
+            // capability; the next one opened answers with it.
+            pool.discard(pool.acquire());
+            pool.discard(pool.acquire());
+
+            if(pool.shared() == null)
+                throw new TestFailed("pool does not multiplex again");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to open connection", e);
+        }
+
+        task("counting fresh connections against the limit");
+
+        ConnectionPool.setLimits(1, 8);
+
+        try
+        {
+            final Connection    held = pool.acquire();
+            final Connection[]  fresh = new Connection[1];
+            Thread              retry = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        fresh[0] = pool.acquireFresh();
+                    }
+                    catch(IOException e) { }
+                }
+            });
+
+            retry.start();
+            retry.join(200);
+
+            if(!retry.isAlive())
+            {
+                throw new TestFailed("fresh connection opened beyond the " +
+                                     "limit");
+            }
+
+            pool.discard(held);
+            retry.join(2000);
+
+            if(fresh[0] == null)
+            {
+                throw new TestFailed("fresh connection not opened once " +
+                                     "there was room");
+            }
+
+            pool.discard(fresh[0]);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to acquire connection", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for connection", e);
+        }
+        finally
+        {
+            ConnectionPool.setLimits(64, 8);
+        }
+
+        task("waking waiting callers when the limit is raised");
+
+        ConnectionPool.setLimits(1, 8);
+
+        try
+        {
+            final Connection    held = pool.acquire();
+            final Connection[]  waited = new Connection[1];
+            Thread              waiter = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        waited[0] = pool.acquire();
+                    }
+                    catch(IOException e) { }
+                }
+            });
+
+            waiter.start();
+            waiter.join(200);
+
+            if(!waiter.isAlive())
+                throw new TestFailed("connection opened beyond the limit");
+
+            ConnectionPool.setLimits(2, 8);
+            waiter.join(2000);
+
+            if(waited[0] == null)
+            {
+                throw new TestFailed("waiting caller not woken when the " +
+                                     "limit was raised");
+            }
+
+            pool.discard(waited[0]);
+            pool.discard(held);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to acquire connection", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for connection", e);
+        }
+        finally
+        {
+            ConnectionPool.setLimits(64, 8);
+        }
+
+        task("forgetting pools no longer in use");
+
+        WeakReference<ConnectionPool>   unused = forgotten();
+
+        for(int attempt = 0; attempt < GC_ATTEMPTS; ++attempt)
+        {
+            if(unused.get() == null)
+                break;
+
+            System.gc();
+
+            try
+            {
+                Thread.sleep(GC_DELAY);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        if(unused.get() != null)
+            throw new TestFailed("pool kept after its last connection closed");
+
+        task();
+    }
+
+    /** Uses a pool for a server of its own, closes its only connection,
+        and returns a weak reference to the pool. */
+    private WeakReference<ConnectionPool> forgotten() throws TestFailed
+    {
+        ServerSocket        server = null;
+
+        try
+        {
+            server = new ServerSocket(0);
+            new Thread(new AcceptThread(server)).start();
+
+            ConnectionPool  pool = ConnectionPool.get(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+
+            pool.discard(pool.acquire());
+
+            return new WeakReference<ConnectionPool>(pool);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to use pool for another server", e);
+        }
+        finally
+        {
+            if(server != null)
+            {
+                try
+                {
+                    server.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Stops the minimal server and closes all accepted connections. */
+    @Override
+    protected void clean()
+    {
+        if(listen_socket != null)
+        {
+            try
+            {
+                listen_socket.close();
+            }
+            catch(IOException e) { }
+        }
+
+        synchronized(accepted)
+        {
+            for(Socket socket : accepted)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Accepts connections and answers the keep-alive preface on each. */
+    private class AcceptThread implements Runnable
+    {
+        /** Socket on which connections are accepted. */
+        private final ServerSocket  server;
+
+        AcceptThread(ServerSocket server)
+        {
+            this.server = server;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Socket              socket = server.accept();
+                    DataInputStream     input =
+                        new DataInputStream(socket.getInputStream());
+                    DataOutputStream    output =
+                        new DataOutputStream(socket.getOutputStream());
+
+                    synchronized(accepted)
+                    {
+                        accepted.add(socket);
+                    }
+
+                    input.readInt();
+                    input.readInt();
+                    input.readInt();
+                    output.writeInt(Protocol.MAGIC);
+                    output.writeInt(Protocol.VERSION);
+                    output.writeInt(capabilities);
+                    output.flush();
+                }
+            }
+            catch(IOException e) { }
+        }
+    }
+}
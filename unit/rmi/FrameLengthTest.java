@@ -0,0 +1,152 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Unit tests for the reading of frame payloads by <code>Protocol</code>.
+
+    <p>
+    The tests read a payload larger than the buffer first allocated for it,
+    from a stream and, as the selector transports do, into buffers filled a
+    few bytes at a time, and check that it arrives unchanged. They then check
+    that a header declaring the largest payload accepted does not make the
+    reader allocate it before its bytes arrive.
+ */
+public class FrameLengthTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the reading of payloads";
+
+    /** Length of the large payload read by the test. */
+    private static final int    LENGTH = 5 * Protocol.INITIAL_PAYLOAD + 123;
+    /** Number of bytes read at a time into buffers. */
+    private static final int    CHUNK = 1000;
+
+    /** Checks the reading of payloads.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        byte[]                  payload = new byte[LENGTH];
+        new Random(1).nextBytes(payload);
+        byte[]                  bytes = written(payload);
+
+        task("reading a large payload from a stream");
+
+        Protocol.Frame          frame;
+
+        try
+        {
+            frame = Protocol.readFrame(input(bytes), Protocol.VERSION);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read frame", e);
+        }
+
+        if(!Arrays.equals(frame.payload, payload))
+            throw new TestFailed("payload read from stream changed");
+
+        task("reading a large payload into growing buffers");
+
+        ByteBuffer              source = ByteBuffer.wrap(bytes);
+        ByteBuffer              header =
+            ByteBuffer.allocate(Protocol.HEADER_LENGTH);
+
+        source.get(header.array());
+
+        try
+        {
+            frame = Protocol.parseHeader(header, Protocol.VERSION);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to parse header", e);
+        }
+
+        ByteBuffer              buffer = Protocol.newPayload(frame);
+
+        while(buffer.position() < frame.length)
+        {
+            buffer = Protocol.growPayload(buffer, frame);
+
+            int                 count =
+                Math.min(CHUNK, Math.min(buffer.remaining(),
+                                         source.remaining()));
+
+            buffer.put(source.array(), source.position(), count);
+            source.position(source.position() + count);
+        }
+
+        if(buffer.capacity() != LENGTH ||
+           !Arrays.equals(buffer.array(), payload))
+        {
+            throw new TestFailed("payload read into buffers changed");
+        }
+
+        task("allocating large payloads only as their bytes arrive");
+
+        byte[]                  forged = written(new byte[16]);
+        ByteBuffer.wrap(forged).putInt(Protocol.HEADER_LENGTH - 4,
+                                       Protocol.MAX_FRAME_LENGTH);
+
+        try
+        {
+            frame = Protocol.parseHeader(
+                ByteBuffer.wrap(forged, 0, Protocol.HEADER_LENGTH),
+                Protocol.VERSION);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to parse header", e);
+        }
+
+        if(Protocol.newPayload(frame).capacity() > Protocol.INITIAL_PAYLOAD)
+            throw new TestFailed("declared payload allocated before arrival");
+
+        try
+        {
+            Protocol.readFrame(input(forged), Protocol.VERSION);
+            throw new TestFailed("truncated payload read");
+        }
+        catch(EOFException e) { }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected exception reading truncated " +
+                                 "payload", e);
+        }
+
+        task();
+    }
+
+    /** Returns the bytes of a frame carrying the given payload. */
+    private byte[] written(byte[] payload) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream    ostream = new DataOutputStream(bytes);
+
+            Protocol.writeFrame(ostream, Protocol.VERSION,
+                                new Protocol.Frame(Protocol.NO_METHOD_ID,
+                                                   payload));
+            ostream.flush();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write frame", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private DataInputStream input(byte[] bytes)
+    {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,81 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+
+/** Unit tests for <code>Log</code>.
+
+    <p>
+    The tests check that messages below the threshold never reach the sink,
+    that lazily built messages are not built when their level is disabled, and
+    that enabled messages reach the sink with their level.
+ */
+public class LogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the logging facade";
+
+    /** Messages received by the test sink. */
+    private final List<String>  messages =
+        Collections.synchronizedList(new ArrayList<String>());
+    /** Threshold in effect before the test. */
+    private Log.Level           previousLevel;
+
+    /** Installs a sink that records messages. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        previousLevel = Log.getLevel();
+        Log.setSink(new Log.Sink() {
+            @Override
+            public void log(Log.Level level, String message, Throwable cause)
+            {
+                messages.add(level + " " + message);
+            }
+        });
+    }
+
+    /** Checks filtering by level.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking that debugging messages are discarded");
+
+        Log.setLevel(Log.Level.WARNING);
+        Log.debug("discarded");
+        Log.debug(() -> { throw new IllegalStateException("message built"); });
+        Log.info("discarded");
+
+        if(Log.debugging() || !messages.isEmpty())
+            throw new TestFailed("message below threshold logged");
+
+        task("checking that enabled messages are logged");
+
+        Log.warning("kept");
+        Log.setLevel(Log.Level.DEBUG);
+        Log.debug(() -> "built");
+
+        if(!messages.equals(Arrays.asList("WARNING kept", "DEBUG built")))
+            throw new TestFailed("unexpected messages " + messages);
+
+        task("checking that logging can be turned off");
+
+        messages.clear();
+        Log.setLevel(Log.Level.OFF);
+        Log.error("discarded", null);
+
+        if(!messages.isEmpty())
+            throw new TestFailed("message logged with logging off");
+    }
+
+    /** Restores the default sink and the previous threshold. */
+    @Override
+    protected void clean()
+    {
+        Log.setSink(Log.STANDARD_ERROR);
+        Log.setLevel(previousLevel);
+    }
+}
@@ -0,0 +1,99 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.*;
+
+/** Unit tests for <code>MethodTable</code>.
+
+    <p>
+    The tests check that identifiers follow the order of method signatures, that
+    overloads get distinct identifiers, and that the fingerprint distinguishes
+    interfaces whose methods differ.
+ */
+public class MethodTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking remote method tables";
+
+    /** Checks identifiers and fingerprints.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Overloaded.class);
+
+        task("checking that identifiers follow signature order");
+
+        String[]                expected =
+            {"call(int)", "call(java.lang.String)", "other()"};
+
+        for(int id = 0; id < expected.length; ++id)
+        {
+            Method              method = table.method(id);
+
+            if(method == null ||
+               !Protocol.signature(method).equals(expected[id]))
+            {
+                throw new TestFailed("method " + id + " is not " +
+                                     expected[id]);
+            }
+
+            if(table.id(method) != id)
+                throw new TestFailed("identifier of " + expected[id] +
+                                     " is not " + id);
+        }
+
+        if(table.method(expected.length) != null || table.method(-1) != null)
+            throw new TestFailed("table returned method for invalid id");
+
+        task("checking that tables are shared");
+
+        if(MethodTable.of(Overloaded.class) != table)
+            throw new TestFailed("table built twice for one interface");
+
+        task("checking interface fingerprints");
+
+        if(MethodTable.of(SameMethods.class).fingerprint() !=
+           table.fingerprint())
+        {
+            throw new TestFailed("interfaces with the same methods have " +
+                                 "different fingerprints");
+        }
+
+        if(MethodTable.of(OtherReturnType.class).fingerprint() ==
+           table.fingerprint())
+        {
+            throw new TestFailed("interfaces with different return types " +
+                                 "have the same fingerprint");
+        }
+
+        task();
+    }
+
+    /** Interface with an overloaded method. */
+    private interface Overloaded
+    {
+        void other() throws RMIException;
+        void call(String s) throws RMIException;
+        void call(int i) throws RMIException;
+    }
+
+    /** Interface declaring the same methods in a different order. */
+    private interface SameMethods
+    {
+        void call(int i) throws RMIException;
+        void call(String s) throws RMIException;
+        void other() throws RMIException;
+    }
+
+    /** Interface differing from <code>Overloaded</code> in one return
+        type. */
+    private interface OtherReturnType
+    {
+        void other() throws RMIException;
+        void call(String s) throws RMIException;
+        int call(int i) throws RMIException;
+    }
+}
@@ -0,0 +1,224 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/** Unit tests for <code>PrimitiveValues</code>.
+
+    <p>
+    The tests write values of every specialized type, including extreme
+    values, <code>null</code> boxes and strings that modified UTF-8 must
+    preserve, and check that they are read back equal. They check that
+    small integers take one byte, that malformed payloads are rejected, and
+    that a request and response mixing specialized and other values are
+    decoded as encoded.
+ */
+public class PrimitiveValuesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking raw encoding of primitives";
+
+    /** Checks the encoding.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("writing and reading specialized values");
+
+        char[]                  longText = new char[70000];
+        Arrays.fill(longText, 'a');
+
+        Class<?>[]              types =
+            {int.class, int.class, long.class, long.class, boolean.class,
+             byte.class, short.class, char.class, float.class, double.class,
+             Integer.class, Long.class, Double.class, String.class,
+             String.class, String.class, String.class};
+        Object[]                values =
+            {Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, -1L, true,
+             (byte)-128, (short)-2, '\uffff', Float.NaN, -0.0, null, 7L,
+             null, null, "", "nul \u0000, caf\u00e9, \ud800 alone",
+             new String(longText)};
+
+        byte[]                  bytes = write(types, values);
+        Object[]                read = read(types, bytes);
+
+        if(!Arrays.equals(values, read))
+        {
+            throw new TestFailed("values read differ from values written: " +
+                                 Arrays.toString(read));
+        }
+
+        task("writing small integers in one byte");
+
+        if(write(new Class<?>[] {int.class, long.class},
+                 new Object[] {-64, 63L}).length != 2)
+        {
+            throw new TestFailed("small integers not written in one byte " +
+                                 "each");
+        }
+
+        task("rejecting malformed payloads");
+
+        expectRejected(int.class, new byte[] {(byte)0x80});
+        expectRejected(int.class, new byte[] {(byte)0x80, (byte)0x80,
+                                              (byte)0x80, (byte)0x80,
+                                              (byte)0x80, 0x01});
+        expectRejected(long.class, new byte[] {(byte)0xff, (byte)0xff,
+                                               (byte)0xff, (byte)0xff,
+                                               (byte)0xff, (byte)0xff,
+                                               (byte)0xff, (byte)0xff,
+                                               (byte)0xff, (byte)0xff});
+        expectRejected(String.class, new byte[] {0x7e, 'a'});
+        expectRejected(String.class, new byte[] {0x04, (byte)0xc3});
+        expectRejected(Integer.class, new byte[0]);
+
+        task("encoding requests and responses with mixed arguments");
+
+        Method                  method;
+
+        try
+        {
+            method = MixedInterface.class.getMethod(
+                "call", int.class, Object.class, String.class, long.class);
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("unable to find method", e);
+        }
+
+        MethodTable             table = MethodTable.of(MixedInterface.class);
+        int                     methodId = table.id(method);
+        Object[]                args =
+            {42, new ArrayList<Object>(Arrays.asList("x", 1)), "name", 9L};
+        int                     capabilities =
+            Protocol.CAP_PRIMITIVES | Protocol.CAP_DESCRIPTORS;
+
+        try
+        {
+            Protocol.Frame      request = Protocol.encodeRequest(
+                Protocol.VERSION, methodId, method, args, Codecs.JAVA,
+                capabilities);
+            Protocol.Frame      named = Protocol.encodeRequest(
+                Protocol.VERSION, Protocol.NO_METHOD_ID, method, args,
+                Codecs.JAVA, capabilities);
+
+            ClassDescriptors.Outgoing outgoing =
+                new ClassDescriptors.Outgoing();
+            ClassDescriptors.Incoming incoming =
+                new ClassDescriptors.Incoming();
+
+            incoming.define(outgoing.definitions(request));
+            Protocol.receive(request, capabilities, incoming);
+            Protocol.receive(named, capabilities, incoming);
+
+            for(Protocol.Frame frame : new Protocol.Frame[] {request, named})
+            {
+                Protocol.Request    decoded = Protocol.decodeRequest(
+                    Protocol.VERSION, frame, table, Codecs.JAVA);
+
+                if(!method.equals(decoded.method) ||
+                   !Arrays.equals(args, decoded.args))
+                {
+                    throw new TestFailed("request decoded as " +
+                                         Arrays.toString(decoded.args));
+                }
+
+                Dispatcher.Outcome  outcome = new Dispatcher.Outcome();
+                outcome.result = -5L;
+
+                Protocol.Frame      response = Protocol.encodeResponse(
+                    Protocol.VERSION, frame, outcome, Codecs.JAVA,
+                    long.class);
+                Protocol.Frame  definitions = outgoing.definitions(response);
+
+                if(definitions != null)
+                    incoming.define(definitions);
+
+                Protocol.receive(response, capabilities, incoming);
+
+                Object          result = Protocol.decodeResponse(
+                    Protocol.VERSION, response, Codecs.JAVA,
+                    long.class).result;
+
+                if(!Long.valueOf(-5L).equals(result))
+                    throw new TestFailed("result decoded as " + result);
+            }
+
+            if((request.capabilities & Protocol.CAP_PRIMITIVES) == 0)
+                throw new TestFailed("request does not rely on primitives");
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to encode and decode call", e);
+        }
+
+        task();
+    }
+
+    /** Writes values of the given types to a byte array. */
+    private byte[] write(Class<?>[] types, Object[] values) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        ostream = new DataOutputStream(bytes);
+
+        try
+        {
+            for(int i = 0; i < types.length; ++i)
+                PrimitiveValues.write(ostream, types[i], values[i]);
+
+            ostream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write values", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /** Reads values of the given types from a byte array. */
+    private Object[] read(Class<?>[] types, byte[] bytes) throws TestFailed
+    {
+        DataInputStream         istream =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+        Object[]                values = new Object[types.length];
+
+        try
+        {
+            for(int i = 0; i < types.length; ++i)
+                values[i] = PrimitiveValues.read(istream, types[i]);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read values", e);
+        }
+
+        return values;
+    }
+
+    /** Checks that reading a value of the given type from a payload
+        fails. */
+    private void expectRejected(Class<?> type, byte[] payload)
+        throws TestFailed
+    {
+        try
+        {
+            PrimitiveValues.read(
+                new DataInputStream(new ByteArrayInputStream(payload)), type);
+            throw new TestFailed("malformed payload accepted");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Remote interface whose method mixes specialized and other
+        parameters. */
+    public interface MixedInterface
+    {
+        public long call(int number, Object value, String name, long count)
+            throws RMIException;
+    }
+}
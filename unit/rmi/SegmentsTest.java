@@ -0,0 +1,269 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Unit tests for <code>Segments</code>.
+
+    <p>
+    The tests encode a request whose arguments mix byte arrays, heap and
+    direct buffers and arrays of buffers with other values, and check that
+    their bytes are carried as segments rather than in the payload, that the
+    stream and buffer forms of the frame are the same bytes, that the
+    caller's buffers are left unchanged, and that the request, the same
+    request in a batch, and a response are decoded as encoded. They check
+    that payloads whose lengths do not match their segments are rejected.
+ */
+public class SegmentsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary values as segments";
+
+    /** Checks the encoding.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Method                  method = method("call", byte[].class,
+                                                int.class, ByteBuffer.class,
+                                                ByteBuffer[].class,
+                                                Object.class);
+        MethodTable             table = MethodTable.of(BinaryInterface.class);
+        int                     methodId = table.id(method);
+
+        byte[]                  bytes = new byte[100000];
+        Arrays.fill(bytes, (byte)7);
+        ByteBuffer              direct = ByteBuffer.allocateDirect(32);
+        direct.put(new byte[32]).position(4).limit(20);
+        ByteBuffer              heap =
+            ByteBuffer.wrap(new byte[] {1, 2, 3, 4}, 1, 2);
+        Object[]                args =
+            {bytes, 5, direct, new ByteBuffer[] {heap, null}, "other"};
+
+        task("carrying binary values as segments");
+
+        Protocol.Frame          request;
+
+        try
+        {
+            request = Protocol.encodeRequest(
+                Protocol.VERSION, methodId, method, args, Codecs.JAVA,
+                Protocol.CAPABILITIES);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode request", e);
+        }
+
+        if(request.segments == null || request.segments.length != 3)
+            throw new TestFailed("values not carried as segments");
+
+        if(request.payload.length >= 1000)
+        {
+            throw new TestFailed("payload of " + request.payload.length +
+                                 " bytes holds the binary values");
+        }
+
+        if(direct.position() != 4 || heap.position() != 1)
+            throw new TestFailed("position of argument changed");
+
+        task("writing the same bytes to streams and channels");
+
+        byte[]                  streamed = streamed(request);
+        byte[]                  gathered = gathered(request);
+
+        if(!Arrays.equals(streamed, gathered))
+            throw new TestFailed("stream and buffer forms differ");
+
+        task("decoding requests and responses");
+
+        Protocol.Frame          received = read(streamed);
+        check(decode(received, table), args);
+
+        try
+        {
+            Protocol.Frame      batch = new Protocol.Frame(
+                Protocol.NO_METHOD_ID,
+                Protocol.encodeBatch(new Protocol.Frame[] {request}));
+            batch.capabilities = received.capabilities;
+            batch.descriptors = received.descriptors;
+
+            check(decode(Protocol.decodeBatch(batch)[0], table), args);
+
+            Dispatcher.Outcome  outcome = new Dispatcher.Outcome();
+            outcome.result = direct;
+
+            Protocol.Frame      response = Protocol.encodeResponse(
+                Protocol.VERSION, received, outcome, Codecs.JAVA,
+                ByteBuffer.class);
+            Protocol.Frame      answer = read(streamed(response));
+            Object              result = Protocol.decodeResponse(
+                Protocol.VERSION, answer, Codecs.JAVA,
+                ByteBuffer.class).result;
+
+            if(!direct.equals(result))
+                throw new TestFailed("result decoded as " + result);
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to encode and decode call", e);
+        }
+
+        task("rejecting lengths that do not match the segments");
+
+        Method                  take = method("take", byte[].class);
+        int                     takeId = table.id(take);
+
+        expectRejected(table, takeId, new byte[] {0x08, 0x06, 1, 2});
+        expectRejected(table, takeId, new byte[] {0x04, 0x04, 1, 2});
+        expectRejected(table, takeId, new byte[] {0x04, 0x08, 1, 2});
+
+        task();
+    }
+
+    /** Returns a method of the remote interface. */
+    private Method method(String name, Class<?>... types) throws TestFailed
+    {
+        try
+        {
+            return BinaryInterface.class.getMethod(name, types);
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("unable to find method", e);
+        }
+    }
+
+    /** Returns a frame as written to a stream, with the definitions of the
+        class descriptors it uses. */
+    private byte[] streamed(Protocol.Frame frame) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        ostream = new DataOutputStream(bytes);
+
+        try
+        {
+            Protocol.appendFrame(ostream, Protocol.VERSION, frame,
+                                 new ClassDescriptors.Outgoing());
+            ostream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write frame", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /** Returns a frame as written to a channel, with the definitions of the
+        class descriptors it uses. */
+    private byte[] gathered(Protocol.Frame frame) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        List<ByteBuffer>        buffers = new ArrayList<ByteBuffer>();
+
+        try
+        {
+            Protocol.Frame      definitions =
+                new ClassDescriptors.Outgoing().definitions(frame);
+
+            if(definitions != null)
+            {
+                buffers.addAll(Arrays.asList(
+                    Protocol.toBuffers(Protocol.VERSION, definitions)));
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to define descriptors", e);
+        }
+
+        buffers.addAll(Arrays.asList(
+            Protocol.toBuffers(Protocol.VERSION, frame)));
+
+        for(ByteBuffer buffer : buffers)
+        {
+            while(buffer.hasRemaining())
+                bytes.write(buffer.get());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /** Reads a frame written by <code>streamed</code>. */
+    private Protocol.Frame read(byte[] bytes) throws TestFailed
+    {
+        DataInputStream         istream =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+
+        try
+        {
+            return Protocol.readFrame(istream, Protocol.VERSION,
+                                      istream.read(), Protocol.CAPABILITIES,
+                                      new ClassDescriptors.Incoming());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read frame", e);
+        }
+    }
+
+    /** Decodes the arguments of a request. */
+    private Object[] decode(Protocol.Frame frame, MethodTable table)
+        throws TestFailed
+    {
+        try
+        {
+            return Protocol.decodeRequest(Protocol.VERSION, frame, table,
+                                          Codecs.JAVA).args;
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to decode request", e);
+        }
+    }
+
+    /** Checks that decoded arguments equal those encoded. */
+    private void check(Object[] decoded, Object[] args) throws TestFailed
+    {
+        if(!Arrays.equals((byte[])decoded[0], (byte[])args[0]) ||
+           !args[1].equals(decoded[1]) || !args[2].equals(decoded[2]) ||
+           !Arrays.equals((ByteBuffer[])decoded[3], (ByteBuffer[])args[3]) ||
+           !args[4].equals(decoded[4]))
+        {
+            throw new TestFailed("request decoded as " +
+                                 Arrays.toString(decoded));
+        }
+    }
+
+    /** Checks that a request with the given payload is rejected. */
+    private void expectRejected(MethodTable table, int methodId,
+                                byte[] payload)
+        throws TestFailed
+    {
+        Protocol.Frame          frame = new Protocol.Frame(methodId, payload);
+        frame.capabilities = Protocol.CAP_SEGMENTS;
+
+        try
+        {
+            Protocol.decodeRequest(Protocol.VERSION, frame, table,
+                                   Codecs.JAVA);
+            throw new TestFailed("malformed payload accepted");
+        }
+        catch(IOException | ClassNotFoundException e) { }
+    }
+
+    /** Remote interface whose methods take binary values. */
+    public interface BinaryInterface
+    {
+        public ByteBuffer call(byte[] bytes, int count, ByteBuffer buffer,
+                               ByteBuffer[] buffers, Object other)
+            throws RMIException;
+        public void take(byte[] bytes) throws RMIException;
+    }
+}
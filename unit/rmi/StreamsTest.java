@@ -0,0 +1,393 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit tests for <code>Streams</code>.
+
+    <p>
+    The tests connect two stream tables to each other, writing each stream
+    frame one sends and reading it back before passing it to the other. They
+    encode a request passing an input stream and an output stream, and check
+    that the streams are not serialized in the payload, that no more than a
+    window of bytes is sent ahead of a reader that does not read, that the
+    bytes of both streams arrive whole and in order, and that the future
+    returned by <code>sinks</code> completes once the output stream has been
+    written. They check that an input stream the call does not take is
+    cancelled, closing its source, that an output stream it does not take is
+    ended once the call has been answered, and that failing the connection
+    fails its streams.
+ */
+public class StreamsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streams of frames";
+
+    /** Number of bytes passed through each stream. */
+    private static final int    LENGTH = 1 << 20;
+    /** Time after which a step that does not finish fails. */
+    private static final long   TIMEOUT = 10000;
+
+    /** Checks the streams.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Method                  method;
+
+        try
+        {
+            method = StreamInterface.class.getMethod(
+                "copy", InputStream.class, int.class, OutputStream.class);
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("unable to find method", e);
+        }
+
+        MethodTable             table = MethodTable.of(StreamInterface.class);
+        int                     methodId = table.id(method);
+
+        Link                    toServer = new Link();
+        Link                    toClient = new Link();
+        Streams                 client = new Streams(toServer);
+        Streams                 server = new Streams(toClient);
+        toServer.peer = server;
+        toClient.peer = client;
+
+        byte[]                  bytes = new byte[LENGTH];
+
+        for(int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)(i * 31 + 7);
+
+        ByteArrayOutputStream   sink = new ByteArrayOutputStream();
+        Object[]                args =
+            {new ByteArrayInputStream(bytes), 7, sink};
+
+        task("announcing the streams carried by a request");
+
+        Protocol.Frame          request = encode(method, methodId, args, 5);
+
+        if(request.streamValues == null ||
+           request.streamValues[1] != args[0] ||
+           request.streamValues[3] != sink)
+        {
+            throw new TestFailed("streams not recorded with the request");
+        }
+
+        if(request.payload.length >= 100)
+        {
+            throw new TestFailed("payload of " + request.payload.length +
+                                 " bytes holds the streams");
+        }
+
+        Protocol.Frame          received = send(client, server, request);
+
+        task("limiting the bytes sent ahead of the reader");
+
+        long                    delivered = settle(toServer);
+
+        if(delivered > Streams.WINDOW + Streams.CHUNK_LENGTH)
+        {
+            throw new TestFailed(delivered + " bytes sent to a reader that " +
+                                 "has not read");
+        }
+
+        task("reading and writing the streams passed to a call");
+
+        Object[]                decoded = decode(received, table);
+
+        if(!(decoded[0] instanceof InputStream) ||
+           !Integer.valueOf(7).equals(decoded[1]) ||
+           !(decoded[2] instanceof OutputStream))
+        {
+            throw new TestFailed("request decoded as " +
+                                 Arrays.toString(decoded));
+        }
+
+        try
+        {
+            InputStream         in = (InputStream)decoded[0];
+            OutputStream        out = (OutputStream)decoded[2];
+
+            if(!Arrays.equals(in.readAllBytes(), bytes))
+                throw new TestFailed("input stream not received whole");
+
+            in.close();
+            out.write(bytes, 0, 3);
+            out.write(bytes, 3, bytes.length - 3);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read or write stream", e);
+        }
+
+        server.release(5);
+        expectDone(client.sinks(5));
+
+        if(!Arrays.equals(sink.toByteArray(), bytes))
+            throw new TestFailed("output stream not written whole");
+
+        expectIdle(client, server);
+
+        task("cancelling a stream the call does not take");
+
+        Endless                 endless = new Endless();
+        Object[]                ignored =
+            {endless, 8, new ByteArrayOutputStream()};
+
+        send(client, server, encode(method, methodId, ignored, 6));
+        server.release(6);
+        expectDone(client.sinks(6));
+        waitFor(endless.closed, "source of cancelled stream not closed");
+        client.release(6);
+        expectIdle(client, server);
+
+        task("failing streams with the connection");
+
+        Endless                 failing = new Endless();
+        Object[]                dropped =
+            {failing, 9, new ByteArrayOutputStream()};
+        Protocol.Frame          last =
+            send(client, server, encode(method, methodId, dropped, 7));
+        InputStream             in = (InputStream)decode(last, table)[0];
+
+        server.fail(new IOException("connection closed"));
+
+        try
+        {
+            byte[]              buffer = new byte[Streams.CHUNK_LENGTH];
+
+            while(in.read(buffer) >= 0)
+                ;
+
+            throw new TestFailed("stream ended after the connection failed");
+        }
+        catch(IOException e) { }
+
+        client.fail(new IOException("connection closed"));
+        waitFor(failing.closed, "source of failed stream not closed");
+
+        task();
+    }
+
+    /** Encodes a request with the given identifier. */
+    private Protocol.Frame encode(Method method, int methodId, Object[] args,
+                                  int requestId)
+        throws TestFailed
+    {
+        try
+        {
+            Protocol.Frame      request = Protocol.encodeRequest(
+                Protocol.VERSION, methodId, method, args, Codecs.JAVA,
+                Protocol.CAPABILITIES);
+            request.requestId = requestId;
+            return request;
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode request", e);
+        }
+    }
+
+    /** Sends a request as a connection would: opens its streams, passes
+        the announcements and then the request to the server, and starts the
+        streams. Returns the request as received. */
+    private Protocol.Frame send(Streams client, Streams server,
+                                Protocol.Frame request)
+        throws TestFailed
+    {
+        try
+        {
+            for(Protocol.Frame announcement : client.open(request))
+                server.receive(announcement);
+
+            Protocol.Frame      received = read(written(request));
+            received.streams = server;
+            client.start(request);
+
+            return received;
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to send request", e);
+        }
+    }
+
+    /** Decodes the arguments of a request. */
+    private Object[] decode(Protocol.Frame frame, MethodTable table)
+        throws TestFailed
+    {
+        try
+        {
+            return Protocol.decodeRequest(Protocol.VERSION, frame, table,
+                                          Codecs.JAVA).args;
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to decode request", e);
+        }
+    }
+
+    /** Waits until a link stops carrying bytes, and returns the number of
+        bytes it has carried. */
+    private long settle(Link link) throws TestFailed
+    {
+        long                    last = -1;
+        long                    current = link.bytes();
+
+        while(current != last)
+        {
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+
+            last = current;
+            current = link.bytes();
+        }
+
+        return current;
+    }
+
+    /** Waits for the output streams of a call to be written. */
+    private void expectDone(CompletableFuture<Void> written) throws TestFailed
+    {
+        if(written == null)
+            throw new TestFailed("output stream not registered");
+
+        try
+        {
+            written.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("output stream not written", e);
+        }
+    }
+
+    /** Checks that neither side has a stream open. */
+    private void expectIdle(Streams client, Streams server) throws TestFailed
+    {
+        long                    deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(!client.isIdle() || !server.isIdle())
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("streams left open");
+
+            Thread.yield();
+        }
+    }
+
+    /** Waits for a latch, failing with the given message on timeout. */
+    private void waitFor(CountDownLatch latch, String message)
+        throws TestFailed
+    {
+        try
+        {
+            if(!latch.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed(message);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Returns a frame as written to a stream. */
+    private static byte[] written(Protocol.Frame frame) throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        ostream = new DataOutputStream(bytes);
+
+        Protocol.appendFrame(ostream, Protocol.VERSION, frame,
+                             new ClassDescriptors.Outgoing());
+        ostream.close();
+
+        return bytes.toByteArray();
+    }
+
+    /** Reads a frame written by <code>written</code>. */
+    private static Protocol.Frame read(byte[] bytes) throws IOException
+    {
+        DataInputStream         istream =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+
+        return Protocol.readFrame(istream, Protocol.VERSION, istream.read(),
+                                  Protocol.CAPABILITIES,
+                                  new ClassDescriptors.Incoming());
+    }
+
+    /** Carries the stream frames of one side to the other, writing and
+        reading each, and counts the data bytes carried. */
+    private static class Link implements Streams.Sender
+    {
+        /** Stream table receiving the frames. */
+        volatile Streams        peer;
+        private long            bytes = 0;
+
+        @Override
+        public void send(Protocol.Frame frame) throws IOException
+        {
+            Protocol.Frame      received = read(written(frame));
+
+            synchronized(this)
+            {
+                if(received.payload[0] == Streams.DATA)
+                {
+                    bytes += received.payload.length -
+                             Streams.HEADER_LENGTH;
+                }
+
+                peer.receive(received);
+            }
+        }
+
+        synchronized long bytes()
+        {
+            return bytes;
+        }
+    }
+
+    /** Input stream that never ends, and records when it is closed. */
+    private static class Endless extends InputStream
+    {
+        final CountDownLatch    closed = new CountDownLatch(1);
+
+        @Override
+        public int read()
+        {
+            return 1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+        {
+            Arrays.fill(buffer, offset, offset + length, (byte)1);
+            return length;
+        }
+
+        @Override
+        public void close()
+        {
+            closed.countDown();
+        }
+    }
+
+    /** Remote interface whose method takes streams. */
+    public interface StreamInterface
+    {
+        public void copy(InputStream in, int count, OutputStream out)
+            throws RMIException;
+    }
+}
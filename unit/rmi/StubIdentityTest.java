@@ -0,0 +1,91 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+
+/** Unit tests for the local methods of stubs.
+
+    <p>
+    The tests check that a stub keeps its hash code, string representation and
+    equality after being serialized, when its cached values are recomputed,
+    and that none of these methods resolve the host name of an unresolved
+    address.
+ */
+public class StubIdentityTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub identity";
+
+    /** Checks the local methods of a stub.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        InetSocketAddress       address =
+            InetSocketAddress.createUnresolved("stub-identity.invalid", 7000);
+        Identified              stub =
+            Stub.create(Identified.class, address);
+
+        task("checking string representation");
+
+        if(stub.toString().indexOf("stub-identity.invalid") == -1)
+            throw new TestFailed("host not found in " + stub);
+
+        if(!address.isUnresolved())
+            throw new TestFailed("address resolved by local methods");
+
+        task("checking identity after serialization");
+
+        Identified              copy = copy(stub);
+
+        if(!copy.equals(stub) || !stub.equals(copy))
+            throw new TestFailed("stub not equal to its copy");
+
+        if(copy.hashCode() != stub.hashCode())
+            throw new TestFailed("copy has a different hash code");
+
+        if(!copy.toString().equals(stub.toString()))
+            throw new TestFailed("copy has a different string");
+
+        task("checking inequality");
+
+        Identified              other = Stub.create(Identified.class,
+            InetSocketAddress.createUnresolved("stub-identity.invalid", 7001));
+
+        if(stub.equals(other) || stub.equals(null) ||
+           stub.equals(stub.toString()))
+        {
+            throw new TestFailed("stub equal to a different object");
+        }
+    }
+
+    /** Serializes and deserializes a stub. */
+    private Identified copy(Identified stub) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+            out.writeObject(stub);
+            out.close();
+
+            ObjectInputStream       in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            return (Identified)in.readObject();
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to serialize stub", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface Identified
+    {
+        /** Not called by the test. */
+        public void call() throws RMIException;
+    }
+}
@@ -0,0 +1,178 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.Path;
+
+/** Unit tests for the choice of Unix domain sockets by
+    <code>ConnectionPool</code>.
+
+    <p>
+    The pool is tested against a skeleton that also listens on a Unix domain
+    socket. The tests check that the first connection is opened over TCP, that
+    later connections are opened on the advertised socket, and that the pool
+    returns to TCP once the skeleton no longer listens on the socket.
+ */
+public class UnixSocketRouteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking choice of Unix domain sockets by connection pool";
+
+    /** Directory holding the socket. */
+    private TemporaryDirectory          directory = null;
+    /** Skeleton listening on TCP and on the socket. */
+    private Skeleton<RouteInterface>    skeleton = null;
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Checks the connections opened by the pool.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path                    path =
+            new File(directory.root(), "route.sock").toPath();
+
+        task("starting skeleton with Unix domain socket");
+
+        skeleton = new Skeleton<RouteInterface>(RouteInterface.class,
+                                                new Server());
+        skeleton.setUnixSocket(path);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", skeleton.getAddress().getPort());
+        ConnectionPool          pool = ConnectionPool.get(address);
+
+        task("opening the first connection");
+
+        Connection              first = open(pool);
+
+        if(!(peer(first) instanceof InetSocketAddress))
+            throw new TestFailed("first connection not opened over TCP");
+
+        if(first.unixSocket() == null ||
+           !first.unixSocket().getPath().equals(path))
+        {
+            throw new TestFailed("Unix domain socket not advertised");
+        }
+
+        task("opening a connection after the advertisement");
+
+        Connection              second = open(pool);
+
+        if(!(peer(second) instanceof UnixDomainSocketAddress))
+            throw new TestFailed("connection not opened on the socket");
+
+        if(second.unixSocket() != null)
+            throw new TestFailed("socket advertised on itself");
+
+        pool.discard(first);
+        pool.discard(second);
+
+        task("restarting skeleton without the socket");
+
+        skeleton.stop();
+
+        if(path.toFile().exists())
+            throw new TestFailed("socket file not removed");
+
+        skeleton = new Skeleton<RouteInterface>(RouteInterface.class,
+                                                new Server(), address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to restart skeleton", e);
+        }
+
+        Connection              third = open(pool);
+
+        if(!(peer(third) instanceof InetSocketAddress))
+            throw new TestFailed("connection not opened over TCP");
+
+        pool.discard(third);
+
+        task();
+    }
+
+    /** Stops the skeleton and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(directory != null)
+            directory.remove();
+    }
+
+    /** Opens a fresh connection from a pool. */
+    private Connection open(ConnectionPool pool) throws TestFailed
+    {
+        try
+        {
+            return pool.acquireFresh();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to open connection", e);
+        }
+    }
+
+    /** Returns the address of the skeleton at the other end of a
+        connection. */
+    private SocketAddress peer(Connection connection) throws TestFailed
+    {
+        try
+        {
+            return connection.channel().getRemoteAddress();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to get peer address", e);
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    interface RouteInterface
+    {
+        void call() throws RMIException;
+    }
+
+    /** Server of the skeleton. */
+    private static class Server implements RouteInterface
+    {
+        @Override
+        public void call()
+        {
+        }
+    }
+}